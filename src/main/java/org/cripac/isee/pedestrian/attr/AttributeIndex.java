@@ -0,0 +1,317 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.attr;
+
+import com.google.gson.annotations.SerializedName;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The AttributeIndex class indexes recognized pedestrians by their attributes,
+ * so that pedestrians can be searched by attributes in interactive time
+ * instead of being reachable only by tracklet IDs.
+ * <p>
+ * Each attribute of a pedestrian is thresholded on its confidence. For each
+ * attribute, a bitmap marks the pedestrians having it, so that a query is
+ * answered by intersecting the bitmaps of the required attributes. Only the
+ * confidences over the threshold are kept, which are used to rank the matches.
+ * Indexing a pedestrian again replaces its previous attributes.
+ * <p>
+ * The index is kept in memory. It is safe to be searched while being updated.
+ */
+public class AttributeIndex {
+
+    /**
+     * Default threshold on confidences for a pedestrian to have an attribute.
+     */
+    public static final float DEFAULT_THRESHOLD = 0.5f;
+
+    /**
+     * The attribute fields of {@link Attributes}, in declaration order.
+     */
+    private static final Field[] FIELDS;
+    /**
+     * Indices of the attribute fields by field names and serialized names.
+     */
+    private static final Map<String, Integer> FIELD_INDICES = new HashMap<>();
+
+    static {
+        List<Field> fields = new ArrayList<>();
+        for (Field field : Attributes.class.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers)
+                    && field.getType() == float.class) {
+                fields.add(field);
+            }
+        }
+        FIELDS = fields.toArray(new Field[fields.size()]);
+        for (int i = 0; i < FIELDS.length; ++i) {
+            FIELD_INDICES.put(FIELDS[i].getName(), i);
+            SerializedName serializedName = FIELDS[i].getAnnotation(SerializedName.class);
+            if (serializedName != null) {
+                FIELD_INDICES.put(serializedName.value(), i);
+            }
+        }
+    }
+
+    /**
+     * A pedestrian indexed.
+     */
+    private static class Document {
+        final Tracklet.Identifier trackletID;
+        final long indexTime;
+        /**
+         * Indices of the attributes the pedestrian has, in ascending order.
+         */
+        final int[] fields;
+        final float[] confidences;
+
+        Document(Tracklet.Identifier trackletID, long indexTime, int[] fields, float[] confidences) {
+            this.trackletID = trackletID;
+            this.indexTime = indexTime;
+            this.fields = fields;
+            this.confidences = confidences;
+        }
+
+        /**
+         * @return Confidence of an attribute, or 0 if the pedestrian does not have it.
+         */
+        float confidenceOf(int field) {
+            int pos = Arrays.binarySearch(fields, field);
+            return pos >= 0 ? confidences[pos] : 0;
+        }
+    }
+
+    /**
+     * A match of a query.
+     */
+    private static class Hit {
+        final Document doc;
+        final float score;
+
+        Hit(Document doc, float score) {
+            this.doc = doc;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Orders hits from the worst to the best: by score, then the latest indexed.
+     */
+    private static final Comparator<Hit> HIT_ORDER = (a, b) -> {
+        int cmp = Float.compare(a.score, b.score);
+        return cmp != 0 ? cmp : Long.compare(a.doc.indexTime, b.doc.indexTime);
+    };
+
+    private final float threshold;
+    private final Map<String, Integer> docIDs = new HashMap<>();
+    private final List<Document> docs = new ArrayList<>();
+    private final BitSet[] postings = new BitSet[FIELDS.length];
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Create an empty index.
+     *
+     * @param threshold Minimum confidence for a pedestrian to have an attribute.
+     */
+    public AttributeIndex(float threshold) {
+        this.threshold = threshold;
+        for (int i = 0; i < postings.length; ++i) {
+            postings[i] = new BitSet();
+        }
+    }
+
+    /**
+     * Create an empty index with the default threshold.
+     */
+    public AttributeIndex() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @return Names of the attributes that can be searched.
+     */
+    public static List<String> getAttributeNames() {
+        List<String> names = new ArrayList<>(FIELDS.length);
+        for (Field field : FIELDS) {
+            names.add(field.getName());
+        }
+        return names;
+    }
+
+    private static int indexOfAttr(@Nonnull String name) {
+        Integer index = FIELD_INDICES.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown attribute: " + name);
+        }
+        return index;
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return Number of pedestrians indexed.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Index the attributes of a pedestrian.
+     *
+     * @param attr Attributes of a pedestrian, whose tracklet ID must be set.
+     * @throws IllegalArgumentException If the tracklet ID is not set.
+     */
+    public void add(@Nonnull Attributes attr) {
+        if (attr.trackletID == null) {
+            throw new IllegalArgumentException("Attributes to index are not bound to any tracklet!");
+        }
+
+        int[] fields = new int[FIELDS.length];
+        float[] confidences = new float[FIELDS.length];
+        int numFields = 0;
+        for (int i = 0; i < FIELDS.length; ++i) {
+            float confidence;
+            try {
+                confidence = FIELDS[i].getFloat(attr);
+            } catch (IllegalAccessException e) {
+                // Only public fields are indexed.
+                throw new IllegalStateException(e);
+            }
+            if (confidence >= threshold) {
+                fields[numFields] = i;
+                confidences[numFields] = confidence;
+                ++numFields;
+            }
+        }
+        Document doc = new Document(attr.trackletID, System.currentTimeMillis(),
+                Arrays.copyOf(fields, numFields), Arrays.copyOf(confidences, numFields));
+
+        String key = attr.trackletID.toString();
+        lock.writeLock().lock();
+        try {
+            Integer docID = docIDs.get(key);
+            if (docID == null) {
+                docID = docs.size();
+                docs.add(doc);
+                docIDs.put(key, docID);
+            } else {
+                for (int field : docs.get(docID).fields) {
+                    postings[field].clear(docID);
+                }
+                docs.set(docID, doc);
+            }
+            for (int field : doc.fields) {
+                postings[field].set(docID);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search for pedestrians by attributes.
+     *
+     * @param query The query.
+     * @return Tracklet IDs of the matching pedestrians, ordered by the sum of
+     * confidences of the required attributes, then by the time indexed,
+     * both descending.
+     * @throws IllegalArgumentException If the query requires unknown attributes.
+     */
+    public Tracklet.Identifier[] search(@Nonnull AttributeQuery query) {
+        Map<String, Float> requiredAttrs = query.getRequiredAttrs();
+        int[] fields = new int[requiredAttrs.size()];
+        float[] minConfidences = new float[requiredAttrs.size()];
+        int numFields = 0;
+        for (Map.Entry<String, Float> entry : requiredAttrs.entrySet()) {
+            fields[numFields] = indexOfAttr(entry.getKey());
+            minConfidences[numFields] = entry.getValue();
+            ++numFields;
+        }
+        String videoIDPrefix = query.getVideoIDPrefix();
+        int maxResults = query.getMaxResults() > 0 ? query.getMaxResults() : Integer.MAX_VALUE;
+
+        PriorityQueue<Hit> hits = new PriorityQueue<>(HIT_ORDER);
+        lock.readLock().lock();
+        try {
+            BitSet candidates;
+            if (numFields == 0) {
+                candidates = new BitSet(docs.size());
+                candidates.set(0, docs.size());
+            } else {
+                // Intersect from the rarest attribute, so that the candidates shrink fastest.
+                Integer[] order = new Integer[numFields];
+                for (int i = 0; i < numFields; ++i) {
+                    order[i] = fields[i];
+                }
+                Arrays.sort(order, Comparator.comparingInt(field -> postings[field].cardinality()));
+                candidates = (BitSet) postings[order[0]].clone();
+                for (int i = 1; i < numFields && !candidates.isEmpty(); ++i) {
+                    candidates.and(postings[order[i]]);
+                }
+            }
+
+            for (int docID = candidates.nextSetBit(0); docID >= 0; docID = candidates.nextSetBit(docID + 1)) {
+                Document doc = docs.get(docID);
+                if (doc.indexTime < query.getSince()) {
+                    continue;
+                }
+                if (videoIDPrefix != null && !doc.trackletID.videoID.startsWith(videoIDPrefix)) {
+                    continue;
+                }
+                float score = 0;
+                boolean matched = true;
+                for (int i = 0; i < numFields; ++i) {
+                    float confidence = doc.confidenceOf(fields[i]);
+                    if (confidence < minConfidences[i]) {
+                        matched = false;
+                        break;
+                    }
+                    score += confidence;
+                }
+                if (!matched) {
+                    continue;
+                }
+                hits.add(new Hit(doc, score));
+                if (hits.size() > maxResults) {
+                    hits.poll();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Tracklet.Identifier[] results = new Tracklet.Identifier[hits.size()];
+        for (int i = results.length - 1; i >= 0; --i) {
+            results[i] = hits.poll().doc.trackletID;
+        }
+        return results;
+    }
+}
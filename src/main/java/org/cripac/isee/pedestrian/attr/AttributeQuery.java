@@ -0,0 +1,133 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.attr;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The AttributeQuery class describes a search for pedestrians by their
+ * attributes, e.g. "red upper clothing and a backpack in camera X today".
+ * <p>
+ * Attributes are named either by the fields of {@link Attributes} (e.g.
+ * "upperRed") or by their serialized names (e.g. "upper_red"). A pedestrian
+ * matches the query if it has all the required attributes, with confidences
+ * no less than both the threshold of the index and the minimum confidences
+ * given here.
+ * @see AttributeIndex
+ */
+public class AttributeQuery implements Serializable {
+
+    private static final long serialVersionUID = 6085237319436201187L;
+
+    public static final int DEFAULT_MAX_RESULTS = 100;
+
+    private final Map<String, Float> requiredAttrs = new LinkedHashMap<>();
+    private String videoIDPrefix = null;
+    private long since = 0;
+    private int maxResults = DEFAULT_MAX_RESULTS;
+
+    /**
+     * Require pedestrians to have an attribute.
+     *
+     * @param attr Name of the attribute.
+     * @return This query.
+     */
+    public AttributeQuery require(@Nonnull String attr) {
+        return require(attr, 0);
+    }
+
+    /**
+     * Require pedestrians to have an attribute with at least a confidence.
+     *
+     * @param attr          Name of the attribute.
+     * @param minConfidence Minimum confidence of the attribute.
+     * @return This query.
+     */
+    public AttributeQuery require(@Nonnull String attr, float minConfidence) {
+        requiredAttrs.put(attr, minConfidence);
+        return this;
+    }
+
+    /**
+     * Only search in videos whose IDs start with a prefix, e.g. the videos
+     * of a camera.
+     *
+     * @param videoIDPrefix Prefix of video IDs, or null to search in all videos.
+     * @return This query.
+     */
+    public AttributeQuery inVideos(@Nullable String videoIDPrefix) {
+        this.videoIDPrefix = videoIDPrefix;
+        return this;
+    }
+
+    /**
+     * Only search in pedestrians indexed since a moment.
+     *
+     * @param since Time in milliseconds since the epoch.
+     * @return This query.
+     */
+    public AttributeQuery since(long since) {
+        this.since = since;
+        return this;
+    }
+
+    /**
+     * Limit the number of results.
+     *
+     * @param maxResults Maximum number of pedestrians returned.
+     *                   Non-positive values return all the matches.
+     * @return This query.
+     */
+    public AttributeQuery limit(int maxResults) {
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    /**
+     * @return Required attributes mapped to their minimum confidences.
+     */
+    public Map<String, Float> getRequiredAttrs() {
+        return Collections.unmodifiableMap(requiredAttrs);
+    }
+
+    @Nullable
+    public String getVideoIDPrefix() {
+        return videoIDPrefix;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    @Override
+    public String toString() {
+        return "AttributeQuery" + requiredAttrs
+                + (videoIDPrefix == null ? "" : " in " + videoIDPrefix + "*")
+                + (since > 0 ? " since " + since : "")
+                + " top " + maxResults;
+    }
+}
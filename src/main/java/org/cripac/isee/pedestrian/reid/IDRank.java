@@ -0,0 +1,126 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.reid;
+
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+
+/**
+ * The IDRank class stores the result of a ReID query: the IDs of the
+ * pedestrians most similar to the queried one, in descending order of
+ * similarity, along with the similarities.
+ */
+public class IDRank implements Serializable {
+
+    private static final long serialVersionUID = 2735069253843175213L;
+
+    /**
+     * Tracklet of the queried pedestrian, or null if not known.
+     */
+    public final Tracklet.Identifier queryID;
+    /**
+     * IDs of the pedestrians in descending order of similarity.
+     */
+    public final int[] ids;
+    /**
+     * Similarity of each pedestrian in {@link #ids}.
+     */
+    public final float[] similarities;
+    /**
+     * Whether the similarities are scored by the ReIDer,
+     * rather than derived from the rank (see {@link #fromRank(Tracklet.Identifier, int[])}).
+     */
+    public final boolean scored;
+    /**
+     * Tracklet of each pedestrian in {@link #ids},
+     * or null if the ReIDer does not know them.
+     */
+    @Nullable
+    public final Tracklet.Identifier[] galleryTracklets;
+
+    /**
+     * Create a rank scored by a ReIDer, without the tracklets of the pedestrians.
+     *
+     * @throws IllegalArgumentException If the numbers of IDs and similarities differ.
+     */
+    public IDRank(@Nullable Tracklet.Identifier queryID,
+                  @Nonnull int[] ids,
+                  @Nonnull float[] similarities) {
+        this(queryID, ids, similarities, true, null);
+    }
+
+    /**
+     * @param queryID          Tracklet of the queried pedestrian, or null if not known.
+     * @param ids              IDs of the pedestrians in descending order of similarity.
+     * @param similarities     Similarity of each pedestrian.
+     * @param scored           Whether the similarities are scored by the ReIDer.
+     * @param galleryTracklets Tracklet of each pedestrian, or null if not known.
+     * @throws IllegalArgumentException If the numbers of IDs, similarities and tracklets differ.
+     */
+    public IDRank(@Nullable Tracklet.Identifier queryID,
+                  @Nonnull int[] ids,
+                  @Nonnull float[] similarities,
+                  boolean scored,
+                  @Nullable Tracklet.Identifier[] galleryTracklets) {
+        if (ids.length != similarities.length) {
+            throw new IllegalArgumentException("Got " + ids.length + " IDs but "
+                    + similarities.length + " similarities!");
+        }
+        if (galleryTracklets != null && galleryTracklets.length != ids.length) {
+            throw new IllegalArgumentException("Got " + ids.length + " IDs but "
+                    + galleryTracklets.length + " tracklets!");
+        }
+        this.queryID = queryID;
+        this.ids = ids;
+        this.similarities = similarities;
+        this.scored = scored;
+        this.galleryTracklets = galleryTracklets;
+    }
+
+    /**
+     * Create a rank from IDs only, for ReIDers not scoring the pedestrians.
+     * Similarities are derived from the ranks, decreasing linearly from 1
+     * for the first to 1/n for the last of n pedestrians.
+     *
+     * @param queryID Tracklet of the queried pedestrian, or null if not known.
+     * @param ids     IDs of the pedestrians in descending order of similarity.
+     * @return The rank.
+     */
+    public static IDRank fromRank(@Nullable Tracklet.Identifier queryID,
+                                  @Nonnull int[] ids) {
+        float[] similarities = new float[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            similarities[i] = (float) (ids.length - i) / ids.length;
+        }
+        return new IDRank(queryID, ids, similarities, false, null);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(queryID).append(':');
+        for (int i = 0; i < ids.length; ++i) {
+            builder.append(' ').append(ids[i]).append('(')
+                    .append(String.format("%.3f", similarities[i])).append(')');
+        }
+        return builder.toString();
+    }
+}
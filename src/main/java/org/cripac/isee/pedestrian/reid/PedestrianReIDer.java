@@ -17,6 +17,8 @@
 
 package org.cripac.isee.pedestrian.reid;
 
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+
 import javax.annotation.Nonnull;
 import java.io.IOException;
 
@@ -36,4 +38,24 @@ public abstract class PedestrianReIDer {
      * @throws IOException On error conducting ReID.
      */
     public abstract int[] reid(@Nonnull PedestrianInfo pedestrian) throws IOException;
+
+    /**
+     * Perform ReID with a target pedestrian, returning the similarities as well.
+     * By default, similarities are derived from the rank returned by
+     * {@link #reid(PedestrianInfo)}. ReIDers scoring the pedestrians should
+     * override this to return the real similarities.
+     *
+     * @param pedestrian The target pedestrian.
+     * @return A rank of possible IDs of the pedestrian with their similarities.
+     * @throws IOException On error conducting ReID.
+     */
+    public IDRank rank(@Nonnull PedestrianInfo pedestrian) throws IOException {
+        Tracklet.Identifier queryID = null;
+        if (pedestrian.tracklet != null) {
+            queryID = pedestrian.tracklet.id;
+        } else if (pedestrian.attr != null) {
+            queryID = pedestrian.attr.trackletID;
+        }
+        return IDRank.fromRank(queryID, reid(pedestrian));
+    }
 }
@@ -17,12 +17,16 @@
 
 package org.cripac.isee.pedestrian.tracking;
 
+import org.cripac.isee.vpe.util.NativeMemoryRegistry;
 import org.cripac.isee.vpe.util.logging.ConsoleLogger;
 import org.cripac.isee.vpe.util.logging.Logger;
+import org.cripac.isee.vpe.util.tracking.MotionGate;
 import org.cripac.isee.vpe.util.tracking.VideoDecoder;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The BasicTracker class is a JNI class of a pedestrian tracking algorithm used
@@ -33,6 +37,19 @@ import javax.annotation.Nullable;
  */
 public class BasicTracker extends Tracker {
 
+    /**
+     * Maximum number of trackers running at the same time in a JVM.
+     */
+    private static final int MAX_INSTANCES = 5;
+    /**
+     * Estimated native memory used by a tracker besides its frame buffers.
+     */
+    private static final long TRACKER_CONTEXT_BYTES = 32L << 20;
+    /**
+     * Estimated number of frames buffered inside a native tracker.
+     */
+    private static final int TRACKER_FRAME_BUFFERS = 8;
+
     private static int instanceCnt = 0;
 
     static {
@@ -44,6 +61,15 @@ public class BasicTracker extends Tracker {
 
     private byte[] conf;
     private Logger logger;
+    /**
+     * Configuration of the motion gate between the decoder and the tracker.
+     * If null, every frame is fed to the tracker.
+     */
+    private MotionGate.Config gateConf;
+    /**
+     * Statistics of the motion gate in the last tracking.
+     */
+    private MotionGate.Statistics lastGateStat = null;
 
     public BasicTracker(@Nonnull byte[] conf) {
         this(conf, null);
@@ -57,14 +83,64 @@ public class BasicTracker extends Tracker {
      */
     public BasicTracker(@Nonnull byte[] conf,
                         @Nullable Logger logger) {
+        this(conf, logger, null);
+    }
+
+    /**
+     * Construct a tracker with a configuration and a motion gate. Frames judged
+     * static by the gate are not fed to the native tracker.
+     *
+     * @param conf     The byte data of the configuration file.
+     * @param logger   Logger for outputting runtime information.
+     * @param gateConf Configuration of the motion gate. Set to null to feed
+     *                 every frame to the tracker.
+     */
+    public BasicTracker(@Nonnull byte[] conf,
+                        @Nullable Logger logger,
+                        @Nullable MotionGate.Config gateConf) {
         this.conf = conf;
-        if (logger == null) {
+        this.gateConf = gateConf;
+        if (logger != null) {
             this.logger = logger;
         } else {
             this.logger = new ConsoleLogger();
         }
     }
 
+    /**
+     * Wait until the number of trackers running on this node is below the limit.
+     */
+    private void acquireInstanceSlot() throws InterruptedException {
+        synchronized (BasicTracker.class) {
+            while (instanceCnt >= MAX_INSTANCES) {
+                BasicTracker.class.wait();
+            }
+            ++instanceCnt;
+            logger.info("Tracker instance count: " + instanceCnt);
+        }
+    }
+
+    private void releaseInstanceSlot() {
+        synchronized (BasicTracker.class) {
+            --instanceCnt;
+            BasicTracker.class.notifyAll();
+            logger.info("Tracker instance count: " + instanceCnt);
+        }
+    }
+
+    /**
+     * Opener of the decoder of a video to track.
+     */
+    @FunctionalInterface
+    public interface DecoderOpener {
+        /**
+         * @return A decoder of the video, which is closed by the tracker.
+         * @throws IOException          On failure reading the video.
+         * @throws InterruptedException On interrupted while waiting for native memory.
+         */
+        VideoDecoder open() throws IOException, InterruptedException;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -72,34 +148,96 @@ public class BasicTracker extends Tracker {
      */
     @Override
     public Tracklet[] track(@Nonnull byte[] videoBytes) {
+        return track(() -> new VideoDecoder(videoBytes));
+    }
+
+    /**
+     * Track pedestrians in a video decoded by a decoder opened on demand, e.g. one
+     * reading a video on HDFS through its keyframe index. The decoder may be opened
+     * more than once while waiting for native memory.
+     *
+     * @param decoderOpener Opener of the decoder of the video.
+     * @return Tracklets found in the video, or null on failure.
+     */
+    public Tracklet[] track(@Nonnull DecoderOpener decoderOpener) {
+        if (conf == null) {
+            logger.fatal("Configuration file is NULL!");
+            return null;
+        }
+
         // Limit instances on a single node.
-        while (true) {
-            synchronized (BasicTracker.class) {
-                if (instanceCnt < 5) {
-                    ++instanceCnt;
-                    try {
-                        logger.info("Tracker instance count: " + instanceCnt);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+        try {
+            acquireInstanceSlot();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while waiting for other trackers to finish!", e);
+            return null;
+        }
+
+        try {
+            // The size of the tracker is known only after the decoder is opened. Waiting for
+            // the memory of the tracker while holding that of the decoder could deadlock with
+            // other tasks doing the same, so the decoder is closed and both are waited for
+            // together when the tracker does not fit in the budget.
+            VideoDecoder openedDecoder;
+            NativeMemoryRegistry.Reservation trackerReservation;
+            while (true) {
+                openedDecoder = decoderOpener.open();
+                VideoDecoder.VideoInfo videoInfo = openedDecoder.getVideoInfo();
+                long frameBytes = (long) videoInfo.width * videoInfo.height * videoInfo.channels;
+                long trackerBytes = TRACKER_CONTEXT_BYTES + frameBytes * TRACKER_FRAME_BUFFERS;
+                long decoderBytes = openedDecoder.getReservedBytes();
+                trackerReservation = NativeMemoryRegistry.tryReserve(
+                        BasicTracker.class.getSimpleName(), trackerBytes, decoderBytes);
+                if (trackerReservation != null) {
                     break;
                 }
+                openedDecoder.close();
+                NativeMemoryRegistry.awaitAvailable(decoderBytes + trackerBytes);
             }
-        }
 
-        VideoDecoder videoDecoder = new VideoDecoder(videoBytes);
-        logger.debug("Initialized video decoder!");
-        VideoDecoder.VideoInfo videoInfo = videoDecoder.getVideoInfo();
-        logger.debug("To perform tracking on video with width=" + videoInfo.width + " height=" + videoInfo.height + "!");
-
-        if (conf == null) {
-            logger.fatal("Configuration file is NULL!");
+            // Native resources are released on every path, including exceptions
+            // thrown from the native tracker.
+            try (VideoDecoder videoDecoder = openedDecoder;
+                 NativeMemoryRegistry.Reservation ignored = trackerReservation) {
+                logger.debug("Initialized video decoder!");
+                VideoDecoder.VideoInfo videoInfo = videoDecoder.getVideoInfo();
+                logger.debug("To perform tracking on video with width=" + videoInfo.width + " height=" + videoInfo.height + "!");
+                long trackerPointer = initialize(videoInfo.width, videoInfo.height, videoInfo.channels, conf);
+                logger.debug("Initialized tracker!");
+                try {
+                    return track(videoDecoder, videoInfo, trackerPointer);
+                } finally {
+                    free(trackerPointer);
+                    logger.debug(NativeMemoryRegistry.getSummary());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while waiting for native memory!", e);
             return null;
+        } catch (IOException e) {
+            logger.error("Failed to open the video to track!", e);
+            return null;
+        } finally {
+            releaseInstanceSlot();
         }
-        long trackerPointer = initialize(videoInfo.width, videoInfo.height, videoInfo.channels, conf);
-        logger.debug("Initialized tracker!");
+//        return new FakePedestrianTracker().track(videoBytes);
+    }
+
+    /**
+     * Feed the frames decoded into an initialized native tracker and get the targets.
+     */
+    private Tracklet[] track(@Nonnull VideoDecoder videoDecoder,
+                             @Nonnull VideoDecoder.VideoInfo videoInfo,
+                             long trackerPointer) {
+        MotionGate gate = gateConf == null ? null
+                : new MotionGate(gateConf, videoInfo.width, videoInfo.height, videoInfo.channels);
+        // Index in the video of each frame fed to the tracker.
+        int[] fedFrameIndices = new int[1024];
 
         int cnt = 0;
+        int numFed = 0;
         // Every time a frame is retrieved during decoding, it is immediately fed into the tracker,
         // so as to save runtime memory.
         while (true) {
@@ -107,9 +245,15 @@ public class BasicTracker extends Tracker {
             if (frame == null) {
                 break;
             }
-            int ret = feedFrame(trackerPointer, frame);
-            if (ret != 0) {
-                break;
+            if (gate == null || gate.pass(frame)) {
+                int ret = feedFrame(trackerPointer, frame);
+                if (ret != 0) {
+                    break;
+                }
+                if (numFed == fedFrameIndices.length) {
+                    fedFrameIndices = Arrays.copyOf(fedFrameIndices, numFed * 2);
+                }
+                fedFrameIndices[numFed++] = cnt;
             }
             ++cnt;
             if (cnt % 1000 == 0) {
@@ -121,19 +265,63 @@ public class BasicTracker extends Tracker {
         logger.debug("Getting targets...");
         Tracklet[] targets = getTargets(trackerPointer);
         logger.debug("Got " + targets.length + " targets!");
-        free(trackerPointer);
 
-        synchronized (BasicTracker.class) {
-            --instanceCnt;
-            try {
-                logger.info("Tracker instance count: " + instanceCnt);
-            } catch (Exception e) {
-                e.printStackTrace();
+        if (gate != null) {
+            lastGateStat = gate.getStatistics();
+            if (numFed < cnt) {
+                for (Tracklet target : targets) {
+                    restoreFrameIndices(target, fedFrameIndices, numFed);
+                }
             }
         }
 
         return targets;
-//        return new FakePedestrianTracker().track(videoBytes);
+    }
+
+    /**
+     * @return Statistics of the motion gate in the last tracking,
+     * or null if the motion gate is disabled or no tracking has been performed.
+     */
+    @Nullable
+    public MotionGate.Statistics getLastGateStatistics() {
+        return lastGateStat;
+    }
+
+    /**
+     * The native tracker indexes frames by the order they are fed. When some
+     * frames are skipped by the motion gate, map the indices back to those in
+     * the video, and fill the skipped frames within the tracklet with the last
+     * known bounding box, so that the i-th bounding box still corresponds to
+     * the (startFrameIndex + i)-th frame.
+     *
+     * @param tracklet        A tracklet output by the native tracker.
+     * @param fedFrameIndices Index in the video of each frame fed to the tracker.
+     * @param numFed          Number of frames fed to the tracker.
+     */
+    static void restoreFrameIndices(@Nonnull Tracklet tracklet,
+                                    @Nonnull int[] fedFrameIndices,
+                                    int numFed) {
+        int fedStart = tracklet.startFrameIndex;
+        if (fedStart < 0 || fedStart >= numFed || tracklet.locationSequence == null) {
+            return;
+        }
+        Tracklet.BoundingBox[] fedSeq = tracklet.locationSequence;
+        int fedEnd = Math.min(fedStart + fedSeq.length, numFed) - 1;
+        int start = fedFrameIndices[fedStart];
+        int end = fedFrameIndices[fedEnd];
+
+        Tracklet.BoundingBox[] seq = new Tracklet.BoundingBox[end - start + 1];
+        for (int i = 0; i <= fedEnd - fedStart; ++i) {
+            int frameIdx = fedFrameIndices[fedStart + i] - start;
+            seq[frameIdx] = fedSeq[i];
+            // Fill the static span before the next fed frame.
+            int nextIdx = (fedStart + i < fedEnd) ? fedFrameIndices[fedStart + i + 1] - start : frameIdx + 1;
+            for (int j = frameIdx + 1; j < nextIdx; ++j) {
+                seq[j] = fedSeq[i];
+            }
+        }
+        tracklet.startFrameIndex = start;
+        tracklet.locationSequence = seq;
     }
 
     /**
@@ -0,0 +1,402 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.tracking;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The CompactTracklet class stores the same information as {@link Tracklet}
+ * in a columnar layout. Coordinates of bounding boxes are kept in parallel int
+ * arrays, and patches of all the bounding boxes are kept in a single contiguous
+ * buffer with an offset table, so a tracklet of any length consists of only a
+ * handful of objects. A patch shared by several bounding boxes, e.g. those filled
+ * in for frames skipped by the motion gate, is stored once.
+ * <p>
+ * When serialized, coordinates are delta-encoded as variable-length integers,
+ * since bounding boxes move little between consecutive frames.
+ * Tracklets themselves are serialized in this form (see Tracklet#writeReplace),
+ * and the JSON format is the same as that of Tracklet (see {@link GsonAdapter}).
+ */
+public class CompactTracklet implements Serializable {
+
+    private static final long serialVersionUID = 4217752908435167232L;
+
+    /**
+     * The identifier of the track.
+     */
+    public Tracklet.Identifier id;
+    /**
+     * The total number of tracklets in the video, or -1 if not available.
+     */
+    public int numTracklets;
+    /**
+     * The starting frame index of this track in the source video, or -1 if not determined.
+     */
+    public int startFrameIndex;
+
+    private transient int length;
+    private transient int[] x;
+    private transient int[] y;
+    private transient int[] width;
+    private transient int[] height;
+    /**
+     * Distinct patch data of the bounding boxes, concatenated in order of first use.
+     */
+    private transient byte[] patchBuffer;
+    /**
+     * The patch of the i-th bounding box lies in
+     * patchBuffer[patchOffsets[i], patchOffsets[i] + patchLengths[i]).
+     */
+    private transient int[] patchOffsets;
+    private transient int[] patchLengths;
+    /**
+     * Marks the bounding boxes whose patch data is available.
+     */
+    private transient BitSet hasPatch;
+    /**
+     * Marks the bounding boxes that are null in the location sequence.
+     */
+    private transient BitSet nullBoxes;
+
+    private CompactTracklet() {
+    }
+
+    /**
+     * Convert a tracklet into the compact layout. Patch data is copied,
+     * once for each distinct patch array.
+     *
+     * @param tracklet The tracklet to convert.
+     * @return A compact tracklet.
+     */
+    public static CompactTracklet of(@Nonnull Tracklet tracklet) {
+        CompactTracklet compact = new CompactTracklet();
+        compact.id = tracklet.id;
+        compact.numTracklets = tracklet.numTracklets;
+        compact.startFrameIndex = tracklet.startFrameIndex;
+
+        Tracklet.BoundingBox[] seq = tracklet.locationSequence;
+        int length = seq == null ? -1 : seq.length;
+        compact.allocate(length);
+        if (seq == null) {
+            return compact;
+        }
+
+        // Offsets of the patches already copied, by identity.
+        Map<byte[], Integer> copied = new IdentityHashMap<>();
+        int patchBytes = 0;
+        for (Tracklet.BoundingBox bbox : seq) {
+            if (bbox != null && bbox.patchData != null && !copied.containsKey(bbox.patchData)) {
+                copied.put(bbox.patchData, patchBytes);
+                patchBytes += bbox.patchData.length;
+            }
+        }
+        compact.patchBuffer = new byte[patchBytes];
+
+        for (int i = 0; i < length; ++i) {
+            Tracklet.BoundingBox bbox = seq[i];
+            if (bbox == null) {
+                compact.nullBoxes.set(i);
+                continue;
+            }
+            compact.x[i] = bbox.x;
+            compact.y[i] = bbox.y;
+            compact.width[i] = bbox.width;
+            compact.height[i] = bbox.height;
+            if (bbox.patchData != null) {
+                int offset = copied.get(bbox.patchData);
+                System.arraycopy(bbox.patchData, 0, compact.patchBuffer, offset, bbox.patchData.length);
+                compact.patchOffsets[i] = offset;
+                compact.patchLengths[i] = bbox.patchData.length;
+                compact.hasPatch.set(i);
+            }
+        }
+        return compact;
+    }
+
+    /**
+     * Allocate the columns for a number of bounding boxes.
+     *
+     * @param length Number of bounding boxes, or -1 if the location sequence is null.
+     */
+    private void allocate(int length) {
+        this.length = length;
+        int n = Math.max(length, 0);
+        x = new int[n];
+        y = new int[n];
+        width = new int[n];
+        height = new int[n];
+        patchOffsets = new int[n];
+        patchLengths = new int[n];
+        hasPatch = new BitSet(n);
+        nullBoxes = new BitSet(n);
+        patchBuffer = new byte[0];
+    }
+
+    /**
+     * Convert back into a tracklet with a BoundingBox object for each frame.
+     * Bounding boxes sharing a patch in this tracklet share the patch array.
+     *
+     * @return A tracklet equivalent to this one.
+     */
+    public Tracklet toTracklet() {
+        Tracklet tracklet = new Tracklet();
+        tracklet.id = id;
+        tracklet.numTracklets = numTracklets;
+        tracklet.startFrameIndex = startFrameIndex;
+        if (length >= 0) {
+            tracklet.locationSequence = new Tracklet.BoundingBox[length];
+            Map<Integer, byte[]> patches = new HashMap<>();
+            for (int i = 0; i < length; ++i) {
+                if (nullBoxes.get(i)) {
+                    continue;
+                }
+                Tracklet.BoundingBox bbox = createBoundingBox(i);
+                if (hasPatch.get(i)) {
+                    final int box = i;
+                    bbox.patchData = patches.computeIfAbsent(patchOffsets[i], offset -> getPatch(box));
+                }
+                tracklet.locationSequence[i] = bbox;
+            }
+        }
+        return tracklet;
+    }
+
+    /**
+     * @return Number of bounding boxes, or -1 if the location sequence is not available.
+     */
+    public int length() {
+        return length;
+    }
+
+    public int getX(int i) {
+        return x[i];
+    }
+
+    public int getY(int i) {
+        return y[i];
+    }
+
+    public int getWidth(int i) {
+        return width[i];
+    }
+
+    public int getHeight(int i) {
+        return height[i];
+    }
+
+    /**
+     * @param i Index of a bounding box.
+     * @return Whether the patch data of the bounding box is available.
+     */
+    public boolean hasPatch(int i) {
+        return hasPatch.get(i);
+    }
+
+    /**
+     * Get the buffer of all the patches, for reading patches without copying
+     * together with {@link #getPatchOffset(int)} and {@link #getPatchLength(int)}.
+     * The buffer must not be modified.
+     *
+     * @return The contiguous buffer of patch data.
+     */
+    public byte[] getPatchBuffer() {
+        return patchBuffer;
+    }
+
+    /**
+     * @param i Index of a bounding box.
+     * @return Offset of the patch of the bounding box in the patch buffer.
+     */
+    public int getPatchOffset(int i) {
+        return patchOffsets[i];
+    }
+
+    /**
+     * @param i Index of a bounding box.
+     * @return Length of the patch of the bounding box in bytes.
+     */
+    public int getPatchLength(int i) {
+        return patchLengths[i];
+    }
+
+    /**
+     * @param i Index of a bounding box.
+     * @return A copy of the patch data of the bounding box, or null if not available.
+     */
+    @Nullable
+    public byte[] getPatch(int i) {
+        return hasPatch.get(i)
+                ? Arrays.copyOfRange(patchBuffer, patchOffsets[i], patchOffsets[i] + patchLengths[i])
+                : null;
+    }
+
+    /**
+     * @param i Index of a bounding box.
+     * @return Whether the bounding box is null in the location sequence.
+     */
+    public boolean isNull(int i) {
+        return nullBoxes.get(i);
+    }
+
+    /**
+     * @param i Index of a bounding box.
+     * @return A new BoundingBox object for the bounding box,
+     * or null if the bounding box is null in the location sequence.
+     */
+    @Nullable
+    public Tracklet.BoundingBox getBoundingBox(int i) {
+        if (nullBoxes.get(i)) {
+            return null;
+        }
+        Tracklet.BoundingBox bbox = createBoundingBox(i);
+        bbox.patchData = getPatch(i);
+        return bbox;
+    }
+
+    private Tracklet.BoundingBox createBoundingBox(int i) {
+        Tracklet.BoundingBox bbox = new Tracklet.BoundingBox();
+        bbox.x = x[i];
+        bbox.y = y[i];
+        bbox.width = width[i];
+        bbox.height = height[i];
+        return bbox;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        writeVarInt(out, length + 1);
+        for (int[] column : new int[][]{x, y, width, height}) {
+            int prev = 0;
+            for (int i = 0; i < Math.max(length, 0); ++i) {
+                writeVarInt(out, zigzag(column[i] - prev));
+                prev = column[i];
+            }
+        }
+        for (BitSet bitSet : new BitSet[]{hasPatch, nullBoxes}) {
+            byte[] bits = bitSet.toByteArray();
+            writeVarInt(out, bits.length);
+            out.write(bits);
+        }
+        // Patches are written in order of first use, so a patch not used before starts
+        // at the end of the last new patch, and a shared one is referred to backwards.
+        int end = 0;
+        for (int i = 0; i < Math.max(length, 0); ++i) {
+            writeVarInt(out, patchLengths[i]);
+            writeVarInt(out, zigzag(patchOffsets[i] - end));
+            end = Math.max(end, patchOffsets[i] + patchLengths[i]);
+        }
+        writeVarInt(out, patchBuffer.length);
+        out.write(patchBuffer);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        allocate(readVarInt(in) - 1);
+        for (int[] column : new int[][]{x, y, width, height}) {
+            int prev = 0;
+            for (int i = 0; i < Math.max(length, 0); ++i) {
+                prev += unzigzag(readVarInt(in));
+                column[i] = prev;
+            }
+        }
+        hasPatch = readBitSet(in);
+        nullBoxes = readBitSet(in);
+        int end = 0;
+        for (int i = 0; i < Math.max(length, 0); ++i) {
+            patchLengths[i] = readVarInt(in);
+            patchOffsets[i] = end + unzigzag(readVarInt(in));
+            end = Math.max(end, patchOffsets[i] + patchLengths[i]);
+        }
+        patchBuffer = new byte[readVarInt(in)];
+        in.readFully(patchBuffer);
+    }
+
+    private static BitSet readBitSet(ObjectInputStream in) throws IOException {
+        byte[] bits = new byte[readVarInt(in)];
+        in.readFully(bits);
+        return BitSet.valueOf(bits);
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarInt(ObjectOutputStream out, int n) throws IOException {
+        while ((n & ~0x7F) != 0) {
+            out.writeByte((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte(n);
+    }
+
+    private static int readVarInt(ObjectInputStream in) throws IOException {
+        int n = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            n |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("Malformed variable-length integer!");
+    }
+
+    /**
+     * The GsonAdapter class serializes compact tracklets in the same JSON
+     * format as tracklets. Register it with
+     * GsonBuilder#registerTypeAdapter(CompactTracklet.class, new CompactTracklet.GsonAdapter()).
+     */
+    public static class GsonAdapter implements JsonSerializer<CompactTracklet>, JsonDeserializer<CompactTracklet> {
+
+        @Override
+        public JsonElement serialize(CompactTracklet src,
+                                     Type typeOfSrc,
+                                     JsonSerializationContext context) {
+            return context.serialize(src.toTracklet(), Tracklet.class);
+        }
+
+        @Override
+        public CompactTracklet deserialize(JsonElement json,
+                                           Type typeOfT,
+                                           JsonDeserializationContext context) throws JsonParseException {
+            return of(context.deserialize(json, Tracklet.class));
+        }
+    }
+}
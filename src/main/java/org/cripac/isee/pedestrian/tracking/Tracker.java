@@ -26,7 +26,7 @@ import javax.annotation.Nonnull;
  *
  * @author Ken Yu, CRIPAC, 2016
  */
-public abstract class Tracker {
+public abstract class Tracker implements AutoCloseable {
 
     /**
      * Read a video from a URL, and perform pedestrian tracking on it.
@@ -35,4 +35,12 @@ public abstract class Tracker {
      * @return A set of tracklets of pedestrians.
      */
     public abstract Tracklet[] track(@Nonnull byte[] videoBytes);
+
+    /**
+     * Release native resources the tracker holds across calls to track.
+     * Resources used within a single call are released before the call returns.
+     */
+    @Override
+    public void close() {
+    }
 }
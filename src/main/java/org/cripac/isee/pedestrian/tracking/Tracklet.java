@@ -61,6 +61,42 @@ public class Tracklet implements Serializable {
     @SerializedName("bounding-boxes")
     public BoundingBox[] locationSequence = null;
 
+    /**
+     * @return This tracklet in the compact columnar layout.
+     */
+    public CompactTracklet toCompact() {
+        return CompactTracklet.of(this);
+    }
+
+    /**
+     * Tracklets are serialized in the compact layout, avoiding writing a
+     * BoundingBox object and a patch array for each frame.
+     *
+     * @return The object to be serialized in place of this tracklet.
+     */
+    private Object writeReplace() {
+        return new SerializedForm(CompactTracklet.of(this));
+    }
+
+    /**
+     * The serialized form of a tracklet, which is resolved back into a
+     * Tracklet on deserialization.
+     */
+    private static class SerializedForm implements Serializable {
+
+        private static final long serialVersionUID = 8604927351298426110L;
+
+        private final CompactTracklet compact;
+
+        SerializedForm(@Nonnull CompactTracklet compact) {
+            this.compact = compact;
+        }
+
+        private Object readResolve() {
+            return compact.toTracklet();
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
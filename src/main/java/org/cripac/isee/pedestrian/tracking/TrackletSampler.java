@@ -0,0 +1,163 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.tracking;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+
+/**
+ * The TrackletSampler class selects a few representative bounding boxes from
+ * a tracklet, so that algorithms which only need the appearance of a
+ * pedestrian, like attribute recognition and ReID, do not have to process
+ * every frame of a long track.
+ * <p>
+ * The tracklet is divided into segments of equal length, one for each sample,
+ * and the best bounding box of each segment is selected, so that the samples
+ * are spread over the whole track. Bounding boxes are scored by simple
+ * heuristics: larger, sharper boxes with an aspect ratio close to that of a
+ * standing pedestrian (less likely to be occluded or truncated) score higher.
+ */
+public class TrackletSampler {
+
+    /**
+     * Typical height-to-width ratio of a bounding box of a standing pedestrian.
+     */
+    private static final double TYPICAL_ASPECT_RATIO = 2.5;
+
+    private TrackletSampler() {
+    }
+
+    /**
+     * Parse the maximum number of samples specified in the execution data of a node.
+     * Parameters of commands usually arrive as strings, so both numbers and strings
+     * of integers are accepted.
+     *
+     * @param execData          Execution data of the node.
+     * @param defaultMaxSamples Value to use if the execution data is absent.
+     * @return Maximum number of bounding boxes to select.
+     * @throws IllegalArgumentException If the execution data is not an integer.
+     */
+    public static int parseMaxSamples(@Nullable Serializable execData,
+                                      int defaultMaxSamples) {
+        if (execData == null) {
+            return defaultMaxSamples;
+        }
+        if (execData instanceof Number) {
+            return ((Number) execData).intValue();
+        }
+        if (execData instanceof String) {
+            return Integer.parseInt(((String) execData).trim());
+        }
+        throw new IllegalArgumentException("Cannot parse maximum number of samples from "
+                + execData.getClass().getName() + ": " + execData);
+    }
+
+    /**
+     * Sample representative bounding boxes from a tracklet.
+     * <p>
+     * The sampled tracklet shares the identifier and starting frame index of the
+     * original one, but its bounding boxes are no longer consecutive in time,
+     * so it should only be used for appearance-based processing.
+     *
+     * @param tracklet   The tracklet to sample from.
+     * @param maxSamples Maximum number of bounding boxes to select.
+     *                   Non-positive values disable sampling.
+     * @return A new tracklet with the selected bounding boxes in temporal order,
+     * or the original tracklet if it is short enough or sampling is disabled.
+     */
+    @Nonnull
+    public static Tracklet sample(@Nonnull Tracklet tracklet,
+                                  int maxSamples) {
+        Tracklet.BoundingBox[] seq = tracklet.locationSequence;
+        if (maxSamples <= 0 || seq == null || seq.length <= maxSamples) {
+            return tracklet;
+        }
+
+        Tracklet.BoundingBox[] samples = new Tracklet.BoundingBox[maxSamples];
+        for (int s = 0; s < maxSamples; ++s) {
+            int begin = (int) ((long) seq.length * s / maxSamples);
+            int end = (int) ((long) seq.length * (s + 1) / maxSamples);
+            int best = begin;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = begin; i < end; ++i) {
+                double score = score(seq[i]);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+            samples[s] = seq[best];
+        }
+
+        Tracklet sampled = new Tracklet();
+        sampled.id = tracklet.id;
+        sampled.numTracklets = tracklet.numTracklets;
+        sampled.startFrameIndex = tracklet.startFrameIndex;
+        sampled.locationSequence = samples;
+        return sampled;
+    }
+
+    /**
+     * Score a bounding box by its quality for appearance-based processing.
+     *
+     * @param bbox A bounding box.
+     * @return The score, higher for better boxes. Boxes without patch data
+     * get the lowest score.
+     */
+    static double score(Tracklet.BoundingBox bbox) {
+        if (bbox == null || bbox.patchData == null || bbox.width <= 0 || bbox.height <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double area = (double) bbox.width * bbox.height;
+        double aspectRatio = (double) bbox.height / bbox.width;
+        // 1 for typical pedestrians, decaying as the box gets squatter or thinner.
+        double shapeScore = Math.exp(-Math.abs(Math.log(aspectRatio / TYPICAL_ASPECT_RATIO)));
+        return Math.log(area) + Math.log(1 + sharpness(bbox)) + 2 * Math.log(shapeScore);
+    }
+
+    /**
+     * Measure the sharpness of a patch by the mean absolute gradient of its
+     * green channel (approximating luma), sampling every other pixel. Blurred
+     * patches, e.g. from fast motion, have weak gradients.
+     *
+     * @param bbox A bounding box with patch data in BGR format.
+     * @return Mean absolute gradient.
+     */
+    static double sharpness(@Nonnull Tracklet.BoundingBox bbox) {
+        int channels = bbox.patchData.length / (bbox.width * bbox.height);
+        if (channels <= 0 || bbox.width < 3 || bbox.height < 3) {
+            return 0;
+        }
+        byte[] data = bbox.patchData;
+        int stride = bbox.width * channels;
+        long sum = 0;
+        int cnt = 0;
+        for (int y = 0; y < bbox.height - 2; y += 2) {
+            for (int x = 0; x < bbox.width - 2; x += 2) {
+                int p = y * stride + x * channels;
+                int c = data[p + (channels >= 3 ? 1 : 0)] & 0xFF;
+                int right = data[p + 2 * channels + (channels >= 3 ? 1 : 0)] & 0xFF;
+                int down = data[p + 2 * stride + (channels >= 3 ? 1 : 0)] & 0xFF;
+                sum += Math.abs(right - c) + Math.abs(down - c);
+                ++cnt;
+            }
+        }
+        return cnt == 0 ? 0 : (double) sum / cnt;
+    }
+}
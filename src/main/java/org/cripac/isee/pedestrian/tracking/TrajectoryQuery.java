@@ -0,0 +1,64 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.tracking;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+
+/**
+ * The TrajectoryQuery class describes a search for the tracklets of a video
+ * passing through a region of the image during a range of frames. A tracklet
+ * passes a region if the centre of any of its bounding boxes in the range
+ * lies in the region.
+ * @see org.cripac.isee.vpe.util.hdfs.TrajectoryIndex
+ */
+public class TrajectoryQuery implements Serializable {
+
+    private static final long serialVersionUID = -1590932470745214386L;
+
+    /**
+     * Identifier of the video to search in.
+     */
+    public final String videoID;
+    /**
+     * The region, in pixels.
+     */
+    public final int x, y, width, height;
+    /**
+     * The range of frames, both inclusive.
+     */
+    public final int startFrame, endFrame;
+
+    public TrajectoryQuery(@Nonnull String videoID,
+                           int x, int y, int width, int height,
+                           int startFrame, int endFrame) {
+        this.videoID = videoID;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.startFrame = startFrame;
+        this.endFrame = endFrame;
+    }
+
+    @Override
+    public String toString() {
+        return "TrajectoryQuery{" + videoID + ": (" + x + ", " + y + ", " + width + "x" + height
+                + ") in frames " + startFrame + " -> " + endFrame + "}";
+    }
+}
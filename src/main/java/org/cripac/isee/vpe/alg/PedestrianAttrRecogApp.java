@@ -17,7 +17,7 @@
 
 package org.cripac.isee.vpe.alg;
 
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.log4j.Level;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -26,8 +26,11 @@ import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.cripac.isee.pedestrian.attr.Attributes;
 import org.cripac.isee.pedestrian.attr.ExternPedestrianAttrRecognizer;
 import org.cripac.isee.pedestrian.attr.PedestrianAttrRecognizer;
+import org.cripac.isee.pedestrian.reid.PedestrianInfo;
 import org.cripac.isee.pedestrian.tracking.Tracklet;
+import org.cripac.isee.pedestrian.tracking.TrackletSampler;
 import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.common.Priority;
 import org.cripac.isee.vpe.common.SparkStreamingApp;
 import org.cripac.isee.vpe.common.Stream;
 import org.cripac.isee.vpe.common.Topic;
@@ -38,11 +41,11 @@ import org.cripac.isee.vpe.debug.FakePedestrianAttrRecognizer;
 import org.cripac.isee.vpe.util.Factory;
 import org.cripac.isee.vpe.util.SerializationHelper;
 import org.cripac.isee.vpe.util.Singleton;
-import org.cripac.isee.vpe.util.kafka.KafkaProducerFactory;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLoggerFactory;
 
+import java.io.Serializable;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.util.*;
@@ -102,7 +105,7 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
     @Override
     protected JavaStreamingContext getStreamContext() {
         // Create contexts.
-        JavaSparkContext sparkContext = new JavaSparkContext(new SparkConf(true));
+        JavaSparkContext sparkContext = new JavaSparkContext(configureScheduler(new SparkConf(true)));
         sparkContext.setLocalProperty("spark.scheduler.pool", "vpe");
         JavaStreamingContext jsc = new JavaStreamingContext(sparkContext, Durations.seconds(2));
 
@@ -121,6 +124,11 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
         return APP_NAME;
     }
 
+    @Override
+    public List<Stream> getStreams() {
+        return Arrays.asList(attrRecogStream);
+    }
+
     public static class RecogStream extends Stream {
 
         public static final Info INFO = new Info("recog", DataType.ATTR);
@@ -142,11 +150,27 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
          */
         private Map<String, Integer> trackletTopicMap = new HashMap<>();
 
-        private Singleton<KafkaProducer<String, byte[]>> producerSingleton;
+        private Singleton<Producer<String, byte[]>> producerSingleton;
         private Singleton<PedestrianAttrRecognizer> attrRecogSingleton;
         private Singleton<SynthesizedLogger> loggerSingleton;
+        /**
+         * Maximum number of bounding boxes sampled from each tracklet,
+         * used when not specified in the execution plan.
+         */
+        private int defaultMaxSampledPatches;
+        /**
+         * ReID stream executed in the tasks of this stream for tracklets and
+         * attributes sent to {@link PedestrianReIDUsingAttrApp.ReIDStream#TRACKLET_ATTR_TOPIC},
+         * or null if they are sent through Kafka.
+         */
+        private PedestrianReIDUsingAttrApp.ReIDStream fusedReIDStream = null;
 
         public RecogStream(SystemPropertyCenter propCenter) throws Exception {
+            super(propCenter);
+            defaultMaxSampledPatches = propCenter.maxSampledPatches;
+            if (propCenter.stageFusion) {
+                fusedReIDStream = new PedestrianReIDUsingAttrApp.ReIDStream(propCenter);
+            }
             loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
                     INFO.NAME,
                     propCenter.verbose ? Level.DEBUG : Level.INFO,
@@ -172,19 +196,28 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
 
             loggerSingleton.getInst().debug("Using Kafka brokers: " + propCenter.kafkaBrokers);
 
-            producerSingleton = new Singleton<>(new KafkaProducerFactory<String, byte[]>(producerProp));
+            producerSingleton = new Singleton<>(transport.getProducerFactory(producerProp));
             attrRecogSingleton = new Singleton<>(() -> new ExternPedestrianAttrRecognizer(
                     Inet4Address.getByName("172.18.33.90"), 8500
             ));
         }
 
+        /**
+         * Each task is processed on its own, so batches need not be ordered.
+         */
+        @Override
+        public boolean needsOrderedBatches() {
+            return false;
+        }
+
         @Override
-        public void addToContext(JavaStreamingContext jsc) {// Extract tracklets from the data.
+        protected void addToContext(JavaStreamingContext jsc, Priority priority) {// Extract tracklets from the data.
             // Recognize attributes from the tracklets.
-            buildBytesDirectStream(jsc, kafkaParams, trackletTopicMap)
+            buildBytesDirectStream(jsc, kafkaParams, trackletTopicMap, priority)
                     .mapValues(taskDataBytes ->
                             (TaskData) deserialize(taskDataBytes))
                     .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
                         rdd.foreach(taskWithTracklet -> {
                             Logger logger = loggerSingleton.getInst();
 
@@ -202,8 +235,21 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
 
                             Tracklet tracklet = (Tracklet) taskData.predecessorRes;
 
+                            // Attributes are stable across a track,
+                            // so only a few representative bounding boxes are needed.
+                            Serializable execData = taskData.curNode.getExecData();
+                            int maxSamples;
+                            try {
+                                maxSamples = TrackletSampler.parseMaxSamples(execData, defaultMaxSampledPatches);
+                            } catch (IllegalArgumentException e) {
+                                logger.error("Invalid maximum number of sampled patches \"" + execData
+                                        + "\", using " + defaultMaxSampledPatches + " instead!", e);
+                                maxSamples = defaultMaxSampledPatches;
+                            }
+
                             // Recognize attributes.
-                            Attributes attr = attrRecogSingleton.getInst().recognize(tracklet);
+                            Attributes attr = attrRecogSingleton.getInst().recognize(
+                                    TrackletSampler.sample(tracklet, maxSamples));
                             attr.trackletID = tracklet.id;
 
                             // Prepare new task data.
@@ -214,15 +260,42 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
                             List<Topic> succTopics = taskData.curNode.getSuccessors();
                             // Mark the current node as executed.
                             taskData.curNode.markExecuted();
+                            // Some successors take the attributes along with the tracklet.
+                            PedestrianInfo trackletWithAttr = new PedestrianInfo(tracklet, attr);
+                            // ReID executed here is deferred until the other successors are sent,
+                            // so that its failure does not keep them from their inputs.
+                            List<TaskData> fusedReIDTasks = new ArrayList<>();
                             // Send to all the successor nodes.
                             for (Topic topic : succTopics) {
                                 taskData.changeCurNode(topic);
+                                if (topic.INPUT_TYPE != DataType.TRACKLET_ATTR) {
+                                    taskData.predecessorRes = attr;
+                                } else {
+                                    taskData.predecessorRes = trackletWithAttr;
+                                    if (fusedReIDStream != null
+                                            && topic == PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_ATTR_TOPIC) {
+                                        fusedReIDTasks.add(taskData.fork());
+                                        continue;
+                                    }
+                                }
                                 sendWithLog(topic,
+                                        taskData.priority,
                                         taskID,
                                         serialize(taskData),
                                         producerSingleton.getInst(),
                                         logger);
                             }
+                            // Hand the pedestrian to ReID in memory.
+                            for (TaskData reidTask : fusedReIDTasks) {
+                                try {
+                                    fusedReIDStream.reid(taskID, reidTask);
+                                } catch (Exception e) {
+                                    // Rethrowing would make Spark retry the task,
+                                    // sending the other successors again.
+                                    logger.error("Error re-identifying pedestrian of task "
+                                            + taskID + ": " + tracklet.id, e);
+                                }
+                            }
                         });
                     });
         }
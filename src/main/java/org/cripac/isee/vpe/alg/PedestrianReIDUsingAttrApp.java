@@ -18,7 +18,7 @@
 package org.cripac.isee.vpe.alg;
 
 import com.google.common.base.Optional;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.log4j.Level;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -26,10 +26,13 @@ import org.apache.spark.streaming.Durations;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.cripac.isee.pedestrian.attr.Attributes;
+import org.cripac.isee.pedestrian.reid.IDRank;
 import org.cripac.isee.pedestrian.reid.PedestrianInfo;
 import org.cripac.isee.pedestrian.reid.PedestrianReIDer;
 import org.cripac.isee.pedestrian.tracking.Tracklet;
+import org.cripac.isee.pedestrian.tracking.TrackletSampler;
 import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.common.Priority;
 import org.cripac.isee.vpe.common.SparkStreamingApp;
 import org.cripac.isee.vpe.common.Stream;
 import org.cripac.isee.vpe.common.Topic;
@@ -38,12 +41,12 @@ import org.cripac.isee.vpe.ctrl.TaskData;
 import org.cripac.isee.vpe.ctrl.TopicManager;
 import org.cripac.isee.vpe.debug.FakePedestrianReIDerWithAttr;
 import org.cripac.isee.vpe.util.Singleton;
-import org.cripac.isee.vpe.util.kafka.KafkaProducerFactory;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLoggerFactory;
 import scala.Tuple2;
 
+import java.io.Serializable;
 import java.util.*;
 
 import static org.cripac.isee.vpe.util.SerializationHelper.deserialize;
@@ -101,7 +104,7 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
     @Override
     protected JavaStreamingContext getStreamContext() {
         // Create contexts.
-        JavaSparkContext sparkContext = new JavaSparkContext(new SparkConf(true));
+        JavaSparkContext sparkContext = new JavaSparkContext(configureScheduler(new SparkConf(true)));
         sparkContext.setLocalProperty("spark.scheduler.pool", "vpe");
         JavaStreamingContext jsc = new JavaStreamingContext(sparkContext, Durations.seconds(2));
 
@@ -120,6 +123,11 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
         return APP_NAME;
     }
 
+    @Override
+    public List<Stream> getStreams() {
+        return Arrays.asList(reidStream);
+    }
+
     public static class ReIDStream extends Stream {
 
         public static final Info INFO =
@@ -142,7 +150,7 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
          */
         public static final Topic TRACKLET_ATTR_TOPIC = new Topic(
                 "pedestrian-track-attr-for-reid-using-attr",
-                DataType.TRACKLET, INFO);
+                DataType.TRACKLET_ATTR, INFO);
 
         /**
          * Kafka parameters for creating input streams pulling messages from Kafka
@@ -170,11 +178,18 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
          */
         private int bufDuration;
 
-        private Singleton<KafkaProducer<String, byte[]>> producerSingleton;
+        private Singleton<Producer<String, byte[]>> producerSingleton;
         private Singleton<PedestrianReIDer> reidSingleton;
         private Singleton<SynthesizedLogger> loggerSingleton;
+        /**
+         * Maximum number of bounding boxes sampled from each tracklet,
+         * used when not specified in the execution plan.
+         */
+        private int defaultMaxSampledPatches;
 
         public ReIDStream(SystemPropertyCenter propCenter) throws Exception {
+            super(propCenter);
+            defaultMaxSampledPatches = propCenter.maxSampledPatches;
             trackTopicMap.put(TRACKLET_TOPIC.NAME, propCenter.kafkaNumPartitions);
             attrTopicMap.put(ATTR_TOPIC.NAME, propCenter.kafkaNumPartitions);
             trackWithAttrTopicMap.put(TRACKLET_ATTR_TOPIC.NAME, propCenter.kafkaNumPartitions);
@@ -199,7 +214,7 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
                     "org.apache.kafka.common.serialization.ByteArraySerializer");
 
             producerSingleton = new Singleton<>(
-                    new KafkaProducerFactory<String, byte[]>(producerProp));
+                    transport.getProducerFactory(producerProp));
             reidSingleton = new Singleton<>(
                     () -> new FakePedestrianReIDerWithAttr());
             loggerSingleton = new Singleton<>(
@@ -210,11 +225,19 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
                             propCenter.reportListenerPort));
         }
 
+        /**
+         * Each task is processed on its own, so batches need not be ordered.
+         */
         @Override
-        public void addToContext(JavaStreamingContext jsc) {
+        public boolean needsOrderedBatches() {
+            return false;
+        }
+
+        @Override
+        protected void addToContext(JavaStreamingContext jsc, Priority priority) {
             JavaPairDStream<String, TaskData> trackletDStream =
                     // Read track bytes in parallel from Kafka.
-                    buildBytesDirectStream(jsc, kafkaParams, trackTopicMap)
+                    buildBytesDirectStream(jsc, kafkaParams, trackTopicMap, priority)
                             // Recover track from the bytes
                             // and extract the IDRANK of the track.
                             .mapToPair(taskDataBytes -> {
@@ -229,7 +252,7 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
 
             JavaPairDStream<String, TaskData> attrDStream =
                     // Read attribute bytes in parallel from Kafka.
-                    buildBytesDirectStream(jsc, kafkaParams, attrTopicMap)
+                    buildBytesDirectStream(jsc, kafkaParams, attrTopicMap, priority)
                             // Recover attributes from the bytes
                             // and extract the IDRANK of the track
                             // the attributes belong to.
@@ -314,6 +337,7 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
                                         new PedestrianInfo(
                                                 (Tracklet) taskDataWithTrack.predecessorRes,
                                                 (Attributes) taskDataWithAttr.predecessorRes));
+                                asmTaskData.priority = taskDataWithTrack.priority;
                                 loggerSingleton.getInst().debug(
                                         "Assembled track and attr of " + pack._1());
                                 return new Tuple2<>(taskID, asmTaskData);
@@ -323,54 +347,83 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
             // Recover attributes from the bytes and extract the IDRANK of the track the
             // attributes belong to.
             JavaPairDStream<String, TaskData> integralTrackletAttrDStream =
-                    buildBytesDirectStream(jsc, kafkaParams, trackWithAttrTopicMap)
+                    buildBytesDirectStream(jsc, kafkaParams, trackWithAttrTopicMap, priority)
                             .mapValues(bytes -> (TaskData) deserialize(bytes));
 
             // Union the two track with attribute streams and perform ReID.
             integralTrackletAttrDStream.union(asmTrackletAttrDStream)
                     .foreachRDD(rdd -> {
-                        rdd.foreach(taskWithTrackletAttr -> {
-                            Logger logger = loggerSingleton.getInst();
-                            String taskID = taskWithTrackletAttr._1();
-                            TaskData taskData = taskWithTrackletAttr._2();
-                            if (taskData.predecessorRes == null) {
-                                logger.fatal("TaskData from " + taskData.predecessorInfo
-                                        + " contains no result data!");
-                                return;
-                            }
-                            if (!(taskData.predecessorRes instanceof PedestrianInfo)) {
-                                logger.fatal("TaskData from " + taskData.predecessorInfo
-                                        + " contains no result data!");
-                                logger.fatal("Result sent by "
-                                        + taskData.predecessorInfo
-                                        + " is expected to be a PedestrianInfo,"
-                                        + " but received \""
-                                        + taskData.predecessorRes + "\"!");
-                                return;
-                            }
-                            PedestrianInfo trackletWithAttr =
-                                    (PedestrianInfo) taskData.predecessorRes;
-
-                            // Perform ReID.
-                            int[] idRank = reidSingleton.getInst().reid(trackletWithAttr);
-
-                            // Prepare new task data with the pedestrian IDRANK.
-                            taskData.predecessorRes = idRank;
-                            // Get the IDs of successor nodes.
-                            List<Topic> succTopics = taskData.curNode.getSuccessors();
-                            // Mark the current node as executed.
-                            taskData.curNode.markExecuted();
-                            // Send to all the successor nodes.
-                            for (Topic topic : succTopics) {
-                                taskData.changeCurNode(topic);
-                                sendWithLog(topic,
-                                        taskID,
-                                        serialize(taskData),
-                                        producerSingleton.getInst(),
-                                        logger);
-                            }
-                        });
+                        usePool(rdd, priority);
+                        rdd.foreach(taskWithTrackletAttr ->
+                                reid(taskWithTrackletAttr._1(), taskWithTrackletAttr._2()));
                     });
         }
+
+        /**
+         * Re-identify the pedestrian in a task and send the rank to the successors.
+         * This is also called by streams executing the ReID in their own tasks
+         * (see {@link PedestrianAttrRecogApp.RecogStream}).
+         *
+         * @param taskID   ID of the task.
+         * @param taskData Data of the task, whose current node is a ReID node and
+         *                 whose predecessor result is a {@link PedestrianInfo}.
+         * @throws Exception On failure re-identifying or sending the rank.
+         */
+        public void reid(String taskID, TaskData taskData) throws Exception {
+            Logger logger = loggerSingleton.getInst();
+            if (taskData.predecessorRes == null) {
+                logger.fatal("TaskData from " + taskData.predecessorInfo
+                        + " contains no result data!");
+                return;
+            }
+            if (!(taskData.predecessorRes instanceof PedestrianInfo)) {
+                logger.fatal("TaskData from " + taskData.predecessorInfo
+                        + " contains no result data!");
+                logger.fatal("Result sent by "
+                        + taskData.predecessorInfo
+                        + " is expected to be a PedestrianInfo,"
+                        + " but received \""
+                        + taskData.predecessorRes + "\"!");
+                return;
+            }
+            PedestrianInfo trackletWithAttr =
+                    (PedestrianInfo) taskData.predecessorRes;
+
+            // Compare only representative bounding boxes of the tracklet.
+            Serializable execData = taskData.curNode.getExecData();
+            int maxSamples;
+            try {
+                maxSamples = TrackletSampler.parseMaxSamples(execData, defaultMaxSampledPatches);
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid maximum number of sampled patches \"" + execData
+                        + "\", using " + defaultMaxSampledPatches + " instead!", e);
+                maxSamples = defaultMaxSampledPatches;
+            }
+            if (trackletWithAttr.tracklet != null) {
+                trackletWithAttr = new PedestrianInfo(
+                        TrackletSampler.sample(trackletWithAttr.tracklet, maxSamples),
+                        trackletWithAttr.attr);
+            }
+
+            // Perform ReID.
+            IDRank idRank = reidSingleton.getInst().rank(trackletWithAttr);
+
+            // Prepare new task data with the pedestrian IDRANK.
+            taskData.predecessorRes = idRank;
+            // Get the IDs of successor nodes.
+            List<Topic> succTopics = taskData.curNode.getSuccessors();
+            // Mark the current node as executed.
+            taskData.curNode.markExecuted();
+            // Send to all the successor nodes.
+            for (Topic topic : succTopics) {
+                taskData.changeCurNode(topic);
+                sendWithLog(topic,
+                        taskData.priority,
+                        taskID,
+                        serialize(taskData),
+                        producerSingleton.getInst(),
+                        logger);
+            }
+        }
     }
 }
@@ -24,13 +24,17 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RemoteIterator;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.log4j.Level;
+import org.apache.spark.Partition;
+import org.apache.spark.Partitioner;
 import org.apache.spark.SparkConf;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.rdd.RDD;
 import org.apache.spark.streaming.Durations;
-import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.bytedeco.javacpp.opencv_videoio;
 import org.cripac.isee.pedestrian.tracking.BasicTracker;
@@ -43,14 +47,22 @@ import org.cripac.isee.vpe.ctrl.TopicManager;
 import org.cripac.isee.vpe.data.WebCameraConnector;
 import org.cripac.isee.vpe.debug.FakeWebCameraConnector;
 import org.cripac.isee.vpe.util.SerializationHelper;
+import org.cripac.isee.vpe.util.NativeMemoryRegistry;
 import org.cripac.isee.vpe.util.Singleton;
 import org.cripac.isee.vpe.util.hdfs.HDFSFactory;
-import org.cripac.isee.vpe.util.kafka.KafkaProducerFactory;
+import org.cripac.isee.vpe.util.hdfs.HDFSLocality;
+import org.cripac.isee.vpe.util.hdfs.KeyframeIndexStore;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLoggerFactory;
+import org.cripac.isee.vpe.util.tracking.MotionGate;
 import scala.Tuple2;
+import scala.collection.JavaConversions;
+import scala.collection.Seq;
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
 
+import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
@@ -115,7 +127,7 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
     protected JavaStreamingContext getStreamContext() {
         // Create contexts.
         JavaStreamingContext jsc =
-                new JavaStreamingContext(new SparkConf(true), Durations.seconds(2));
+                new JavaStreamingContext(configureScheduler(new SparkConf(true)), Durations.seconds(2));
 
         fragmentTrackingStream.addToContext(jsc);
         rtTrackingStream.addToContext(jsc);
@@ -133,6 +145,11 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
         return APP_NAME;
     }
 
+    @Override
+    public List<Stream> getStreams() {
+        return Arrays.asList(fragmentTrackingStream, rtTrackingStream);
+    }
+
     /**
      * The class ConfigPool wraps a broadcast of a pool of bytes of
      * tracking configuration files.
@@ -206,13 +223,14 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
          */
         private Map<String, Integer> camIPTopicMap = new HashMap<>();
 
-        private Singleton<KafkaProducer<String, byte[]>> producerSingleton;
+        private Singleton<Producer<String, byte[]>> producerSingleton;
         private Singleton<SynthesizedLogger> loggerSingleton;
         private Singleton<FileSystem> hdfsSingleton;
         private Map<ServerID, Singleton<WebCameraConnector>> connectorPool;
 
         public RTVideoStreamTrackingStream(SystemPropertyCenter propCenter) throws
                 Exception {
+            super(propCenter);
             camIPTopicMap.put(LOGIN_PARAM_TOPIC.NAME,
                     propCenter.kafkaNumPartitions);
 
@@ -233,7 +251,7 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
             producerProp.put("value.serializer",
                     "org.apache.kafka.common.serialization.ByteArraySerializer");
 
-            producerSingleton = new Singleton<>(new KafkaProducerFactory<>(producerProp));
+            producerSingleton = new Singleton<>(transport.getProducerFactory(producerProp));
             loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
                     INFO.NAME,
                     propCenter.verbose ? Level.DEBUG : Level.INFO,
@@ -243,10 +261,19 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
             connectorPool = new HashedMap();
         }
 
+        /**
+         * Each task is processed on its own, so batches need not be ordered.
+         */
         @Override
-        public void addToContext(JavaStreamingContext jsc) {
-            buildBytesDirectStream(jsc, kafkaParams, camIPTopicMap)
+        public boolean needsOrderedBatches() {
+            return false;
+        }
+
+        @Override
+        protected void addToContext(JavaStreamingContext jsc, Priority priority) {
+            buildBytesDirectStream(jsc, kafkaParams, camIPTopicMap, priority)
                     .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
                         rdd.foreach(kvPair -> {
                             // Recover data.
                             final String taskID = kvPair._1();
@@ -322,12 +349,34 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
          */
         private Map<String, Integer> videoFragBytesTopicMap = new HashMap<>();
 
-        private Singleton<KafkaProducer<String, byte[]>> producerSingleton;
+        private Singleton<Producer<String, byte[]>> producerSingleton;
         private Singleton<SynthesizedLogger> loggerSingleton;
         private Singleton<FileSystem> hdfsSingleton;
+        /**
+         * Store of the keyframe indices of videos, or null if videos are read into memory.
+         */
+        private Singleton<KeyframeIndexStore> keyframeIndexStoreSingleton = null;
+        /**
+         * Configuration of the motion gate skipping static frames,
+         * or null if the gate is disabled.
+         */
+        private MotionGate.Config motionGateConf;
+        /**
+         * Budget of off-heap memory for native decoders and trackers in bytes.
+         */
+        private long nativeMemBudget;
+        /**
+         * Whether to run tracking tasks on the hosts storing their videos.
+         */
+        private boolean localityEnabled;
 
         public VideoFragmentTrackingStream(SystemPropertyCenter propCenter) throws
                 Exception {
+            super(propCenter);
+            motionGateConf = propCenter.motionGateEnabled ? propCenter.motionGateConf : null;
+            nativeMemBudget = propCenter.nativeMemBudget << 20;
+            localityEnabled = propCenter.trackingLocalityEnabled;
+
             videoURLTopicMap.put(VIDEO_URL_TOPIC.NAME,
                     propCenter.kafkaNumPartitions);
             videoFragBytesTopicMap.put(VIDEO_FRAG_BYTES_TOPIC.NAME,
@@ -350,120 +399,278 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
             producerProp.put("value.serializer",
                     "org.apache.kafka.common.serialization.ByteArraySerializer");
 
-            producerSingleton = new Singleton<>(new KafkaProducerFactory<>(producerProp));
+            producerSingleton = new Singleton<>(transport.getProducerFactory(producerProp));
             loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
                     INFO.NAME,
                     propCenter.verbose ? Level.DEBUG : Level.INFO,
                     propCenter.reportListenerAddr,
                     propCenter.reportListenerPort));
             hdfsSingleton = new Singleton<>(new HDFSFactory());
+            if (!propCenter.keyframeIndexDir.isEmpty()) {
+                final String keyframeIndexDir = propCenter.keyframeIndexDir;
+                final float keyframeIndexFps = propCenter.keyframeIndexFps;
+                keyframeIndexStoreSingleton = new Singleton<>(() -> new KeyframeIndexStore(
+                        new HDFSFactory().produce(), keyframeIndexDir, keyframeIndexFps));
+            }
+        }
+
+        /**
+         * Place the tasks of video URLs on the hosts storing the most bytes of
+         * their videos. Spark runs each task on one of these hosts, or on any
+         * other after spark.locality.wait. The hosts are looked up on the executors,
+         * and only the task IDs and their hosts are collected to the driver.
+         * The tasks are then shuffled into a partition of their own each, which
+         * prefers the hosts of its task. This runs in the output operation of
+         * a batch, so it does not hold back the generation of the batches of
+         * all the streams.
+         *
+         * @param rdd Tasks of video URLs.
+         * @return The tasks with their preferred locations.
+         */
+        @SuppressWarnings("unchecked")
+        private JavaPairRDD<String, byte[]> placeNearVideos(JavaPairRDD<String, byte[]> rdd) {
+            List<Tuple2<String, List<String>>> hostsOfTasks = rdd.mapToPair(task -> {
+                String videoID = (String) ((TaskData) deserialize(task._2())).predecessorRes;
+                List<String> hosts;
+                try {
+                    hosts = HDFSLocality.getPreferredHosts(hdfsSingleton.getInst(), new Path(videoID));
+                } catch (IOException e) {
+                    // Leave the failure to be reported when the video is read.
+                    loggerSingleton.getInst().debug("Cannot locate " + videoID, e);
+                    hosts = Collections.emptyList();
+                }
+                return new Tuple2<>(task._1(), hosts);
+            }).collect();
+            if (hostsOfTasks.isEmpty()) {
+                return rdd;
+            }
+
+            Map<String, Integer> partitionOfTask = new HashMap<>();
+            ArrayList<List<String>> hostsOfPartitions = new ArrayList<>();
+            for (Tuple2<String, List<String>> hostsOfTask : hostsOfTasks) {
+                partitionOfTask.put(hostsOfTask._1(), hostsOfPartitions.size());
+                hostsOfPartitions.add(new ArrayList<>(hostsOfTask._2()));
+            }
+            JavaPairRDD<String, byte[]> shuffled =
+                    rdd.partitionBy(new TaskPartitioner(partitionOfTask, hostsOfPartitions.size()));
+            ClassTag<Tuple2<String, byte[]>> taskTag = ClassTag$.MODULE$.apply(Tuple2.class);
+            return JavaPairRDD.fromRDD(
+                    new PlacedRDD<>(shuffled.rdd(), hostsOfPartitions, taskTag),
+                    ClassTag$.MODULE$.apply(String.class),
+                    ClassTag$.MODULE$.apply(byte[].class));
+        }
+
+        /**
+         * The TaskPartitioner class puts each task in the partition assigned to its ID.
+         */
+        private static class TaskPartitioner extends Partitioner {
+
+            private static final long serialVersionUID = -2715096357364806619L;
+
+            private final HashMap<String, Integer> partitionOfTask;
+            private final int numPartitions;
+
+            TaskPartitioner(@Nonnull Map<String, Integer> partitionOfTask, int numPartitions) {
+                this.partitionOfTask = new HashMap<>(partitionOfTask);
+                this.numPartitions = numPartitions;
+            }
+
+            @Override
+            public int numPartitions() {
+                return numPartitions;
+            }
+
+            @Override
+            public int getPartition(Object key) {
+                // Tasks with duplicate IDs are all placed with the one collected last.
+                return partitionOfTask.getOrDefault(key, 0);
+            }
+        }
+
+        /**
+         * The PlacedRDD class passes the partitions of its parent through,
+         * preferring the given hosts for each of them.
+         */
+        private static class PlacedRDD<T> extends RDD<T> {
+
+            private static final long serialVersionUID = 6092853371489201754L;
+
+            private final ArrayList<List<String>> hostsOfPartitions;
+            private final ClassTag<T> tag;
+
+            PlacedRDD(@Nonnull RDD<T> parent,
+                      @Nonnull ArrayList<List<String>> hostsOfPartitions,
+                      @Nonnull ClassTag<T> tag) {
+                super(parent, tag);
+                this.hostsOfPartitions = hostsOfPartitions;
+                this.tag = tag;
+            }
+
+            @Override
+            public scala.collection.Iterator<T> compute(Partition split, TaskContext context) {
+                return firstParent(tag).iterator(split, context);
+            }
+
+            @Override
+            public Partition[] getPartitions() {
+                return firstParent(tag).partitions();
+            }
+
+            @Override
+            public Seq<String> getPreferredLocations(Partition split) {
+                return JavaConversions.asScalaBuffer(hostsOfPartitions.get(split.index()));
+            }
         }
 
         public static class VideoFragment implements Serializable {
             public String videoID;
+            /**
+             * Bytes of the video, or null if the video is read through its keyframe index.
+             */
             public byte[] bytes;
         }
 
+        /**
+         * Each task is processed on its own, so batches need not be ordered.
+         */
         @Override
-        public void addToContext(JavaStreamingContext jsc) {
-            JavaPairDStream<String, TaskData> fragFromURLDStream =
-                    buildBytesDirectStream(jsc, kafkaParams, videoURLTopicMap)
-                            .mapToPair(kvPair -> {
-                                String taskID = kvPair._1();
-
-                                // Get the task data.
-                                TaskData taskData =
-                                        (TaskData) deserialize(kvPair._2());
-                                VideoFragment frag = new VideoFragment();
-                                // Get the videoID of the video to process from the
-                                // execution data of this node.
-                                frag.videoID = (String) taskData.predecessorRes;
-                                // Retrieve video fragment bytes.
-                                frag.bytes = IOUtils.toByteArray(
-                                        hdfsSingleton.getInst().open(new Path(frag.videoID)));
-
-                                taskData.predecessorRes = frag;
-                                return new Tuple2<>(taskID, taskData);
-                            });
-
-            JavaPairDStream<String, TaskData> fragFromBytesDStream =
-                    buildBytesDirectStream(jsc, kafkaParams, videoFragBytesTopicMap)
-                            .mapValues(bytes -> (TaskData) SerializationHelper.deserialize(bytes));
-
-            fragFromURLDStream.union(fragFromBytesDStream).foreachRDD(rdd -> {
-                final Broadcast<Map<String, byte[]>> confPool =
-                        ConfigPool.getInst(
-                                new JavaSparkContext(rdd.context()),
-                                hdfsSingleton.getInst(),
-                                loggerSingleton.getInst());
-
-                rdd.foreach(task -> {
-                    SynthesizedLogger logger = loggerSingleton.getInst();
-
-                    // Get the task data.
-                    TaskData taskData = task._2();
-                    TaskData.ExecutionPlan.Node curNode =
-                            taskData.curNode;
-                    // Get the videoID of the video to process from the
-                    // execution data of this node.
-                    VideoFragment frag = (VideoFragment) taskData.predecessorRes;
-                    // Get tracking configuration for this execution.
-                    String confFile = (String) curNode.getExecData();
-                    if (confFile == null) {
-                        logger.error("Tracking configuration file" +
-                                " is not specified for this node!");
-                        return;
-                    }
+        public boolean needsOrderedBatches() {
+            return false;
+        }
 
-                    // Get the IDs of successor nodes.
-                    List<Topic> succTopics = curNode.getSuccessors();
-                    // Mark the current node as executed in advance.
-                    taskData.curNode.markExecuted();
-
-                    // Load tracking configuration to create a tracker.
-                    if (!confPool.getValue().containsKey(confFile)) {
-                        logger.error(
-                                "Cannot find tracking config file "
-                                        + confFile);
-                        return;
-                    }
-                    byte[] confBytes = confPool.getValue().get(confFile);
-                    if (confBytes == null) {
-                        logger.fatal("confPool contains key " + confFile
-                                + " but value is null!");
-                        return;
-                    }
-                    Tracker tracker = new BasicTracker(confBytes, logger);
-                    //Tracker tracker = new FakePedestrianTracker();
-
-                    // Conduct tracking on video read from HDFS.
-                    logger.debug("Performing tracking on " + frag.videoID);
-                    Tracklet[] tracklets = tracker.track(frag.bytes);
-                    logger.debug("Finished tracking on " + frag.videoID);
-
-                    // Send tracklets.
-                    for (int i = 0; i < tracklets.length; ++i) {
-                        Tracklet tracklet = tracklets[i];
-                        // Complete identifier of each tracklet.
-                        tracklet.id = new Tracklet.Identifier(frag.videoID, i);
-                        // Stored the track in the task data, which can be cyclic utilized.
-                        taskData.predecessorRes = tracklet;
-                        // Send to all the successor nodes.
-                        for (Topic topic : succTopics) {
-                            taskData.changeCurNode(topic);
-
-                            byte[] serialized = serialize(taskData);
-                            logger.debug(
-                                    "To sendWithLog message with size: "
-                                            + serialized.length);
-                            sendWithLog(topic,
-                                    task._1(),
-                                    serialized,
-                                    producerSingleton.getInst(),
-                                    logger);
-                        }
+        @Override
+        protected void addToContext(JavaStreamingContext jsc, Priority priority) {
+            buildBytesDirectStream(jsc, kafkaParams, videoURLTopicMap, priority)
+                    .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
+                        JavaPairRDD<String, byte[]> placedRDD =
+                                localityEnabled ? placeNearVideos(rdd) : rdd;
+                        track(placedRDD.mapToPair(kvPair -> {
+                            String taskID = kvPair._1();
+
+                            // Get the task data.
+                            TaskData taskData =
+                                    (TaskData) deserialize(kvPair._2());
+                            VideoFragment frag = new VideoFragment();
+                            // Get the videoID of the video to process from the
+                            // execution data of this node.
+                            frag.videoID = (String) taskData.predecessorRes;
+                            // Retrieve video fragment bytes, unless the video is to be
+                            // read through its keyframe index when tracked.
+                            if (keyframeIndexStoreSingleton == null) {
+                                frag.bytes = HDFSLocality.readFully(hdfsSingleton.getInst(),
+                                        new Path(frag.videoID),
+                                        loggerSingleton.getInst());
+                            }
+
+                            taskData.predecessorRes = frag;
+                            return new Tuple2<>(taskID, taskData);
+                        }));
+                    });
+
+            buildBytesDirectStream(jsc, kafkaParams, videoFragBytesTopicMap, priority)
+                    .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
+                        track(rdd.mapValues(bytes -> (TaskData) SerializationHelper.deserialize(bytes)));
+                    });
+        }
+
+        /**
+         * Perform tracking on video fragments and send the tracklets to the successors.
+         *
+         * @param rdd Tasks carrying the video fragments.
+         * @throws Exception On failure getting the tracking configurations.
+         */
+        private void track(JavaPairRDD<String, TaskData> rdd) throws Exception {
+            final Broadcast<Map<String, byte[]>> confPool =
+                    ConfigPool.getInst(
+                            new JavaSparkContext(rdd.context()),
+                            hdfsSingleton.getInst(),
+                            loggerSingleton.getInst());
+
+            rdd.foreach(task -> {
+                SynthesizedLogger logger = loggerSingleton.getInst();
+                NativeMemoryRegistry.setBudget(nativeMemBudget);
+
+                // Get the task data.
+                TaskData taskData = task._2();
+                TaskData.ExecutionPlan.Node curNode =
+                        taskData.curNode;
+                // Get the videoID of the video to process from the
+                // execution data of this node.
+                VideoFragment frag = (VideoFragment) taskData.predecessorRes;
+                // Get tracking configuration for this execution.
+                String confFile = (String) curNode.getExecData();
+                if (confFile == null) {
+                    logger.error("Tracking configuration file" +
+                            " is not specified for this node!");
+                    return;
+                }
+
+                // Get the IDs of successor nodes.
+                List<Topic> succTopics = curNode.getSuccessors();
+                // Mark the current node as executed in advance.
+                taskData.curNode.markExecuted();
+
+                // Load tracking configuration to create a tracker.
+                if (!confPool.getValue().containsKey(confFile)) {
+                    logger.error(
+                            "Cannot find tracking config file "
+                                    + confFile);
+                    return;
+                }
+                byte[] confBytes = confPool.getValue().get(confFile);
+                if (confBytes == null) {
+                    logger.fatal("confPool contains key " + confFile
+                            + " but value is null!");
+                    return;
+                }
+                BasicTracker tracker = new BasicTracker(confBytes, logger, motionGateConf);
+                //Tracker tracker = new FakePedestrianTracker();
+
+                // Conduct tracking on video read from HDFS.
+                logger.debug("Performing tracking on " + frag.videoID);
+                Tracklet[] tracklets;
+                if (frag.bytes != null) {
+                    tracklets = tracker.track(frag.bytes);
+                } else {
+                    KeyframeIndexStore keyframeIndexStore = keyframeIndexStoreSingleton.getInst();
+                    tracklets = tracker.track(() ->
+                            keyframeIndexStore.openDecoder(new Path(frag.videoID), 0, 0));
+                }
+                if (tracklets == null) {
+                    logger.error("Failed to perform tracking on " + frag.videoID + "!");
+                    return;
+                }
+                logger.debug("Finished tracking on " + frag.videoID);
+                if (tracker.getLastGateStatistics() != null) {
+                    logger.info("Motion gate on " + frag.videoID + ": "
+                            + tracker.getLastGateStatistics());
+                }
+
+                // Send tracklets.
+                for (int i = 0; i < tracklets.length; ++i) {
+                    Tracklet tracklet = tracklets[i];
+                    // Complete identifier of each tracklet.
+                    tracklet.id = new Tracklet.Identifier(frag.videoID, i);
+                    // Stored the track in the task data, which can be cyclic utilized.
+                    taskData.predecessorRes = tracklet;
+                    // Send to all the successor nodes.
+                    for (Topic topic : succTopics) {
+                        taskData.changeCurNode(topic);
+
+                        byte[] serialized = serialize(taskData);
+                        logger.debug(
+                                "To sendWithLog message with size: "
+                                        + serialized.length);
+                        sendWithLog(topic,
+                                taskData.priority,
+                                task._1(),
+                                serialized,
+                                producerSingleton.getInst(),
+                                logger);
                     }
-                });
+                }
             });
         }
     }
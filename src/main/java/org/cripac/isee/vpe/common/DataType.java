@@ -37,5 +37,34 @@ public enum DataType {
      * @see org.cripac.isee.vpe.data.WebCameraConnector.LoginParam
      */
     WEBCAM_LOGIN_PARAM,
-    NONE
+    /**
+     * Queries for pedestrians by attributes.
+     *
+     * @see org.cripac.isee.pedestrian.attr.AttributeQuery
+     */
+    ATTR_QUERY,
+    /**
+     * Queries for tracklets passing through a region in a range of frames.
+     *
+     * @see org.cripac.isee.pedestrian.tracking.TrajectoryQuery
+     */
+    TRAJECTORY_QUERY,
+    /**
+     * Arrays of tracklet identifiers, e.g. results of attribute queries.
+     */
+    TRACKLET_IDS,
+    NONE;
+
+    /**
+     * Check whether results of this type can be sent to topics accepting
+     * another type. Besides the same type, attributes can be sent along with
+     * the tracklets they are recognized from, so that the attribute recognition
+     * can feed re-identification directly.
+     *
+     * @param inputType Type accepted by a topic.
+     * @return Whether results of this type can be sent to the topic.
+     */
+    public boolean canOutputTo(DataType inputType) {
+        return this == inputType || (this == ATTR && inputType == TRACKLET_ATTR);
+    }
 }
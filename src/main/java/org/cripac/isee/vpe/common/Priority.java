@@ -0,0 +1,41 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.common;
+
+/**
+ * Enumeration of priorities of tasks. Tasks of each priority are sent through
+ * topics of their own, and processed in jobs of their own, which run in the
+ * scheduler pool of the priority (see conf/vpe-scheduler.xml). So tasks of
+ * lower priorities, like backfills of archived videos, do not delay those of
+ * higher priorities, like tracking on web cameras.
+ */
+public enum Priority {
+    HIGH("-high"),
+    NORMAL(""),
+    LOW("-low");
+
+    /**
+     * Suffix of the names of topics and scheduler pools for tasks of the priority.
+     * Normal tasks use the original names.
+     */
+    public final String SUFFIX;
+
+    Priority(String suffix) {
+        this.SUFFIX = suffix;
+    }
+}
@@ -26,10 +26,12 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.kafka.common.requests.OffsetCommitRequest;
 import org.apache.log4j.Level;
+import org.apache.spark.SparkConf;
 import org.apache.spark.storage.StorageLevel;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.apache.spark.streaming.kafka.KafkaUtils;
+import org.cripac.isee.vpe.ctrl.ConfManager;
 import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
 
@@ -54,6 +56,12 @@ public abstract class SparkStreamingApp implements Serializable {
 
     private static final long serialVersionUID = 2780614096112566164L;
 
+    /**
+     * Name of the scheduler allocation file, in the configuration directory
+     * or, if shipped with the application, in the working directory.
+     */
+    public static final String SCHEDULER_ALLOCATION_FILE = "vpe-scheduler.xml";
+
     /**
      * Common Spark Streaming context variable.
      */
@@ -69,6 +77,47 @@ public abstract class SparkStreamingApp implements Serializable {
 
     abstract public String getAppName();
 
+    /**
+     * @return All the streams of the application, which {@link #getStreamContext()}
+     * adds to its context. Streams of several applications may also be added to a
+     * shared context instead.
+     */
+    abstract public List<Stream> getStreams();
+
+    /**
+     * Let Spark share resources fairly among the scheduler pools configured in the
+     * allocation file. Settings already in the configuration are kept.
+     * <p>
+     * Pools only weigh jobs running at the same time, so when no stream of the
+     * application needs ordered batches (see {@link Stream#needsOrderedBatches()}),
+     * spark.streaming.concurrentJobs is raised to twice the number of flows of the
+     * streams (one per priority), letting the jobs of high priorities start without
+     * waiting for those of lower ones, even of earlier batches. Otherwise jobs run
+     * one at a time, since running more would let consecutive batches overlap.
+     *
+     * @param conf Configuration of the Spark context of the application.
+     * @return The configuration.
+     */
+    protected SparkConf configureScheduler(@Nonnull SparkConf conf) {
+        conf.setIfMissing("spark.scheduler.mode", "FAIR");
+        List<Stream> streams = getStreams();
+        if (streams.stream().noneMatch(Stream::needsOrderedBatches)) {
+            conf.setIfMissing("spark.streaming.concurrentJobs",
+                    "" + 2 * streams.size() * Priority.values().length);
+        }
+        if (!conf.contains("spark.scheduler.allocation.file")) {
+            for (File file : new File[]{
+                    new File(ConfManager.CONF_DIR + "/" + SCHEDULER_ALLOCATION_FILE),
+                    new File(SCHEDULER_ALLOCATION_FILE)}) {
+                if (file.exists()) {
+                    conf.set("spark.scheduler.allocation.file", file.getAbsolutePath());
+                    break;
+                }
+            }
+        }
+        return conf;
+    }
+
     /**
      * Initialize the application.
      *
@@ -22,17 +22,23 @@ import kafka.serializer.DefaultDecoder;
 import kafka.serializer.StringDecoder;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.requests.OffsetCommitRequest;
+import org.apache.spark.api.java.JavaRDDLike;
 import org.apache.spark.storage.StorageLevel;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.apache.spark.streaming.kafka.KafkaUtils;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.util.transport.Transport;
+import org.cripac.isee.vpe.util.transport.TransportFactory;
 
 import javax.annotation.Nonnull;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A Stream is a flow of DStreams. Each stream outputs at most one INPUT_TYPE of output.
@@ -89,11 +95,100 @@ public abstract class Stream implements Serializable {
     }
 
     /**
-     * Add the stream to a Spark Streaming context.
+     * Scheduler pool used by applications running in their own Spark contexts.
+     */
+    public static final String DEFAULT_SCHEDULER_POOL = "vpe";
+
+    /**
+     * Name of the Spark scheduler pool to run the jobs of this stream in.
+     */
+    private String schedulerPool = DEFAULT_SCHEDULER_POOL;
+
+    /**
+     * @return Name of the Spark scheduler pool the jobs of this stream run in.
+     */
+    public String getSchedulerPool() {
+        return schedulerPool;
+    }
+
+    /**
+     * @param priority Priority of tasks.
+     * @return Name of the Spark scheduler pool the jobs of this stream processing
+     * tasks of the priority run in.
+     */
+    public String getSchedulerPool(@Nonnull Priority priority) {
+        return schedulerPool + priority.SUFFIX;
+    }
+
+    /**
+     * Let the jobs of this stream run in a Spark scheduler pool. This should be
+     * called before the stream is added to a context. Pools not configured in the
+     * allocation file are created with default settings.
+     *
+     * @param schedulerPool Name of the pool, suffixed by {@link Priority#SUFFIX}
+     *                      for the tasks of each priority.
+     */
+    public void setSchedulerPool(@Nonnull String schedulerPool) {
+        this.schedulerPool = schedulerPool;
+    }
+
+    /**
+     * @return Whether the output operations of a batch of this stream must complete
+     * before those of the next batch start, e.g. when they append to files per batch
+     * or keep state across batches. Streams processing each task on its own override
+     * this, so that their jobs can run concurrently.
+     */
+    public boolean needsOrderedBatches() {
+        return true;
+    }
+
+    /**
+     * Let the jobs submitted by the current thread on an RDD run in the scheduler pool
+     * of this stream for tasks of a priority. Output operations should call this before
+     * submitting jobs, since Spark Streaming runs them in threads of its own, with
+     * properties from the thread starting the context.
+     *
+     * @param rdd      An RDD of this stream.
+     * @param priority Priority of the tasks in the RDD.
+     */
+    protected void usePool(@Nonnull JavaRDDLike<?, ?> rdd, @Nonnull Priority priority) {
+        rdd.context().setLocalProperty("spark.scheduler.pool", getSchedulerPool(priority));
+    }
+
+    /**
+     * Transport for receiving and sending messages of this stream.
+     */
+    protected final Transport transport;
+
+    /**
+     * Create a stream using the transport specified in the system properties.
+     *
+     * @param propCenter Properties of the whole system.
+     * @throws IllegalArgumentException If the transport cannot be used.
+     */
+    public Stream(@Nonnull SystemPropertyCenter propCenter) {
+        transport = new TransportFactory(propCenter).produce();
+    }
+
+    /**
+     * Add the stream to a Spark Streaming context. Tasks of each priority
+     * are processed in a flow of their own.
      *
      * @param jsc A Spark Streaming context.
      */
-    public abstract void addToContext(JavaStreamingContext jsc);
+    public void addToContext(JavaStreamingContext jsc) {
+        for (Priority priority : Priority.values()) {
+            addToContext(jsc, priority);
+        }
+    }
+
+    /**
+     * Add the flow processing tasks of a priority to a Spark Streaming context.
+     *
+     * @param jsc      A Spark Streaming context.
+     * @param priority Priority of the tasks.
+     */
+    protected abstract void addToContext(JavaStreamingContext jsc, Priority priority);
 
     /**
      * Utilization function for all applications to receive messages with byte
@@ -128,29 +223,30 @@ public abstract class Stream implements Serializable {
 
     /**
      * Utility function for all applications to receive messages with byte
-     * array values from Kafka with direct stream.
+     * array values through the transport of the stream.
      *
      * @param streamingContext      The streaming context of the applications.
      * @param kafkaParams           Parameters for reading from Kafka.
      * @param numPartitionsPerTopic A map specifying topics to read from, each assigned number of
      *                              partitions for the topic.
-     * @return A Kafka non-receiver input stream.
+     * @param priority              Priority of the tasks to receive. Messages are read from
+     *                              the topics for the priority.
+     * @return A non-receiver input stream.
      */
     protected JavaPairDStream<String, byte[]>
     buildBytesDirectStream(@Nonnull JavaStreamingContext streamingContext,
                            @Nonnull Map<String, String> kafkaParams,
-                           @Nonnull Map<String, Integer> numPartitionsPerTopic) {
-        return KafkaUtils
-                // TODO(Ken Yu): Fetch offset from Zookeeper and restart from that.
-                .createDirectStream(
-                        streamingContext,
-                        String.class, byte[].class,
-                        StringDecoder.class, DefaultDecoder.class,
-                        kafkaParams,
-                        numPartitionsPerTopic.keySet())
+                           @Nonnull Map<String, Integer> numPartitionsPerTopic,
+                           @Nonnull Priority priority) {
+        Set<String> topics = new HashSet<>();
+        for (String topic : numPartitionsPerTopic.keySet()) {
+            topics.add(topic + priority.SUFFIX);
+        }
+        return transport
+                .createBytesStream(streamingContext, kafkaParams, topics)
                 .transformToPair(rdd -> {
                     // TODO(Ken Yu): Report offset to Zookeeper.
-                    rdd.context().setLocalProperty("spark.scheduler.pool", "vpe");
+                    usePool(rdd, priority);
                     return rdd;
                 });
     }
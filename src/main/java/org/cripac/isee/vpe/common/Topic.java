@@ -58,6 +58,17 @@ public final class Topic implements Serializable {
         TopicManager.registerTopic(this);
     }
 
+    /**
+     * Get the name of the topic for tasks of a priority.
+     *
+     * @param priority Priority of the tasks.
+     * @return Name of the topic to appear in Kafka.
+     */
+    @Nonnull
+    public String getName(@Nonnull Priority priority) {
+        return NAME + priority.SUFFIX;
+    }
+
     /**
      * Transform the topic into a string in format as "[INPUT_TYPE]NAME".
      *
@@ -0,0 +1,249 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.ctrl;
+
+import org.cripac.isee.vpe.common.Priority;
+import org.cripac.isee.vpe.common.Topic;
+import org.cripac.isee.vpe.util.transport.Transport;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The AdmissionController class holds new tasks back while the streams they
+ * are to go through lag too far behind, so that bulk commands do not flood
+ * the topics and delay everything else. Tasks of each priority are admitted
+ * in the order they are submitted, and tasks of higher priorities first.
+ * <p>
+ * The controller works in the driver, where it queries the lags from the
+ * transport of the system. The lag of a stream counts only messages it has not
+ * pulled into a batch yet. With Kafka, a stream pulls no more than it can process
+ * only when spark.streaming.backpressure.enabled is set (see spark-defaults.conf),
+ * and batches generated but still waiting in Spark are not counted in any case,
+ * so the budget bounds the backlog in the topics rather than the whole delay.
+ * <p>
+ * The queues live in the memory of the driver. They can be saved with
+ * {@link #save(OutputStream)} and restored with {@link #restore(InputStream)}
+ * so that tasks held back survive restarts of the driver.
+ */
+public class AdmissionController {
+
+    /**
+     * A task waiting to be sent to the topic it enters the system from.
+     */
+    public static class Task implements Serializable {
+        private static final long serialVersionUID = -3021596181287720427L;
+
+        public final Topic topic;
+        public final String taskID;
+        public final TaskData taskData;
+
+        Task(@Nonnull Topic topic,
+             @Nonnull String taskID,
+             @Nonnull TaskData taskData) {
+            this.topic = topic;
+            this.taskID = taskID;
+            this.taskData = taskData;
+        }
+    }
+
+    private final Transport transport;
+    private final long lagBudget;
+    private final Map<Priority, Queue<Task>> queues = new EnumMap<>(Priority.class);
+    /**
+     * Lags of the topics checked on the last admission, including tasks admitted then.
+     */
+    private Map<String, Long> lastLags = new TreeMap<>();
+    private long numAdmitted = 0;
+    /**
+     * Number of changes made to the queues, telling whether they need saving again.
+     */
+    private long numChanges = 0;
+
+    /**
+     * Create a controller.
+     *
+     * @param transport The transport the tasks are sent through.
+     * @param lagBudget Maximum number of messages a stream may lag behind before
+     *                  tasks going through it are held back.
+     *                  Non-positive values mean tasks are never held back.
+     */
+    public AdmissionController(@Nonnull Transport transport, long lagBudget) {
+        this.transport = transport;
+        this.lagBudget = lagBudget;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Submit a new task to wait for admission.
+     *
+     * @param topic    The topic the task is to be sent to.
+     * @param taskID   ID of the task.
+     * @param taskData The task, whose execution plan tells the streams it goes through.
+     */
+    public synchronized void submit(@Nonnull Topic topic,
+                                    @Nonnull String taskID,
+                                    @Nonnull TaskData taskData) {
+        queues.get(taskData.priority).add(new Task(topic, taskID, taskData));
+        ++numChanges;
+    }
+
+    /**
+     * Take the tasks that can be sent now. The lag of each topic is queried once
+     * on each call, and tasks admitted are counted into the lags of their topics.
+     * A task waits, together with those submitted after it of the same priority,
+     * while any topic of its priority it is to go through lags no less than the budget.
+     *
+     * @return Tasks admitted, which should be sent by the caller.
+     * @throws Exception On failure getting the lags.
+     */
+    @Nonnull
+    public synchronized List<Task> admit() throws Exception {
+        List<Task> admitted = new ArrayList<>();
+        Map<String, Long> lags = new HashMap<>();
+        for (Priority priority : Priority.values()) {
+            Queue<Task> queue = queues.get(priority);
+            while (!queue.isEmpty()) {
+                Task task = queue.peek();
+                if (lagBudget > 0 && isOverBudget(task, lags)) {
+                    break;
+                }
+                admitted.add(queue.poll());
+                lags.merge(task.topic.getName(priority), 1L, Long::sum);
+            }
+        }
+        numAdmitted += admitted.size();
+        if (!admitted.isEmpty()) {
+            ++numChanges;
+        }
+        lastLags = new TreeMap<>(lags);
+        return admitted;
+    }
+
+    private boolean isOverBudget(@Nonnull Task task,
+                                 @Nonnull Map<String, Long> lags) throws Exception {
+        Set<Topic> topics = new LinkedHashSet<>();
+        topics.add(task.topic);
+        if (task.taskData.executionPlan != null) {
+            topics.addAll(task.taskData.executionPlan.getOutputTopics());
+        }
+        for (Topic topic : topics) {
+            String name = topic.getName(task.taskData.priority);
+            Long lag = lags.get(name);
+            if (lag == null) {
+                lag = transport.getLag(name, topic.STREAM_INFO.NAME);
+                lags.put(name, lag);
+            }
+            if (lag >= lagBudget) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of changes made to the queues so far, which can be compared
+     * with that got on saving to tell whether the queues have changed since then.
+     */
+    public synchronized long getNumChanges() {
+        return numChanges;
+    }
+
+    /**
+     * Save the tasks waiting for admission.
+     *
+     * @param out Stream to write the tasks to, which is not closed.
+     * @throws IOException On failure writing the tasks.
+     */
+    public synchronized void save(@Nonnull OutputStream out) throws IOException {
+        ArrayList<Task> tasks = new ArrayList<>();
+        for (Queue<Task> queue : queues.values()) {
+            tasks.addAll(queue);
+        }
+        ObjectOutputStream objOut = new ObjectOutputStream(out);
+        objOut.writeObject(tasks);
+        objOut.flush();
+    }
+
+    /**
+     * Restore tasks saved by {@link #save(OutputStream)}, queueing them after
+     * those already waiting.
+     *
+     * @param in Stream to read the tasks from, which is not closed.
+     * @throws IOException            On failure reading the tasks.
+     * @throws ClassNotFoundException If the saved tasks cannot be deserialized.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void restore(@Nonnull InputStream in)
+            throws IOException, ClassNotFoundException {
+        List<Task> tasks = (List<Task>) new ObjectInputStream(in).readObject();
+        for (Task task : tasks) {
+            queues.get(task.taskData.priority).add(task);
+        }
+    }
+
+    /**
+     * @return Number of tasks waiting for admission.
+     */
+    public synchronized int getNumQueued() {
+        int num = 0;
+        for (Queue<Task> queue : queues.values()) {
+            num += queue.size();
+        }
+        return num;
+    }
+
+    /**
+     * @return A plain text report of the budget, the queues and the lags.
+     */
+    @Nonnull
+    public synchronized String getStatus() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Lag budget: ")
+                .append(lagBudget > 0 ? "" + lagBudget : "unlimited").append('\n');
+        builder.append("Tasks admitted: ").append(numAdmitted).append('\n');
+        builder.append("Tasks queued:\n");
+        for (Map.Entry<Priority, Queue<Task>> entry : queues.entrySet()) {
+            builder.append("  ").append(entry.getKey())
+                    .append(": ").append(entry.getValue().size()).append('\n');
+        }
+        builder.append("Lags on last admission:\n");
+        for (Map.Entry<String, Long> entry : lastLags.entrySet()) {
+            builder.append("  ").append(entry.getKey())
+                    .append(": ").append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -20,11 +20,14 @@ package org.cripac.isee.vpe.ctrl;
 import org.cripac.isee.vpe.alg.PedestrianAttrRecogApp;
 import org.cripac.isee.vpe.alg.PedestrianReIDUsingAttrApp;
 import org.cripac.isee.vpe.alg.PedestrianTrackingApp;
+import org.cripac.isee.vpe.common.SparkStreamingApp;
 import org.cripac.isee.vpe.ctrl.SystemPropertyCenter.NoAppSpecifiedException;
 import org.cripac.isee.vpe.data.DataManagingApp;
 
 import javax.annotation.Nonnull;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,7 +35,7 @@ import java.util.Map;
  */
 public class AppManager {
 
-    private static Map<String, String> classNameMap = new HashMap<>();
+    private static Map<String, String> classNameMap = new LinkedHashMap<>();
 
     static {
         classNameMap.put(PedestrianReIDUsingAttrApp.APP_NAME, PedestrianReIDUsingAttrApp.class.getName());
@@ -40,6 +43,7 @@ public class AppManager {
         classNameMap.put(PedestrianAttrRecogApp.APP_NAME, PedestrianAttrRecogApp.class.getName());
         classNameMap.put(DataManagingApp.APP_NAME, DataManagingApp.class.getName());
         classNameMap.put(MessageHandlingApp.APP_NAME, MessageHandlingApp.class.getName());
+        classNameMap.put(ConsolidatedApp.APP_NAME, ConsolidatedApp.class.getName());
     }
 
     /**
@@ -55,4 +59,28 @@ public class AppManager {
         else
             throw new NoAppSpecifiedException();
     }
+
+    /**
+     * @return Names of all the applications, except the consolidated one.
+     */
+    public static List<String> getAppNames() {
+        List<String> appNames = new ArrayList<>(classNameMap.keySet());
+        appNames.remove(ConsolidatedApp.APP_NAME);
+        return appNames;
+    }
+
+    /**
+     * Create an application without starting it.
+     *
+     * @param appName    Name of the application.
+     * @param propCenter Properties of the whole system.
+     * @return The application.
+     * @throws Exception On failure creating the application.
+     */
+    public static SparkStreamingApp createApp(@Nonnull String appName,
+                                              @Nonnull SystemPropertyCenter propCenter) throws Exception {
+        return (SparkStreamingApp) Class.forName(getMainClassName(appName))
+                .getConstructor(SystemPropertyCenter.class)
+                .newInstance(propCenter);
+    }
 }
@@ -0,0 +1,110 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.ctrl;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.streaming.Durations;
+import org.apache.spark.streaming.api.java.JavaStreamingContext;
+import org.cripac.isee.vpe.common.SparkStreamingApp;
+import org.cripac.isee.vpe.common.Stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The ConsolidatedApp class runs the streams of several applications in one
+ * Spark Streaming context, so that small deployments start only one driver and
+ * one set of executors. Each stream runs its jobs in a scheduler pool named after
+ * its class (suffixed for tasks of each {@link org.cripac.isee.vpe.common.Priority}),
+ * whose weight and minimum share can be configured in the allocation file
+ * (conf/vpe-scheduler.xml).
+ */
+public class ConsolidatedApp extends SparkStreamingApp {
+    /**
+     * The NAME of this application.
+     */
+    public static final String APP_NAME = "consolidated";
+
+    private List<SparkStreamingApp> apps = new ArrayList<>();
+    private String sparkMaster;
+    private long batchDuration;
+
+    /**
+     * Create the applications to consolidate.
+     *
+     * @param propCenter Properties of the whole system. The applications specified to
+     *                   start are consolidated, or all the applications if none is specified.
+     * @throws Exception On failure creating the applications.
+     */
+    public ConsolidatedApp(SystemPropertyCenter propCenter) throws Exception {
+        sparkMaster = propCenter.sparkMaster;
+        batchDuration = propCenter.consolidatedBatchDuration;
+        List<String> appNames = propCenter.appsToStart == null
+                ? AppManager.getAppNames()
+                : Arrays.asList(propCenter.appsToStart);
+        for (String appName : appNames) {
+            if (!appName.equals(APP_NAME)) {
+                apps.add(AppManager.createApp(appName, propCenter));
+            }
+        }
+        for (Stream stream : getStreams()) {
+            stream.setSchedulerPool(stream.getClass().getSimpleName());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SystemPropertyCenter propCenter = new SystemPropertyCenter(args);
+
+        SparkStreamingApp app = new ConsolidatedApp(propCenter);
+        TopicManager.checkTopics(propCenter);
+        app.initialize(propCenter);
+        app.start();
+        app.awaitTermination();
+    }
+
+    @Override
+    protected JavaStreamingContext getStreamContext() {
+        SparkConf conf = configureScheduler(new SparkConf(true)
+                .setIfMissing("spark.master", sparkMaster)
+                .setIfMissing("spark.app.name", APP_NAME));
+        JavaStreamingContext jsc =
+                new JavaStreamingContext(new JavaSparkContext(conf), Durations.milliseconds(batchDuration));
+
+        for (Stream stream : getStreams()) {
+            stream.addToContext(jsc);
+        }
+
+        return jsc;
+    }
+
+    @Override
+    public String getAppName() {
+        return APP_NAME;
+    }
+
+    @Override
+    public List<Stream> getStreams() {
+        List<Stream> streams = new ArrayList<>();
+        for (SparkStreamingApp app : apps) {
+            streams.addAll(app.getStreams());
+        }
+        return streams;
+    }
+}
@@ -0,0 +1,208 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.ctrl;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
+
+import javax.annotation.Nonnull;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.cripac.isee.vpe.util.SerializationHelper.deserialize;
+import static org.cripac.isee.vpe.util.SerializationHelper.serialize;
+
+/**
+ * The ExecutionPlanRegistry class stores execution plans once in a directory
+ * shared by all the applications, so that a {@link TaskData} of a registered
+ * plan only carries the ID of the plan and the execution state of its nodes,
+ * instead of the whole plan on every hop.
+ * <p>
+ * A plan is identified by the digest of its serialized form, so registering
+ * the same plan twice writes it once, and a registered plan never changes.
+ * Each JVM caches the plans it has resolved.
+ */
+public class ExecutionPlanRegistry {
+
+    /**
+     * Maximum number of plans cached in each JVM.
+     */
+    public static final int CACHE_SIZE = 256;
+
+    private static final Map<String, ExecutionPlan> cache =
+            Collections.synchronizedMap(new LinkedHashMap<String, ExecutionPlan>(16, 0.75f, true) {
+                private static final long serialVersionUID = -3167386231961470393L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ExecutionPlan> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private final FileSystem fs;
+    private final Path dir;
+    private final long ttl;
+    private long lastPurgeTime = 0;
+
+    /**
+     * Create a registry storing plans in a directory.
+     *
+     * @param fs  The file system where the directory is.
+     * @param dir The directory to store plans.
+     * @param ttl Time (ms) for a plan file to live, which should exceed the maximum
+     *            lifetime of a task. Plans not registered again for twice this time
+     *            are deleted on later registrations, so tasks created just before
+     *            the last registration still find their plans.
+     *            Non-positive values mean plans are never deleted.
+     * @throws IOException On failure creating the directory.
+     */
+    public ExecutionPlanRegistry(@Nonnull FileSystem fs,
+                                 @Nonnull String dir,
+                                 long ttl) throws IOException {
+        this.fs = fs;
+        // Qualify the directory so that JVMs with different working directories find the same plans.
+        this.dir = fs.makeQualified(new Path(dir));
+        this.ttl = ttl;
+        fs.mkdirs(this.dir);
+    }
+
+    private static String digest(@Nonnull byte[] bytes) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (byte b : md.digest(bytes)) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Register a plan. After this, tasks of the plan are serialized with only
+     * the ID of the plan, until the structure of the plan is modified.
+     *
+     * @param plan The plan to register.
+     * @throws IOException On failure writing the plan.
+     */
+    public void register(@Nonnull ExecutionPlan plan) throws IOException {
+        byte[] bytes = serialize(plan);
+        if (bytes == null) {
+            throw new IOException("Cannot serialize " + plan);
+        }
+        String id = digest(bytes);
+        purgeIfDue();
+        Path path = new Path(dir, id);
+        long now = System.currentTimeMillis();
+        FileStatus status;
+        try {
+            status = fs.getFileStatus(path);
+        } catch (FileNotFoundException e) {
+            status = null;
+        }
+        if (status != null) {
+            // Plans are purged by modification time, so keep a plan in use from being purged.
+            // It is refreshed only now and then, to avoid an update on every registration.
+            if (ttl > 0 && now - status.getModificationTime() > ttl / 4) {
+                fs.setTimes(path, now, -1);
+            }
+        } else {
+            // Write to a temporary file first, so that readers never see a partial plan.
+            Path tmpPath = new Path(dir, "." + id + "." + UUID.randomUUID());
+            try (FSDataOutputStream output = fs.create(tmpPath, true)) {
+                output.write(bytes);
+            }
+            if (!fs.rename(tmpPath, path)) {
+                fs.delete(tmpPath, false);
+                if (!fs.exists(path)) {
+                    throw new IOException("Cannot write plan to " + path);
+                }
+            }
+        }
+        plan.setRegistration(dir.toString(), id);
+    }
+
+    /**
+     * Delete plans not registered for twice the time-to-live, at most once
+     * per time-to-live.
+     *
+     * @throws IOException On failure listing or deleting the plans.
+     */
+    private synchronized void purgeIfDue() throws IOException {
+        long now = System.currentTimeMillis();
+        if (ttl <= 0 || now - lastPurgeTime < ttl) {
+            return;
+        }
+        lastPurgeTime = now;
+        for (FileStatus status : fs.listStatus(dir)) {
+            if (now - status.getModificationTime() > 2 * ttl) {
+                fs.delete(status.getPath(), false);
+            }
+        }
+    }
+
+    /**
+     * Get a registered plan. The returned plan is shared by the whole JVM,
+     * so it should be copied before being modified.
+     *
+     * @param dir Directory of the registry.
+     * @param id  ID of the plan.
+     * @return The plan.
+     * @throws IOException On failure reading the plan.
+     */
+    @Nonnull
+    static ExecutionPlan resolve(@Nonnull String dir,
+                                 @Nonnull String id) throws IOException {
+        final String key = dir + "/" + id;
+        ExecutionPlan plan = cache.get(key);
+        if (plan != null) {
+            return plan;
+        }
+
+        Path path = new Path(dir, id);
+        FileSystem fs = path.getFileSystem(new Configuration());
+        byte[] bytes = new byte[(int) fs.getFileStatus(path).getLen()];
+        try (FSDataInputStream input = fs.open(path)) {
+            input.readFully(bytes);
+        }
+        try {
+            plan = (ExecutionPlan) deserialize(bytes);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot deserialize plan " + key, e);
+        }
+        if (plan == null) {
+            throw new IOException("Cannot deserialize plan " + key);
+        }
+        plan.setRegistration(dir, id);
+        cache.put(key, plan);
+        return plan;
+    }
+}
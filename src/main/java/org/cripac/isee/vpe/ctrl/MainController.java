@@ -18,11 +18,8 @@
 package org.cripac.isee.vpe.ctrl;
 
 import org.apache.spark.launcher.SparkLauncher;
-import org.apache.zookeeper.KeeperException.UnimplementedException;
-import org.cripac.isee.vpe.ctrl.SystemPropertyCenter.NoAppSpecifiedException;
-import org.xml.sax.SAXException;
+import org.cripac.isee.vpe.common.SparkStreamingApp;
 
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.IOException;
 import java.net.*;
@@ -41,13 +38,7 @@ public class MainController {
 
     public static boolean listening = true;
 
-    public static void main(String[] args)
-            throws NoAppSpecifiedException,
-            URISyntaxException,
-            IOException,
-            ParserConfigurationException,
-            SAXException,
-            UnimplementedException {
+    public static void main(String[] args) throws Exception {
         // Analyze the command line and store the options into a system property
         // center.
         SystemPropertyCenter propCenter = new SystemPropertyCenter(args);
@@ -113,7 +104,11 @@ public class MainController {
 
             List<ProcessWithName> processesWithNames = new LinkedList<>();
             boolean useDefaultAppProperties = (propCenter.appPropFilePath == null);
-            for (String appName : propCenter.appsToStart) {
+            // Consolidated applications are submitted as one, which starts all of them.
+            String[] appsToLaunch = propCenter.consolidateApps
+                    ? new String[]{ConsolidatedApp.APP_NAME}
+                    : propCenter.appsToStart;
+            for (String appName : appsToLaunch) {
                 if (useDefaultAppProperties) {
                     propCenter.appPropFilePath = ConfManager.CONF_DIR + "/" + appName + "/app.properties";
                 }
@@ -127,6 +122,7 @@ public class MainController {
                         .setVerbose(propCenter.verbose)
                         .addFile(propCenter.log4jPropFilePath)
                         .addFile(propCenter.sysPropFilePath)
+                        .addFile(ConfManager.CONF_DIR + "/" + SparkStreamingApp.SCHEDULER_ALLOCATION_FILE)
                         .addFile(ConfManager.getConcatCfgFilePathList(","))
                         .setConf(SparkLauncher.DRIVER_MEMORY, propCenter.driverMem)
                         .setConf(SparkLauncher.EXECUTOR_MEMORY, propCenter.executorMem)
@@ -175,8 +171,12 @@ public class MainController {
             }
             listening = false;
         } else {
-            // TODO Complete code for running locally.
-            throw new UnimplementedException();
+            // Run all the applications in this JVM, sharing one streaming context.
+            SparkStreamingApp app = new ConsolidatedApp(propCenter);
+            TopicManager.checkTopics(propCenter);
+            app.initialize(propCenter);
+            app.start();
+            app.awaitTermination();
         }
     }
 }
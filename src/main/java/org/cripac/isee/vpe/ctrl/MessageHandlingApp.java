@@ -17,8 +17,10 @@
 
 package org.cripac.isee.vpe.ctrl;
 
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.log4j.Level;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -33,10 +35,18 @@ import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
 import org.cripac.isee.vpe.data.DataManagingApp;
 import org.cripac.isee.vpe.data.HDFSReader;
 import org.cripac.isee.vpe.util.Singleton;
-import org.cripac.isee.vpe.util.kafka.KafkaProducerFactory;
+import org.cripac.isee.vpe.util.hdfs.HDFSFactory;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLoggerFactory;
+import org.cripac.isee.vpe.util.transport.InProcessTransport;
+import org.cripac.isee.vpe.util.transport.Transport;
+import org.cripac.isee.vpe.web.UIServer;
+import scala.Tuple2;
 
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.*;
 
@@ -86,7 +96,7 @@ public class MessageHandlingApp extends SparkStreamingApp {
 
     @Override
     protected JavaStreamingContext getStreamContext() {
-        JavaSparkContext sparkContext = new JavaSparkContext(new SparkConf(true));
+        JavaSparkContext sparkContext = new JavaSparkContext(configureScheduler(new SparkConf(true)));
         sparkContext.setLocalProperty("spark.scheduler.pool", "vpe");
         JavaStreamingContext jsc =
                 new JavaStreamingContext(sparkContext, Durations.seconds(1));
@@ -106,6 +116,11 @@ public class MessageHandlingApp extends SparkStreamingApp {
         return APP_NAME;
     }
 
+    @Override
+    public List<Stream> getStreams() {
+        return Arrays.asList(msgHandlingStream);
+    }
+
     /**
      * The class Parameter contains a numeration of parameter types
      * the MessageHandlingApp may use, as well as their keys.
@@ -115,6 +130,27 @@ public class MessageHandlingApp extends SparkStreamingApp {
         public final static String TRACKING_CONF_FILE = "tracking-conf-file";
         public final static String TRACKLET_SERIAL_NUM = "tracklet-serial-num";
         public final static String WEBCAM_LOGIN_PARAM = "webcam-login-param";
+        /**
+         * Maximum number of bounding boxes sampled from each tracklet for
+         * attribute recognition and ReID (Integer). Optional.
+         */
+        public final static String MAX_SAMPLED_PATCHES = "max-sampled-patches";
+        /**
+         * Query for searching pedestrians by attributes
+         * ({@link org.cripac.isee.pedestrian.attr.AttributeQuery}).
+         */
+        public final static String ATTR_QUERY = "attr-query";
+        /**
+         * Query for searching tracklets passing through a region during a range of frames
+         * ({@link org.cripac.isee.pedestrian.tracking.TrajectoryQuery}).
+         */
+        public final static String TRAJECTORY_QUERY = "trajectory-query";
+        /**
+         * Priority of the tasks of the command ({@link Priority} or its name). Optional.
+         * By default, real-time commands are of high priority, and other commands take
+         * the priority of the command topic they are sent to.
+         */
+        public final static String PRIORITY = "priority";
 
         private Parameter() {
         }
@@ -134,6 +170,8 @@ public class MessageHandlingApp extends SparkStreamingApp {
         public final static String TRACK_ATTRRECOG_REID = "track-attrrecog-reid";
         public final static String RT_TRACK_ONLY = "rttrack";
         public final static String RT_TRACK_ATTRRECOG_REID = "rt-track-attrrecog-reid";
+        public final static String ATTR_QUERY = "attr-query";
+        public final static String TRAJECTORY_QUERY = "trajectory-query";
     }
 
     public static class UnsupportedCommandException extends Exception {
@@ -151,11 +189,43 @@ public class MessageHandlingApp extends SparkStreamingApp {
 
         private Map<String, Integer> cmdTopicMap = new HashMap<>();
         private Map<String, String> kafkaParams;
-        private Singleton<KafkaProducer<String, byte[]>> producerSingleton;
+        private Singleton<Producer<String, byte[]>> producerSingleton;
         private Singleton<SynthesizedLogger> loggerSingleton;
         private Singleton<HDFSReader> hdfsReaderSingleton;
+        /**
+         * Registry of execution plans, or null if plans are carried in tasks.
+         */
+        private Singleton<ExecutionPlanRegistry> planRegistrySingleton = null;
+        /**
+         * Whether attribute recognition feeds ReID directly in the plans.
+         */
+        private boolean stageFusion;
+        /**
+         * Controller holding back tasks while downstream streams lag behind.
+         */
+        private Singleton<AdmissionController> admissionSingleton;
+        /**
+         * File the tasks held back by the admission controller are saved to after each batch.
+         * The stream is checkpointed together with the name, which is new on each fresh start,
+         * so only a driver recovering from the checkpoint restores the tasks.
+         */
+        private String admissionStateFile;
+        /**
+         * Number of changes of the admission controller when its tasks were last saved.
+         */
+        private transient long numAdmissionChangesSaved = 0;
+        /**
+         * Expander turning commands on stored videos into tasks.
+         */
+        private Singleton<TaskExpander> expanderSingleton;
+        private int uiPort;
+        /**
+         * Server showing the state of the admission controller in the driver.
+         */
+        private static UIServer uiServer = null;
 
         public MessageHandlingStream(SystemPropertyCenter propCenter) throws Exception {
+            super(propCenter);
             cmdTopicMap.put(COMMAND_TOPIC.NAME, propCenter.kafkaNumPartitions);
 
             kafkaParams = new HashMap<>();
@@ -174,13 +244,172 @@ public class MessageHandlingApp extends SparkStreamingApp {
             producerProp.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
             producerProp.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
 
-            producerSingleton = new Singleton<>(new KafkaProducerFactory<>(producerProp));
+            producerSingleton = new Singleton<>(transport.getProducerFactory(producerProp));
             loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
                     INFO.NAME,
                     propCenter.verbose ? Level.DEBUG : Level.INFO,
                     propCenter.reportListenerAddr,
                     propCenter.reportListenerPort));
             hdfsReaderSingleton = new Singleton<>(() -> new HDFSReader());
+            stageFusion = propCenter.stageFusion;
+            if (!propCenter.planRegistryDir.isEmpty()) {
+                final String planRegistryDir = propCenter.planRegistryDir;
+                final long planRegistryTtl = propCenter.planRegistryTtl;
+                planRegistrySingleton = new Singleton<>(() -> new ExecutionPlanRegistry(
+                        new HDFSFactory().produce(), planRegistryDir, planRegistryTtl));
+            }
+            final Transport transport = this.transport;
+            final long admissionLagBudget = propCenter.admissionLagBudget;
+            admissionStateFile = propCenter.checkpointRootDir + "/" + INFO.NAME + "-admission/"
+                    + UUID.randomUUID();
+            final String admissionStateFile = this.admissionStateFile;
+            admissionSingleton = new Singleton<>(() -> {
+                AdmissionController admission = new AdmissionController(transport, admissionLagBudget);
+                restoreAdmission(admission, new Path(admissionStateFile));
+                return admission;
+            });
+            final double taskExpansionRate = propCenter.taskExpansionRate;
+            expanderSingleton = new Singleton<>(() -> new TaskExpander(taskExpansionRate));
+            uiPort = propCenter.uiPort;
+        }
+
+        /**
+         * Restore the tasks the admission controller held back before the driver restarted,
+         * and remove the files saved by earlier runs.
+         *
+         * @param admission The admission controller to restore the tasks into.
+         * @param stateFile The file the tasks are saved to.
+         * @throws Exception On failure reading the saved tasks.
+         */
+        private static void restoreAdmission(@Nonnull AdmissionController admission,
+                                             @Nonnull Path stateFile) throws Exception {
+            FileSystem hdfs = new HDFSFactory().produce();
+            // The temporary file is complete if the saved one has been deleted before renaming.
+            Path tmpFile = stateFile.suffix(".tmp");
+            Path savedFile = hdfs.exists(stateFile) ? stateFile : (hdfs.exists(tmpFile) ? tmpFile : null);
+            if (savedFile != null) {
+                try (InputStream in = hdfs.open(savedFile)) {
+                    admission.restore(in);
+                }
+            }
+            if (hdfs.exists(stateFile.getParent())) {
+                for (FileStatus status : hdfs.listStatus(stateFile.getParent())) {
+                    if (!status.getPath().getName().startsWith(stateFile.getName())) {
+                        hdfs.delete(status.getPath(), true);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Save the tasks the admission controller holds back, if changed, so that
+         * they are not lost when the driver restarts after the offsets of the commands
+         * they come from have been checkpointed.
+         *
+         * @throws Exception On failure getting the admission controller or writing the file.
+         */
+        private void saveAdmission() throws Exception {
+            AdmissionController admission = admissionSingleton.getInst();
+            long numChanges = admission.getNumChanges();
+            if (numChanges == numAdmissionChangesSaved) {
+                return;
+            }
+            FileSystem hdfs = new HDFSFactory().produce();
+            Path stateFile = new Path(admissionStateFile);
+            Path tmpFile = stateFile.suffix(".tmp");
+            try (OutputStream out = hdfs.create(tmpFile, true)) {
+                admission.save(out);
+            }
+            hdfs.delete(stateFile, false);
+            if (!hdfs.rename(tmpFile, stateFile)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + stateFile + "!");
+            }
+            numAdmissionChangesSaved = numChanges;
+        }
+
+        /**
+         * Start the UI server showing the state of the admission controller
+         * and the task expander, once in the driver.
+         * <p>
+         * With the in-process transport, nothing outside the JVM can send to the command
+         * topic, so the server also accepts commands at "/command", taking the command
+         * from the "cmd" query parameter and the other query parameters as its
+         * parameters, e.g. "/command?cmd=track&amp;video-url=...". Commands needing
+         * parameters other than strings can be submitted with
+         * {@link #submitCommand(String, Map)} in the JVM.
+         *
+         * @throws Exception On failure getting the admission controller or the expander.
+         */
+        private void showAdmissionStatus() throws Exception {
+            synchronized (MessageHandlingStream.class) {
+                if (uiServer == null && uiPort > 0) {
+                    final AdmissionController admission = admissionSingleton.getInst();
+                    final TaskExpander expander = expanderSingleton.getInst();
+                    uiServer = new UIServer();
+                    uiServer.addPage("/admission", () -> admission.getStatus()
+                            + "Commands being expanded: " + expander.getNumExpanding() + "\n");
+                    if (transport instanceof InProcessTransport) {
+                        uiServer.addAction("/command", params -> {
+                            String cmd = params.remove("cmd");
+                            if (cmd == null) {
+                                return "Missing parameter \"cmd\"!\n";
+                            }
+                            try {
+                                submitCommand(cmd, new HashMap<String, Serializable>(params));
+                                return "Submitted command " + cmd + ".\n";
+                            } catch (Exception e) {
+                                return "Failed to submit command " + cmd + ": " + e + "\n";
+                            }
+                        });
+                    }
+                    uiServer.listen(uiPort);
+                }
+            }
+        }
+
+        /**
+         * Submit a command through the command topic, as clients do through Kafka.
+         * This is how commands reach the stream with the in-process transport.
+         * The command is sent to the command topic of the priority its tasks are
+         * to be run at, so that it is not held up behind commands of lower priorities.
+         *
+         * @param cmd   The command (see {@link CommandType}).
+         * @param param Parameters of the command (see {@link Parameter}).
+         * @throws Exception On failure sending the command.
+         */
+        public void submitCommand(@Nonnull String cmd,
+                                  @Nonnull Map<String, Serializable> param) throws Exception {
+            sendWithLog(COMMAND_TOPIC,
+                    decidePriority(cmd, param, Priority.NORMAL),
+                    cmd,
+                    serialize(new HashMap<>(param)),
+                    producerSingleton.getInst(),
+                    loggerSingleton.getInst());
+        }
+
+        /**
+         * Let the ReID node in a plan take the tracklets output by a node and the attributes
+         * recognized from them. With stage fusion, the attribute recognition node sends them
+         * together, and the ReID runs in the same tasks as the recognition. Otherwise, they are
+         * sent separately and joined by the ReID application.
+         *
+         * @param plan          The execution plan.
+         * @param trackletNode  The node outputting tracklets to the attribute recognition node.
+         * @param attrRecogNode The attribute recognition node.
+         * @throws DataTypeUnmatchException On failure linking the nodes.
+         */
+        private void linkAttrRecogToReID(ExecutionPlan plan,
+                                         ExecutionPlan.Node trackletNode,
+                                         ExecutionPlan.Node attrRecogNode) throws DataTypeUnmatchException {
+            if (stageFusion) {
+                plan.letNodeOutputTo(attrRecogNode,
+                        PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_ATTR_TOPIC);
+            } else {
+                plan.letNodeOutputTo(trackletNode,
+                        PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_TOPIC);
+                plan.letNodeOutputTo(attrRecogNode,
+                        PedestrianReIDUsingAttrApp.ReIDStream.ATTR_TOPIC);
+            }
         }
 
         /**
@@ -190,9 +419,10 @@ public class MessageHandlingApp extends SparkStreamingApp {
          * @param param Parameter for creating the plan.
          * @return Execution plan corresponding to the command.
          * @throws UnsupportedCommandException On dealing with unsupported command.
+         * @throws Exception                   On failure getting the registry or the logger.
          */
         private ExecutionPlan createPlanByCmdAndParam(String cmd, Map<String, Serializable> param)
-                throws UnsupportedCommandException, DataTypeUnmatchException {
+                throws Exception {
             ExecutionPlan plan = new ExecutionPlan();
 
             switch (cmd) {
@@ -221,7 +451,8 @@ public class MessageHandlingApp extends SparkStreamingApp {
                     ExecutionPlan.Node trackletDataNode = plan.addNode(
                             DataManagingApp.PedestrainTrackletRetrievingStream.INFO);
                     ExecutionPlan.Node attrRecogNode = plan.addNode(
-                            PedestrianAttrRecogApp.RecogStream.INFO);
+                            PedestrianAttrRecogApp.RecogStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     plan.letNodeOutputTo(trackletDataNode,
                             PedestrianAttrRecogApp.RecogStream.TRACKLET_TOPIC);
                     plan.letNodeOutputTo(attrRecogNode,
@@ -234,7 +465,8 @@ public class MessageHandlingApp extends SparkStreamingApp {
                             PedestrianTrackingApp.VideoFragmentTrackingStream.INFO,
                             param.get(Parameter.TRACKING_CONF_FILE));
                     ExecutionPlan.Node attrRecogNode = plan.addNode(
-                            PedestrianAttrRecogApp.RecogStream.INFO);
+                            PedestrianAttrRecogApp.RecogStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     plan.letNodeOutputTo(trackingNode,
                             PedestrianAttrRecogApp.RecogStream.TRACKLET_TOPIC);
                     plan.letNodeOutputTo(trackingNode,
@@ -249,7 +481,8 @@ public class MessageHandlingApp extends SparkStreamingApp {
                     ExecutionPlan.Node trackWithAttrDataNode = plan.addNode(
                             DataManagingApp.PedestrainTrackletAttrRetrievingStream.INFO);
                     ExecutionPlan.Node reidNode = plan.addNode(
-                            PedestrianReIDUsingAttrApp.ReIDStream.INFO);
+                            PedestrianReIDUsingAttrApp.ReIDStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     plan.letNodeOutputTo(trackWithAttrDataNode,
                             PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_ATTR_TOPIC);
                     plan.letNodeOutputTo(reidNode,
@@ -260,15 +493,14 @@ public class MessageHandlingApp extends SparkStreamingApp {
                     ExecutionPlan.Node trackletDataNode = plan.addNode(
                             DataManagingApp.PedestrainTrackletRetrievingStream.INFO);
                     ExecutionPlan.Node attrRecogNode = plan.addNode(
-                            PedestrianAttrRecogApp.RecogStream.INFO);
+                            PedestrianAttrRecogApp.RecogStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     ExecutionPlan.Node reidNode = plan.addNode(
-                            PedestrianReIDUsingAttrApp.ReIDStream.INFO);
+                            PedestrianReIDUsingAttrApp.ReIDStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     plan.letNodeOutputTo(trackletDataNode,
                             PedestrianAttrRecogApp.RecogStream.TRACKLET_TOPIC);
-                    plan.letNodeOutputTo(trackletDataNode,
-                            PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_TOPIC);
-                    plan.letNodeOutputTo(attrRecogNode,
-                            PedestrianReIDUsingAttrApp.ReIDStream.ATTR_TOPIC);
+                    linkAttrRecogToReID(plan, trackletDataNode, attrRecogNode);
                     plan.letNodeOutputTo(attrRecogNode,
                             DataManagingApp.SavingStream.PED_ATTR_SAVING_TOPIC);
                     plan.letNodeOutputTo(reidNode,
@@ -280,15 +512,14 @@ public class MessageHandlingApp extends SparkStreamingApp {
                             PedestrianTrackingApp.VideoFragmentTrackingStream.INFO,
                             param.get(Parameter.TRACKING_CONF_FILE));
                     ExecutionPlan.Node attrRecogNode = plan.addNode(
-                            PedestrianAttrRecogApp.RecogStream.INFO);
+                            PedestrianAttrRecogApp.RecogStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     ExecutionPlan.Node reidNode = plan.addNode(
-                            PedestrianReIDUsingAttrApp.ReIDStream.INFO);
+                            PedestrianReIDUsingAttrApp.ReIDStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     plan.letNodeOutputTo(trackingNode,
                             PedestrianAttrRecogApp.RecogStream.TRACKLET_TOPIC);
-                    plan.letNodeOutputTo(trackingNode,
-                            PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_TOPIC);
-                    plan.letNodeOutputTo(attrRecogNode,
-                            PedestrianReIDUsingAttrApp.ReIDStream.ATTR_TOPIC);
+                    linkAttrRecogToReID(plan, trackingNode, attrRecogNode);
                     plan.letNodeOutputTo(trackingNode,
                             DataManagingApp.SavingStream.PED_TRACKLET_SAVING_TOPIC);
                     plan.letNodeOutputTo(attrRecogNode,
@@ -302,15 +533,14 @@ public class MessageHandlingApp extends SparkStreamingApp {
                             PedestrianTrackingApp.RTVideoStreamTrackingStream.INFO,
                             param.get(Parameter.TRACKING_CONF_FILE));
                     ExecutionPlan.Node attrRecogNode = plan.addNode(
-                            PedestrianAttrRecogApp.RecogStream.INFO);
+                            PedestrianAttrRecogApp.RecogStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     ExecutionPlan.Node reidNode = plan.addNode(
-                            PedestrianReIDUsingAttrApp.ReIDStream.INFO);
+                            PedestrianReIDUsingAttrApp.ReIDStream.INFO,
+                            param.get(Parameter.MAX_SAMPLED_PATCHES));
                     plan.letNodeOutputTo(trackingNode,
                             PedestrianAttrRecogApp.RecogStream.TRACKLET_TOPIC);
-                    plan.letNodeOutputTo(trackingNode,
-                            PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_TOPIC);
-                    plan.letNodeOutputTo(attrRecogNode,
-                            PedestrianReIDUsingAttrApp.ReIDStream.ATTR_TOPIC);
+                    linkAttrRecogToReID(plan, trackingNode, attrRecogNode);
                     plan.letNodeOutputTo(trackingNode,
                             DataManagingApp.SavingStream.PED_TRACKLET_SAVING_TOPIC);
                     plan.letNodeOutputTo(attrRecogNode,
@@ -319,25 +549,209 @@ public class MessageHandlingApp extends SparkStreamingApp {
                             DataManagingApp.SavingStream.PED_IDRANK_SAVING_TOPIC);
                     break;
                 }
+                case CommandType.ATTR_QUERY: {
+                    // Search for pedestrians by attributes. Results are only logged for now.
+                    plan.addNode(DataManagingApp.AttrQueryStream.INFO);
+                    break;
+                }
+                case CommandType.TRAJECTORY_QUERY: {
+                    // Search for tracklets by region and time. Results are only logged for now.
+                    plan.addNode(DataManagingApp.TrajectoryQueryStream.INFO);
+                    break;
+                }
                 default:
                     throw new UnsupportedCommandException();
             }
 
+            if (planRegistrySingleton != null) {
+                try {
+                    planRegistrySingleton.getInst().register(plan);
+                } catch (IOException e) {
+                    // Tasks of the plan carry the whole plan instead.
+                    loggerSingleton.getInst().error("Cannot register " + plan, e);
+                }
+            }
+
             return plan;
         }
 
+        /**
+         * Decide the priority of the tasks of a command.
+         *
+         * @param cmd         The command.
+         * @param param       Parameters of the command.
+         * @param cmdPriority Priority of the command topic the command is received from.
+         * @return Priority of the tasks. Unknown priorities specified in the parameters
+         * are ignored with a warning, as if not specified.
+         * @throws Exception On failure getting the logger.
+         */
+        private Priority decidePriority(String cmd,
+                                        Map<String, Serializable> param,
+                                        Priority cmdPriority) throws Exception {
+            Serializable specified = param.get(Parameter.PRIORITY);
+            if (specified instanceof Priority) {
+                return (Priority) specified;
+            } else if (specified != null) {
+                try {
+                    return Priority.valueOf(specified.toString().trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    loggerSingleton.getInst().warn("Unknown priority \"" + specified
+                            + "\" of command " + cmd + ", using the default one!");
+                }
+            }
+            switch (cmd) {
+                case CommandType.RT_TRACK_ONLY:
+                case CommandType.RT_TRACK_ATTRRECOG_REID:
+                    return Priority.HIGH;
+                default:
+                    return cmdPriority;
+            }
+        }
+
+        /**
+         * Get the ID of the task of a video of a command on stored videos. Each video
+         * has a task of its own, since the results of a task, e.g. its tracklets, are
+         * saved and counted by the task ID. The ID of the command is kept as the prefix,
+         * grouping the tasks of the command.
+         *
+         * @param commandID ID of the command.
+         * @param index     Index of the video among those of the command.
+         * @return ID of the task of the video.
+         */
+        @Nonnull
+        public static String getVideoTaskID(@Nonnull String commandID, int index) {
+            return commandID + "-" + index;
+        }
+
+        /**
+         * Create the task of a stored video for a command, and submit it for sending.
+         *
+         * @param cmd          The command.
+         * @param param        Parameters of the command.
+         * @param plan         Execution plan of the command.
+         * @param path         Path of the video.
+         * @param taskID       ID of the task.
+         * @param taskPriority Priority of the task.
+         * @throws Exception On failure creating or submitting the task.
+         */
+        private void submitVideoTask(String cmd,
+                                     Map<String, Serializable> param,
+                                     ExecutionPlan plan,
+                                     Path path,
+                                     String taskID,
+                                     Priority taskPriority) throws Exception {
+            // Choose modules to send data to according to the command.
+            switch (cmd) {
+                // These commands need to send only video URLs to
+                // the tracking module.
+                case CommandType.TRACK_ONLY:
+                case CommandType.TRACK_ATTRRECOG:
+                case CommandType.TRACK_ATTRRECOG_REID: {
+                    TaskData taskData = new TaskData(
+                            plan.findNode(
+                                    PedestrianTrackingApp.VideoFragmentTrackingStream
+                                            .VIDEO_URL_TOPIC),
+                            plan,
+                            path.toString());
+                    taskData.priority = taskPriority;
+                    admissionSingleton.getInst().submit(
+                            PedestrianTrackingApp.VideoFragmentTrackingStream
+                                    .VIDEO_URL_TOPIC,
+                            taskID,
+                            taskData);
+                    break;
+                }
+                // These commands need only sending tracklet IDs to the
+                // data managing module to retrieve tracklets.
+                case CommandType.ATTRRECOG_ONLY:
+                case CommandType.ATTRRECOG_REID: {
+                    Tracklet.Identifier id = new Tracklet.Identifier(
+                            path.toString(),
+                            Integer.valueOf((String) param.get(
+                                    Parameter.TRACKLET_SERIAL_NUM)));
+                    TaskData taskData = new TaskData(
+                            plan.findNode(DataManagingApp
+                                    .PedestrainTrackletRetrievingStream
+                                    .PED_TRACKLET_RTRV_JOB_TOPIC),
+                            plan,
+                            id);
+                    taskData.priority = taskPriority;
+                    admissionSingleton.getInst().submit(
+                            DataManagingApp
+                                    .PedestrainTrackletRetrievingStream
+                                    .PED_TRACKLET_RTRV_JOB_TOPIC,
+                            taskID,
+                            taskData);
+                    break;
+                }
+                // This command needs only sending tracklet IDs to the
+                // data managing module to retrieve tracklets and attributes.
+                case CommandType.REID_ONLY: {
+                    Tracklet.Identifier id = new Tracklet.Identifier(
+                            path.toString(),
+                            Integer.valueOf((String) param.get(
+                                    Parameter.TRACKLET_SERIAL_NUM)));
+                    TaskData taskData = new TaskData(
+                            plan.findNode(DataManagingApp
+                                    .PedestrainTrackletAttrRetrievingStream
+                                    .JOB_TOPIC),
+                            plan,
+                            id);
+                    taskData.priority = taskPriority;
+                    admissionSingleton.getInst().submit(
+                            DataManagingApp
+                                    .PedestrainTrackletAttrRetrievingStream
+                                    .JOB_TOPIC,
+                            taskID,
+                            taskData);
+                    break;
+                }
+            }
+        }
+
         @Override
-        public void addToContext(JavaStreamingContext jsc) {// Handle the messages received from Kafka,
-            buildBytesDirectStream(jsc, kafkaParams, cmdTopicMap)
+        protected void addToContext(JavaStreamingContext jsc, Priority priority) {// Handle the messages received from Kafka,
+            buildBytesDirectStream(jsc, kafkaParams, cmdTopicMap, priority)
                     .foreachRDD(rdd -> {
-                        rdd.foreach(msg -> {
+                        usePool(rdd, priority);
+                        showAdmissionStatus();
+                        // Commands are few, so they are handled in the driver, where tasks
+                        // are held back while the streams they go through lag behind.
+                        for (Tuple2<String, byte[]> msg : rdd.collect()) {
                             UUID taskID = UUID.randomUUID();
 
                             // Get a next command message.
                             String cmd = msg._1();
                             Map<String, Serializable> param = (Map<String, Serializable>) deserialize(msg._2());
+                            Priority taskPriority = decidePriority(cmd, param, priority);
 
                             switch (cmd) {
+                                case CommandType.ATTR_QUERY: {
+                                    ExecutionPlan plan = createPlanByCmdAndParam(cmd, param);
+                                    TaskData taskData = new TaskData(
+                                            plan.findNode(DataManagingApp.AttrQueryStream.QUERY_TOPIC),
+                                            plan,
+                                            param.get(Parameter.ATTR_QUERY));
+                                    taskData.priority = taskPriority;
+                                    admissionSingleton.getInst().submit(
+                                            DataManagingApp.AttrQueryStream.QUERY_TOPIC,
+                                            taskID.toString(),
+                                            taskData);
+                                    break;
+                                }
+                                case CommandType.TRAJECTORY_QUERY: {
+                                    ExecutionPlan plan = createPlanByCmdAndParam(cmd, param);
+                                    TaskData taskData = new TaskData(
+                                            plan.findNode(DataManagingApp.TrajectoryQueryStream.QUERY_TOPIC),
+                                            plan,
+                                            param.get(Parameter.TRAJECTORY_QUERY));
+                                    taskData.priority = taskPriority;
+                                    admissionSingleton.getInst().submit(
+                                            DataManagingApp.TrajectoryQueryStream.QUERY_TOPIC,
+                                            taskID.toString(),
+                                            taskData);
+                                    break;
+                                }
                                 case CommandType.RT_TRACK_ONLY:
                                 case CommandType.RT_TRACK_ATTRRECOG_REID: {
                                     // Process real-time data.
@@ -348,13 +762,12 @@ public class MessageHandlingApp extends SparkStreamingApp {
                                                             .LOGIN_PARAM_TOPIC),
                                             plan,
                                             param.get(Parameter.WEBCAM_LOGIN_PARAM));
-                                    sendWithLog(
+                                    taskData.priority = taskPriority;
+                                    admissionSingleton.getInst().submit(
                                             PedestrianTrackingApp.RTVideoStreamTrackingStream
                                                     .LOGIN_PARAM_TOPIC,
                                             taskID.toString(),
-                                            serialize(taskData),
-                                            producerSingleton.getInst(),
-                                            loggerSingleton.getInst());
+                                            taskData);
                                     break;
                                 }
                                 case CommandType.TRACK_ONLY:
@@ -363,89 +776,39 @@ public class MessageHandlingApp extends SparkStreamingApp {
                                 case CommandType.ATTRRECOG_ONLY:
                                 case CommandType.ATTRRECOG_REID:
                                 case CommandType.REID_ONLY: {
-                                    // Process stored videos.
-                                    List<Path> videoPaths =
-                                            hdfsReaderSingleton.getInst().listSubfiles(
-                                                    new Path((String) param.get(Parameter.VIDEO_URL)));
+                                    // Process stored videos, which are listed and turned into
+                                    // tasks incrementally, at a limited rate.
 
                                     // Create an execution plan according to the command.
                                     ExecutionPlan plan = createPlanByCmdAndParam(cmd, param);
-
-                                    // For each video to be processed
-                                    for (Path path : videoPaths) {
-                                        // Choose modules to send data to according to the command.
-                                        switch (cmd) {
-                                            // These commands need to send only video URLs to
-                                            // the tracking module.
-                                            case CommandType.TRACK_ONLY:
-                                            case CommandType.TRACK_ATTRRECOG:
-                                            case CommandType.TRACK_ATTRRECOG_REID: {
-                                                TaskData taskData = new TaskData(
-                                                        plan.findNode(
-                                                                PedestrianTrackingApp.VideoFragmentTrackingStream
-                                                                        .VIDEO_URL_TOPIC),
-                                                        plan,
-                                                        param.get(Parameter.VIDEO_URL));
-                                                sendWithLog(
-                                                        PedestrianTrackingApp.VideoFragmentTrackingStream
-                                                                .VIDEO_URL_TOPIC,
-                                                        taskID.toString(),
-                                                        serialize(taskData),
-                                                        producerSingleton.getInst(),
-                                                        loggerSingleton.getInst());
-                                                break;
-                                            }
-                                            // These commands need only sending tracklet IDs to the
-                                            // data managing module to retrieve tracklets.
-                                            case CommandType.ATTRRECOG_ONLY:
-                                            case CommandType.ATTRRECOG_REID: {
-                                                Tracklet.Identifier id = new Tracklet.Identifier(
-                                                        path.toString(),
-                                                        Integer.valueOf((String) param.get(
-                                                                Parameter.TRACKLET_SERIAL_NUM)));
-                                                TaskData taskData = new TaskData(
-                                                        plan.findNode(DataManagingApp
-                                                                .PedestrainTrackletRetrievingStream
-                                                                .PED_TRACKLET_RTRV_JOB_TOPIC),
-                                                        plan,
-                                                        id);
-                                                sendWithLog(DataManagingApp
-                                                                .PedestrainTrackletRetrievingStream
-                                                                .PED_TRACKLET_RTRV_JOB_TOPIC,
-                                                        taskID.toString(),
-                                                        serialize(taskData),
-                                                        producerSingleton.getInst(),
-                                                        loggerSingleton.getInst());
-                                                break;
-                                            }
-                                            // This command needs only sending tracklet IDs to the
-                                            // data managing module to retrieve tracklets and attributes.
-                                            case CommandType.REID_ONLY: {
-                                                Tracklet.Identifier id = new Tracklet.Identifier(
-                                                        path.toString(),
-                                                        Integer.valueOf((String) param.get(
-                                                                Parameter.TRACKLET_SERIAL_NUM)));
-                                                TaskData taskData = new TaskData(
-                                                        plan.findNode(DataManagingApp
-                                                                .PedestrainTrackletAttrRetrievingStream
-                                                                .JOB_TOPIC),
-                                                        plan,
-                                                        id);
-                                                sendWithLog(DataManagingApp
-                                                                .PedestrainTrackletAttrRetrievingStream
-                                                                .JOB_TOPIC,
-                                                        taskID.toString(),
-                                                        serialize(taskData),
-                                                        producerSingleton.getInst(),
-                                                        loggerSingleton.getInst());
-                                                break;
-                                            }
-                                        }
-                                    }
+                                    expanderSingleton.getInst().add(
+                                            hdfsReaderSingleton.getInst().listSubfilesIncrementally(
+                                                    new Path((String) param.get(Parameter.VIDEO_URL))),
+                                            taskPriority,
+                                            (path, index) -> submitVideoTask(cmd, param, plan, path,
+                                                    getVideoTaskID(taskID.toString(), index),
+                                                    taskPriority));
                                     break;
                                 }
                             }
-                        });
+                        }
+
+                        expanderSingleton.getInst().expand(loggerSingleton.getInst());
+
+                        for (AdmissionController.Task task : admissionSingleton.getInst().admit()) {
+                            sendWithLog(task.topic,
+                                    task.taskData.priority,
+                                    task.taskID,
+                                    serialize(task.taskData),
+                                    producerSingleton.getInst(),
+                                    loggerSingleton.getInst());
+                        }
+                        try {
+                            saveAdmission();
+                        } catch (IOException e) {
+                            // The tasks are still held in memory, and saved again on the next batch.
+                            loggerSingleton.getInst().error("Failed to save the tasks held back", e);
+                        }
                     });
         }
     }
@@ -26,6 +26,7 @@ import org.apache.log4j.Level;
 import org.cripac.isee.vpe.util.hdfs.HadoopHelper;
 import org.cripac.isee.vpe.util.logging.ConsoleLogger;
 import org.cripac.isee.vpe.util.logging.Logger;
+import org.cripac.isee.vpe.util.tracking.MotionGate;
 import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
@@ -69,6 +70,16 @@ public class SystemPropertyCenter {
     public String sparkMaster = "local[*]";
     public String sparkDeployMode = "client";
     public String[] appsToStart = null;
+    /**
+     * Whether to submit the applications to start as one Spark application sharing a
+     * streaming context, instead of one Spark application for each. Applications always
+     * share a context when not running on YARN.
+     */
+    public boolean consolidateApps = false;
+    /**
+     * Duration (ms) of each batch of the streaming context shared by consolidated applications.
+     */
+    public long consolidatedBatchDuration = 1000;
     /**
      * Memory per executor (e.g. 1000M, 2G) (Default: 1G)
      */
@@ -130,6 +141,149 @@ public class SystemPropertyCenter {
      * Whether to print verbose running information.
      */
     public boolean verbose = false;
+    /**
+     * Whether to skip static frames with a motion gate before feeding them to trackers.
+     */
+    public boolean motionGateEnabled = false;
+    /**
+     * Configuration of the motion gate, used when it is enabled.
+     */
+    public MotionGate.Config motionGateConf = new MotionGate.Config();
+    /**
+     * Directory on HDFS of the keyframe indices of videos, through which tracking
+     * decoders read the videos. Empty if videos are read into memory as a whole.
+     */
+    public String keyframeIndexDir = "";
+    /**
+     * Frame rate of the videos, for the timestamps of keyframes in their indices.
+     */
+    public float keyframeIndexFps = 25;
+    /**
+     * Whether to run tracking tasks on the hosts storing their videos in HDFS.
+     */
+    public boolean trackingLocalityEnabled = true;
+    /**
+     * Budget of off-heap memory used by native libraries in each executor (MB).
+     * Non-positive values disable the budget.
+     */
+    public long nativeMemBudget = 0;
+    /**
+     * Default maximum number of bounding boxes sampled from each tracklet
+     * before attribute recognition and ReID. Non-positive values disable sampling.
+     */
+    public int maxSampledPatches = 16;
+    /**
+     * Maximum size of decoded tracklets cached in each executor for retrieval (MB).
+     */
+    public long trackletCacheSize = 256;
+    /**
+     * Maximum number of tracklet archives kept open in each executor.
+     */
+    public int trackletCacheHandles = 64;
+    /**
+     * Number of threads for decoding patches of retrieved tracklets in each executor.
+     */
+    public int trackletDecodingThreads = 4;
+    /**
+     * Seconds to wait for more tracklets of an unfinished task before giving it up.
+     */
+    public long trackletSavingTimeout = 3600;
+    /**
+     * JPEG quality (0 to 100) of the patches of tracklets saved.
+     */
+    public int jpegQuality = 95;
+    /**
+     * Number of threads for encoding patches of saved tracklets in each executor.
+     */
+    public int patchEncodingThreads = 4;
+    /**
+     * Type of the graph database connector: "fake" for a connector returning
+     * fake results, or "local" for an embedded store on the local disk.
+     */
+    public String graphDBConnector = "fake";
+    /**
+     * Directory of the local graph database store.
+     */
+    public String graphDBLocalDir = "graphdb";
+    /**
+     * Number of buffered graph database updates to trigger a batch write.
+     * Values not greater than 1 disable batching.
+     */
+    public int graphDBBatchSize = 256;
+    /**
+     * Maximum time a graph database update waits in the buffer (ms).
+     */
+    public long graphDBBatchDelay = 1000;
+    /**
+     * Maximum number of graph database query results cached in each executor.
+     * Non-positive values disable caching.
+     */
+    public int graphDBCacheSize = 10000;
+    /**
+     * Time-to-live of cached graph database query results (ms).
+     */
+    public long graphDBCacheTtl = 60000;
+    /**
+     * Time-to-live of cached failures to find items in the graph database (ms).
+     */
+    public long graphDBCacheNegativeTtl = 5000;
+    /**
+     * Minimum confidence for a pedestrian to be indexed as having an attribute.
+     */
+    public float attrIndexThreshold = 0.5f;
+    /**
+     * Width and height in pixels of the grid cells of trajectory indices.
+     */
+    public int trajectoryIndexCellSize = 32;
+    /**
+     * Number of frames in a time bucket of trajectory indices.
+     */
+    public int trajectoryIndexBucketFrames = 250;
+    /**
+     * Maximum number of trajectory indices cached in each executor.
+     */
+    public int trajectoryIndexCacheSize = 64;
+    /**
+     * Whether to execute the ReID of pedestrians in the tasks recognizing their
+     * attributes, instead of sending them to the ReID application through Kafka.
+     */
+    public boolean stageFusion = false;
+    /**
+     * Directory to register execution plans in, so that tasks carry only plan IDs.
+     * Empty to carry whole plans in tasks.
+     */
+    public String planRegistryDir = "";
+    /**
+     * Time (ms) for registered execution plans to live,
+     * which should exceed the maximum lifetime of a task.
+     */
+    public long planRegistryTtl = 7 * 24 * 3600 * 1000L;
+    /**
+     * Transport of messages between streams: "kafka" for Kafka brokers, or
+     * "in-process" for queues in the JVM, which requires a local Spark master.
+     */
+    public String transport = "kafka";
+    /**
+     * Maximum number of messages waiting in the queue of each topic
+     * of the in-process transport.
+     */
+    public int transportQueueCapacity = 1024;
+    /**
+     * Maximum number of messages a downstream stream may lag behind before the
+     * message handler holds back new tasks for it. Non-positive values disable
+     * the admission control.
+     */
+    public long admissionLagBudget = 10000;
+    /**
+     * Maximum number of tasks created per second from commands on stored videos.
+     * Non-positive values mean the rate is not limited.
+     */
+    public double taskExpansionRate = 100;
+    /**
+     * Port of the HTTP server showing the state of the message handler.
+     * Non-positive values disable the server.
+     */
+    public int uiPort = 9100;
 
     /**
      * Construction function supporting allocating a SystemPropertyCenter then
@@ -327,6 +481,117 @@ public class SystemPropertyCenter {
                 case "vpe.buf.duration":
                     bufDuration = new Integer((String) entry.getValue());
                     break;
+                case "vpe.motion.gate.enabled":
+                    motionGateEnabled = Boolean.valueOf((String) entry.getValue());
+                    break;
+                case "vpe.motion.gate.downsample.step":
+                    motionGateConf.downsampleStep = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.motion.gate.pixel.diff":
+                    motionGateConf.pixelDiffThreshold = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.motion.gate.motion.ratio":
+                    motionGateConf.motionRatioThreshold = new Float((String) entry.getValue());
+                    break;
+                case "vpe.motion.gate.hangover":
+                    motionGateConf.hangoverFrames = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.keyframe.index.dir":
+                    keyframeIndexDir = (String) entry.getValue();
+                    break;
+                case "vpe.keyframe.index.fps":
+                    keyframeIndexFps = new Float((String) entry.getValue());
+                    break;
+                case "vpe.tracking.locality.enabled":
+                    trackingLocalityEnabled = Boolean.valueOf((String) entry.getValue());
+                    break;
+                case "vpe.native.mem.budget":
+                    nativeMemBudget = new Long((String) entry.getValue());
+                    break;
+                case "vpe.sampler.max.patches":
+                    maxSampledPatches = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.tracklet.cache.mb":
+                    trackletCacheSize = new Long((String) entry.getValue());
+                    break;
+                case "vpe.tracklet.cache.handles":
+                    trackletCacheHandles = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.tracklet.decode.threads":
+                    trackletDecodingThreads = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.tracklet.saving.timeout":
+                    trackletSavingTimeout = new Long((String) entry.getValue());
+                    break;
+                case "vpe.patch.jpeg.quality":
+                    jpegQuality = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.patch.encode.threads":
+                    patchEncodingThreads = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.graph.db.connector":
+                    graphDBConnector = (String) entry.getValue();
+                    break;
+                case "vpe.graph.db.local.dir":
+                    graphDBLocalDir = (String) entry.getValue();
+                    break;
+                case "vpe.graph.db.batch.size":
+                    graphDBBatchSize = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.graph.db.batch.delay.ms":
+                    graphDBBatchDelay = new Long((String) entry.getValue());
+                    break;
+                case "vpe.graph.db.cache.size":
+                    graphDBCacheSize = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.graph.db.cache.ttl.ms":
+                    graphDBCacheTtl = new Long((String) entry.getValue());
+                    break;
+                case "vpe.graph.db.cache.negative.ttl.ms":
+                    graphDBCacheNegativeTtl = new Long((String) entry.getValue());
+                    break;
+                case "vpe.attr.index.threshold":
+                    attrIndexThreshold = new Float((String) entry.getValue());
+                    break;
+                case "vpe.trajectory.index.cell":
+                    trajectoryIndexCellSize = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.trajectory.index.bucket.frames":
+                    trajectoryIndexBucketFrames = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.trajectory.index.cache.size":
+                    trajectoryIndexCacheSize = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.consolidate.apps":
+                    consolidateApps = Boolean.valueOf((String) entry.getValue());
+                    break;
+                case "vpe.consolidate.batch.duration.ms":
+                    consolidatedBatchDuration = new Long((String) entry.getValue());
+                    break;
+                case "vpe.stage.fusion":
+                    stageFusion = Boolean.valueOf((String) entry.getValue());
+                    break;
+                case "vpe.plan.registry.dir":
+                    planRegistryDir = (String) entry.getValue();
+                    break;
+                case "vpe.plan.registry.ttl.ms":
+                    planRegistryTtl = new Long((String) entry.getValue());
+                    break;
+                case "vpe.transport":
+                    transport = (String) entry.getValue();
+                    break;
+                case "vpe.transport.queue.capacity":
+                    transportQueueCapacity = new Integer((String) entry.getValue());
+                    break;
+                case "vpe.admission.lag.budget":
+                    admissionLagBudget = new Long((String) entry.getValue());
+                    break;
+                case "vpe.task.expansion.rate":
+                    taskExpansionRate = new Double((String) entry.getValue());
+                    break;
+                case "vpe.ui.port":
+                    uiPort = new Integer((String) entry.getValue());
+                    break;
             }
         }
 
@@ -379,6 +644,14 @@ public class SystemPropertyCenter {
                             + sparkMaster);
         }
 
+        // Consolidated applications need to know which applications to start.
+        if (appsToStart != null) {
+            for (String app : appsToStart) {
+                optList.add("-a");
+                optList.add(app);
+            }
+        }
+
         optList.add("--report-listening-addr");
         optList.add(reportListenerAddr);
 
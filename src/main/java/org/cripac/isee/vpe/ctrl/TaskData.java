@@ -18,26 +18,44 @@
 package org.cripac.isee.vpe.ctrl;
 
 import org.cripac.isee.vpe.common.DataTypeUnmatchException;
+import org.cripac.isee.vpe.common.Priority;
 import org.cripac.isee.vpe.common.RecordNotFoundException;
 import org.cripac.isee.vpe.common.Stream;
 import org.cripac.isee.vpe.common.Topic;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import static org.cripac.isee.vpe.util.SerializationHelper.deserialize;
+import static org.cripac.isee.vpe.util.SerializationHelper.serialize;
 
 /**
  * The TaskData class contains a global execution plan and the execution result
  * of the predecessor node.
+ * <p>
+ * If the plan has been registered in an {@link ExecutionPlanRegistry}, only the
+ * ID of the plan, the current node and which nodes have been executed are
+ * serialized, and the plan is resolved from the registry on deserialization.
  *
  * @author Ken Yu, CRIPAC, 2016
  */
 public class TaskData implements Serializable, Cloneable {
 
+    private static final long serialVersionUID = -2861349027436482317L;
+
     /**
      * Current node to execute.
      */
@@ -47,13 +65,28 @@ public class TaskData implements Serializable, Cloneable {
      */
     public ExecutionPlan executionPlan = null;
     /**
-     * Result of the predecessor.
+     * Result of the predecessor. Once the task has been serialized, the result
+     * should be replaced rather than modified in place, for its serialized form
+     * is reused as long as the same object is assigned here.
      */
     public Serializable predecessorRes = null;
     /**
      * Information of the predecessor stream.
      */
     public Stream.Info predecessorInfo = null;
+    /**
+     * Priority of the task, which decides the topics the task is sent through
+     * and the scheduler pools it is processed in.
+     */
+    public Priority priority = Priority.NORMAL;
+
+    /**
+     * The result of the predecessor last serialized, and its serialized form.
+     * Tasks sent to several successors differ only in the current node, so the
+     * result, which is usually much heavier, is serialized only once.
+     */
+    private transient Serializable serializedRes = null;
+    private transient byte[] serializedResBytes = null;
 
     /**
      * Change the current node to be executed.
@@ -67,6 +100,24 @@ public class TaskData implements Serializable, Cloneable {
         curNode = executionPlan.findNode(topic);
     }
 
+    /**
+     * Create a task sharing the predecessor result with this task, but with
+     * its own execution state, so that it can be passed to a successor
+     * executed in the same process while this task is passed to the others.
+     *
+     * @return The forked task.
+     */
+    public TaskData fork() {
+        ExecutionPlan forkedPlan = executionPlan.copy();
+        TaskData forked = new TaskData(forkedPlan.nodes.get(curNode.streamInfo), forkedPlan);
+        forked.predecessorRes = predecessorRes;
+        forked.predecessorInfo = predecessorInfo;
+        forked.priority = priority;
+        forked.serializedRes = serializedRes;
+        forked.serializedResBytes = serializedResBytes;
+        return forked;
+    }
+
     /**
      * Create a task with an execution plan with no predecessor result.
      *
@@ -96,6 +147,86 @@ public class TaskData implements Serializable, Cloneable {
         this.predecessorRes = predecessorRes;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        int curNodeIndex = -1;
+        BitSet executed = new BitSet();
+        if (executionPlan.planID != null) {
+            int i = 0;
+            for (ExecutionPlan.Node node : executionPlan.nodes.values()) {
+                if (node == curNode) {
+                    curNodeIndex = i;
+                }
+                if (node.executed) {
+                    executed.set(i);
+                }
+                ++i;
+            }
+        }
+        // Plans not registered, or not containing the current node, are carried inline.
+        boolean registered = curNodeIndex >= 0;
+        out.writeBoolean(registered);
+        if (registered) {
+            out.writeUTF(executionPlan.registryDir);
+            out.writeUTF(executionPlan.planID);
+            out.writeInt(curNodeIndex);
+            out.writeObject(executed.toByteArray());
+        } else {
+            out.writeObject(executionPlan);
+            out.writeObject(curNode);
+        }
+        if (predecessorRes != serializedRes) {
+            serializedResBytes = null;
+            if (predecessorRes != null) {
+                serializedResBytes = serialize(predecessorRes);
+                if (serializedResBytes == null) {
+                    throw new NotSerializableException("Cannot serialize " + predecessorRes);
+                }
+            }
+            serializedRes = predecessorRes;
+        }
+        out.writeObject(serializedResBytes);
+        out.writeObject(predecessorInfo);
+        out.writeObject(priority);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        if (in.readBoolean()) {
+            String registryDir = in.readUTF();
+            String planID = in.readUTF();
+            int curNodeIndex = in.readInt();
+            BitSet executed = BitSet.valueOf((byte[]) in.readObject());
+            executionPlan = ExecutionPlanRegistry.resolve(registryDir, planID).copy();
+            int i = 0;
+            for (ExecutionPlan.Node node : executionPlan.nodes.values()) {
+                if (i == curNodeIndex) {
+                    curNode = node;
+                }
+                if (executed.get(i)) {
+                    node.markExecuted();
+                }
+                ++i;
+            }
+            if (curNode == null) {
+                throw new IOException("Node " + curNodeIndex + " cannot be found in plan " + planID);
+            }
+        } else {
+            executionPlan = (ExecutionPlan) in.readObject();
+            curNode = (ExecutionPlan.Node) in.readObject();
+        }
+        // Keep the serialized form for forwarding the result unchanged.
+        serializedResBytes = (byte[]) in.readObject();
+        predecessorRes = null;
+        if (serializedResBytes != null) {
+            predecessorRes = deserialize(serializedResBytes);
+            if (predecessorRes == null) {
+                throw new InvalidObjectException("Cannot deserialize the predecessor result");
+            }
+        }
+        serializedRes = predecessorRes;
+        predecessorInfo = (Stream.Info) in.readObject();
+        priority = (Priority) in.readObject();
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -120,8 +251,64 @@ public class TaskData implements Serializable, Cloneable {
 
         /**
          * Map for finding nodes according to the class of its module.
+         * The order of the nodes identifies them in registered plans.
          */
-        private Map<Stream.Info, Node> nodes = new HashMap<>();
+        private Map<Stream.Info, Node> nodes = new LinkedHashMap<>();
+
+        /**
+         * Directory of the registry the plan is registered in, and ID of the
+         * plan in it, or null if the plan is not registered or has been modified
+         * since registration. They are not part of the plan itself.
+         */
+        private transient String registryDir = null;
+        private transient String planID = null;
+
+        /**
+         * Mark the plan as registered.
+         *
+         * @param registryDir Directory of the registry.
+         * @param planID      ID of the plan in the registry.
+         */
+        void setRegistration(@Nonnull String registryDir, @Nonnull String planID) {
+            this.registryDir = registryDir;
+            this.planID = planID;
+        }
+
+        /**
+         * @return ID of the plan in the registry, or null if not registered.
+         */
+        @Nullable
+        public String getPlanID() {
+            return planID;
+        }
+
+        /**
+         * Copy the plan, so that marking nodes executed in the copy does not
+         * affect this plan. Execution data are shared.
+         *
+         * @return A copy of the plan.
+         */
+        ExecutionPlan copy() {
+            ExecutionPlan copied = new ExecutionPlan();
+            for (Node node : nodes.values()) {
+                copied.nodes.put(node.streamInfo, copied.new Node(node));
+            }
+            copied.registryDir = registryDir;
+            copied.planID = planID;
+            return copied;
+        }
+
+        /**
+         * @return The topics the nodes in the plan output to.
+         */
+        @Nonnull
+        public Set<Topic> getOutputTopics() {
+            Set<Topic> topics = new LinkedHashSet<>();
+            for (Node node : nodes.values()) {
+                topics.addAll(node.getSuccessors());
+            }
+            return topics;
+        }
 
         /**
          * Find a node in the execution plan by topic.
@@ -173,24 +360,28 @@ public class TaskData implements Serializable, Cloneable {
                                             @Nonnull ExecutionPlan b) {
             ExecutionPlan combined = new ExecutionPlan();
 
-            for (Stream.Info info : a.nodes.keySet()) {
-                combined.addNode(info, a.nodes.get(info));
+            for (Node node : a.nodes.values()) {
+                combined.nodes.put(node.streamInfo, combined.new Node(node));
             }
-            for (Stream.Info info : b.nodes.keySet()) {
-                if (!combined.nodes.containsKey(info)) {
-                    combined.addNode(info, b.nodes.get(info));
+            for (Node node : b.nodes.values()) {
+                Node combinedNode = combined.nodes.get(node.streamInfo);
+                if (combinedNode == null) {
+                    combined.nodes.put(node.streamInfo, combined.new Node(node));
                 } else {
-                    if (combined.nodes.get(info).execData == null
-                            && b.nodes.get(info).execData != null) {
-                        combined.nodes.get(info).execData = b.nodes.get(info).execData;
+                    if (combinedNode.execData == null && node.execData != null) {
+                        combinedNode.execData = node.execData;
+                    }
+                    if (node.executed) {
+                        combinedNode.markExecuted();
                     }
                 }
             }
 
-            for (Stream.Info info : combined.nodes.keySet()) {
-                if (a.nodes.get(info).executed || b.nodes.get(info).executed) {
-                    combined.nodes.get(info).markExecuted();
-                }
+            // Tasks of the same registered plan combine into the plan.
+            if (a.planID != null && a.planID.equals(b.planID)
+                    && a.registryDir.equals(b.registryDir)) {
+                combined.registryDir = a.registryDir;
+                combined.planID = a.planID;
             }
 
             return combined;
@@ -223,7 +414,7 @@ public class TaskData implements Serializable, Cloneable {
          */
         public void letNodeOutputTo(@Nonnull Node headNode,
                                     @Nonnull Topic tailNodeTopic) throws DataTypeUnmatchException {
-            if (headNode.getStreamInfo().OUTPUT_TYPE != tailNodeTopic.INPUT_TYPE) {
+            if (!headNode.getStreamInfo().OUTPUT_TYPE.canOutputTo(tailNodeTopic.INPUT_TYPE)) {
                 throw new DataTypeUnmatchException("Output INPUT_TYPE of stream "
                         + headNode.getStreamInfo() + " does not match with input INPUT_TYPE of topic"
                         + tailNodeTopic);
@@ -232,6 +423,7 @@ public class TaskData implements Serializable, Cloneable {
                 addNode(tailNodeTopic.STREAM_INFO);
             }
             headNode.addSuccessor(tailNodeTopic);
+            planID = null;
         }
 
         /**
@@ -255,6 +447,7 @@ public class TaskData implements Serializable, Cloneable {
          */
         public Node addNode(@Nonnull Stream.Info streamInfo,
                             @Nullable Serializable execData) {
+            planID = null;
             if (!nodes.containsKey(streamInfo)) {
                 Node node = new Node(streamInfo, execData);
                 nodes.put(streamInfo, node);
@@ -314,6 +507,18 @@ public class TaskData implements Serializable, Cloneable {
                 this.execData = execData;
             }
 
+            /**
+             * Copy a node, possibly of another plan, into this plan.
+             *
+             * @param node The node to copy.
+             */
+            private Node(@Nonnull Node node) {
+                this.streamInfo = node.streamInfo;
+                this.execData = node.execData;
+                this.executed = node.executed;
+                this.successorList = node.successorList == null ? null : new ArrayList<>(node.successorList);
+            }
+
             /**
              * @return Successor nodes of this node.
              */
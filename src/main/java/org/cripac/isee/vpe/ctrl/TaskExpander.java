@@ -0,0 +1,147 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.ctrl;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.cripac.isee.vpe.common.Priority;
+import org.cripac.isee.vpe.util.TokenBucket;
+import org.cripac.isee.vpe.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * The TaskExpander class turns commands on directories of videos into tasks
+ * incrementally, a limited number per second, while the directories are being
+ * listed. So a command on a large directory starts producing tasks at once,
+ * without holding the paths of all its videos in the driver.
+ * <p>
+ * Commands of higher priorities are expanded first, and commands of the same
+ * priority in the order they are added.
+ * <p>
+ * The listings being iterated live only in the memory of the driver, so commands
+ * not completely expanded are lost when the driver restarts, including recovering
+ * from a checkpoint, while the tasks already created are kept by the admission
+ * controller.
+ */
+public class TaskExpander {
+
+    /**
+     * Creator of the task of a video, which submits it for sending.
+     */
+    @FunctionalInterface
+    public interface TaskCreator {
+        /**
+         * Create the task of a video.
+         *
+         * @param video Path of the video.
+         * @param index Index of the video among those of the command, starting from 0.
+         * @throws Exception On failure creating or submitting the task.
+         */
+        void create(@Nonnull Path video, int index) throws Exception;
+    }
+
+    private static class Expansion {
+        final RemoteIterator<Path> videos;
+        final TaskCreator creator;
+        int numCreated = 0;
+
+        Expansion(@Nonnull RemoteIterator<Path> videos,
+                  @Nonnull TaskCreator creator) {
+            this.videos = videos;
+            this.creator = creator;
+        }
+    }
+
+    private final TokenBucket bucket;
+    private final Map<Priority, Queue<Expansion>> expansions = new EnumMap<>(Priority.class);
+
+    /**
+     * Create an expander.
+     *
+     * @param rate Maximum number of tasks created per second, which can be created
+     *             at once after idling for a second.
+     *             Non-positive values mean the rate is not limited.
+     */
+    public TaskExpander(double rate) {
+        this.bucket = new TokenBucket(rate, Math.max(rate, 1));
+        for (Priority priority : Priority.values()) {
+            expansions.put(priority, new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Add a command to expand.
+     *
+     * @param videos   Paths of the videos of the command, listed as they are iterated.
+     * @param priority Priority of the tasks of the command.
+     * @param creator  Creator of the task of each video.
+     */
+    public synchronized void add(@Nonnull RemoteIterator<Path> videos,
+                                 @Nonnull Priority priority,
+                                 @Nonnull TaskCreator creator) {
+        expansions.get(priority).add(new Expansion(videos, creator));
+    }
+
+    /**
+     * Create as many tasks as the rate allows now. A command failing on listing
+     * its videos or creating their tasks is logged and dropped, so that it does
+     * not block the others.
+     *
+     * @param logger Logger to report failing commands with.
+     * @return Number of tasks created.
+     */
+    public synchronized int expand(@Nonnull Logger logger) {
+        int numCreated = 0;
+        for (Queue<Expansion> queue : expansions.values()) {
+            while (!queue.isEmpty()) {
+                Expansion expansion = queue.peek();
+                try {
+                    if (!expansion.videos.hasNext()) {
+                        queue.poll();
+                        continue;
+                    }
+                    if (!bucket.tryTake()) {
+                        return numCreated;
+                    }
+                    expansion.creator.create(expansion.videos.next(), expansion.numCreated++);
+                    ++numCreated;
+                } catch (Exception e) {
+                    logger.error("Failed to expand a command, dropping the rest of its videos", e);
+                    queue.poll();
+                }
+            }
+        }
+        return numCreated;
+    }
+
+    /**
+     * @return Number of commands not completely expanded.
+     */
+    public synchronized int getNumExpanding() {
+        int num = 0;
+        for (Queue<Expansion> queue : expansions.values()) {
+            num += queue.size();
+        }
+        return num;
+    }
+}
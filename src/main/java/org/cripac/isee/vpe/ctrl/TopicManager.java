@@ -19,7 +19,9 @@ package org.cripac.isee.vpe.ctrl;
 
 import kafka.admin.AdminUtils;
 import org.I0Itec.zkclient.ZkClient;
+import org.cripac.isee.vpe.common.Priority;
 import org.cripac.isee.vpe.common.Topic;
+import org.cripac.isee.vpe.util.transport.KafkaTransport;
 
 import javax.annotation.Nonnull;
 import java.util.HashSet;
@@ -52,25 +54,33 @@ public class TopicManager {
     }
 
     public static void checkTopics(@Nonnull SystemPropertyCenter propCenter) {
+        if (!propCenter.transport.equals(KafkaTransport.NAME)) {
+            // Topics need creating only on Kafka brokers.
+            return;
+        }
         System.out.println("|INFO|Connecting to zookeeper: " + propCenter.zkConn);
         ZkClient zkClient = new ZkClient(
                 propCenter.zkConn,
                 propCenter.sessionTimeoutMs,
                 propCenter.connectionTimeoutMs);
         for (Topic topic : topics) {
-            System.out.println("|INFO|Checking topic: " + topic);
-            if (!AdminUtils.topicExists(zkClient, topic.NAME)) {
-                // AdminUtils.createTopic(zkClient, topic,
-                // propCenter.kafkaNumPartitions,
-                // propCenter.kafkaReplFactor, new Properties());
-                System.out.println("|INFO|Creating topic: " + topic);
-                kafka.admin.TopicCommand.main(
-                        new String[]{
-                                "--create",
-                                "--zookeeper", propCenter.zkConn,
-                                "--topic", topic.NAME,
-                                "--partitions", "" + propCenter.kafkaNumPartitions,
-                                "--replication-factor", "" + propCenter.kafkaReplFactor});
+            // Tasks of each priority are sent through a topic of their own.
+            for (Priority priority : Priority.values()) {
+                String name = topic.getName(priority);
+                System.out.println("|INFO|Checking topic: " + name);
+                if (!AdminUtils.topicExists(zkClient, name)) {
+                    // AdminUtils.createTopic(zkClient, topic,
+                    // propCenter.kafkaNumPartitions,
+                    // propCenter.kafkaReplFactor, new Properties());
+                    System.out.println("|INFO|Creating topic: " + name);
+                    kafka.admin.TopicCommand.main(
+                            new String[]{
+                                    "--create",
+                                    "--zookeeper", propCenter.zkConn,
+                                    "--topic", name,
+                                    "--partitions", "" + propCenter.kafkaNumPartitions,
+                                    "--replication-factor", "" + propCenter.kafkaReplFactor});
+                }
             }
         }
         System.out.println("|INFO|Topics checked!");
@@ -0,0 +1,378 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.cripac.isee.pedestrian.attr.Attributes;
+
+import javax.annotation.Nonnull;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The BatchingGraphDatabaseConnector class buffers updates to another
+ * connector and writes them behind in batches, so that a database is not
+ * visited once per record.
+ * <p>
+ * Updates to the same item are coalesced, keeping only the latest value.
+ * Buffered updates are flushed when their number reaches a threshold, when
+ * the oldest has waited for a time limit, and when {@link #flush()} is called,
+ * e.g. at the end of a partition. Queries see the buffered updates.
+ */
+public class BatchingGraphDatabaseConnector extends GraphDatabaseConnector {
+
+    private final GraphDatabaseConnector connector;
+    private final int maxBatchSize;
+    private final long maxDelayMs;
+
+    /**
+     * Guards the buffers below.
+     */
+    private final Object bufferLock = new Object();
+    private Map<String, String> pendingPaths = new LinkedHashMap<>();
+    private Map<String, Link> pendingLinks = new LinkedHashMap<>();
+    private Map<String, Attributes> pendingAttrs = new LinkedHashMap<>();
+    private long oldestPendingTime = 0;
+    /**
+     * Updates being written by a flush, still visible to queries until written.
+     */
+    private Map<String, String> flushingPaths = new LinkedHashMap<>();
+    private Map<String, Link> flushingLinks = new LinkedHashMap<>();
+    private Map<String, Attributes> flushingAttrs = new LinkedHashMap<>();
+
+    /**
+     * Serializes flushes, so that batches reach the connector in order.
+     */
+    private final Object flushLock = new Object();
+    private ScheduledExecutorService flusher = null;
+    private volatile RuntimeException lastFlushError = null;
+
+    private final AtomicLong numFlushes = new AtomicLong(0);
+    private final AtomicLong numFlushedUpdates = new AtomicLong(0);
+    private final AtomicLong numCoalescedUpdates = new AtomicLong(0);
+    private final AtomicLong totalFlushNanos = new AtomicLong(0);
+    private final AtomicLong maxFlushNanos = new AtomicLong(0);
+
+    /**
+     * Wrap a connector.
+     *
+     * @param connector    The connector to write updates to.
+     * @param maxBatchSize Number of buffered updates to trigger a flush.
+     * @param maxDelayMs   Maximum time in milliseconds an update waits in
+     *                     the buffer. Non-positive values disable the timer.
+     */
+    public BatchingGraphDatabaseConnector(@Nonnull GraphDatabaseConnector connector,
+                                          int maxBatchSize,
+                                          long maxDelayMs) {
+        this.connector = connector;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * @return The connector updates are written to.
+     */
+    public GraphDatabaseConnector getConnector() {
+        return connector;
+    }
+
+    /**
+     * Links are undirected, so the key does not depend on the order of the pedestrians.
+     */
+    private static String linkKey(@Nonnull String idA, @Nonnull String idB) {
+        return idA.compareTo(idB) <= 0 ? idA + '\0' + idB : idB + '\0' + idA;
+    }
+
+    private int getQueueDepthUnsafe() {
+        return pendingPaths.size() + pendingLinks.size() + pendingAttrs.size();
+    }
+
+    /**
+     * @return Number of updates waiting in the buffer.
+     */
+    public int getQueueDepth() {
+        synchronized (bufferLock) {
+            return getQueueDepthUnsafe();
+        }
+    }
+
+    /**
+     * Must be called after buffering an update with the buffer lock held.
+     *
+     * @param coalesced Whether the update replaced a buffered one.
+     * @return Whether the buffer should be flushed.
+     */
+    private boolean onBuffered(boolean coalesced) {
+        if (coalesced) {
+            numCoalescedUpdates.incrementAndGet();
+        }
+        if (oldestPendingTime == 0) {
+            oldestPendingTime = System.currentTimeMillis();
+        }
+        return getQueueDepthUnsafe() >= maxBatchSize;
+    }
+
+    private void afterBuffered(boolean full) {
+        if (full) {
+            flush();
+        } else {
+            startFlusher();
+        }
+    }
+
+    private synchronized void startFlusher() {
+        if (flusher != null || maxDelayMs <= 0) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "graph-db-batch-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, maxDelayMs / 2);
+        flusher.scheduleWithFixedDelay(() -> {
+            boolean due;
+            synchronized (bufferLock) {
+                due = oldestPendingTime > 0
+                        && System.currentTimeMillis() - oldestPendingTime >= maxDelayMs;
+            }
+            if (due) {
+                try {
+                    flush();
+                } catch (RuntimeException ignored) {
+                    // Kept in lastFlushError for the next explicit flush to report.
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write all the buffered updates to the connector.
+     * If writing fails, the updates are put back into the buffer to be retried.
+     *
+     * @throws RuntimeException On failure writing the updates, or if a
+     *                          background flush has failed since the last call.
+     */
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, String> paths;
+            Map<String, Link> links;
+            Map<String, Attributes> attrs;
+            synchronized (bufferLock) {
+                paths = pendingPaths;
+                links = pendingLinks;
+                attrs = pendingAttrs;
+                pendingPaths = new LinkedHashMap<>();
+                pendingLinks = new LinkedHashMap<>();
+                pendingAttrs = new LinkedHashMap<>();
+                oldestPendingTime = 0;
+                flushingPaths = paths;
+                flushingLinks = links;
+                flushingAttrs = attrs;
+            }
+            int numUpdates = paths.size() + links.size() + attrs.size();
+            if (numUpdates > 0) {
+                long start = System.nanoTime();
+                try {
+                    if (!paths.isEmpty()) {
+                        connector.setTrackSavingPaths(paths);
+                    }
+                    if (!links.isEmpty()) {
+                        connector.setPedestrianSimilarities(links.values());
+                    }
+                    if (!attrs.isEmpty()) {
+                        connector.setPedestrianAttributes(attrs);
+                    }
+                } catch (RuntimeException e) {
+                    requeue(paths, links, attrs);
+                    lastFlushError = e;
+                    throw e;
+                } finally {
+                    synchronized (bufferLock) {
+                        flushingPaths = new LinkedHashMap<>();
+                        flushingLinks = new LinkedHashMap<>();
+                        flushingAttrs = new LinkedHashMap<>();
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                numFlushes.incrementAndGet();
+                numFlushedUpdates.addAndGet(numUpdates);
+                totalFlushNanos.addAndGet(nanos);
+                maxFlushNanos.accumulateAndGet(nanos, Math::max);
+                // Updates failed earlier were put back, and have been written now.
+                lastFlushError = null;
+            }
+            RuntimeException error = lastFlushError;
+            lastFlushError = null;
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Put back updates failed to be written, unless they have been updated since.
+     */
+    private void requeue(@Nonnull Map<String, String> paths,
+                         @Nonnull Map<String, Link> links,
+                         @Nonnull Map<String, Attributes> attrs) {
+        synchronized (bufferLock) {
+            paths.forEach(pendingPaths::putIfAbsent);
+            links.forEach(pendingLinks::putIfAbsent);
+            attrs.forEach(pendingAttrs::putIfAbsent);
+            if (oldestPendingTime == 0) {
+                oldestPendingTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getStatistics()
+     */
+    @Override
+    public String getStatistics() {
+        long flushes = numFlushes.get();
+        return "graph database batching: " + getQueueDepth() + " updates queued, "
+                + numFlushedUpdates.get() + " updates in " + flushes + " flushes, "
+                + numCoalescedUpdates.get() + " coalesced, flush latency avg "
+                + (flushes == 0 ? 0 : totalFlushNanos.get() / flushes / 1000) + "us max "
+                + maxFlushNanos.get() / 1000 + "us";
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setTrackSavingPath(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void setTrackSavingPath(@Nonnull String id,
+                                   @Nonnull String path) {
+        boolean full;
+        synchronized (bufferLock) {
+            full = onBuffered(pendingPaths.put(id, path) != null);
+        }
+        afterBuffered(full);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getTrackletSavingDir(java.lang.String)
+     */
+    @Override
+    public String getTrackletSavingDir(@Nonnull String id) throws NoSuchElementException {
+        synchronized (bufferLock) {
+            String path = pendingPaths.getOrDefault(id, flushingPaths.get(id));
+            if (path != null) {
+                return path;
+            }
+        }
+        return connector.getTrackletSavingDir(id);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianSimilarity(java.lang.String, java.lang.String, float)
+     */
+    @Override
+    public void setPedestrianSimilarity(@Nonnull String idA,
+                                        @Nonnull String idB,
+                                        float similarity) {
+        boolean full;
+        synchronized (bufferLock) {
+            full = onBuffered(pendingLinks.put(linkKey(idA, idB),
+                    new Link(idA, idB, similarity)) != null);
+        }
+        afterBuffered(full);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getPedestrianSimilarity(java.lang.String, java.lang.String)
+     */
+    @Override
+    public float getPedestrianSimilarity(@Nonnull String idA,
+                                         @Nonnull String idB) throws NoSuchElementException {
+        synchronized (bufferLock) {
+            String key = linkKey(idA, idB);
+            Link link = pendingLinks.getOrDefault(key, flushingLinks.get(key));
+            if (link != null) {
+                return link.similarity;
+            }
+        }
+        return connector.getPedestrianSimilarity(idA, idB);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianAttributes(java.lang.String, Attributes)
+     */
+    @Override
+    public void setPedestrianAttributes(@Nonnull String id,
+                                        @Nonnull Attributes attr) {
+        boolean full;
+        synchronized (bufferLock) {
+            full = onBuffered(pendingAttrs.put(id, attr) != null);
+        }
+        afterBuffered(full);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getPedestrianAttributes(java.lang.String)
+     */
+    @Override
+    public Attributes getPedestrianAttributes(@Nonnull String id) throws NoSuchElementException {
+        synchronized (bufferLock) {
+            Attributes attr = pendingAttrs.getOrDefault(id, flushingAttrs.get(id));
+            if (attr != null) {
+                return attr;
+            }
+        }
+        return connector.getPedestrianAttributes(id);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getLinkedPedestrians(java.lang.String)
+     */
+    @Override
+    public Link[] getLinkedPedestrians(@Nonnull String id) throws NoSuchElementException {
+        // Links are spread over the buffer and the connector, so write them all first.
+        boolean hasPendingLinks;
+        synchronized (bufferLock) {
+            hasPendingLinks = !pendingLinks.isEmpty();
+        }
+        if (hasPendingLinks) {
+            flush();
+        }
+        return connector.getLinkedPedestrians(id);
+    }
+}
@@ -0,0 +1,336 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.cripac.isee.pedestrian.attr.Attributes;
+
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The CachingGraphDatabaseConnector class caches the results of queries to
+ * another connector, so that repeated queries, e.g. from ReID over a gallery,
+ * do not visit the database again.
+ * <p>
+ * The cache is bounded by the number of entries, evicting the least recently
+ * used, and each entry expires after a time-to-live. Failures to find an item
+ * ({@link NoSuchElementException}) are cached as well, with a shorter
+ * time-to-live. Updates made through this connector invalidate the affected
+ * entries after they are written, but updates made by other processes are
+ * only seen after the entries expire.
+ * <p>
+ * Cached attributes are shared by all callers, so they must not be modified.
+ */
+public class CachingGraphDatabaseConnector extends GraphDatabaseConnector {
+
+    private final GraphDatabaseConnector connector;
+    private final int maxEntries;
+    private final long ttlMs;
+    private final long negativeTtlMs;
+
+    private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Counts invalidations, so that results queried before an update
+     * finishing during the query are not cached.
+     */
+    private long generation = 0;
+
+    private final AtomicLong numHits = new AtomicLong(0);
+    private final AtomicLong numNegativeHits = new AtomicLong(0);
+    private final AtomicLong numMisses = new AtomicLong(0);
+    private final AtomicLong numEvictions = new AtomicLong(0);
+
+    /**
+     * A cached result of a query, or the failure of it.
+     */
+    private static class CacheEntry {
+        final Object value;
+        final NoSuchElementException failure;
+        final long expireTime;
+
+        CacheEntry(Object value, NoSuchElementException failure, long expireTime) {
+            this.value = value;
+            this.failure = failure;
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * Queries of the wrapped connector.
+     */
+    private interface Query<T> {
+        T run() throws NoSuchElementException;
+    }
+
+    /**
+     * Wrap a connector.
+     *
+     * @param connector     The connector to query.
+     * @param maxEntries    Maximum number of entries in the cache.
+     * @param ttlMs         Time-to-live of query results in milliseconds.
+     * @param negativeTtlMs Time-to-live of failures to find items in milliseconds.
+     */
+    public CachingGraphDatabaseConnector(@Nonnull GraphDatabaseConnector connector,
+                                         int maxEntries,
+                                         long ttlMs,
+                                         long negativeTtlMs) {
+        this.connector = connector;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMs = ttlMs;
+        this.negativeTtlMs = negativeTtlMs;
+    }
+
+    /**
+     * @return The connector queried.
+     */
+    public GraphDatabaseConnector getConnector() {
+        return connector;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T query(@Nonnull String key,
+                        @Nonnull Query<T> query) throws NoSuchElementException {
+        long now = System.currentTimeMillis();
+        long queryGeneration;
+        synchronized (cache) {
+            queryGeneration = generation;
+            CacheEntry entry = cache.get(key);
+            if (entry != null) {
+                if (entry.expireTime > now) {
+                    if (entry.failure != null) {
+                        numNegativeHits.incrementAndGet();
+                        throw entry.failure;
+                    }
+                    numHits.incrementAndGet();
+                    return (T) entry.value;
+                }
+                cache.remove(key);
+            }
+        }
+        numMisses.incrementAndGet();
+
+        CacheEntry entry;
+        T value = null;
+        NoSuchElementException failure = null;
+        try {
+            value = query.run();
+            entry = new CacheEntry(value, null, now + ttlMs);
+        } catch (NoSuchElementException e) {
+            failure = e;
+            entry = new CacheEntry(null, e, now + negativeTtlMs);
+        }
+        synchronized (cache) {
+            if (generation == queryGeneration) {
+                cache.put(key, entry);
+            }
+            while (cache.size() > maxEntries) {
+                cache.remove(cache.keySet().iterator().next());
+                numEvictions.incrementAndGet();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return value;
+    }
+
+    private void invalidate(@Nonnull String key) {
+        synchronized (cache) {
+            ++generation;
+            cache.remove(key);
+        }
+    }
+
+    private static String pathKey(@Nonnull String id) {
+        return "path:" + id;
+    }
+
+    private static String attrKey(@Nonnull String id) {
+        return "attr:" + id;
+    }
+
+    private static String similarityKey(@Nonnull String idA, @Nonnull String idB) {
+        return "sim:" + idA + '\0' + idB;
+    }
+
+    private static String linksKey(@Nonnull String id) {
+        return "links:" + id;
+    }
+
+    /**
+     * @return Ratio of queries answered by the cache.
+     */
+    public double getHitRate() {
+        long hits = numHits.get() + numNegativeHits.get();
+        long total = hits + numMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getStatistics()
+     */
+    @Override
+    public String getStatistics() {
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        String stats = "graph database cache: hit rate " + String.format("%.1f", getHitRate() * 100) + "% ("
+                + numHits.get() + " hits, " + numNegativeHits.get() + " negative hits, "
+                + numMisses.get() + " misses, " + numEvictions.get() + " evictions), "
+                + size + " entries";
+        String connectorStats = connector.getStatistics();
+        return connectorStats == null ? stats : stats + "; " + connectorStats;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#flush()
+     */
+    @Override
+    public void flush() {
+        connector.flush();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setTrackSavingPath(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void setTrackSavingPath(@Nonnull String id,
+                                   @Nonnull String path) {
+        connector.setTrackSavingPath(id, path);
+        invalidate(pathKey(id));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setTrackSavingPaths(java.util.Map)
+     */
+    @Override
+    public void setTrackSavingPaths(@Nonnull Map<String, String> paths) {
+        connector.setTrackSavingPaths(paths);
+        paths.keySet().forEach(id -> invalidate(pathKey(id)));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getTrackletSavingDir(java.lang.String)
+     */
+    @Override
+    public String getTrackletSavingDir(@Nonnull String id) throws NoSuchElementException {
+        return query(pathKey(id), () -> connector.getTrackletSavingDir(id));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianSimilarity(java.lang.String, java.lang.String, float)
+     */
+    @Override
+    public void setPedestrianSimilarity(@Nonnull String idA,
+                                        @Nonnull String idB,
+                                        float similarity) {
+        connector.setPedestrianSimilarity(idA, idB, similarity);
+        invalidateLink(idA, idB);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianSimilarities(java.util.Collection)
+     */
+    @Override
+    public void setPedestrianSimilarities(@Nonnull Collection<Link> links) {
+        connector.setPedestrianSimilarities(links);
+        for (Link link : links) {
+            invalidateLink(link.nodeA, link.nodeB);
+        }
+    }
+
+    private void invalidateLink(@Nonnull String idA, @Nonnull String idB) {
+        invalidate(similarityKey(idA, idB));
+        invalidate(similarityKey(idB, idA));
+        invalidate(linksKey(idA));
+        invalidate(linksKey(idB));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getPedestrianSimilarity(java.lang.String, java.lang.String)
+     */
+    @Override
+    public float getPedestrianSimilarity(@Nonnull String idA,
+                                         @Nonnull String idB) throws NoSuchElementException {
+        return query(similarityKey(idA, idB), () -> connector.getPedestrianSimilarity(idA, idB));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianAttributes(java.lang.String, Attributes)
+     */
+    @Override
+    public void setPedestrianAttributes(@Nonnull String id,
+                                        @Nonnull Attributes attr) {
+        connector.setPedestrianAttributes(id, attr);
+        invalidate(attrKey(id));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianAttributes(java.util.Map)
+     */
+    @Override
+    public void setPedestrianAttributes(@Nonnull Map<String, Attributes> attrs) {
+        connector.setPedestrianAttributes(attrs);
+        attrs.keySet().forEach(id -> invalidate(attrKey(id)));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getPedestrianAttributes(java.lang.String)
+     */
+    @Override
+    public Attributes getPedestrianAttributes(@Nonnull String id) throws NoSuchElementException {
+        return query(attrKey(id), () -> connector.getPedestrianAttributes(id));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getLinkedPedestrians(java.lang.String)
+     */
+    @Override
+    public Link[] getLinkedPedestrians(@Nonnull String id) throws NoSuchElementException {
+        return query(linksKey(id), () -> connector.getLinkedPedestrians(id));
+    }
+}
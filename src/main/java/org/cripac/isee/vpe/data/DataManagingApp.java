@@ -17,54 +17,57 @@
 
 package org.cripac.isee.vpe.data;
 
+import com.google.common.base.Optional;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializer;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.ContentSummary;
-import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.tools.HadoopArchives;
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.log4j.Level;
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.streaming.Durations;
+import org.apache.spark.streaming.State;
+import org.apache.spark.streaming.StateSpec;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
-import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.Loader;
 import org.bytedeco.javacpp.helper.opencv_core;
-import org.bytedeco.javacpp.opencv_core.Mat;
 import org.bytedeco.javacpp.opencv_imgproc;
+import org.cripac.isee.pedestrian.attr.AttributeIndex;
+import org.cripac.isee.pedestrian.attr.AttributeQuery;
 import org.cripac.isee.pedestrian.attr.Attributes;
+import org.cripac.isee.pedestrian.reid.IDRank;
 import org.cripac.isee.pedestrian.reid.PedestrianInfo;
 import org.cripac.isee.pedestrian.tracking.Tracklet;
+import org.cripac.isee.pedestrian.tracking.TrajectoryQuery;
 import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.common.Priority;
 import org.cripac.isee.vpe.common.SparkStreamingApp;
 import org.cripac.isee.vpe.common.Stream;
 import org.cripac.isee.vpe.common.Topic;
 import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
 import org.cripac.isee.vpe.ctrl.TaskData;
 import org.cripac.isee.vpe.ctrl.TopicManager;
-import org.cripac.isee.vpe.debug.FakeDatabaseConnector;
 import org.cripac.isee.vpe.util.SerializationHelper;
 import org.cripac.isee.vpe.util.Singleton;
+import org.cripac.isee.vpe.util.hdfs.CachedTrackletReader;
 import org.cripac.isee.vpe.util.hdfs.HDFSFactory;
-import org.cripac.isee.vpe.util.kafka.KafkaProducerFactory;
+import org.cripac.isee.vpe.util.hdfs.IDRankFile;
+import org.cripac.isee.vpe.util.hdfs.TrackletContainer;
+import org.cripac.isee.vpe.util.hdfs.TrajectoryIndex;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLoggerFactory;
+import scala.Tuple2;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.*;
 
-import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
-import static org.bytedeco.javacpp.opencv_imgcodecs.imencode;
 import static org.cripac.isee.vpe.util.SerializationHelper.deserialize;
-import static org.cripac.isee.vpe.util.hdfs.HadoopHelper.retrieveTracklet;
 import static org.cripac.isee.vpe.util.kafka.KafkaHelper.sendWithLog;
 
 /**
@@ -88,11 +91,15 @@ public class DataManagingApp extends SparkStreamingApp {
     private Stream pedTrackletRtrvStream;
     private Stream pedTrackletAttrRtrvStream;
     private Stream savingStream;
+    private Stream attrQueryStream;
+    private Stream trajectoryQueryStream;
 
     public DataManagingApp(SystemPropertyCenter propCenter) throws Exception {
         pedTrackletRtrvStream = new PedestrainTrackletRetrievingStream(propCenter);
         pedTrackletAttrRtrvStream = new PedestrainTrackletAttrRetrievingStream(propCenter);
         savingStream = new SavingStream(propCenter);
+        attrQueryStream = new AttrQueryStream(propCenter);
+        trajectoryQueryStream = new TrajectoryQueryStream(propCenter);
     }
 
     public static void main(String[] args) throws Exception {
@@ -113,7 +120,7 @@ public class DataManagingApp extends SparkStreamingApp {
     @Override
     protected JavaStreamingContext getStreamContext() {
         // Create contexts.
-        JavaSparkContext sparkContext = new JavaSparkContext(new SparkConf(true));
+        JavaSparkContext sparkContext = new JavaSparkContext(configureScheduler(new SparkConf(true)));
         JavaStreamingContext jsc = new JavaStreamingContext(sparkContext, Durations.seconds(2));
 
         // Setup streams for data feeding.
@@ -123,6 +130,10 @@ public class DataManagingApp extends SparkStreamingApp {
         // Setup streams for meta data saving.
         savingStream.addToContext(jsc);
 
+        // Setup streams for searching meta data.
+        attrQueryStream.addToContext(jsc);
+        trajectoryQueryStream.addToContext(jsc);
+
         return jsc;
     }
 
@@ -136,6 +147,15 @@ public class DataManagingApp extends SparkStreamingApp {
         return APP_NAME;
     }
 
+    @Override
+    public List<Stream> getStreams() {
+        return Arrays.asList(pedTrackletRtrvStream,
+                pedTrackletAttrRtrvStream,
+                savingStream,
+                attrQueryStream,
+                trajectoryQueryStream);
+    }
+
     public static class PedestrainTrackletRetrievingStream extends Stream {
 
         public static final Info INFO = new Info(
@@ -146,12 +166,14 @@ public class DataManagingApp extends SparkStreamingApp {
         private Map<String, Integer> trackletRtrvJobTopicMap = new HashMap<>();
         private Map<String, String> kafkaParams = new HashMap<>();
         // Create KafkaSink for Spark Streaming to output to Kafka.
-        private Singleton<KafkaProducer<String, byte[]>> producerSingleton;
+        private Singleton<Producer<String, byte[]>> producerSingleton;
         private Singleton<SynthesizedLogger> loggerSingleton;
         private Singleton<GraphDatabaseConnector> dbConnSingleton;
+        private Singleton<CachedTrackletReader> trackletReaderSingleton;
 
         public PedestrainTrackletRetrievingStream(SystemPropertyCenter propCenter)
                 throws Exception {
+            super(propCenter);
             trackletRtrvJobTopicMap.put(
                     PED_TRACKLET_RTRV_JOB_TOPIC.NAME,
                     propCenter.kafkaNumPartitions);
@@ -171,23 +193,29 @@ public class DataManagingApp extends SparkStreamingApp {
             producerProp.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
             producerProp.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
 
-            producerSingleton = new Singleton<>(new KafkaProducerFactory<String, byte[]>(
+            producerSingleton = new Singleton<>(transport.getProducerFactory(
                     producerProp));
             loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
                     INFO.NAME,
                     propCenter.verbose ? Level.DEBUG : Level.INFO,
                     propCenter.reportListenerAddr,
                     propCenter.reportListenerPort));
-            dbConnSingleton = new Singleton<>(() -> new FakeDatabaseConnector());
+            dbConnSingleton = new Singleton<>(new GraphDatabaseConnectorFactory(propCenter));
+            final long trackletCacheBytes = propCenter.trackletCacheSize << 20;
+            final int trackletCacheHandles = propCenter.trackletCacheHandles;
+            final int trackletDecodingThreads = propCenter.trackletDecodingThreads;
+            trackletReaderSingleton = new Singleton<>(() -> new CachedTrackletReader(
+                    trackletCacheBytes, trackletCacheHandles, trackletDecodingThreads));
         }
 
         @Override
-        public void addToContext(JavaStreamingContext jsc) {// Read track retrieving jobs in parallel from Kafka.
+        protected void addToContext(JavaStreamingContext jsc, Priority priority) {// Read track retrieving jobs in parallel from Kafka.
             // URL of a video is given.
             // The directory storing the tracklets of the video is stored in the database.
-            buildBytesDirectStream(jsc, kafkaParams, trackletRtrvJobTopicMap)
+            buildBytesDirectStream(jsc, kafkaParams, trackletRtrvJobTopicMap, priority)
                     // Retrieve and deliver tracklets.
                     .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
                         rdd.foreach(job -> {
                             Logger logger = loggerSingleton.getInst();
 
@@ -211,12 +239,21 @@ public class DataManagingApp extends SparkStreamingApp {
                             }
                             Tracklet.Identifier trackletID =
                                     (Tracklet.Identifier) taskData.predecessorRes;
+                            String storeDir;
+                            try {
+                                storeDir = dbConnSingleton.getInst().getTrackletSavingDir(
+                                        trackletID.videoID);
+                            } catch (NoSuchElementException e) {
+                                logger.error("Cannot find where tracklet " + trackletID + " is stored!", e);
+                                return;
+                            }
                             // Retrieve the track from HDFS.
-                            Tracklet tracklet = retrieveTracklet(
-                                    dbConnSingleton.getInst().getTrackletSavingDir(
-                                            trackletID.videoID),
+                            CachedTrackletReader trackletReader = trackletReaderSingleton.getInst();
+                            Tracklet tracklet = trackletReader.retrieveTracklet(
+                                    storeDir,
                                     trackletID,
-                                    loggerSingleton.getInst());
+                                    logger);
+                            logger.debug(trackletReader.getStatistics());
                             // Store the track to a task data (reused).
                             taskData.predecessorRes = tracklet;
 
@@ -234,6 +271,7 @@ public class DataManagingApp extends SparkStreamingApp {
                             for (Topic topic : succTopics) {
                                 taskData.changeCurNode(topic);
                                 sendWithLog(topic,
+                                        taskData.priority,
                                         job._1(),
                                         SerializationHelper.serialize(taskData),
                                         producerSingleton.getInst(),
@@ -254,11 +292,13 @@ public class DataManagingApp extends SparkStreamingApp {
         private Map<String, Integer> trackletAttrRtrvJobTopicMap = new HashMap<>();
         private Map<String, String> kafkaParams = new HashMap<>();
         // Create KafkaSink for Spark Streaming to output to Kafka.
-        private Singleton<KafkaProducer<String, byte[]>> producerSingleton;
+        private Singleton<Producer<String, byte[]>> producerSingleton;
         private Singleton<SynthesizedLogger> loggerSingleton;
         private Singleton<GraphDatabaseConnector> dbConnSingleton;
+        private Singleton<CachedTrackletReader> trackletReaderSingleton;
 
         public PedestrainTrackletAttrRetrievingStream(SystemPropertyCenter propCenter) throws Exception {
+            super(propCenter);
             trackletAttrRtrvJobTopicMap.put(JOB_TOPIC.NAME, propCenter.kafkaNumPartitions);
 
             // Common Kafka settings
@@ -276,22 +316,28 @@ public class DataManagingApp extends SparkStreamingApp {
             producerProp.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
             producerProp.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
 
-            producerSingleton = new Singleton<>(new KafkaProducerFactory<String, byte[]>(
+            producerSingleton = new Singleton<>(transport.getProducerFactory(
                     producerProp));
             loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
                     INFO.NAME,
                     propCenter.verbose ? Level.DEBUG : Level.INFO,
                     propCenter.reportListenerAddr,
                     propCenter.reportListenerPort));
-            dbConnSingleton = new Singleton<>(() -> new FakeDatabaseConnector());
+            dbConnSingleton = new Singleton<>(new GraphDatabaseConnectorFactory(propCenter));
+            final long trackletCacheBytes = propCenter.trackletCacheSize << 20;
+            final int trackletCacheHandles = propCenter.trackletCacheHandles;
+            final int trackletDecodingThreads = propCenter.trackletDecodingThreads;
+            trackletReaderSingleton = new Singleton<>(() -> new CachedTrackletReader(
+                    trackletCacheBytes, trackletCacheHandles, trackletDecodingThreads));
         }
 
         @Override
-        public void addToContext(JavaStreamingContext jsc) {
+        protected void addToContext(JavaStreamingContext jsc, Priority priority) {
             // Read track with attributes retrieving jobs in parallel from Kafka.
-            buildBytesDirectStream(jsc, kafkaParams, trackletAttrRtrvJobTopicMap)
+            buildBytesDirectStream(jsc, kafkaParams, trackletAttrRtrvJobTopicMap, priority)
                     // Retrieve and deliver tracklets with attributes.
                     .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
                         rdd.foreach(job -> {
                             // Recover task data.
                             TaskData taskData =
@@ -302,14 +348,28 @@ public class DataManagingApp extends SparkStreamingApp {
                             String videoURL = trackletID.videoID;
 
                             PedestrianInfo info = new PedestrianInfo();
+                            String storeDir;
+                            try {
+                                storeDir = dbConnSingleton.getInst().getTrackletSavingDir(videoURL);
+                                // Retrieve the attributes from database.
+                                info.attr = dbConnSingleton.getInst()
+                                        .getPedestrianAttributes(trackletID.toString());
+                            } catch (NoSuchElementException e) {
+                                loggerSingleton.getInst().error("Cannot find tracklet " + trackletID
+                                        + " or its attributes!", e);
+                                return;
+                            }
                             // Retrieve the track from HDFS.
-                            info.tracklet = retrieveTracklet(
-                                    dbConnSingleton.getInst().getTrackletSavingDir(videoURL),
+                            CachedTrackletReader trackletReader = trackletReaderSingleton.getInst();
+                            info.tracklet = trackletReader.retrieveTracklet(
+                                    storeDir,
                                     trackletID,
                                     loggerSingleton.getInst());
-                            // Retrieve the attributes from database.
-                            info.attr = dbConnSingleton.getInst()
-                                    .getPedestrianAttributes(trackletID.toString());
+                            loggerSingleton.getInst().debug(trackletReader.getStatistics());
+                            String dbStats = dbConnSingleton.getInst().getStatistics();
+                            if (dbStats != null) {
+                                loggerSingleton.getInst().debug(dbStats);
+                            }
                             taskData.predecessorRes = info;
 
                             // Get the IDs of successor nodes.
@@ -320,6 +380,7 @@ public class DataManagingApp extends SparkStreamingApp {
                             for (Topic topic : succTopics) {
                                 taskData.changeCurNode(topic);
                                 sendWithLog(topic,
+                                        taskData.priority,
                                         job._1(),
                                         SerializationHelper.serialize(taskData),
                                         producerSingleton.getInst(),
@@ -350,13 +411,18 @@ public class DataManagingApp extends SparkStreamingApp {
         private Map<String, Integer> idRankSavingTopicMap = new HashMap<>();
         private Map<String, String> kafkaParams = new HashMap<>();
         private String metadataDir;
+        private long trackletSavingTimeout;
+        private int trajectoryIndexCellSize;
+        private int trajectoryIndexBucketFrames;
         // Create KafkaSink for Spark Streaming to output to Kafka.
-        private Singleton<KafkaProducer<String, byte[]>> producerSingleton;
+        private Singleton<Producer<String, byte[]>> producerSingleton;
         private Singleton<SynthesizedLogger> loggerSingleton;
         private Singleton<FileSystem> hdfsSingleton;
         private Singleton<GraphDatabaseConnector> dbConnSingleton;
+        private Singleton<PatchEncoder> patchEncoderSingleton;
 
         public SavingStream(@Nonnull SystemPropertyCenter propCenter) throws Exception {
+            super(propCenter);
             trackletSavingTopicMap.put(
                     PED_TRACKLET_SAVING_TOPIC.NAME,
                     propCenter.kafkaNumPartitions);
@@ -376,6 +442,9 @@ public class DataManagingApp extends SparkStreamingApp {
             kafkaParams.put("fetch.message.max.bytes", "" + propCenter.kafkaFetchMsgMaxBytes);
 
             metadataDir = propCenter.metadataDir;
+            trackletSavingTimeout = propCenter.trackletSavingTimeout;
+            trajectoryIndexCellSize = propCenter.trajectoryIndexCellSize;
+            trajectoryIndexBucketFrames = propCenter.trajectoryIndexBucketFrames;
 
             Properties producerProp = new Properties();
             producerProp.put("bootstrap.servers", propCenter.kafkaBrokers);
@@ -384,7 +453,7 @@ public class DataManagingApp extends SparkStreamingApp {
             producerProp.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
             producerProp.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
 
-            producerSingleton = new Singleton<>(new KafkaProducerFactory<String, byte[]>(
+            producerSingleton = new Singleton<>(transport.getProducerFactory(
                     producerProp));
             loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
                     INFO.NAME,
@@ -392,23 +461,19 @@ public class DataManagingApp extends SparkStreamingApp {
                     propCenter.reportListenerAddr,
                     propCenter.reportListenerPort));
             hdfsSingleton = new Singleton<>(new HDFSFactory());
-            dbConnSingleton = new Singleton<>(() -> new FakeDatabaseConnector());
+            dbConnSingleton = new Singleton<>(new GraphDatabaseConnectorFactory(propCenter));
+            final int jpegQuality = propCenter.jpegQuality;
+            final int patchEncodingThreads = propCenter.patchEncodingThreads;
+            patchEncoderSingleton = new Singleton<>(() -> new PatchEncoder(jpegQuality, patchEncodingThreads));
         }
 
         /**
-         * Store the track to the HDFS.
+         * Encode the information of a tracklet into JSON, excluding patch data.
          *
-         * @param storeDir The directory storing the track.
-         * @param tracklet The track to store.
-         * @throws IOException On failure creating and writing files in HDFS.
+         * @param tracklet The tracklet to encode.
+         * @return JSON string of the tracklet.
          */
-        private void storeTracklet(@Nonnull String storeDir,
-                                   @Nonnull Tracklet tracklet) throws Exception {
-            FileSystem hdfs = hdfsSingleton.getInst();
-
-            // Write verbal informations with Json.
-            FSDataOutputStream outputStream = hdfs.create(new Path(storeDir + "/info.txt"));
-
+        private static String encodeTrackletInfo(@Nonnull Tracklet tracklet) {
             // Customize the serialization of bounding box in order to ignore patch data.
             GsonBuilder gsonBuilder = new GsonBuilder();
             JsonSerializer<Tracklet.BoundingBox> bboxSerializer = (box, typeOfBox, context) -> {
@@ -420,155 +485,535 @@ public class DataManagingApp extends SparkStreamingApp {
                 return result;
             };
             gsonBuilder.registerTypeAdapter(Tracklet.BoundingBox.class, bboxSerializer);
-            outputStream.writeBytes(gsonBuilder.create().toJson(tracklet));
-            outputStream.close();
-
-            // Write frames.
-            for (int i = 0; i < tracklet.locationSequence.length; ++i) {
-                Tracklet.BoundingBox bbox = tracklet.locationSequence[i];
-
-                // Use JavaCV to encode the image patch
-                // into JPEG, stored in the memory.
-                BytePointer inputPointer = new BytePointer(bbox.patchData);
-                Mat image = new Mat(bbox.height, bbox.width, CV_8UC3, inputPointer);
-                BytePointer outputPointer = new BytePointer();
-                imencode(".jpg", image, outputPointer);
-                byte[] bytes = new byte[(int) outputPointer.limit()];
-                outputPointer.get(bytes);
-
-                // Output the image patch to HDFS.
-                FSDataOutputStream imgOutputStream =
-                        hdfs.create(new Path(storeDir + "/" + i + ".jpg"));
-                imgOutputStream.write(bytes);
-                imgOutputStream.close();
-
-                image.release();
-                inputPointer.deallocate();
-                outputPointer.deallocate();
-            }
+            return gsonBuilder.create().toJson(tracklet);
         }
 
-        @Override
-        public void addToContext(@Nonnull JavaStreamingContext jsc) {// Save tracklets.
-            buildBytesDirectStream(jsc, kafkaParams, trackletSavingTopicMap)
-                    .groupByKey()
-                    .foreachRDD(rdd -> {
-                        rdd.foreach(trackGroup -> {
-                            // RuntimeException: No native JavaCPP library
-                            // in memory. (Has Loader.load() been called?)
-                            Loader.load(opencv_core.class);
-                            Loader.load(opencv_imgproc.class);
-
-                            FileSystem hdfs = hdfsSingleton.getInst();
+        /**
+         * Write the database updates buffered in this executor, e.g. at the end of a partition.
+         *
+         * @param logger Logger for reporting batching statistics.
+         */
+        private void flushDatabase(@Nonnull Logger logger) throws Exception {
+            GraphDatabaseConnector dbConn = dbConnSingleton.getInst();
+            dbConn.flush();
+            String stats = dbConn.getStatistics();
+            if (stats != null) {
+                logger.debug(stats);
+            }
+        }
 
-                            String taskID = trackGroup._1();
-                            Iterator<byte[]> trackIterator = trackGroup._2().iterator();
-                            Tracklet tracklet = (Tracklet)
-                                    ((TaskData) deserialize(
-                                            trackIterator.next())).predecessorRes;
-                            int numTracklets = tracklet.numTracklets;
-                            String videoRoot = metadataDir + "/" + tracklet.id.videoID;
-                            String taskRoot = videoRoot + "/" + taskID;
-                            hdfs.mkdirs(new Path(taskRoot));
-
-                            while (true) {
-                                loggerSingleton.getInst()
-                                        .info("Task " + taskID
-                                                + " got track: " + tracklet.id + "!");
+        /**
+         * Accumulate the progress of saving the tracklets of a task.
+         * The state is checkpointed by Spark Streaming, and removed after
+         * no tracklets arrive for the task for a timeout.
+         *
+         * @param taskID   ID of the task.
+         * @param update   Report of tracklets newly saved, or absent on timeout.
+         * @param progress Accumulated progress of the task.
+         * @return A snapshot of the progress of the task.
+         */
+        private static TrackletSavingProgress trackSavingProgress(String taskID,
+                                                                  Optional<TrackletSavingProgress> update,
+                                                                  State<TrackletSavingProgress> progress) {
+            if (progress.isTimingOut()) {
+                TrackletSavingProgress cur = progress.get().copy();
+                cur.timeOut();
+                return cur;
+            }
+            TrackletSavingProgress saved = update.get();
+            // Start from an empty progress, so that the first report is merged like the others.
+            TrackletSavingProgress cur = progress.exists() ? progress.get()
+                    : new TrackletSavingProgress(taskID, saved.videoID, saved.storePath, saved.getNumTracklets());
+            cur.merge(saved);
+            progress.update(cur);
+            return cur.copy();
+        }
 
-                                String storeDir = taskRoot + "/" + tracklet.id.serialNumber;
-                                hdfs.mkdirs(new Path(storeDir));
+        /**
+         * Save the tracklets of a partition. All the tracklets of a task are packed
+         * into one container under the directory of its video.
+         *
+         * @param trackIterator     Tracklets keyed by the IDs of their tasks.
+         * @param hdfs              File system to save the tracklets to.
+         * @param metadataDir       Directory of the containers.
+         * @param patchEncoder      Encoder of the patches of the tracklets.
+         * @param indexCellSize     Size of the cells of the trajectory indices.
+         * @param indexBucketFrames Number of frames of the buckets of the trajectory indices.
+         * @param logger            Logger for reporting the tracklets got.
+         * @return Serial numbers of the tracklets saved for each task.
+         * @throws Exception On failure saving the tracklets.
+         */
+        static List<Tuple2<String, TrackletSavingProgress>> saveTracklets(
+                @Nonnull Iterator<Tuple2<String, byte[]>> trackIterator,
+                @Nonnull FileSystem hdfs,
+                @Nonnull String metadataDir,
+                @Nonnull PatchEncoder patchEncoder,
+                int indexCellSize,
+                int indexBucketFrames,
+                @Nonnull Logger logger) throws Exception {
+            // All the tracklets of a task are packed into one container,
+            // appended in a single stream for each batch. Their trajectories
+            // are indexed in a file alongside for region queries.
+            Map<String, TrackletContainer.Writer> writers = new HashMap<>();
+            Map<String, TrajectoryIndex.Writer> indexWriters = new HashMap<>();
+            Map<String, TrackletSavingProgress> savedByTask = new HashMap<>();
+            try {
+                while (trackIterator.hasNext()) {
+                    Tuple2<String, byte[]> kv = trackIterator.next();
+                    String taskID = kv._1();
+                    Tracklet tracklet = (Tracklet)
+                            ((TaskData) deserialize(kv._2())).predecessorRes;
+                    logger.info("Task " + taskID + " got track: " + tracklet.id + "!");
+
+                    TrackletContainer.Writer writer = writers.get(taskID);
+                    if (writer == null) {
+                        String videoRoot = metadataDir + "/" + tracklet.id.videoID;
+                        hdfs.mkdirs(new Path(videoRoot));
+                        Path containerPath = new Path(videoRoot + "/" + taskID
+                                + TrackletContainer.SUFFIX);
+                        writer = new TrackletContainer.Writer(hdfs, containerPath);
+                        writers.put(taskID, writer);
+                        indexWriters.put(taskID, new TrajectoryIndex.Writer(hdfs,
+                                TrajectoryIndex.pathOf(containerPath),
+                                indexCellSize, indexBucketFrames));
+                        savedByTask.put(taskID, new TrackletSavingProgress(taskID,
+                                tracklet.id.videoID, containerPath.toString(),
+                                tracklet.numTracklets));
+                    }
+                    // Spark may recompute this partition, e.g. when the state
+                    // below is lost, so tracklets already in the container are
+                    // only reported again instead of being appended twice.
+                    if (!writer.contains(tracklet.id.serialNumber)) {
+                        writer.append(tracklet.id.serialNumber,
+                                encodeTrackletInfo(tracklet),
+                                patchEncoder.encode(tracklet));
+                        indexWriters.get(taskID).append(tracklet);
+                    }
+                    savedByTask.get(taskID).markSaved(tracklet.id.serialNumber);
+                }
+            } finally {
+                for (TrackletContainer.Writer writer : writers.values()) {
+                    writer.close();
+                }
+            }
+            // Indices are written after the containers, so indexed tracklets can be read.
+            for (TrajectoryIndex.Writer indexWriter : indexWriters.values()) {
+                indexWriter.close();
+            }
 
-                                storeTracklet(storeDir, tracklet);
+            List<Tuple2<String, TrackletSavingProgress>> reports = new ArrayList<>();
+            savedByTask.forEach((taskID, saved) -> reports.add(new Tuple2<>(taskID, saved)));
+            return reports;
+        }
 
-                                if (!trackIterator.hasNext()) {
-                                    break;
+        @Override
+        protected void addToContext(@Nonnull JavaStreamingContext jsc, @Nonnull Priority priority) {// Save tracklets.
+            buildBytesDirectStream(jsc, kafkaParams, trackletSavingTopicMap, priority)
+                    // Tracklets are keyed by task ID in Kafka, so all the tracklets of a task
+                    // in a batch are in the same partition. Each partition writes its
+                    // tracklets directly instead of shuffling them, and only reports
+                    // the serial numbers saved for each task.
+                    .mapPartitionsToPair(trackIterator -> {
+                        // RuntimeException: No native JavaCPP library
+                        // in memory. (Has Loader.load() been called?)
+                        Loader.load(opencv_core.class);
+                        Loader.load(opencv_imgproc.class);
+
+                        FileSystem hdfs = hdfsSingleton.getInst();
+                        Logger logger = loggerSingleton.getInst();
+
+                        return saveTracklets(trackIterator, hdfs, metadataDir,
+                                patchEncoderSingleton.getInst(),
+                                trajectoryIndexCellSize, trajectoryIndexBucketFrames, logger);
+                    })
+                    // Count the saved tracklets of each task across batches.
+                    .mapWithState(StateSpec.function(SavingStream::trackSavingProgress)
+                            .timeout(Durations.seconds(trackletSavingTimeout)))
+                    .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
+                        rdd.foreachPartition(progressIterator -> {
+                            Logger logger = loggerSingleton.getInst();
+                            while (progressIterator.hasNext()) {
+                                TrackletSavingProgress progress = progressIterator.next();
+                                switch (progress.getLastEvent()) {
+                                    case FINISHED:
+                                        logger.info(progress + ". Task finished!");
+                                        dbConnSingleton.getInst().setTrackSavingPath(
+                                                progress.videoID, progress.storePath);
+                                        break;
+                                    case PROGRESSED:
+                                        logger.info(progress + ". Need "
+                                                + (progress.getNumTracklets() - progress.getNumSaved())
+                                                + " more tracklets!");
+                                        break;
+                                    case TIMED_OUT:
+                                        logger.error(progress + ". No more tracklets arrived in "
+                                                + trackletSavingTimeout + "s, giving up the task!");
+                                        break;
+                                    case IGNORED:
+                                        logger.debug(progress + ". Ignored re-delivered tracklets.");
+                                        break;
                                 }
-                                tracklet = (Tracklet)
-                                        ((TaskData) deserialize(
-                                                trackIterator.next())).predecessorRes;
-                            }
-
-                            // If all the tracklets from a task are saved,
-                            // it's time to pack them into a HAR!
-                            ContentSummary contentSummary = hdfs.getContentSummary(new Path(taskRoot));
-                            long cnt = contentSummary.getDirectoryCount();
-                            // Decrease one for directory counter.
-                            if (cnt - 1 == numTracklets) {
-                                loggerSingleton.getInst()
-                                        .info("Task " + taskID
-                                                + "(" + tracklet.id.videoID + ") finished!");
-
-                                HadoopArchives arch = new HadoopArchives(new Configuration());
-                                ArrayList<String> opt = new ArrayList<>();
-                                opt.add("-archiveName");
-                                opt.add(taskID + ".har");
-                                opt.add("-p");
-                                opt.add(taskRoot);
-                                opt.add(videoRoot);
-                                arch.run(Arrays.copyOf(opt.toArray(), opt.size(), String[].class));
-
-                                loggerSingleton.getInst()
-                                        .info("Task " + taskID
-                                                + "(" + tracklet.id.videoID + ") packed!");
-
-                                dbConnSingleton.getInst().setTrackSavingPath(tracklet.id.toString(),
-                                        videoRoot + "/" + taskID + ".har");
-
-                                // Delete the original folder recursively.
-                                hdfs.delete(new Path(taskRoot), true);
-                            } else {
-                                loggerSingleton.getInst().info("Task " + taskID
-                                        + "(" + tracklet.id.videoID + ") need "
-                                        + (numTracklets - cnt + 1) + "/" + numTracklets + " more tracklets!");
                             }
+                            flushDatabase(logger);
                         });
                     });
 
             // Display the attributes.
             // TODO Modify the streaming steps from here to store the meta data.
-            buildBytesDirectStream(jsc, kafkaParams, attrSavingTopicMap)
+            buildBytesDirectStream(jsc, kafkaParams, attrSavingTopicMap, priority)
                     .foreachRDD(rdd -> {
-                        rdd.foreach(result -> {
+                        usePool(rdd, priority);
+                        rdd.foreachPartition(resultIterator -> {
+                            while (resultIterator.hasNext()) {
+                                Tuple2<String, byte[]> result = resultIterator.next();
+                                try {
+                                    Attributes attr = (Attributes)
+                                            ((TaskData) deserialize(result._2()))
+                                                    .predecessorRes;
+
+                                    loggerSingleton.getInst()
+                                            .debug("Received " + result._1() + ": " + attr);
+
+                                    dbConnSingleton.getInst().setPedestrianAttributes(
+                                            attr.trackletID.toString(),
+                                            attr);
+
+                                    loggerSingleton.getInst()
+                                            .debug("Saved " + result._1() + ": " + attr);
+                                } catch (IOException e) {
+                                    loggerSingleton.getInst()
+                                            .error("Exception caught when decompressing attributes", e);
+                                }
+                            }
+                            flushDatabase(loggerSingleton.getInst());
+                        });
+                    });
+
+            // Save the ID ranks into a rank file per task, and link the queried
+            // pedestrians to the scored pedestrians of known tracklets in the database.
+            buildBytesDirectStream(jsc, kafkaParams, idRankSavingTopicMap, priority)
+                    .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
+                        rdd.foreachPartition(resultIterator -> {
+                            FileSystem hdfs = hdfsSingleton.getInst();
+                            Logger logger = loggerSingleton.getInst();
+
+                            // Ranks of a task in a batch are appended to its rank file at once.
+                            Map<String, IDRankFile.Writer> writers = new HashMap<>();
+                            List<GraphDatabaseConnector.Link> links = new ArrayList<>();
                             try {
-                                Attributes attr = (Attributes)
-                                        ((TaskData) deserialize(result._2()))
-                                                .predecessorRes;
+                                while (resultIterator.hasNext()) {
+                                    Tuple2<String, byte[]> res = resultIterator.next();
+                                    IDRank idRank;
+                                    try {
+                                        Serializable result = ((TaskData) deserialize(res._2())).predecessorRes;
+                                        // ReIDers of older versions output only the IDs.
+                                        idRank = result instanceof int[]
+                                                ? IDRank.fromRank(null, (int[]) result)
+                                                : (IDRank) result;
+                                    } catch (IOException e) {
+                                        logger.error("Exception caught when decompressing IDRANK", e);
+                                        continue;
+                                    }
+                                    logger.info("Metadata saver received: " + res._1()
+                                            + ": Pedestrian IDRANK rank: " + idRank);
+                                    if (idRank.queryID == null) {
+                                        logger.error("Cannot save IDRANK of task " + res._1()
+                                                + " without the queried tracklet!");
+                                        continue;
+                                    }
+
+                                    String videoRoot = metadataDir + "/" + idRank.queryID.videoID;
+                                    String rankPath = videoRoot + "/" + res._1() + IDRankFile.SUFFIX;
+                                    IDRankFile.Writer writer = writers.get(rankPath);
+                                    if (writer == null) {
+                                        hdfs.mkdirs(new Path(videoRoot));
+                                        writer = new IDRankFile.Writer(hdfs, new Path(rankPath));
+                                        writers.put(rankPath, writer);
+                                    }
+                                    writer.append(idRank);
+
+                                    // Pedestrians in the database are named by their tracklets,
+                                    // and similarities derived from ranks would only add noise.
+                                    if (!idRank.scored || idRank.galleryTracklets == null) {
+                                        continue;
+                                    }
+                                    String queryID = idRank.queryID.toString();
+                                    for (int i = 0; i < idRank.ids.length; ++i) {
+                                        links.add(new GraphDatabaseConnector.Link(queryID,
+                                                idRank.galleryTracklets[i].toString(),
+                                                idRank.similarities[i]));
+                                    }
+                                }
+                            } finally {
+                                for (IDRankFile.Writer writer : writers.values()) {
+                                    writer.close();
+                                }
+                            }
+                            if (!links.isEmpty()) {
+                                dbConnSingleton.getInst().setPedestrianSimilarities(links);
+                            }
+                            flushDatabase(logger);
+                        });
+                    });
+        }
+    }
 
-                                loggerSingleton.getInst()
-                                        .debug("Received " + result._1() + ": " + attr);
+    /**
+     * The AttrQueryStream class searches for pedestrians by attributes.
+     * <p>
+     * It reads the attributes sent for saving with its own consumer group, and
+     * indexes them incrementally in the driver (see {@link AttributeIndex}).
+     * Queries are collected to and answered by the driver after the attributes
+     * of the same batch are indexed. Arrays of matching tracklet IDs are sent to
+     * the successors of the query node, but no command creates any yet, so results
+     * are only logged for now.
+     * <p>
+     * The index lives in the memory of the driver and is neither checkpointed nor
+     * rebuilt on start, since attributes are only saved into the graph database of
+     * each executor. After the driver restarts, including recovering from a checkpoint,
+     * the consumer resumes from where it stopped, so the index only covers attributes
+     * received since the restart.
+     */
+    public static class AttrQueryStream extends Stream {
+
+        public static final Info INFO = new Info("pedestrian-attr-query", DataType.TRACKLET_IDS);
+        public static final Topic QUERY_TOPIC =
+                new Topic("pedestrian-attr-query", DataType.ATTR_QUERY, INFO);
+        private Map<String, Integer> attrTopicMap = new HashMap<>();
+        private Map<String, Integer> queryTopicMap = new HashMap<>();
+        private Map<String, String> kafkaParams = new HashMap<>();
+        // Create KafkaSink for Spark Streaming to output to Kafka.
+        private Singleton<Producer<String, byte[]>> producerSingleton;
+        private Singleton<SynthesizedLogger> loggerSingleton;
+        private Singleton<AttributeIndex> attrIndexSingleton;
 
-                                dbConnSingleton.getInst().setPedestrianAttributes(
-                                        attr.trackletID.toString(),
-                                        attr);
+        public AttrQueryStream(@Nonnull SystemPropertyCenter propCenter) throws Exception {
+            super(propCenter);
+            attrTopicMap.put(SavingStream.PED_ATTR_SAVING_TOPIC.NAME, propCenter.kafkaNumPartitions);
+            queryTopicMap.put(QUERY_TOPIC.NAME, propCenter.kafkaNumPartitions);
 
-                                loggerSingleton.getInst()
-                                        .debug("Saved " + result._1() + ": " + attr);
+            // Common Kafka settings
+            kafkaParams.put("group.id", INFO.NAME);
+            kafkaParams.put("zookeeper.connect", propCenter.zkConn);
+            kafkaParams.put("metadata.broker.list", propCenter.kafkaBrokers);
+            // Determine where the stream starts (default: largest)
+            kafkaParams.put("auto.offset.reset", "smallest");
+            kafkaParams.put("fetch.message.max.bytes", "" + propCenter.kafkaFetchMsgMaxBytes);
+
+            Properties producerProp = new Properties();
+            producerProp.put("bootstrap.servers", propCenter.kafkaBrokers);
+            producerProp.put("compression.codec", "1");
+            producerProp.put("max.request.size", "10000000");
+            producerProp.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+            producerProp.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
+
+            producerSingleton = new Singleton<>(transport.getProducerFactory(
+                    producerProp));
+            loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
+                    INFO.NAME,
+                    propCenter.verbose ? Level.DEBUG : Level.INFO,
+                    propCenter.reportListenerAddr,
+                    propCenter.reportListenerPort));
+            final float attrIndexThreshold = propCenter.attrIndexThreshold;
+            attrIndexSingleton = new Singleton<>(() -> new AttributeIndex(attrIndexThreshold));
+        }
+
+        @Override
+        protected void addToContext(@Nonnull JavaStreamingContext jsc, @Nonnull Priority priority) {
+            // Index attributes. Output operations of a batch run in the order they
+            // are registered, so the queries below see the attributes of the same batch.
+            buildBytesDirectStream(jsc, kafkaParams, attrTopicMap, priority)
+                    .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
+                        // Deserialize in executors, then index in the driver.
+                        List<Attributes> attrs = rdd.flatMap(result -> {
+                            try {
+                                Attributes attr = (Attributes)
+                                        ((TaskData) deserialize(result._2())).predecessorRes;
+                                return Collections.singletonList(attr);
                             } catch (IOException e) {
                                 loggerSingleton.getInst()
                                         .error("Exception caught when decompressing attributes", e);
+                                return Collections.<Attributes>emptyList();
                             }
-                        });
+                        }).collect();
+                        AttributeIndex index = attrIndexSingleton.getInst();
+                        for (Attributes attr : attrs) {
+                            if (attr.trackletID == null) {
+                                loggerSingleton.getInst().error("Cannot index attributes"
+                                        + " not bound to any tracklet: " + attr);
+                                continue;
+                            }
+                            index.add(attr);
+                        }
+                        if (!attrs.isEmpty()) {
+                            loggerSingleton.getInst().debug("Indexed " + attrs.size()
+                                    + " attributes, " + index.size() + " pedestrians in total.");
+                        }
                     });
 
-            // Display the id ranks.
-            // TODO Modify the streaming steps from here to store the meta data.
-            buildBytesDirectStream(jsc, kafkaParams, idRankSavingTopicMap)
+            // Answer queries in the driver.
+            buildBytesDirectStream(jsc, kafkaParams, queryTopicMap, priority)
                     .foreachRDD(rdd -> {
-                        rdd.foreach(res -> {
-                            int[] idRank;
+                        usePool(rdd, priority);
+                        Logger logger = loggerSingleton.getInst();
+                        for (Tuple2<String, byte[]> job : rdd.collect()) {
+                            TaskData taskData = (TaskData) deserialize(job._2());
+                            if (!(taskData.predecessorRes instanceof AttributeQuery)) {
+                                logger.fatal("Result sent by "
+                                        + taskData.predecessorInfo
+                                        + " is expected to be an attribute query,"
+                                        + " but received \""
+                                        + taskData.predecessorRes + "\"!");
+                                continue;
+                            }
+                            AttributeQuery query = (AttributeQuery) taskData.predecessorRes;
+                            Tracklet.Identifier[] results;
                             try {
-                                idRank = (int[]) ((TaskData) deserialize(res._2()))
-                                        .predecessorRes;
-                                String rankStr = "";
-                                for (int id : idRank) {
-                                    rankStr = rankStr + id + " ";
-                                }
-                                loggerSingleton.getInst().info("Metadata saver received: " + res._1()
-                                        + ": Pedestrian IDRANK rank: " + rankStr);
-                                //TODO(Ken Yu): Save IDs to database.
+                                results = attrIndexSingleton.getInst().search(query);
+                            } catch (IllegalArgumentException e) {
+                                logger.error("Invalid query from task " + job._1() + ": " + query, e);
+                                continue;
+                            }
+                            logger.info("Task " + job._1() + " found " + results.length
+                                    + " pedestrians for " + query + ": " + Arrays.toString(results));
+                            taskData.predecessorRes = results;
+
+                            // Get the IDs of successor nodes.
+                            List<Topic> succTopics = taskData.curNode.getSuccessors();
+                            // Mark the current node as executed.
+                            taskData.curNode.markExecuted();
+                            // Send to all the successor nodes.
+                            for (Topic topic : succTopics) {
+                                taskData.changeCurNode(topic);
+                                sendWithLog(topic,
+                                        taskData.priority,
+                                        job._1(),
+                                        SerializationHelper.serialize(taskData),
+                                        producerSingleton.getInst(),
+                                        logger);
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * The TrajectoryQueryStream class searches for the tracklets of a video
+     * passing through a region of the image during a range of frames, using
+     * the trajectory index saved alongside the tracklets (see {@link TrajectoryIndex}).
+     * Only the index is read, not the tracklets. It outputs arrays of matching tracklet IDs.
+     */
+    public static class TrajectoryQueryStream extends Stream {
+
+        public static final Info INFO = new Info("pedestrian-trajectory-query", DataType.TRACKLET_IDS);
+        public static final Topic QUERY_TOPIC =
+                new Topic("pedestrian-trajectory-query", DataType.TRAJECTORY_QUERY, INFO);
+        private Map<String, Integer> queryTopicMap = new HashMap<>();
+        private Map<String, String> kafkaParams = new HashMap<>();
+        // Create KafkaSink for Spark Streaming to output to Kafka.
+        private Singleton<Producer<String, byte[]>> producerSingleton;
+        private Singleton<SynthesizedLogger> loggerSingleton;
+        private Singleton<FileSystem> hdfsSingleton;
+        private Singleton<GraphDatabaseConnector> dbConnSingleton;
+        private Singleton<TrajectoryIndex.Cache> indexCacheSingleton;
+
+        public TrajectoryQueryStream(@Nonnull SystemPropertyCenter propCenter) throws Exception {
+            super(propCenter);
+            queryTopicMap.put(QUERY_TOPIC.NAME, propCenter.kafkaNumPartitions);
+
+            // Common Kafka settings
+            kafkaParams.put("group.id", INFO.NAME);
+            kafkaParams.put("zookeeper.connect", propCenter.zkConn);
+            kafkaParams.put("metadata.broker.list", propCenter.kafkaBrokers);
+            // Determine where the stream starts (default: largest)
+            kafkaParams.put("auto.offset.reset", "smallest");
+            kafkaParams.put("fetch.message.max.bytes", "" + propCenter.kafkaFetchMsgMaxBytes);
+
+            Properties producerProp = new Properties();
+            producerProp.put("bootstrap.servers", propCenter.kafkaBrokers);
+            producerProp.put("compression.codec", "1");
+            producerProp.put("max.request.size", "10000000");
+            producerProp.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+            producerProp.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
+
+            producerSingleton = new Singleton<>(transport.getProducerFactory(
+                    producerProp));
+            loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(
+                    INFO.NAME,
+                    propCenter.verbose ? Level.DEBUG : Level.INFO,
+                    propCenter.reportListenerAddr,
+                    propCenter.reportListenerPort));
+            hdfsSingleton = new Singleton<>(new HDFSFactory());
+            dbConnSingleton = new Singleton<>(new GraphDatabaseConnectorFactory(propCenter));
+            final int trajectoryIndexCacheSize = propCenter.trajectoryIndexCacheSize;
+            indexCacheSingleton = new Singleton<>(() -> new TrajectoryIndex.Cache(trajectoryIndexCacheSize));
+        }
+
+        @Override
+        protected void addToContext(@Nonnull JavaStreamingContext jsc, @Nonnull Priority priority) {
+            buildBytesDirectStream(jsc, kafkaParams, queryTopicMap, priority)
+                    .foreachRDD(rdd -> {
+                        usePool(rdd, priority);
+                        rdd.foreach(job -> {
+                            Logger logger = loggerSingleton.getInst();
+
+                            TaskData taskData = (TaskData) deserialize(job._2());
+                            if (!(taskData.predecessorRes instanceof TrajectoryQuery)) {
+                                logger.fatal("Result sent by "
+                                        + taskData.predecessorInfo
+                                        + " is expected to be a trajectory query,"
+                                        + " but received \""
+                                        + taskData.predecessorRes + "\"!");
+                                return;
+                            }
+                            TrajectoryQuery query = (TrajectoryQuery) taskData.predecessorRes;
+                            String storePath;
+                            try {
+                                storePath = dbConnSingleton.getInst().getTrackletSavingDir(query.videoID);
+                            } catch (NoSuchElementException e) {
+                                logger.error("Cannot find where tracklets of " + query.videoID
+                                        + " are stored!", e);
+                                return;
+                            }
+                            if (!storePath.endsWith(TrackletContainer.SUFFIX)) {
+                                logger.error("Tracklets of " + query.videoID + " are stored in " + storePath
+                                        + ", which has no trajectory index!");
+                                return;
+                            }
+                            int[] serialNumbers;
+                            try {
+                                serialNumbers = indexCacheSingleton.getInst()
+                                        .get(hdfsSingleton.getInst(), TrajectoryIndex.pathOf(new Path(storePath)))
+                                        .search(query.x, query.y, query.width, query.height,
+                                                query.startFrame, query.endFrame);
                             } catch (IOException e) {
-                                loggerSingleton.getInst().error("Exception caught when decompressing IDRANK", e);
+                                logger.error("Cannot read the trajectory index of " + query.videoID + "!", e);
+                                return;
+                            }
+                            Tracklet.Identifier[] results = new Tracklet.Identifier[serialNumbers.length];
+                            for (int i = 0; i < serialNumbers.length; ++i) {
+                                results[i] = new Tracklet.Identifier(query.videoID, serialNumbers[i]);
+                            }
+                            logger.info("Task " + job._1() + " found " + results.length
+                                    + " tracklets for " + query + ": " + Arrays.toString(results));
+                            taskData.predecessorRes = results;
+
+                            // Get the IDs of successor nodes.
+                            List<Topic> succTopics = taskData.curNode.getSuccessors();
+                            // Mark the current node as executed.
+                            taskData.curNode.markExecuted();
+                            // Send to all the successor nodes.
+                            for (Topic topic : succTopics) {
+                                taskData.changeCurNode(topic);
+                                sendWithLog(topic,
+                                        taskData.priority,
+                                        job._1(),
+                                        SerializationHelper.serialize(taskData),
+                                        producerSingleton.getInst(),
+                                        logger);
                             }
                         });
                     });
@@ -20,6 +20,8 @@ package org.cripac.isee.vpe.data;
 import org.cripac.isee.pedestrian.attr.Attributes;
 
 import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -89,6 +91,52 @@ public abstract class GraphDatabaseConnector {
      */
     public abstract Attributes getPedestrianAttributes(@Nonnull String id) throws NoSuchElementException;
 
+    /**
+     * Set the paths of the directories saving the tracks of multiple pedestrians.
+     * Connectors may override this to write them in one round trip.
+     *
+     * @param paths Paths of the directories indexed by the ids of the pedestrians.
+     */
+    public void setTrackSavingPaths(@Nonnull Map<String, String> paths) {
+        paths.forEach(this::setTrackSavingPath);
+    }
+
+    /**
+     * Set the similarities between multiple pairs of pedestrians.
+     * Connectors may override this to write them in one round trip.
+     *
+     * @param links Links between the pairs of pedestrians with their similarities.
+     */
+    public void setPedestrianSimilarities(@Nonnull Collection<Link> links) {
+        for (Link link : links) {
+            setPedestrianSimilarity(link.nodeA, link.nodeB, link.similarity);
+        }
+    }
+
+    /**
+     * Set the attributes of multiple pedestrians.
+     * Connectors may override this to write them in one round trip.
+     *
+     * @param attrs Attributes indexed by the ids of the pedestrians.
+     */
+    public void setPedestrianAttributes(@Nonnull Map<String, Attributes> attrs) {
+        attrs.forEach(this::setPedestrianAttributes);
+    }
+
+    /**
+     * Write the updates buffered by the connector, if any. Connectors writing
+     * updates immediately need not override this.
+     */
+    public void flush() {
+    }
+
+    /**
+     * @return Statistics of the connector for logging, or null if not available.
+     */
+    public String getStatistics() {
+        return null;
+    }
+
     /**
      * Get all the pedestrians linked to one target pedestrian.
      *
@@ -0,0 +1,82 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.debug.FakeDatabaseConnector;
+import org.cripac.isee.vpe.util.Factory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+
+/**
+ * The GraphDatabaseConnectorFactory class produces the graph database
+ * connector specified in the system properties, wrapped for batching updates
+ * and caching queries if they are enabled.
+ */
+public class GraphDatabaseConnectorFactory implements Factory<GraphDatabaseConnector> {
+
+    private static final long serialVersionUID = 1738624511308529746L;
+
+    private final String type;
+    private final String localDir;
+    private final int batchSize;
+    private final long batchDelayMs;
+    private final int cacheSize;
+    private final long cacheTtlMs;
+    private final long cacheNegativeTtlMs;
+
+    public GraphDatabaseConnectorFactory(@Nonnull SystemPropertyCenter propCenter) {
+        this.type = propCenter.graphDBConnector;
+        this.localDir = propCenter.graphDBLocalDir;
+        this.batchSize = propCenter.graphDBBatchSize;
+        this.batchDelayMs = propCenter.graphDBBatchDelay;
+        this.cacheSize = propCenter.graphDBCacheSize;
+        this.cacheTtlMs = propCenter.graphDBCacheTtl;
+        this.cacheNegativeTtlMs = propCenter.graphDBCacheNegativeTtl;
+    }
+
+    /**
+     * Produce a new connector.
+     *
+     * @return An object newly produced.
+     * @throws Exception On failure creating a new instance.
+     */
+    @Override
+    public GraphDatabaseConnector produce() throws Exception {
+        GraphDatabaseConnector connector;
+        switch (type) {
+            case "fake":
+                connector = new FakeDatabaseConnector();
+                break;
+            case "local":
+                // Shared by all the connectors in this process.
+                connector = LocalGraphDatabaseConnector.open(new File(localDir));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown graph database connector \"" + type + "\"!");
+        }
+        if (batchSize > 1) {
+            connector = new BatchingGraphDatabaseConnector(connector, batchSize, batchDelayMs);
+        }
+        if (cacheSize > 0) {
+            connector = new CachingGraphDatabaseConnector(connector, cacheSize, cacheTtlMs, cacheNegativeTtlMs);
+        }
+        return connector;
+    }
+}
@@ -21,7 +21,9 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
@@ -76,4 +78,30 @@ public class HDFSReader {
         }
         return subfilePaths;
     }
+
+    /**
+     * List the sub-files of a directory incrementally, like
+     * {@link #listSubfiles(Path)}, but the paths are fetched from the name node
+     * in batches as the iterator advances, so that the first ones are available
+     * before a large directory is listed completely.
+     *
+     * @param path The path of a directory or a file.
+     * @return An iterator of paths of sub-files if the path specifies a directory or
+     * the given path itself if the path specifies a file.
+     * @throws IOException On error reading files in Hadoop Filesystem.
+     */
+    public RemoteIterator<Path> listSubfilesIncrementally(@Nonnull Path path) throws IOException {
+        final RemoteIterator<LocatedFileStatus> files = hdfs.listFiles(path, true);
+        return new RemoteIterator<Path>() {
+            @Override
+            public boolean hasNext() throws IOException {
+                return files.hasNext();
+            }
+
+            @Override
+            public Path next() throws IOException {
+                return files.next().getPath();
+            }
+        };
+    }
 }
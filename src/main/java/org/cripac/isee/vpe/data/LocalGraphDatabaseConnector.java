@@ -0,0 +1,668 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.cripac.isee.pedestrian.attr.Attributes;
+import org.cripac.isee.vpe.util.SerializationHelper;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * The LocalGraphDatabaseConnector class is a graph database embedded in the
+ * current JVM, persisted in a local directory, so the platform can store and
+ * query its results without any external database service.
+ * <p>
+ * Pedestrians are indexed by integers on their first appearance. Links of each
+ * pedestrian are kept in primitive arrays, and all lookups are performed in
+ * memory. Every modification is appended to a write-ahead log before it is
+ * applied. On opening, the latest snapshot is mapped into memory and loaded,
+ * then the log is replayed. The log is compacted into a new snapshot when it
+ * grows large and on closing.
+ * <p>
+ * The store is local to the process opening it. Streams running on multiple
+ * executors each see their own store. Within a process, all the connectors
+ * share one instance for each directory (see {@link #open(File)}), which is
+ * closed on shutdown of the JVM. The directory is locked while opened, so that
+ * other processes cannot open the same store and truncate its log.
+ */
+public class LocalGraphDatabaseConnector extends GraphDatabaseConnector implements Closeable {
+
+    private static final int SNAPSHOT_MAGIC = 0x4C474442;   // "LGDB"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String LOG_FILE = "wal";
+    private static final String LOCK_FILE = "lock";
+    /**
+     * The log is compacted into a snapshot when it grows beyond this size.
+     */
+    private static final long MAX_LOG_BYTES = 64 << 20;
+
+    private static final byte OP_SET_PATH = 1;
+    private static final byte OP_SET_SIMILARITY = 2;
+    private static final byte OP_SET_ATTRIBUTES = 3;
+
+    /**
+     * Stores opened in this process, by canonical paths of their directories.
+     */
+    private static final Map<String, LocalGraphDatabaseConnector> openStores = new HashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(LocalGraphDatabaseConnector::closeAll));
+    }
+
+    private final File dir;
+    private final String canonicalPath;
+    private final FileChannel lockChannel;
+    private boolean closed = false;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Integer> nodeIndices = new HashMap<>();
+    private final List<String> nodeNames = new ArrayList<>();
+    private final List<String> savingPaths = new ArrayList<>();
+    /**
+     * Serialized attributes, deserialized on each query so that callers
+     * never share the stored objects.
+     */
+    private final List<byte[]> attributes = new ArrayList<>();
+    private final List<Adjacency> adjacencies = new ArrayList<>();
+
+    private DataOutputStream log;
+    private long logBytes;
+
+    /**
+     * Links from a node, kept in parallel primitive arrays.
+     */
+    private static class Adjacency {
+        int[] nodes = new int[4];
+        float[] similarities = new float[4];
+        int size = 0;
+
+        int find(int node) {
+            for (int i = 0; i < size; ++i) {
+                if (nodes[i] == node) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void set(int node, float similarity) {
+            int i = find(node);
+            if (i < 0) {
+                if (size == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                    similarities = Arrays.copyOf(similarities, size * 2);
+                }
+                i = size++;
+                nodes[i] = node;
+            }
+            similarities[i] = similarity;
+        }
+    }
+
+    /**
+     * Get the store in a directory, opening it if it is not yet opened in this
+     * process, and creating it if it does not exist.
+     *
+     * @param dir Directory of the store.
+     * @return The store shared by all the connectors in this process.
+     * @throws IOException On failure reading or creating the store, or if the
+     *                     store is opened by another process.
+     */
+    public static synchronized LocalGraphDatabaseConnector open(@Nonnull File dir) throws IOException {
+        String canonicalPath = dir.getCanonicalPath();
+        LocalGraphDatabaseConnector store = openStores.get(canonicalPath);
+        if (store == null) {
+            store = new LocalGraphDatabaseConnector(dir, canonicalPath);
+            openStores.put(canonicalPath, store);
+        }
+        return store;
+    }
+
+    /**
+     * Close all the stores opened in this process.
+     */
+    private static void closeAll() {
+        List<LocalGraphDatabaseConnector> stores;
+        synchronized (LocalGraphDatabaseConnector.class) {
+            stores = new ArrayList<>(openStores.values());
+        }
+        for (LocalGraphDatabaseConnector store : stores) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private LocalGraphDatabaseConnector(@Nonnull File dir,
+                                        @Nonnull String canonicalPath) throws IOException {
+        this.dir = dir;
+        this.canonicalPath = canonicalPath;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir + "!");
+        }
+        lockChannel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock fileLock = lockChannel.tryLock();
+            if (fileLock == null) {
+                throw new IOException("Store " + dir + " is opened by another process!");
+            }
+            File snapshot = new File(dir, SNAPSHOT_FILE);
+            if (snapshot.exists()) {
+                loadSnapshot(snapshot);
+            }
+            File logFile = new File(dir, LOG_FILE);
+            if (logFile.exists()) {
+                replayLog(logFile);
+            }
+            // Start with a fresh log. No one else is appending to it, as the store is locked.
+            writeSnapshot();
+            openLog(false);
+        } catch (IOException | RuntimeException e) {
+            // Closing the channel also releases the lock.
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private int getOrCreateNode(@Nonnull String name) {
+        Integer index = nodeIndices.get(name);
+        if (index == null) {
+            index = nodeNames.size();
+            nodeIndices.put(name, index);
+            nodeNames.add(name);
+            savingPaths.add(null);
+            attributes.add(null);
+            adjacencies.add(new Adjacency());
+        }
+        return index;
+    }
+
+    private int getNode(@Nonnull String name) throws NoSuchElementException {
+        Integer index = nodeIndices.get(name);
+        if (index == null) {
+            throw new NoSuchElementException("Pedestrian " + name + " is not found!");
+        }
+        return index;
+    }
+
+    private void applySetPath(@Nonnull String id, @Nonnull String path) {
+        savingPaths.set(getOrCreateNode(id), path);
+    }
+
+    private void applySetSimilarity(@Nonnull String idA, @Nonnull String idB, float similarity) {
+        int a = getOrCreateNode(idA);
+        int b = getOrCreateNode(idB);
+        adjacencies.get(a).set(b, similarity);
+        adjacencies.get(b).set(a, similarity);
+    }
+
+    private void applySetAttributes(@Nonnull String id, @Nonnull byte[] attr) {
+        attributes.set(getOrCreateNode(id), attr);
+    }
+
+    private static void writeString(@Nonnull DataOutputStream out,
+                                    @Nonnull String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(@Nonnull ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(@Nonnull ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static MappedByteBuffer map(@Nonnull File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private void loadSnapshot(@Nonnull File file) throws IOException {
+        ByteBuffer in = map(file);
+        try {
+            if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unrecognized snapshot " + file + "!");
+            }
+            int numNodes = in.getInt();
+            for (int i = 0; i < numNodes; ++i) {
+                getOrCreateNode(readString(in));
+            }
+            for (int i = 0; i < numNodes; ++i) {
+                if (in.get() != 0) {
+                    savingPaths.set(i, readString(in));
+                }
+                attributes.set(i, readBytes(in));
+                int numLinks = in.getInt();
+                Adjacency adjacency = adjacencies.get(i);
+                adjacency.nodes = new int[Math.max(numLinks, 4)];
+                adjacency.similarities = new float[adjacency.nodes.length];
+                for (int j = 0; j < numLinks; ++j) {
+                    adjacency.nodes[j] = in.getInt();
+                    adjacency.similarities[j] = in.getFloat();
+                }
+                adjacency.size = numLinks;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot " + file + " is truncated!", e);
+        }
+    }
+
+    /**
+     * Replay the log. A record partially written before a crash, detected by
+     * its length or checksum, ends the replay.
+     */
+    private void replayLog(@Nonnull File file) throws IOException {
+        ByteBuffer in = map(file);
+        while (in.remaining() >= 12) {
+            int length = in.getInt();
+            long checksum = in.getLong();
+            if (length < 0 || length > in.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            in.get(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            ByteBuffer recordIn = ByteBuffer.wrap(record);
+            switch (recordIn.get()) {
+                case OP_SET_PATH:
+                    applySetPath(readString(recordIn), readString(recordIn));
+                    break;
+                case OP_SET_SIMILARITY:
+                    applySetSimilarity(readString(recordIn), readString(recordIn), recordIn.getFloat());
+                    break;
+                case OP_SET_ATTRIBUTES:
+                    applySetAttributes(readString(recordIn), readBytes(recordIn));
+                    break;
+                default:
+                    throw new IOException("Unknown operation in log " + file + "!");
+            }
+        }
+    }
+
+    /**
+     * Write all the data into a new snapshot, replacing the old one atomically,
+     * and discard the log.
+     */
+    private void writeSnapshot() throws IOException {
+        File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(nodeNames.size());
+            for (String name : nodeNames) {
+                writeString(out, name);
+            }
+            for (int i = 0; i < nodeNames.size(); ++i) {
+                String path = savingPaths.get(i);
+                out.writeBoolean(path != null);
+                if (path != null) {
+                    writeString(out, path);
+                }
+                byte[] attr = attributes.get(i);
+                out.writeInt(attr == null ? -1 : attr.length);
+                if (attr != null) {
+                    out.write(attr);
+                }
+                Adjacency adjacency = adjacencies.get(i);
+                out.writeInt(adjacency.size);
+                for (int j = 0; j < adjacency.size; ++j) {
+                    out.writeInt(adjacency.nodes[j]);
+                    out.writeFloat(adjacency.similarities[j]);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        new File(dir, LOG_FILE).delete();
+    }
+
+    private void openLog(boolean append) throws IOException {
+        log = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, LOG_FILE), append)));
+        logBytes = 0;
+    }
+
+    /**
+     * Writes the fields of a log record.
+     */
+    private interface RecordWriter {
+        void write(@Nonnull DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encodeRecord(@Nonnull RecordWriter writer) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * Append records to the log, flushing them together.
+     * Must be called with the write lock held.
+     */
+    private void appendLog(@Nonnull List<byte[]> records) {
+        try {
+            for (byte[] record : records) {
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                log.writeInt(record.length);
+                log.writeLong(crc.getValue());
+                log.write(record);
+                logBytes += 12 + record.length;
+            }
+            log.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Compact the log into a new snapshot if it has grown too large.
+     * Must be called with the write lock held, after the logged modifications are applied.
+     */
+    private void compactLogIfNeeded() {
+        if (logBytes <= MAX_LOG_BYTES) {
+            return;
+        }
+        try {
+            log.close();
+            writeSnapshot();
+            openLog(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a snapshot of the store and close it, releasing the directory.
+     * Closing a closed store has no effect.
+     *
+     * @throws IOException On failure writing the snapshot.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (LocalGraphDatabaseConnector.class) {
+            openStores.remove(canonicalPath, this);
+        }
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                log.close();
+                writeSnapshot();
+            } finally {
+                lockChannel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setTrackSavingPath(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void setTrackSavingPath(@Nonnull String id,
+                                   @Nonnull String path) {
+        setTrackSavingPaths(Collections.singletonMap(id, path));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setTrackSavingPaths(java.util.Map)
+     */
+    @Override
+    public void setTrackSavingPaths(@Nonnull Map<String, String> paths) {
+        List<byte[]> records = new ArrayList<>(paths.size());
+        paths.forEach((id, path) -> records.add(encodeRecord(out -> {
+            out.writeByte(OP_SET_PATH);
+            writeString(out, id);
+            writeString(out, path);
+        })));
+        lock.writeLock().lock();
+        try {
+            appendLog(records);
+            paths.forEach(this::applySetPath);
+            compactLogIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getTrackletSavingDir(java.lang.String)
+     */
+    @Override
+    public String getTrackletSavingDir(@Nonnull String id) throws NoSuchElementException {
+        lock.readLock().lock();
+        try {
+            String path = savingPaths.get(getNode(id));
+            if (path == null) {
+                throw new NoSuchElementException("Saving path of " + id + " is not found!");
+            }
+            return path;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianSimilarity(java.lang.String, java.lang.String, float)
+     */
+    @Override
+    public void setPedestrianSimilarity(@Nonnull String idA,
+                                        @Nonnull String idB,
+                                        float similarity) {
+        setPedestrianSimilarities(Collections.singletonList(new Link(idA, idB, similarity)));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianSimilarities(java.util.Collection)
+     */
+    @Override
+    public void setPedestrianSimilarities(@Nonnull Collection<Link> links) {
+        List<byte[]> records = new ArrayList<>(links.size());
+        for (Link link : links) {
+            records.add(encodeRecord(out -> {
+                out.writeByte(OP_SET_SIMILARITY);
+                writeString(out, link.nodeA);
+                writeString(out, link.nodeB);
+                out.writeFloat(link.similarity);
+            }));
+        }
+        lock.writeLock().lock();
+        try {
+            appendLog(records);
+            for (Link link : links) {
+                applySetSimilarity(link.nodeA, link.nodeB, link.similarity);
+            }
+            compactLogIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getPedestrianSimilarity(java.lang.String, java.lang.String)
+     */
+    @Override
+    public float getPedestrianSimilarity(@Nonnull String idA,
+                                         @Nonnull String idB) throws NoSuchElementException {
+        lock.readLock().lock();
+        try {
+            Adjacency adjacency = adjacencies.get(getNode(idA));
+            int i = adjacency.find(getNode(idB));
+            if (i < 0) {
+                throw new NoSuchElementException("No link between " + idA + " and " + idB + "!");
+            }
+            return adjacency.similarities[i];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianAttributes(java.lang.String, Attributes)
+     */
+    @Override
+    public void setPedestrianAttributes(@Nonnull String id,
+                                        @Nonnull Attributes attr) {
+        setPedestrianAttributes(Collections.singletonMap(id, attr));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#setPedestrianAttributes(java.util.Map)
+     */
+    @Override
+    public void setPedestrianAttributes(@Nonnull Map<String, Attributes> attrs) {
+        Map<String, byte[]> attrBytes = new LinkedHashMap<>();
+        attrs.forEach((id, attr) -> attrBytes.put(id, SerializationHelper.serialize(attr)));
+        List<byte[]> records = new ArrayList<>(attrs.size());
+        attrBytes.forEach((id, bytes) -> records.add(encodeRecord(out -> {
+            out.writeByte(OP_SET_ATTRIBUTES);
+            writeString(out, id);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        })));
+        lock.writeLock().lock();
+        try {
+            appendLog(records);
+            attrBytes.forEach(this::applySetAttributes);
+            compactLogIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getPedestrianAttributes(java.lang.String)
+     */
+    @Override
+    public Attributes getPedestrianAttributes(@Nonnull String id) throws NoSuchElementException {
+        byte[] attrBytes;
+        lock.readLock().lock();
+        try {
+            attrBytes = attributes.get(getNode(id));
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (attrBytes == null) {
+            throw new NoSuchElementException("Attributes of " + id + " are not found!");
+        }
+        try {
+            return (Attributes) SerializationHelper.deserialize(attrBytes);
+        } catch (ClassNotFoundException e) {
+            throw new NoSuchElementException("Cannot deserialize attributes of " + id + ": " + e);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see GraphDatabaseConnector#getLinkedPedestrians(java.lang.String)
+     */
+    @Override
+    public Link[] getLinkedPedestrians(@Nonnull String id) throws NoSuchElementException {
+        lock.readLock().lock();
+        try {
+            Adjacency adjacency = adjacencies.get(getNode(id));
+            Link[] links = new Link[adjacency.size];
+            for (int i = 0; i < adjacency.size; ++i) {
+                links[i] = new Link(id, nodeNames.get(adjacency.nodes[i]), adjacency.similarities[i]);
+            }
+            return links;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+import static org.bytedeco.javacpp.opencv_imgcodecs.IMWRITE_JPEG_QUALITY;
+import static org.bytedeco.javacpp.opencv_imgcodecs.imencode;
+
+/**
+ * The PatchEncoder class encodes the patches of tracklets into JPEG for storage.
+ * <p>
+ * Patches of long tracklets are encoded by a pool of worker threads. Each
+ * thread keeps its own native input buffer and image header, which are reused
+ * across patches and only reallocated when a larger patch arrives, instead of
+ * allocating new native objects for every frame.
+ */
+public class PatchEncoder {
+
+    /**
+     * Default JPEG quality, the same as that of OpenCV.
+     */
+    public static final int DEFAULT_QUALITY = 95;
+    /**
+     * Tracklets with fewer bounding boxes are encoded in the calling thread.
+     */
+    private static final int MIN_PARALLEL_ENCODING_LENGTH = 16;
+
+    private final int quality;
+    private final int numThreads;
+    private ExecutorService encodingPool = null;
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Create an encoder. Threads are created on first use.
+     *
+     * @param quality    JPEG quality from 0 to 100.
+     * @param numThreads Number of threads encoding the patches of a tracklet.
+     */
+    public PatchEncoder(int quality, int numThreads) {
+        this.quality = Math.max(0, Math.min(100, quality));
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Native buffers reused by a thread.
+     */
+    private class Buffers {
+        private BytePointer input = null;
+        private int capacity = 0;
+        private Mat image = null;
+        private final IntPointer params = new IntPointer(IMWRITE_JPEG_QUALITY, quality);
+
+        byte[] encode(@Nonnull Tracklet.BoundingBox bbox) {
+            byte[] data = bbox.patchData;
+            if (data.length > capacity) {
+                if (image != null) {
+                    image.release();
+                    image = null;
+                }
+                if (input != null) {
+                    input.deallocate();
+                }
+                input = new BytePointer(data.length);
+                capacity = data.length;
+            }
+            input.position(0).put(data, 0, data.length);
+            if (image == null || image.rows() != bbox.height || image.cols() != bbox.width) {
+                if (image != null) {
+                    image.release();
+                }
+                image = new Mat(bbox.height, bbox.width, CV_8UC3, input);
+            }
+
+            // The output is allocated by OpenCV according to the encoded size.
+            BytePointer outputPointer = new BytePointer();
+            imencode(".jpg", image, outputPointer, params);
+            byte[] bytes = new byte[(int) outputPointer.limit()];
+            outputPointer.get(bytes);
+            outputPointer.deallocate();
+            return bytes;
+        }
+    }
+
+    private synchronized ExecutorService getEncodingPool() {
+        if (encodingPool == null) {
+            encodingPool = Executors.newFixedThreadPool(numThreads, runnable -> {
+                Thread thread = new Thread(runnable, "tracklet-patch-encoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return encodingPool;
+    }
+
+    /**
+     * Encode the patch of a bounding box into JPEG.
+     *
+     * @param bbox The bounding box.
+     * @return JPEG bytes of the patch, or an empty array if the patch is not available.
+     */
+    public byte[] encode(@Nonnull Tracklet.BoundingBox bbox) {
+        if (bbox.patchData == null) {
+            return new byte[0];
+        }
+        return buffers.get().encode(bbox);
+    }
+
+    /**
+     * Encode the patch of each bounding box of a tracklet into JPEG.
+     *
+     * @param tracklet The tracklet to encode.
+     * @return JPEG bytes of each patch. Unavailable patches are encoded as empty arrays.
+     * @throws Exception On failure encoding a patch.
+     */
+    public List<byte[]> encode(@Nonnull Tracklet tracklet) throws Exception {
+        Tracklet.BoundingBox[] seq = tracklet.locationSequence;
+        byte[][] patches = new byte[seq.length][];
+        if (seq.length < MIN_PARALLEL_ENCODING_LENGTH || numThreads == 1) {
+            for (int i = 0; i < seq.length; ++i) {
+                patches[i] = encode(seq[i]);
+            }
+            return Arrays.asList(patches);
+        }
+
+        // Split the sequence into one chunk per thread.
+        List<Future<?>> futures = new ArrayList<>(numThreads);
+        int chunk = (seq.length + numThreads - 1) / numThreads;
+        for (int begin = 0; begin < seq.length; begin += chunk) {
+            final int from = begin;
+            final int to = Math.min(begin + chunk, seq.length);
+            futures.add(getEncodingPool().submit(() -> {
+                for (int i = from; i < to; ++i) {
+                    patches[i] = encode(seq[i]);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return Arrays.asList(patches);
+    }
+}
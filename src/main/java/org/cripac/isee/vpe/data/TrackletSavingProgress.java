@@ -0,0 +1,171 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.BitSet;
+
+/**
+ * The TrackletSavingProgress class counts the tracklets of a task saved to
+ * HDFS, so that the completion of the task can be detected without listing
+ * the storage.
+ * <p>
+ * It serves both as the report of a batch of tracklets just saved and as the
+ * accumulated state of a task, which is kept by Spark Streaming (see
+ * {@link DataManagingApp.SavingStream}). Tracklets are counted by their serial
+ * numbers, so tracklets delivered more than once are counted once.
+ */
+public class TrackletSavingProgress implements Serializable {
+
+    private static final long serialVersionUID = -3482250958310235316L;
+
+    /**
+     * What happened to a task on the latest update.
+     */
+    public enum Event {
+        /**
+         * More tracklets are saved, but some are still missing.
+         */
+        PROGRESSED,
+        /**
+         * All the tracklets are saved. Reported only once for each task.
+         */
+        FINISHED,
+        /**
+         * Nothing new, e.g. tracklets re-delivered after the task finished.
+         */
+        IGNORED,
+        /**
+         * No tracklets arrived for a long time before the task finished.
+         */
+        TIMED_OUT
+    }
+
+    public final String taskID;
+    public final String videoID;
+    /**
+     * Path of the container storing the tracklets of the task.
+     */
+    public final String storePath;
+    /**
+     * Total number of tracklets of the task, or -1 if not available.
+     */
+    private int numTracklets;
+    private final BitSet saved = new BitSet();
+    private boolean finished = false;
+    private Event lastEvent = Event.PROGRESSED;
+
+    public TrackletSavingProgress(@Nonnull String taskID,
+                                  @Nonnull String videoID,
+                                  @Nonnull String storePath,
+                                  int numTracklets) {
+        this.taskID = taskID;
+        this.videoID = videoID;
+        this.storePath = storePath;
+        this.numTracklets = numTracklets;
+    }
+
+    /**
+     * Mark a tracklet as saved.
+     *
+     * @param serialNumber Serial number of the tracklet in the task.
+     */
+    public void markSaved(int serialNumber) {
+        saved.set(serialNumber);
+    }
+
+    /**
+     * Merge the report of newly saved tracklets into this progress.
+     *
+     * @param update Report of tracklets newly saved for the same task.
+     * @return The event caused by the update. {@link Event#FINISHED} is returned
+     * only on the update completing the task.
+     */
+    public Event merge(@Nonnull TrackletSavingProgress update) {
+        if (numTracklets < 0) {
+            numTracklets = update.numTracklets;
+        }
+        int numSavedBefore = getNumSaved();
+        saved.or(update.saved);
+        if (finished || getNumSaved() == numSavedBefore) {
+            lastEvent = Event.IGNORED;
+        } else if (numTracklets >= 0 && getNumSaved() >= numTracklets) {
+            finished = true;
+            lastEvent = Event.FINISHED;
+        } else {
+            lastEvent = Event.PROGRESSED;
+        }
+        return lastEvent;
+    }
+
+    /**
+     * Mark the task as timed out, if it has not finished yet.
+     *
+     * @return The event caused by the timeout.
+     */
+    public Event timeOut() {
+        lastEvent = finished ? Event.IGNORED : Event.TIMED_OUT;
+        return lastEvent;
+    }
+
+    /**
+     * @return Number of distinct tracklets saved.
+     */
+    public int getNumSaved() {
+        return saved.cardinality();
+    }
+
+    /**
+     * @return Total number of tracklets of the task, or -1 if not available.
+     */
+    public int getNumTracklets() {
+        return numTracklets;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return The event caused by the latest update.
+     */
+    public Event getLastEvent() {
+        return lastEvent;
+    }
+
+    /**
+     * Copy the progress, so that the state kept by Spark Streaming is not
+     * shared with the reports emitted.
+     *
+     * @return A copy of this progress.
+     */
+    public TrackletSavingProgress copy() {
+        TrackletSavingProgress copy = new TrackletSavingProgress(taskID, videoID, storePath, numTracklets);
+        copy.saved.or(saved);
+        copy.finished = finished;
+        copy.lastEvent = lastEvent;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "Task " + taskID + "(" + videoID + "): "
+                + getNumSaved() + "/" + numTracklets + " tracklets saved";
+    }
+}
@@ -0,0 +1,191 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The NativeMemoryRegistry class accounts the off-heap memory allocated by
+ * native libraries (decoders, trackers, etc.) in the current JVM.
+ * <p>
+ * Before allocating native resources, a caller reserves the estimated number
+ * of bytes. If a budget is set and the reservation would exceed it, the caller
+ * is blocked until enough memory is released, instead of letting the
+ * container grow beyond its limit. A single reservation larger than the
+ * budget is still granted when nothing else is reserved, so that it never
+ * waits forever.
+ */
+public class NativeMemoryRegistry {
+
+    private static long budget = 0;
+    private static long usedBytes = 0;
+    private static long peakBytes = 0;
+    private static final Map<String, Long> usedBytesByKind = new HashMap<>();
+
+    private NativeMemoryRegistry() {
+    }
+
+    /**
+     * Set the off-heap memory budget of this JVM.
+     *
+     * @param budget Budget in bytes. Non-positive values disable the budget.
+     */
+    public static synchronized void setBudget(long budget) {
+        NativeMemoryRegistry.budget = budget;
+        NativeMemoryRegistry.class.notifyAll();
+    }
+
+    /**
+     * @return Budget in bytes, or a non-positive value if there is no budget.
+     */
+    public static synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Reserve native memory, blocking while the reservation would exceed the budget.
+     *
+     * @param kind  Kind of the native resource, e.g. "VideoDecoder".
+     * @param bytes Estimated bytes to allocate.
+     * @return A reservation to be closed after the native resource is released.
+     * @throws InterruptedException On interrupted while waiting for memory.
+     */
+    public static Reservation reserve(@Nonnull String kind,
+                                      long bytes) throws InterruptedException {
+        synchronized (NativeMemoryRegistry.class) {
+            awaitAvailable(bytes);
+            return grant(kind, bytes);
+        }
+    }
+
+    /**
+     * Reserve native memory if the budget allows it now. Callers already holding
+     * a reservation should use this instead of {@link #reserve(String, long)},
+     * since waiting while holding memory can deadlock with others doing the same.
+     *
+     * @param kind      Kind of the native resource, e.g. "BasicTracker".
+     * @param bytes     Estimated bytes to allocate.
+     * @param heldBytes Bytes already reserved by the caller. As with
+     *                  {@link #reserve(String, long)} on an idle registry, a caller
+     *                  holding all the reserved memory is never refused, so that
+     *                  resources larger than the budget can still be run alone.
+     * @return A reservation to be closed after the native resource is released,
+     * or null if the reservation would exceed the budget.
+     */
+    public static synchronized Reservation tryReserve(@Nonnull String kind,
+                                                      long bytes,
+                                                      long heldBytes) {
+        return isAvailable(bytes, heldBytes) ? grant(kind, bytes) : null;
+    }
+
+    /**
+     * Wait until a number of bytes could be reserved, without reserving them.
+     *
+     * @param bytes Estimated bytes to allocate.
+     * @throws InterruptedException On interrupted while waiting for memory.
+     */
+    public static synchronized void awaitAvailable(long bytes) throws InterruptedException {
+        while (!isAvailable(bytes, 0)) {
+            NativeMemoryRegistry.class.wait();
+        }
+    }
+
+    private static boolean isAvailable(long bytes, long heldBytes) {
+        return budget <= 0 || usedBytes <= heldBytes || usedBytes + bytes <= budget;
+    }
+
+    private static Reservation grant(@Nonnull String kind,
+                                     long bytes) {
+        usedBytes += bytes;
+        peakBytes = Math.max(peakBytes, usedBytes);
+        usedBytesByKind.merge(kind, bytes, Long::sum);
+        return new Reservation(kind, bytes);
+    }
+
+    private static synchronized void release(@Nonnull String kind,
+                                             long bytes) {
+        usedBytes -= bytes;
+        usedBytesByKind.merge(kind, -bytes, Long::sum);
+        NativeMemoryRegistry.class.notifyAll();
+    }
+
+    /**
+     * @return Bytes currently reserved in this JVM.
+     */
+    public static synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @param kind Kind of native resources.
+     * @return Bytes currently reserved by resources of the kind.
+     */
+    public static synchronized long getUsedBytes(@Nonnull String kind) {
+        return usedBytesByKind.getOrDefault(kind, 0L);
+    }
+
+    /**
+     * @return The maximum bytes ever reserved at the same time in this JVM.
+     */
+    public static synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * @return A summary of the current usage for logging.
+     */
+    public static synchronized String getSummary() {
+        return "native memory used " + (usedBytes >> 20) + "MB (peak " + (peakBytes >> 20) + "MB"
+                + (budget > 0 ? ", budget " + (budget >> 20) + "MB" : "") + ") " + usedBytesByKind;
+    }
+
+    /**
+     * A reservation of native memory. Closing it more than once has no further effect.
+     */
+    public static class Reservation implements AutoCloseable {
+
+        private final String kind;
+        private final long bytes;
+        private boolean released = false;
+
+        private Reservation(@Nonnull String kind, long bytes) {
+            this.kind = kind;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return Bytes reserved.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release(kind, bytes);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * The NativeResourceCleaner class is a safety net for releasing native
+ * resources held by Java objects which are not closed explicitly. Unlike
+ * finalize(), the cleaning action runs in a dedicated daemon thread as soon as
+ * the object becomes phantom reachable, and runs at most once.
+ * <p>
+ * The cleaning action must not refer to the object being watched, otherwise
+ * the object never becomes unreachable.
+ */
+public class NativeResourceCleaner {
+
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    /**
+     * Keep the phantom references reachable until they are cleaned.
+     */
+    private static final Set<Cleanable> registered =
+            Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    static {
+        Thread cleanerThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Reference<?> ref = queue.remove();
+                    ((Cleanable) ref).clean();
+                } catch (InterruptedException ignored) {
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, "native-resource-cleaner");
+        cleanerThread.setDaemon(true);
+        cleanerThread.start();
+    }
+
+    private NativeResourceCleaner() {
+    }
+
+    /**
+     * Register an action to run when an object becomes phantom reachable.
+     *
+     * @param obj    The object holding native resources.
+     * @param action The action releasing the native resources.
+     * @return A handle for running the action explicitly, e.g. in close().
+     */
+    public static Cleanable register(@Nonnull Object obj,
+                                     @Nonnull Runnable action) {
+        Cleanable cleanable = new Cleanable(obj, action);
+        registered.add(cleanable);
+        return cleanable;
+    }
+
+    /**
+     * A handle of a registered cleaning action.
+     */
+    public static class Cleanable extends PhantomReference<Object> {
+
+        private Runnable action;
+
+        private Cleanable(@Nonnull Object referent,
+                          @Nonnull Runnable action) {
+            super(referent, queue);
+            this.action = action;
+        }
+
+        /**
+         * Unregister the object and run the cleaning action if it has not been run.
+         */
+        public void clean() {
+            Runnable toRun;
+            synchronized (this) {
+                toRun = action;
+                action = null;
+            }
+            if (toRun != null) {
+                registered.remove(this);
+                toRun.run();
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@ package org.cripac.isee.vpe.util;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+
+import static org.cripac.isee.vpe.util.SerializationHelper.serialize;
 
 /**
  * The class Singleton manages singletons of any types.
@@ -43,7 +46,9 @@ public class Singleton<T> implements Serializable {
     private final Factory<T> objFactory;
 
     /**
-     * Name of class T.
+     * Key of the instance in the pool: the name of class T, along with a digest of the
+     * factory, so that instances produced differently, e.g. loggers of different streams
+     * running in one application, are not mixed up.
      */
     private final String typeParameterClass;
 
@@ -70,13 +75,16 @@ public class Singleton<T> implements Serializable {
      */
     public Singleton(Factory<T> objFactory, boolean toUpdateInstance) throws Exception {
         this.objFactory = objFactory;
-        this.typeParameterClass = objFactory.produce().getClass().getName();
+        T instance = objFactory.produce();
+        byte[] factoryBytes = serialize(objFactory);
+        this.typeParameterClass = instance.getClass().getName()
+                + (factoryBytes == null ? "" : "@" + UUID.nameUUIDFromBytes(factoryBytes));
 
         if (toUpdateInstance) {
             checkPool();
             synchronized (Singleton.class) {
                 if (!instancePool.containsKey(typeParameterClass)) {
-                    instancePool.put(typeParameterClass, objFactory.produce());
+                    instancePool.put(typeParameterClass, instance);
                 }
             }
         }
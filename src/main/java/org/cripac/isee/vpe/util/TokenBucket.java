@@ -0,0 +1,64 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util;
+
+/**
+ * The TokenBucket class limits the rate of some actions. Tokens are added to
+ * the bucket at a fixed rate until it is full, and each action takes one.
+ */
+public class TokenBucket {
+
+    private final double rate;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillTime;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param rate     Number of tokens added per second.
+     *                 Non-positive values mean tokens are unlimited.
+     * @param capacity Maximum number of tokens in the bucket, which is the most
+     *                 actions that can be taken at once.
+     */
+    public TokenBucket(double rate, double capacity) {
+        this.rate = rate;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillTime = System.nanoTime();
+    }
+
+    /**
+     * Take a token if there is any.
+     *
+     * @return Whether a token is taken.
+     */
+    public synchronized boolean tryTake() {
+        if (rate <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillTime) * rate / 1e9);
+        lastRefillTime = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,378 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.HarFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.debug.FakePedestrianTracker;
+import org.cripac.isee.vpe.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The CachedTrackletReader class retrieves tracklets stored on HDFS, like
+ * {@link HadoopHelper#retrieveTracklet(String, Tracklet.Identifier, Logger)},
+ * but is meant to live as long as an executor, caching across calls:
+ * <ul>
+ * <li>Handles of tracklet containers (or legacy HARs) are kept open and reused
+ * by later tracklets from the same task;</li>
+ * <li>Decoded tracklets are kept in an LRU cache bounded by bytes of patch data;</li>
+ * <li>Patches of long tracklets are decoded in parallel.</li>
+ * </ul>
+ * Tracklets returned may be shared with other callers through the cache,
+ * so they must not be modified.
+ */
+public class CachedTrackletReader {
+
+    /**
+     * Tracklets with fewer bounding boxes are decoded in the calling thread.
+     */
+    private static final int MIN_PARALLEL_DECODING_LENGTH = 16;
+    /**
+     * Estimated bytes of a bounding box besides its patch data.
+     */
+    private static final int BBOX_OVERHEAD_BYTES = 64;
+
+    private final long maxCacheBytes;
+    private final int maxOpenHandles;
+    private final int numDecodingThreads;
+
+    private FileSystem hdfs = null;
+    private ExecutorService decodingPool = null;
+
+    private final LinkedHashMap<String, ArchiveHandle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedTracklet> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+
+    private final AtomicLong numHits = new AtomicLong(0);
+    private final AtomicLong numMisses = new AtomicLong(0);
+    private final AtomicLong numEvictions = new AtomicLong(0);
+    private final AtomicLong numHandleOpens = new AtomicLong(0);
+
+    /**
+     * Create a reader. HDFS connections and threads are created on first use.
+     *
+     * @param maxCacheBytes      Maximum bytes of decoded tracklets to cache.
+     * @param maxOpenHandles     Maximum number of archives to keep open.
+     * @param numDecodingThreads Number of threads for decoding patches.
+     */
+    public CachedTrackletReader(long maxCacheBytes,
+                                int maxOpenHandles,
+                                int numDecodingThreads) {
+        this.maxCacheBytes = maxCacheBytes;
+        this.maxOpenHandles = Math.max(1, maxOpenHandles);
+        this.numDecodingThreads = Math.max(1, numDecodingThreads);
+    }
+
+    private static class CachedTracklet {
+        final Tracklet tracklet;
+        final long bytes;
+
+        CachedTracklet(Tracklet tracklet, long bytes) {
+            this.tracklet = tracklet;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Tracklet information and undecoded patches read from an archive.
+     */
+    private static class EncodedTracklet {
+        Tracklet tracklet;
+        byte[][] patches;
+    }
+
+    /**
+     * An open archive of the tracklets of a task. A handle evicted from the
+     * handle cache is closed after all the readers using it have finished.
+     */
+    private abstract static class ArchiveHandle {
+        private int refCnt = 0;
+        private boolean evicted = false;
+
+        abstract EncodedTracklet read(int serialNumber) throws IOException;
+
+        abstract void close() throws IOException;
+
+        synchronized void acquire() {
+            ++refCnt;
+        }
+
+        synchronized void release() throws IOException {
+            --refCnt;
+            if (evicted && refCnt == 0) {
+                close();
+            }
+        }
+
+        synchronized void evict() throws IOException {
+            evicted = true;
+            if (refCnt == 0) {
+                close();
+            }
+        }
+    }
+
+    private static class ContainerHandle extends ArchiveHandle {
+        private final TrackletContainer.Reader reader;
+
+        ContainerHandle(@Nonnull FileSystem hdfs, @Nonnull String path) throws IOException {
+            reader = new TrackletContainer.Reader(hdfs, new Path(path));
+        }
+
+        @Override
+        EncodedTracklet read(int serialNumber) throws IOException {
+            // Positioned reads are safe to be performed concurrently.
+            TrackletContainer.Record record = reader.read(serialNumber);
+            EncodedTracklet encoded = new EncodedTracklet();
+            encoded.tracklet = new Gson().fromJson(record.info, Tracklet.class);
+            encoded.patches = record.patches;
+            return encoded;
+        }
+
+        @Override
+        void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    private static class HarHandle extends ArchiveHandle {
+        private final HarFileSystem harFileSystem;
+        private final String storeDir;
+
+        HarHandle(@Nonnull String storeDir) throws Exception {
+            this.storeDir = storeDir;
+            harFileSystem = new HarFileSystem();
+            harFileSystem.initialize(new URI(storeDir), new Configuration());
+        }
+
+        @Override
+        EncodedTracklet read(int serialNumber) throws IOException {
+            EncodedTracklet encoded = new EncodedTracklet();
+            try (FSDataInputStream infoStream = harFileSystem.open(
+                    new Path(storeDir + "/" + serialNumber + "/info.txt"))) {
+                encoded.tracklet = new Gson().fromJson(new InputStreamReader(infoStream), Tracklet.class);
+            }
+            encoded.patches = new byte[encoded.tracklet.locationSequence.length][];
+            for (int i = 0; i < encoded.patches.length; ++i) {
+                try (FSDataInputStream imgStream = harFileSystem.open(
+                        new Path(storeDir + "/" + serialNumber + "/" + i + ".jpg"))) {
+                    encoded.patches[i] = IOUtils.toByteArray(imgStream);
+                }
+            }
+            return encoded;
+        }
+
+        @Override
+        void close() throws IOException {
+            harFileSystem.close();
+        }
+    }
+
+    private synchronized FileSystem getHDFS() throws IOException {
+        if (hdfs == null) {
+            hdfs = FileSystem.get(new Configuration());
+        }
+        return hdfs;
+    }
+
+    private synchronized ExecutorService getDecodingPool() {
+        if (decodingPool == null) {
+            decodingPool = Executors.newFixedThreadPool(numDecodingThreads, runnable -> {
+                Thread thread = new Thread(runnable, "tracklet-patch-decoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return decodingPool;
+    }
+
+    /**
+     * Get an open handle of an archive, opening it if not cached.
+     * The handle is acquired and should be released after use.
+     */
+    private ArchiveHandle acquireHandle(@Nonnull String storeDir) throws Exception {
+        ArchiveHandle handle;
+        synchronized (handles) {
+            handle = handles.get(storeDir);
+            if (handle == null) {
+                handle = storeDir.endsWith(TrackletContainer.SUFFIX)
+                        ? new ContainerHandle(getHDFS(), storeDir)
+                        : new HarHandle(storeDir);
+                numHandleOpens.incrementAndGet();
+                handles.put(storeDir, handle);
+                Iterator<ArchiveHandle> iter = handles.values().iterator();
+                while (handles.size() > maxOpenHandles && iter.hasNext()) {
+                    ArchiveHandle eldest = iter.next();
+                    iter.remove();
+                    eldest.evict();
+                }
+            }
+            handle.acquire();
+        }
+        return handle;
+    }
+
+    /**
+     * Read a tracklet, looking up the cache first.
+     *
+     * @param storeDir The container or the HAR storing the tracklets.
+     * @param id       The identifier of the track.
+     * @return The track retrieved. It must not be modified.
+     * @throws Exception On failure reading or decoding the tracklet.
+     */
+    public Tracklet read(@Nonnull String storeDir,
+                         @Nonnull Tracklet.Identifier id) throws Exception {
+        String key = storeDir + "#" + id.serialNumber;
+        synchronized (cache) {
+            CachedTracklet cached = cache.get(key);
+            if (cached != null) {
+                numHits.incrementAndGet();
+                return cached.tracklet;
+            }
+        }
+        numMisses.incrementAndGet();
+
+        EncodedTracklet encoded;
+        ArchiveHandle handle = acquireHandle(storeDir);
+        try {
+            encoded = handle.read(id.serialNumber);
+        } finally {
+            handle.release();
+        }
+
+        Tracklet tracklet = encoded.tracklet;
+        decodePatches(tracklet, encoded.patches);
+        put(key, tracklet);
+        return tracklet;
+    }
+
+    /**
+     * Read a tracklet, returning a fake tracklet on failure, in the same manner
+     * as {@link HadoopHelper#retrieveTracklet(String, Tracklet.Identifier, Logger)}.
+     *
+     * @param storeDir The container or the HAR storing the tracklets.
+     * @param id       The identifier of the track.
+     * @param logger   Logger for reporting errors.
+     * @return The track retrieved. It must not be modified.
+     */
+    public Tracklet retrieveTracklet(@Nonnull String storeDir,
+                                     @Nonnull Tracklet.Identifier id,
+                                     @Nonnull Logger logger) {
+        try {
+            return read(storeDir, id);
+        } catch (Exception e) {
+            logger.error("Error when retrieving tracklet " + id
+                    + " from \"" + storeDir + "\".", e);
+            return new FakePedestrianTracker().track(new byte[0])[0];
+        }
+    }
+
+    private void decodePatches(@Nonnull Tracklet tracklet,
+                               @Nonnull byte[][] patches) throws Exception {
+        Tracklet.BoundingBox[] seq = tracklet.locationSequence;
+        int length = Math.min(seq.length, patches.length);
+        if (length < MIN_PARALLEL_DECODING_LENGTH || numDecodingThreads == 1) {
+            for (int i = 0; i < length; ++i) {
+                HadoopHelper.decodePatch(patches[i], seq[i]);
+            }
+            return;
+        }
+
+        // Split the sequence into one chunk per thread.
+        List<Future<?>> futures = new ArrayList<>(numDecodingThreads);
+        int chunk = (length + numDecodingThreads - 1) / numDecodingThreads;
+        for (int begin = 0; begin < length; begin += chunk) {
+            final int from = begin;
+            final int to = Math.min(begin + chunk, length);
+            futures.add(getDecodingPool().submit(() -> {
+                for (int i = from; i < to; ++i) {
+                    HadoopHelper.decodePatch(patches[i], seq[i]);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private void put(@Nonnull String key,
+                     @Nonnull Tracklet tracklet) {
+        long bytes = 0;
+        for (Tracklet.BoundingBox bbox : tracklet.locationSequence) {
+            bytes += BBOX_OVERHEAD_BYTES + (bbox.patchData == null ? 0 : bbox.patchData.length);
+        }
+        if (bytes > maxCacheBytes) {
+            return;
+        }
+        synchronized (cache) {
+            CachedTracklet old = cache.put(key, new CachedTracklet(tracklet, bytes));
+            cachedBytes += bytes - (old == null ? 0 : old.bytes);
+            Iterator<Map.Entry<String, CachedTracklet>> iter = cache.entrySet().iterator();
+            while (cachedBytes > maxCacheBytes && iter.hasNext()) {
+                cachedBytes -= iter.next().getValue().bytes;
+                iter.remove();
+                numEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return Ratio of reads served from the cache.
+     */
+    public double getHitRate() {
+        long hits = numHits.get();
+        long total = hits + numMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return A summary of the cache statistics for logging.
+     */
+    public String getStatistics() {
+        long cached;
+        int numCached;
+        synchronized (cache) {
+            cached = cachedBytes;
+            numCached = cache.size();
+        }
+        return "tracklet cache: hit rate " + String.format("%.1f", getHitRate() * 100) + "% ("
+                + numHits.get() + " hits, " + numMisses.get() + " misses, "
+                + numEvictions.get() + " evictions), "
+                + numCached + " tracklets in " + (cached >> 20) + "MB, "
+                + numHandleOpens.get() + " archives opened";
+    }
+}
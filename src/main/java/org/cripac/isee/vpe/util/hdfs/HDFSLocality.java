@@ -0,0 +1,106 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.client.HdfsDataInputStream;
+import org.cripac.isee.vpe.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HDFSLocality class helps to read files where their blocks are stored,
+ * and measures how many bytes are read from the local host.
+ */
+public class HDFSLocality {
+
+    private static final AtomicLong totalBytesRead = new AtomicLong(0);
+    private static final AtomicLong localBytesRead = new AtomicLong(0);
+
+    /**
+     * Get the hosts storing the most bytes of a file, where reading the file
+     * moves the fewest bytes across the network.
+     *
+     * @param fs   The file system storing the file.
+     * @param path Path of the file.
+     * @return Names of the hosts, or an empty list if the file is empty.
+     * @throws IOException On failure getting the locations of the blocks.
+     */
+    @Nonnull
+    public static List<String> getPreferredHosts(@Nonnull FileSystem fs,
+                                                 @Nonnull Path path) throws IOException {
+        FileStatus status = fs.getFileStatus(path);
+        Map<String, Long> bytesOnHosts = new HashMap<>();
+        for (BlockLocation block : fs.getFileBlockLocations(status, 0, status.getLen())) {
+            for (String host : block.getHosts()) {
+                bytesOnHosts.merge(host, block.getLength(), Long::sum);
+            }
+        }
+        long maxBytes = 0;
+        for (long bytes : bytesOnHosts.values()) {
+            maxBytes = Math.max(maxBytes, bytes);
+        }
+        List<String> hosts = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : bytesOnHosts.entrySet()) {
+            if (entry.getValue() == maxBytes) {
+                hosts.add(entry.getKey());
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Read a whole file, and log the bytes read from the local host for files in HDFS,
+     * together with those of all the files read so far in this JVM.
+     *
+     * @param fs     The file system storing the file.
+     * @param path   Path of the file.
+     * @param logger Logger to report the bytes read with.
+     * @return Content of the file.
+     * @throws IOException On failure reading the file.
+     */
+    @Nonnull
+    public static byte[] readFully(@Nonnull FileSystem fs,
+                                   @Nonnull Path path,
+                                   @Nonnull Logger logger) throws IOException {
+        try (FSDataInputStream input = fs.open(path)) {
+            byte[] bytes = IOUtils.toByteArray(input);
+            // Only HDFS clients know where the bytes come from.
+            if (input instanceof HdfsDataInputStream) {
+                HdfsDataInputStream hdfsInput = (HdfsDataInputStream) input;
+                long local = hdfsInput.getReadStatistics().getTotalLocalBytesRead();
+                long total = hdfsInput.getReadStatistics().getTotalBytesRead();
+                logger.info("Read " + local + " of " + total + " bytes of " + path
+                        + " locally, " + localBytesRead.addAndGet(local) + " of "
+                        + totalBytesRead.addAndGet(total) + " bytes in this JVM.");
+            }
+            return bytes;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.google.gson.Gson;
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.HarFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.DistributedFileSystem;
@@ -76,9 +77,51 @@ public class HadoopHelper {
     }
 
     /**
-     * Retrieve a track from the HDFS.
+     * Decode an image patch into the raw BGR data of a bounding box.
      *
-     * @param storeDir The directory storing the tracklets.
+     * @param encoded Encoded bytes of the patch, e.g. JPEG.
+     * @param bbox    The bounding box to fill in.
+     */
+    static void decodePatch(@Nonnull byte[] encoded,
+                            @Nonnull Tracklet.BoundingBox bbox) {
+        if (encoded.length == 0) {
+            bbox.patchData = null;
+            return;
+        }
+        opencv_core.Mat img = imdecode(new opencv_core.Mat(encoded), CV_8UC3);
+        bbox.patchData = new byte[img.rows() * img.cols() * img.channels()];
+        img.data().get(bbox.patchData);
+        img.release();
+    }
+
+    /**
+     * Retrieve a track from a tracklet container on HDFS.
+     *
+     * @param containerPath Path of the container.
+     * @param id            The identifier of the track.
+     * @return The track retrieved.
+     * @throws IOException On failure reading the container.
+     */
+    private static Tracklet retrieveTrackletFromContainer(@Nonnull String containerPath,
+                                                          @Nonnull Tracklet.Identifier id) throws IOException {
+        FileSystem hdfs = FileSystem.get(new Configuration());
+        TrackletContainer.Record record;
+        try (TrackletContainer.Reader reader = new TrackletContainer.Reader(hdfs, new Path(containerPath))) {
+            record = reader.read(id.serialNumber);
+        }
+        Tracklet tracklet = new Gson().fromJson(record.info, Tracklet.class);
+        for (int i = 0; i < tracklet.locationSequence.length && i < record.patches.length; ++i) {
+            decodePatch(record.patches[i], tracklet.locationSequence[i]);
+        }
+        return tracklet;
+    }
+
+    /**
+     * Retrieve a track from the HDFS. Tracklets may be stored either in a
+     * tracklet container (see {@link TrackletContainer}) or in a Hadoop Archive
+     * of a directory per tracklet, as in older versions.
+     *
+     * @param storeDir The container or the directory storing the tracklets.
      * @param id       The identifier of the track.
      * @return The track retrieved.
      */
@@ -89,6 +132,10 @@ public class HadoopHelper {
             logger = new ConsoleLogger(Level.INFO);
         }
         try {
+            if (storeDir.endsWith(TrackletContainer.SUFFIX)) {
+                return retrieveTrackletFromContainer(storeDir, id);
+            }
+
             // Open the Hadoop Archive of the task the track is generated in.
             HarFileSystem harFileSystem = new HarFileSystem();
             harFileSystem.initialize(new URI(storeDir), new Configuration());
@@ -104,20 +151,17 @@ public class HadoopHelper {
             for (int i = 0; i < tracklet.locationSequence.length; ++i) {
                 Tracklet.BoundingBox bbox = tracklet.locationSequence[i];
                 FSDataInputStream imgInputStream = harFileSystem
-                        .open(new Path(storeDir + "/" + id.toString() + "/" + i + ".jpg"));
+                        .open(new Path(storeDir + "/" + id.serialNumber + "/" + i + ".jpg"));
                 byte[] rawBytes = IOUtils.toByteArray(imgInputStream);
                 imgInputStream.close();
-                opencv_core.Mat img = imdecode(new opencv_core.Mat(rawBytes), CV_8UC3);
-                bbox.patchData = new byte[img.rows() * img.cols() * img.channels()];
-                img.data().get(bbox.patchData);
-                img.release();
+                decodePatch(rawBytes, bbox);
             }
             harFileSystem.close();
             return tracklet;
         } catch (Exception e) {
             try {
-                logger.error("Error when retrieving tracklets"
-                        + " from \"" + storeDir + "/" + id.serialNumber + "/info.txt\".", e);
+                logger.error("Error when retrieving tracklet " + id
+                        + " from \"" + storeDir + "\".", e);
             } catch (Exception e1) {
                 e1.printStackTrace();
             }
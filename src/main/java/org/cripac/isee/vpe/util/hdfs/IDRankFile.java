@@ -0,0 +1,398 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.pedestrian.reid.IDRank;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The IDRankFile class stores the ReID results of a task in a compact
+ * append-only file on HDFS, indexed by the queried tracklets.
+ * <p>
+ * Like {@link TrackletContainer}, the file starts with a header, followed by
+ * blocks each written in one append, consisting of rank records followed by
+ * an index of them:
+ * <pre>
+ * header: MAGIC(int) VERSION(int)
+ * record: RECORD_MAGIC(int) payloadLength(int)
+ *         videoID(UTF) serialNumber(varint) scored(boolean) numIDs(varint)
+ *         [id(zigzag varint) similarity(float)] * numIDs
+ * index:  INDEX_MAGIC(int) payloadLength(int)
+ *         prevIndexOffset(long) numEntries(int) [queryID(UTF) offset(long)] * numEntries
+ *         indexOffset(long) TRAILER_MAGIC(int)
+ * </pre>
+ * IDs are mostly small, so variable-length encoding takes one or two bytes
+ * for most of them. Readers follow the chain of indices from the trailer, or
+ * scan the records if the last append failed. Tracklets of the ranked pedestrians
+ * are not stored.
+ */
+public class IDRankFile {
+
+    /**
+     * Suffix of rank files.
+     */
+    public static final String SUFFIX = ".idr";
+
+    private static final int MAGIC = 0x56494452; // "VIDR"
+    private static final int VERSION = 2;
+    private static final int RECORD_MAGIC = 0x52414E4B; // "RANK"
+    private static final int INDEX_MAGIC = 0x494E4458; // "INDX"
+    private static final int TRAILER_MAGIC = 0x54524C52; // "TRLR"
+    private static final int HEADER_LENGTH = 8;
+    private static final int TRAILER_LENGTH = 12;
+
+    private IDRankFile() {
+    }
+
+    private static void writeVarInt(@Nonnull DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(@Nonnull DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer!");
+    }
+
+    private static byte[] encodeRecord(@Nonnull IDRank rank) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + rank.ids.length * 6);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(rank.queryID.videoID);
+        writeVarInt(out, rank.queryID.serialNumber);
+        out.writeBoolean(rank.scored);
+        writeVarInt(out, rank.ids.length);
+        for (int i = 0; i < rank.ids.length; ++i) {
+            // Zigzag encoding keeps negative IDs short as well.
+            writeVarInt(out, (rank.ids[i] << 1) ^ (rank.ids[i] >> 31));
+            out.writeFloat(rank.similarities[i]);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static IDRank decodeRecord(@Nonnull byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Tracklet.Identifier queryID = new Tracklet.Identifier(in.readUTF(), readVarInt(in));
+        boolean scored = in.readBoolean();
+        int numIDs = readVarInt(in);
+        if (numIDs < 0 || numIDs > payload.length) {
+            throw new IOException("Invalid rank record!");
+        }
+        int[] ids = new int[numIDs];
+        float[] similarities = new float[numIDs];
+        for (int i = 0; i < numIDs; ++i) {
+            int zigzag = readVarInt(in);
+            ids[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+            similarities[i] = in.readFloat();
+        }
+        return new IDRank(queryID, ids, similarities, scored, null);
+    }
+
+    /**
+     * Read an int-prefixed block at an offset.
+     *
+     * @return Payload of the block.
+     */
+    private static byte[] readBlock(@Nonnull FSDataInputStream input,
+                                    long offset,
+                                    long length,
+                                    int magic) throws IOException {
+        if (offset + 8 > length) {
+            throw new IOException("Truncated block at " + offset + "!");
+        }
+        byte[] head = new byte[8];
+        input.readFully(offset, head);
+        DataInputStream headIn = new DataInputStream(new ByteArrayInputStream(head));
+        if (headIn.readInt() != magic) {
+            throw new IOException("Unexpected block at " + offset + "!");
+        }
+        int payloadLength = headIn.readInt();
+        if (payloadLength < 0 || offset + 8 + payloadLength > length) {
+            throw new IOException("Truncated block at " + offset + "!");
+        }
+        byte[] payload = new byte[payloadLength];
+        input.readFully(offset + 8, payload);
+        return payload;
+    }
+
+    /**
+     * Load the index of a file, mapping queried tracklets to offsets of their latest records.
+     */
+    private static Map<String, Long> loadIndex(@Nonnull FSDataInputStream input,
+                                               long length) throws IOException {
+        Map<String, Long> index = new HashMap<>();
+        if (length < HEADER_LENGTH) {
+            return index;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        input.readFully(0, header);
+        DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+        if (headerIn.readInt() != MAGIC || headerIn.readInt() != VERSION) {
+            throw new IOException("Not a rank file of version " + VERSION + "!");
+        }
+
+        long indexOffset = findLastIndexOffset(input, length);
+        if (indexOffset >= 0) {
+            try {
+                while (indexOffset >= HEADER_LENGTH) {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                            readBlock(input, indexOffset, length, INDEX_MAGIC)));
+                    long prevOffset = in.readLong();
+                    int numEntries = in.readInt();
+                    for (int i = 0; i < numEntries; ++i) {
+                        // Entries of later blocks are newer, so they are kept.
+                        index.putIfAbsent(in.readUTF(), in.readLong());
+                    }
+                    if (prevOffset >= indexOffset) {
+                        throw new IOException("Invalid index chain at " + indexOffset + "!");
+                    }
+                    indexOffset = prevOffset;
+                }
+                return index;
+            } catch (IOException e) {
+                // Fall back to scanning.
+                index.clear();
+            }
+        }
+
+        long pos = HEADER_LENGTH;
+        while (pos + 8 <= length) {
+            byte[] head = new byte[8];
+            input.readFully(pos, head);
+            DataInputStream headIn = new DataInputStream(new ByteArrayInputStream(head));
+            int magic = headIn.readInt();
+            int payloadLength = headIn.readInt();
+            if (payloadLength < 0 || pos + 8 + payloadLength > length) {
+                break;
+            }
+            if (magic == RECORD_MAGIC) {
+                byte[] payload = new byte[payloadLength];
+                input.readFully(pos + 8, payload);
+                try {
+                    index.put(decodeRecord(payload).queryID.toString(), pos);
+                } catch (IOException e) {
+                    break;
+                }
+                pos += 8 + payloadLength;
+            } else if (magic == INDEX_MAGIC) {
+                pos += 8 + payloadLength + TRAILER_LENGTH;
+            } else {
+                break;
+            }
+        }
+        return index;
+    }
+
+    private static long findLastIndexOffset(@Nonnull FSDataInputStream input,
+                                            long length) throws IOException {
+        if (length < HEADER_LENGTH + TRAILER_LENGTH) {
+            return -1;
+        }
+        byte[] trailer = new byte[TRAILER_LENGTH];
+        input.readFully(length - TRAILER_LENGTH, trailer);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(trailer));
+        long offset = in.readLong();
+        return in.readInt() == TRAILER_MAGIC ? offset : -1;
+    }
+
+    /**
+     * The Reader class reads ranks from a rank file.
+     * A reader holds an open stream of the file until closed.
+     */
+    public static class Reader implements AutoCloseable {
+
+        private final FSDataInputStream input;
+        private final long length;
+        private final Map<String, Long> index;
+
+        /**
+         * Open a rank file and load its index.
+         *
+         * @param hdfs HDFS where the file is stored.
+         * @param path Path of the file.
+         * @throws IOException On failure opening or reading the file.
+         */
+        public Reader(@Nonnull FileSystem hdfs,
+                      @Nonnull Path path) throws IOException {
+            length = hdfs.getFileStatus(path).getLen();
+            input = hdfs.open(path);
+            try {
+                index = loadIndex(input, length);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return String forms of the queried tracklets stored.
+         */
+        public Set<String> getQueryIDs() {
+            return index.keySet();
+        }
+
+        /**
+         * Read the latest rank of a queried tracklet.
+         *
+         * @param queryID The queried tracklet.
+         * @return The rank, or null if the tracklet has not been queried in this file.
+         * @throws IOException On failure reading the file.
+         */
+        public IDRank read(@Nonnull Tracklet.Identifier queryID) throws IOException {
+            Long offset = index.get(queryID.toString());
+            if (offset == null) {
+                return null;
+            }
+            return decodeRecord(readBlock(input, offset, length, RECORD_MAGIC));
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * The Writer class appends ranks to a rank file, creating it if it does
+     * not exist. All the ranks appended before closing are written in a
+     * single append, followed by their index.
+     */
+    public static class Writer implements AutoCloseable {
+
+        private final FileSystem hdfs;
+        private final Path path;
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(records);
+        /**
+         * Offsets of records relative to the start of this block.
+         */
+        private final Map<String, Integer> newEntries = new LinkedHashMap<>();
+
+        /**
+         * Prepare to append to a rank file. The file is only touched on closing.
+         *
+         * @param hdfs HDFS where the file is stored.
+         * @param path Path of the file.
+         */
+        public Writer(@Nonnull FileSystem hdfs,
+                      @Nonnull Path path) {
+            this.hdfs = hdfs;
+            this.path = path;
+        }
+
+        /**
+         * Append a rank.
+         *
+         * @param rank The rank, whose query ID must be set.
+         * @throws IOException On failure encoding the rank.
+         */
+        public void append(@Nonnull IDRank rank) throws IOException {
+            if (rank.queryID == null) {
+                throw new IllegalArgumentException("Cannot store a rank without its query!");
+            }
+            byte[] payload = encodeRecord(rank);
+            newEntries.put(rank.queryID.toString(), records.size());
+            out.writeInt(RECORD_MAGIC);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+
+        /**
+         * Write the ranks appended and their index, then close the file.
+         *
+         * @throws IOException On failure writing the file.
+         */
+        @Override
+        public void close() throws IOException {
+            if (newEntries.isEmpty()) {
+                return;
+            }
+            long position;
+            long prevIndexOffset;
+            Map<String, Long> entries = new LinkedHashMap<>();
+            FSDataOutputStream output;
+            if (hdfs.exists(path)) {
+                position = hdfs.getFileStatus(path).getLen();
+                try (FSDataInputStream input = hdfs.open(path)) {
+                    prevIndexOffset = findLastIndexOffset(input, position);
+                    if (prevIndexOffset < 0) {
+                        // The index chain is broken, so the records recovered
+                        // by scanning are indexed again in the new block.
+                        entries.putAll(loadIndex(input, position));
+                    }
+                }
+                output = hdfs.append(path);
+            } else {
+                position = HEADER_LENGTH;
+                prevIndexOffset = -1;
+                output = hdfs.create(path, false);
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+            }
+
+            ByteArrayOutputStream indexPayload = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(indexPayload);
+            for (Map.Entry<String, Integer> entry : newEntries.entrySet()) {
+                entries.put(entry.getKey(), position + entry.getValue());
+            }
+            indexOut.writeLong(prevIndexOffset);
+            indexOut.writeInt(entries.size());
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                indexOut.writeUTF(entry.getKey());
+                indexOut.writeLong(entry.getValue());
+            }
+            long indexOffset = position + records.size();
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(indexPayload.size());
+            indexPayload.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeInt(TRAILER_MAGIC);
+            try {
+                output.write(records.toByteArray());
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
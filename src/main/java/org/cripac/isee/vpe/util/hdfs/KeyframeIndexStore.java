@@ -0,0 +1,185 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.vpe.util.tracking.KeyframeIndex;
+import org.cripac.isee.vpe.util.tracking.VideoDecoder;
+
+import javax.annotation.Nonnull;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The KeyframeIndexStore class manages keyframe indices of videos on HDFS.
+ * The index of a video is stored in a sidecar file under the index directory,
+ * mirroring the path of the video, so that it is built only once and reused by
+ * all later tasks. Indices recently used are also cached in memory.
+ * <p>
+ * An index is considered out of date and rebuilt if the length or modification
+ * time of the video has changed since the index was built, or if it was stored
+ * in an older format.
+ */
+public class KeyframeIndexStore {
+
+    public static final String SIDECAR_SUFFIX = ".kfidx";
+
+    private static final int MAX_CACHED_INDICES = 256;
+
+    private final FileSystem hdfs;
+    private final String indexDir;
+    private final float fps;
+    private final Map<String, KeyframeIndex> cache =
+            Collections.synchronizedMap(new LinkedHashMap<String, KeyframeIndex>(16, 0.75f, true) {
+                private static final long serialVersionUID = 2541873106470186393L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, KeyframeIndex> eldest) {
+                    return size() > MAX_CACHED_INDICES;
+                }
+            });
+
+    /**
+     * Create a store of keyframe indices.
+     *
+     * @param hdfs     HDFS where both the videos and the indices are stored.
+     * @param indexDir Root directory of the sidecar files.
+     * @param fps      Frame rate of the videos.
+     */
+    public KeyframeIndexStore(@Nonnull FileSystem hdfs,
+                              @Nonnull String indexDir,
+                              float fps) {
+        this.hdfs = hdfs;
+        this.indexDir = indexDir;
+        this.fps = fps;
+    }
+
+    /**
+     * Get the path of the sidecar file of a video.
+     *
+     * @param videoPath Path of the video.
+     * @return Path of the sidecar file.
+     */
+    public Path getSidecarPath(@Nonnull Path videoPath) {
+        return new Path(indexDir + "/" + videoPath.toUri().getPath() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Get the keyframe index of a video. The index is looked up in the memory
+     * cache first, then in the sidecar file. If neither exists or is up to date,
+     * the index is built by scanning the video and then stored.
+     *
+     * @param videoPath Path of the video on HDFS.
+     * @return Keyframe index of the video.
+     * @throws IOException On failure accessing HDFS.
+     */
+    public KeyframeIndex getIndex(@Nonnull Path videoPath) throws IOException {
+        FileStatus videoStatus = hdfs.getFileStatus(videoPath);
+        String key = videoStatus.getPath().toUri().getPath();
+
+        KeyframeIndex index = cache.get(key);
+        if (isValid(index, videoStatus)) {
+            return index;
+        }
+
+        Path sidecarPath = getSidecarPath(videoPath);
+        if (hdfs.exists(sidecarPath)) {
+            try (FSDataInputStream in = hdfs.open(sidecarPath)) {
+                index = KeyframeIndex.readFrom(new DataInputStream(in));
+            } catch (IOException e) {
+                // A corrupted sidecar file is simply rebuilt.
+                index = null;
+            }
+        }
+
+        if (!isValid(index, videoStatus)) {
+            try (FSDataInputStream in = hdfs.open(videoPath)) {
+                index = KeyframeIndex.build(in, videoStatus.getModificationTime(), fps);
+            }
+            store(sidecarPath, index);
+        }
+
+        cache.put(key, index);
+        return index;
+    }
+
+    /**
+     * Open a decoder of a video on HDFS positioned at a frame. Decoding starts
+     * from the last keyframe at or before the frame, found in the index stored
+     * for the video, and the frames in between are skipped.
+     *
+     * @param videoPath    Path of the video on HDFS.
+     * @param frameIndex   Index of the first frame to decode.
+     * @param numKeyframes Number of groups of pictures to decode,
+     *                     or a non-positive value to decode till the end of the video.
+     * @return A decoder whose next frame is the frame requested.
+     * @throws IOException          On failure accessing HDFS.
+     * @throws InterruptedException On interrupted while waiting for native memory.
+     */
+    public VideoDecoder openDecoder(@Nonnull Path videoPath,
+                                    int frameIndex,
+                                    int numKeyframes) throws IOException, InterruptedException {
+        KeyframeIndex index = getIndex(videoPath);
+        int keyframe = index.findKeyframe(frameIndex);
+        VideoDecoder decoder;
+        try (FSDataInputStream in = hdfs.open(videoPath)) {
+            decoder = new VideoDecoder(in, index, keyframe, numKeyframes);
+        }
+        try {
+            decoder.skipFrames(frameIndex - index.getFrameIndex(keyframe));
+        } catch (Throwable t) {
+            decoder.close();
+            throw t;
+        }
+        return decoder;
+    }
+
+    private static boolean isValid(KeyframeIndex index,
+                                   @Nonnull FileStatus videoStatus) {
+        return index != null
+                && index.videoLength == videoStatus.getLen()
+                && index.modificationTime == videoStatus.getModificationTime();
+    }
+
+    /**
+     * Write an index to a temporary file then rename it to the sidecar path,
+     * so that tasks indexing the same video concurrently never see a partial file.
+     */
+    private void store(@Nonnull Path sidecarPath,
+                       @Nonnull KeyframeIndex index) throws IOException {
+        hdfs.mkdirs(sidecarPath.getParent());
+        Path tmpPath = new Path(sidecarPath.toString() + "." + UUID.randomUUID() + ".tmp");
+        try (FSDataOutputStream out = hdfs.create(tmpPath, true)) {
+            index.writeTo(new DataOutputStream(out));
+        }
+        hdfs.delete(sidecarPath, false);
+        if (!hdfs.rename(tmpPath, sidecarPath)) {
+            // Another task has just stored the same index.
+            hdfs.delete(tmpPath, false);
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The TrackletContainer class packs all the tracklets generated in a task into
+ * a single append-only file on HDFS, replacing a directory of per-frame image
+ * files archived into a HAR.
+ * <p>
+ * The file starts with a header, followed by any number of blocks each
+ * written in one append. A block consists of tracklet records followed by an
+ * index of them:
+ * <pre>
+ * header: MAGIC(int) VERSION(int)
+ * record: RECORD_MAGIC(int) serialNumber(int) infoLength(int) numPatches(int)
+ *         patchLength(int) * numPatches
+ *         info (UTF-8 JSON) patch (encoded image) * numPatches
+ * index:  INDEX_MAGIC(int) numEntries(int) prevIndexOffset(long)
+ *         [serialNumber(int) offset(long) length(int)] * numEntries
+ *         indexOffset(long) TRAILER_MAGIC(int)
+ * </pre>
+ * Readers locate the last index from the trailer and follow the chain of
+ * indices, then read each record with a single positioned read. If the file
+ * does not end with a valid trailer, e.g. the last append failed, the records
+ * are recovered by scanning the file from the header.
+ */
+public class TrackletContainer {
+
+    /**
+     * Suffix of container files.
+     */
+    public static final String SUFFIX = ".tlc";
+
+    private static final int MAGIC = 0x56544C43; // "VTLC"
+    private static final int VERSION = 1;
+    private static final int RECORD_MAGIC = 0x5452434B; // "TRCK"
+    private static final int INDEX_MAGIC = 0x494E4458; // "INDX"
+    private static final int TRAILER_MAGIC = 0x54524C52; // "TRLR"
+    private static final int HEADER_LENGTH = 8;
+    private static final int TRAILER_LENGTH = 12;
+    private static final int INDEX_ENTRY_LENGTH = 16;
+
+    private TrackletContainer() {
+    }
+
+    /**
+     * Location of a record in a container.
+     */
+    private static class Entry {
+        final long offset;
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A tracklet record read from a container.
+     */
+    public static class Record {
+        /**
+         * Serial number of the tracklet in its video.
+         */
+        public int serialNumber;
+        /**
+         * Information of the tracklet in JSON, excluding patch data.
+         */
+        public String info;
+        /**
+         * Encoded image of each bounding box. Empty arrays stand for unavailable patches.
+         */
+        public byte[][] patches;
+    }
+
+    /**
+     * Load the index of a container.
+     *
+     * @param input  Stream of the container.
+     * @param length Length of the container file.
+     * @return Map from serial numbers of tracklets to the locations of their records.
+     * @throws IOException On failure reading the stream.
+     */
+    private static Map<Integer, Entry> loadIndex(@Nonnull FSDataInputStream input,
+                                                 long length) throws IOException {
+        Map<Integer, Entry> index = new HashMap<>();
+        if (length < HEADER_LENGTH) {
+            return index;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        input.readFully(0, header);
+        DataInputStream headerStream = new DataInputStream(new ByteArrayInputStream(header));
+        if (headerStream.readInt() != MAGIC || headerStream.readInt() != VERSION) {
+            throw new IOException("Not a tracklet container of version " + VERSION + "!");
+        }
+
+        if (length >= HEADER_LENGTH + TRAILER_LENGTH) {
+            byte[] trailer = new byte[TRAILER_LENGTH];
+            input.readFully(length - TRAILER_LENGTH, trailer);
+            DataInputStream trailerStream = new DataInputStream(new ByteArrayInputStream(trailer));
+            long indexOffset = trailerStream.readLong();
+            if (trailerStream.readInt() == TRAILER_MAGIC) {
+                try {
+                    while (indexOffset >= HEADER_LENGTH) {
+                        indexOffset = readIndexBlock(input, indexOffset, length, index);
+                    }
+                    return index;
+                } catch (IOException e) {
+                    // Fall back to scanning.
+                    index.clear();
+                }
+            }
+        }
+        return scan(input, length);
+    }
+
+    /**
+     * Read an index block into the index map. Entries already in the map are
+     * newer than those in this block, so they are kept.
+     *
+     * @return Offset of the previous index block, or -1 if this is the first one.
+     */
+    private static long readIndexBlock(@Nonnull FSDataInputStream input,
+                                       long offset,
+                                       long length,
+                                       @Nonnull Map<Integer, Entry> index) throws IOException {
+        input.seek(offset);
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != INDEX_MAGIC) {
+            throw new IOException("Invalid index block at " + offset + "!");
+        }
+        int numEntries = in.readInt();
+        long prevOffset = in.readLong();
+        if (numEntries < 0 || offset + 16 + (long) numEntries * INDEX_ENTRY_LENGTH > length) {
+            throw new IOException("Invalid index block at " + offset + "!");
+        }
+        for (int i = 0; i < numEntries; ++i) {
+            int serialNumber = in.readInt();
+            long recordOffset = in.readLong();
+            int recordLength = in.readInt();
+            index.putIfAbsent(serialNumber, new Entry(recordOffset, recordLength));
+        }
+        if (prevOffset >= offset) {
+            throw new IOException("Invalid index chain at " + offset + "!");
+        }
+        return prevOffset;
+    }
+
+    /**
+     * Recover the index by scanning records from the beginning of the file,
+     * stopping at the first incomplete or unrecognized structure.
+     */
+    private static Map<Integer, Entry> scan(@Nonnull FSDataInputStream input,
+                                            long length) throws IOException {
+        Map<Integer, Entry> index = new HashMap<>();
+        long pos = HEADER_LENGTH;
+        while (pos + 16 <= length) {
+            input.seek(pos);
+            DataInputStream in = new DataInputStream(input);
+            int magic = in.readInt();
+            if (magic == RECORD_MAGIC) {
+                int serialNumber = in.readInt();
+                int infoLength = in.readInt();
+                int numPatches = in.readInt();
+                if (infoLength < 0 || numPatches < 0 || pos + 16 + 4L * numPatches > length) {
+                    break;
+                }
+                long recordLength = 16 + 4L * numPatches + infoLength;
+                for (int i = 0; i < numPatches; ++i) {
+                    recordLength += in.readInt();
+                }
+                if (pos + recordLength > length) {
+                    break;
+                }
+                index.put(serialNumber, new Entry(pos, (int) recordLength));
+                pos += recordLength;
+            } else if (magic == INDEX_MAGIC) {
+                int numEntries = in.readInt();
+                pos += 16 + (long) numEntries * INDEX_ENTRY_LENGTH + TRAILER_LENGTH;
+            } else {
+                break;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The Reader class reads tracklet records from a container.
+     * A reader holds an open stream of the container until closed.
+     */
+    public static class Reader implements AutoCloseable {
+
+        private final FSDataInputStream input;
+        private final Map<Integer, Entry> index;
+
+        /**
+         * Open a container and load its index.
+         *
+         * @param hdfs HDFS where the container is stored.
+         * @param path Path of the container.
+         * @throws IOException On failure opening or reading the container.
+         */
+        public Reader(@Nonnull FileSystem hdfs,
+                      @Nonnull Path path) throws IOException {
+            long length = hdfs.getFileStatus(path).getLen();
+            input = hdfs.open(path);
+            try {
+                index = loadIndex(input, length);
+            } catch (IOException e) {
+                input.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return Number of tracklets in the container.
+         */
+        public int getNumTracklets() {
+            return index.size();
+        }
+
+        /**
+         * @param serialNumber Serial number of a tracklet.
+         * @return Whether the tracklet is in the container.
+         */
+        public boolean contains(int serialNumber) {
+            return index.containsKey(serialNumber);
+        }
+
+        /**
+         * Read the record of a tracklet with a single positioned read.
+         *
+         * @param serialNumber Serial number of the tracklet.
+         * @return The record of the tracklet.
+         * @throws IOException On failure reading the container or the tracklet is not found.
+         */
+        public Record read(int serialNumber) throws IOException {
+            Entry entry = index.get(serialNumber);
+            if (entry == null) {
+                throw new IOException("Tracklet " + serialNumber + " is not in the container!");
+            }
+            byte[] bytes = new byte[entry.length];
+            input.readFully(entry.offset, bytes);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != RECORD_MAGIC) {
+                throw new IOException("Invalid record at " + entry.offset + "!");
+            }
+            Record record = new Record();
+            record.serialNumber = in.readInt();
+            int infoLength = in.readInt();
+            int numPatches = in.readInt();
+            record.patches = new byte[numPatches][];
+            for (int i = 0; i < numPatches; ++i) {
+                record.patches[i] = new byte[in.readInt()];
+            }
+            byte[] info = new byte[infoLength];
+            in.readFully(info);
+            record.info = new String(info, StandardCharsets.UTF_8);
+            for (byte[] patch : record.patches) {
+                in.readFully(patch);
+            }
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * The Writer class appends tracklet records to a container, creating it if
+     * it does not exist. All the records appended before closing are written in
+     * a single stream, followed by their index.
+     */
+    public static class Writer implements AutoCloseable {
+
+        /**
+         * Records are buffered, so that they reach HDFS in large sequential writes.
+         */
+        private static final int BUFFER_SIZE = 4 << 20;
+
+        private final FSDataOutputStream output;
+        private final DataOutputStream out;
+        private final long prevIndexOffset;
+        /**
+         * Offset in the file where the next byte is to be written,
+         * counting the bytes still buffered.
+         */
+        private long position;
+        private final Set<Integer> existingTracklets;
+        /**
+         * Entries to write into the index block on closing.
+         */
+        private final Map<Integer, Entry> newEntries = new HashMap<>();
+
+        /**
+         * Open a container for appending.
+         *
+         * @param hdfs HDFS where the container is stored.
+         * @param path Path of the container.
+         * @throws IOException On failure opening the container.
+         */
+        public Writer(@Nonnull FileSystem hdfs,
+                      @Nonnull Path path) throws IOException {
+            if (hdfs.exists(path)) {
+                long length = hdfs.getFileStatus(path).getLen();
+                try (FSDataInputStream input = hdfs.open(path)) {
+                    Map<Integer, Entry> existing = loadIndex(input, length);
+                    existingTracklets = new HashSet<>(existing.keySet());
+                    prevIndexOffset = findLastIndexOffset(input, length);
+                    if (prevIndexOffset < 0) {
+                        // The index chain is broken, so the records recovered
+                        // by scanning are indexed again in the new block.
+                        newEntries.putAll(existing);
+                    }
+                }
+                output = hdfs.append(path);
+                // Some file systems count positions from the start of an append.
+                position = length;
+            } else {
+                existingTracklets = new HashSet<>();
+                prevIndexOffset = -1;
+                output = hdfs.create(path, false);
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                position = HEADER_LENGTH;
+            }
+            out = new DataOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+        }
+
+        private static long findLastIndexOffset(@Nonnull FSDataInputStream input,
+                                                long length) throws IOException {
+            if (length < HEADER_LENGTH + TRAILER_LENGTH) {
+                return -1;
+            }
+            input.seek(length - TRAILER_LENGTH);
+            DataInputStream in = new DataInputStream(input);
+            long offset = in.readLong();
+            return in.readInt() == TRAILER_MAGIC ? offset : -1;
+        }
+
+        /**
+         * Append the record of a tracklet.
+         *
+         * @param serialNumber Serial number of the tracklet in its video.
+         * @param info         Information of the tracklet in JSON, excluding patch data.
+         * @param patches      Encoded image of each bounding box. Use empty arrays
+         *                     for unavailable patches.
+         * @throws IOException On failure writing the container.
+         */
+        public void append(int serialNumber,
+                           @Nonnull String info,
+                           @Nonnull List<byte[]> patches) throws IOException {
+            long offset = position;
+            byte[] infoBytes = info.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(RECORD_MAGIC);
+            out.writeInt(serialNumber);
+            out.writeInt(infoBytes.length);
+            out.writeInt(patches.size());
+            long length = 16 + 4L * patches.size() + infoBytes.length;
+            for (byte[] patch : patches) {
+                out.writeInt(patch.length);
+                length += patch.length;
+            }
+            out.write(infoBytes);
+            for (byte[] patch : patches) {
+                out.write(patch);
+            }
+            position += length;
+            newEntries.put(serialNumber, new Entry(offset, (int) length));
+        }
+
+        /**
+         * Check whether a tracklet is already in the container, including those
+         * appended by this writer.
+         *
+         * @param serialNumber Serial number of the tracklet in its video.
+         * @return Whether the tracklet has been appended.
+         */
+        public boolean contains(int serialNumber) {
+            return existingTracklets.contains(serialNumber) || newEntries.containsKey(serialNumber);
+        }
+
+        /**
+         * @return Number of distinct tracklets in the container,
+         * including those appended by this writer.
+         */
+        public int getNumTracklets() {
+            Set<Integer> all = new HashSet<>(existingTracklets);
+            all.addAll(newEntries.keySet());
+            return all.size();
+        }
+
+        /**
+         * Write the index of the records appended and close the container.
+         *
+         * @throws IOException On failure writing the container.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!newEntries.isEmpty()) {
+                    ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(
+                            16 + newEntries.size() * INDEX_ENTRY_LENGTH + TRAILER_LENGTH);
+                    DataOutputStream indexOut = new DataOutputStream(indexBytes);
+                    long indexOffset = position;
+                    indexOut.writeInt(INDEX_MAGIC);
+                    indexOut.writeInt(newEntries.size());
+                    indexOut.writeLong(prevIndexOffset);
+                    for (Map.Entry<Integer, Entry> entry : newEntries.entrySet()) {
+                        indexOut.writeInt(entry.getKey());
+                        indexOut.writeLong(entry.getValue().offset);
+                        indexOut.writeInt(entry.getValue().length);
+                    }
+                    indexOut.writeLong(indexOffset);
+                    indexOut.writeInt(TRAILER_MAGIC);
+                    out.write(indexBytes.toByteArray());
+                }
+                out.flush();
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The TrajectoryIndex class indexes where and when the tracklets of a task
+ * pass, so that region and time-range queries can be answered without reading
+ * the tracklets themselves.
+ * <p>
+ * The trajectory of a tracklet is the sequence of the centres of its bounding
+ * boxes. Trajectories are saved in a file alongside the tracklet container of
+ * the task (see {@link #pathOf(Path)}), appending one segment per batch:
+ * <pre>
+ * header:     MAGIC(int) VERSION(int) cellSize(int) bucketFrames(int)
+ * segment:    SEGMENT_MAGIC(int) payloadLength(int) numTrajectories(int) trajectory * numTrajectories
+ * trajectory: serialNumber(int) startFrameIndex(int) numFrames(int) [x(short) y(short)] * numFrames
+ * </pre>
+ * Loading an index buckets the centres into a grid of cells of the image
+ * over buckets of frames, mapping each cell to the trajectories passing it.
+ * A query visits only the cells overlapping its region and time range, then
+ * checks the centres of the candidate trajectories exactly. Segments left
+ * incomplete by failed appends are ignored.
+ */
+public class TrajectoryIndex {
+
+    /**
+     * Suffix of trajectory index files.
+     */
+    public static final String SUFFIX = ".tli";
+    /**
+     * Default width and height of grid cells in pixels.
+     */
+    public static final int DEFAULT_CELL_SIZE = 32;
+    /**
+     * Default number of frames in a time bucket.
+     */
+    public static final int DEFAULT_BUCKET_FRAMES = 250;
+
+    private static final int MAGIC = 0x56544C49; // "VTLI"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_MAGIC = 0x5345474D; // "SEGM"
+    private static final int HEADER_LENGTH = 16;
+
+    private final int cellSize;
+    private final int bucketFrames;
+    private final List<Trajectory> trajectories = new ArrayList<>();
+    /**
+     * Ordinals of trajectories passing each cell of each time bucket.
+     */
+    private final Map<Long, BitSet> postings = new HashMap<>();
+
+    /**
+     * Centres of the bounding boxes of a tracklet.
+     */
+    private static class Trajectory {
+        final int serialNumber;
+        final int startFrameIndex;
+        /**
+         * x and y of each centre, interleaved.
+         */
+        final short[] centres;
+
+        Trajectory(int serialNumber, int startFrameIndex, short[] centres) {
+            this.serialNumber = serialNumber;
+            this.startFrameIndex = startFrameIndex;
+            this.centres = centres;
+        }
+
+        int getNumFrames() {
+            return centres.length / 2;
+        }
+    }
+
+    private TrajectoryIndex(int cellSize, int bucketFrames) {
+        this.cellSize = cellSize;
+        this.bucketFrames = bucketFrames;
+    }
+
+    /**
+     * Get the path of the trajectory index of a tracklet container.
+     *
+     * @param containerPath Path of the tracklet container.
+     * @return Path of the trajectory index saved alongside.
+     */
+    public static Path pathOf(@Nonnull Path containerPath) {
+        String name = containerPath.getName();
+        if (name.endsWith(TrackletContainer.SUFFIX)) {
+            name = name.substring(0, name.length() - TrackletContainer.SUFFIX.length());
+        }
+        return new Path(containerPath.getParent(), name + SUFFIX);
+    }
+
+    private static short clampCoordinate(int coordinate) {
+        return (short) Math.max(0, Math.min(Short.MAX_VALUE, coordinate));
+    }
+
+    private long cellKey(int cellX, int cellY, int bucket) {
+        return ((long) bucket << 32) | ((cellY & 0xFFFFL) << 16) | (cellX & 0xFFFFL);
+    }
+
+    /**
+     * Read the header of an index.
+     *
+     * @return cellSize and bucketFrames of the index.
+     */
+    private static int[] readHeader(@Nonnull DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a trajectory index of version " + VERSION + "!");
+        }
+        int cellSize = in.readInt();
+        int bucketFrames = in.readInt();
+        if (cellSize <= 0 || bucketFrames <= 0) {
+            throw new IOException("Invalid trajectory index header!");
+        }
+        return new int[]{cellSize, bucketFrames};
+    }
+
+    /**
+     * Load an index from HDFS.
+     *
+     * @param hdfs HDFS where the index is stored.
+     * @param path Path of the index.
+     * @return The index loaded.
+     * @throws IOException On failure reading the index.
+     */
+    public static TrajectoryIndex load(@Nonnull FileSystem hdfs,
+                                       @Nonnull Path path) throws IOException {
+        long length = hdfs.getFileStatus(path).getLen();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Trajectory index " + path + " is too large!");
+        }
+        byte[] bytes = new byte[(int) length];
+        try (FSDataInputStream input = hdfs.open(path)) {
+            input.readFully(0, bytes);
+        }
+        return load(bytes);
+    }
+
+    /**
+     * Load an index from its bytes.
+     */
+    private static TrajectoryIndex load(@Nonnull byte[] bytes) throws IOException {
+        if (bytes.length < HEADER_LENGTH) {
+            throw new IOException("Trajectory index is too short!");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int[] header = readHeader(in);
+        TrajectoryIndex index = new TrajectoryIndex(header[0], header[1]);
+
+        // Re-delivered tracklets appear in later segments, replacing earlier ones.
+        Map<Integer, Trajectory> latest = new LinkedHashMap<>();
+        int pos = HEADER_LENGTH;
+        while (pos + 8 <= bytes.length) {
+            in = new DataInputStream(new ByteArrayInputStream(bytes, pos, 8));
+            if (in.readInt() != SEGMENT_MAGIC) {
+                break;
+            }
+            int payloadLength = in.readInt();
+            if (payloadLength < 4 || pos + 8L + payloadLength > bytes.length) {
+                break;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(bytes, pos + 8, payloadLength));
+            List<Trajectory> segment = new ArrayList<>();
+            try {
+                int numTrajectories = in.readInt();
+                for (int i = 0; i < numTrajectories; ++i) {
+                    int serialNumber = in.readInt();
+                    int startFrameIndex = in.readInt();
+                    int numFrames = in.readInt();
+                    if (numFrames < 0 || 4L * numFrames > payloadLength) {
+                        throw new EOFException();
+                    }
+                    short[] centres = new short[numFrames * 2];
+                    for (int j = 0; j < centres.length; ++j) {
+                        centres[j] = in.readShort();
+                    }
+                    segment.add(new Trajectory(serialNumber, startFrameIndex, centres));
+                }
+            } catch (EOFException e) {
+                // A corrupted segment, after which nothing can be trusted.
+                break;
+            }
+            for (Trajectory trajectory : segment) {
+                latest.remove(trajectory.serialNumber);
+                latest.put(trajectory.serialNumber, trajectory);
+            }
+            pos += 8 + payloadLength;
+        }
+
+        for (Trajectory trajectory : latest.values()) {
+            index.addToGrid(trajectory);
+        }
+        return index;
+    }
+
+    private void addToGrid(@Nonnull Trajectory trajectory) {
+        int ordinal = trajectories.size();
+        trajectories.add(trajectory);
+        long lastKey = -1;
+        for (int i = 0; i < trajectory.getNumFrames(); ++i) {
+            int frame = trajectory.startFrameIndex + i;
+            long key = cellKey(trajectory.centres[2 * i] / cellSize,
+                    trajectory.centres[2 * i + 1] / cellSize,
+                    Math.max(0, frame) / bucketFrames);
+            // Consecutive frames mostly stay in the same cell.
+            if (key != lastKey) {
+                postings.computeIfAbsent(key, k -> new BitSet()).set(ordinal);
+                lastKey = key;
+            }
+        }
+    }
+
+    /**
+     * @return Number of tracklets indexed.
+     */
+    public int getNumTrajectories() {
+        return trajectories.size();
+    }
+
+    /**
+     * Find the tracklets whose centres pass through a region in a range of frames.
+     *
+     * @param x          x-coordinate of the left-upper corner of the region.
+     * @param y          y-coordinate of the left-upper corner of the region.
+     * @param width      Width of the region.
+     * @param height     Height of the region.
+     * @param startFrame First frame of the range (inclusive).
+     * @param endFrame   Last frame of the range (inclusive).
+     * @return Serial numbers of the matching tracklets in ascending order.
+     */
+    public int[] search(int x, int y, int width, int height,
+                        int startFrame, int endFrame) {
+        if (width <= 0 || height <= 0 || endFrame < startFrame || trajectories.isEmpty()) {
+            return new int[0];
+        }
+        int left = Math.max(0, x);
+        int top = Math.max(0, y);
+        int right = Math.min(Short.MAX_VALUE, x + width - 1);
+        int bottom = Math.min(Short.MAX_VALUE, y + height - 1);
+        if (right < left || bottom < top) {
+            return new int[0];
+        }
+        int firstBucket = Math.max(0, startFrame) / bucketFrames;
+        int lastBucket = Math.max(0, endFrame) / bucketFrames;
+        int firstCellX = left / cellSize;
+        int lastCellX = right / cellSize;
+        int firstCellY = top / cellSize;
+        int lastCellY = bottom / cellSize;
+
+        BitSet candidates;
+        long numLookups = (long) (lastCellX - firstCellX + 1)
+                * (lastCellY - firstCellY + 1)
+                * (lastBucket - firstBucket + 1);
+        if (numLookups > trajectories.size()) {
+            // Checking every trajectory is cheaper than visiting the cells.
+            candidates = new BitSet(trajectories.size());
+            candidates.set(0, trajectories.size());
+        } else {
+            candidates = new BitSet();
+            for (int bucket = firstBucket; bucket <= lastBucket; ++bucket) {
+                for (int cellY = firstCellY; cellY <= lastCellY; ++cellY) {
+                    for (int cellX = firstCellX; cellX <= lastCellX; ++cellX) {
+                        BitSet posting = postings.get(cellKey(cellX, cellY, bucket));
+                        if (posting != null) {
+                            candidates.or(posting);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<Integer> matches = new ArrayList<>();
+        for (int ordinal = candidates.nextSetBit(0); ordinal >= 0;
+             ordinal = candidates.nextSetBit(ordinal + 1)) {
+            Trajectory trajectory = trajectories.get(ordinal);
+            int from = Math.max(startFrame, trajectory.startFrameIndex) - trajectory.startFrameIndex;
+            int to = Math.min(endFrame, trajectory.startFrameIndex + trajectory.getNumFrames() - 1)
+                    - trajectory.startFrameIndex;
+            for (int i = from; i <= to; ++i) {
+                short cx = trajectory.centres[2 * i];
+                short cy = trajectory.centres[2 * i + 1];
+                if (cx >= left && cx <= right && cy >= top && cy <= bottom) {
+                    matches.add(trajectory.serialNumber);
+                    break;
+                }
+            }
+        }
+        int[] serialNumbers = new int[matches.size()];
+        for (int i = 0; i < serialNumbers.length; ++i) {
+            serialNumbers[i] = matches.get(i);
+        }
+        Arrays.sort(serialNumbers);
+        return serialNumbers;
+    }
+
+    /**
+     * The Writer class appends the trajectories of tracklets to an index,
+     * creating it if it does not exist. All the trajectories appended before
+     * closing are written as one segment.
+     */
+    public static class Writer implements AutoCloseable {
+
+        private final FileSystem hdfs;
+        private final Path path;
+        private final int cellSize;
+        private final int bucketFrames;
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(payload);
+        private int numTrajectories = 0;
+
+        /**
+         * Prepare to append to an index. The file is only touched on closing.
+         *
+         * @param hdfs         HDFS where the index is stored.
+         * @param path         Path of the index.
+         * @param cellSize     Width and height of grid cells in pixels, for a new index.
+         * @param bucketFrames Number of frames in a time bucket, for a new index.
+         */
+        public Writer(@Nonnull FileSystem hdfs,
+                      @Nonnull Path path,
+                      int cellSize,
+                      int bucketFrames) {
+            this.hdfs = hdfs;
+            this.path = path;
+            this.cellSize = Math.max(1, cellSize);
+            this.bucketFrames = Math.max(1, bucketFrames);
+        }
+
+        /**
+         * Append the trajectory of a tracklet.
+         *
+         * @param tracklet The tracklet.
+         * @throws IOException On failure encoding the trajectory.
+         */
+        public void append(@Nonnull Tracklet tracklet) throws IOException {
+            Tracklet.BoundingBox[] seq = tracklet.locationSequence;
+            out.writeInt(tracklet.id.serialNumber);
+            out.writeInt(tracklet.startFrameIndex);
+            out.writeInt(seq.length);
+            for (Tracklet.BoundingBox bbox : seq) {
+                out.writeShort(clampCoordinate(bbox.x + bbox.width / 2));
+                out.writeShort(clampCoordinate(bbox.y + bbox.height / 2));
+            }
+            ++numTrajectories;
+        }
+
+        /**
+         * Write the trajectories appended as a segment and close the index.
+         *
+         * @throws IOException On failure writing the index.
+         */
+        @Override
+        public void close() throws IOException {
+            if (numTrajectories == 0) {
+                return;
+            }
+            ByteArrayOutputStream segment = new ByteArrayOutputStream(payload.size() + 12);
+            DataOutputStream segmentOut = new DataOutputStream(segment);
+            segmentOut.writeInt(SEGMENT_MAGIC);
+            segmentOut.writeInt(4 + payload.size());
+            segmentOut.writeInt(numTrajectories);
+            payload.writeTo(segmentOut);
+
+            FSDataOutputStream output;
+            if (hdfs.exists(path)) {
+                output = hdfs.append(path);
+            } else {
+                output = hdfs.create(path, false);
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(cellSize);
+                output.writeInt(bucketFrames);
+            }
+            try {
+                output.write(segment.toByteArray());
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * The Cache class keeps recently loaded indices. As indices are only
+     * appended to, a cached index is reloaded when the length of its file changes.
+     */
+    public static class Cache {
+
+        private final int maxEntries;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private static class Entry {
+            final long length;
+            final TrajectoryIndex index;
+
+            Entry(long length, TrajectoryIndex index) {
+                this.length = length;
+                this.index = index;
+            }
+        }
+
+        /**
+         * @param maxEntries Maximum number of indices to keep.
+         */
+        public Cache(int maxEntries) {
+            this.maxEntries = Math.max(1, maxEntries);
+        }
+
+        /**
+         * Get an index, loading it if it is not cached or has been appended to.
+         *
+         * @param hdfs HDFS where the index is stored.
+         * @param path Path of the index.
+         * @return The index.
+         * @throws IOException On failure reading the index.
+         */
+        public TrajectoryIndex get(@Nonnull FileSystem hdfs,
+                                   @Nonnull Path path) throws IOException {
+            long length = hdfs.getFileStatus(path).getLen();
+            String key = path.toString();
+            synchronized (entries) {
+                Entry entry = entries.get(key);
+                if (entry != null && entry.length == length) {
+                    return entry.index;
+                }
+            }
+            TrajectoryIndex index = load(hdfs, path);
+            synchronized (entries) {
+                entries.put(key, new Entry(length, index));
+                while (entries.size() > maxEntries) {
+                    entries.remove(entries.keySet().iterator().next());
+                }
+            }
+            return index;
+        }
+    }
+}
@@ -17,9 +17,10 @@
 
 package org.cripac.isee.vpe.util.kafka;
 
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.cripac.isee.vpe.common.Priority;
 import org.cripac.isee.vpe.common.Topic;
 import org.cripac.isee.vpe.util.logging.ConsoleLogger;
 import org.cripac.isee.vpe.util.logging.Logger;
@@ -37,15 +38,37 @@ public class KafkaHelper {
     public static <K, V> void sendWithLog(@Nonnull Topic topic,
                                           @Nonnull K key,
                                           @Nonnull V data,
-                                          @Nonnull KafkaProducer<K, V> producer,
+                                          @Nonnull Producer<K, V> producer,
+                                          @Nullable Logger logger)
+            throws ExecutionException, InterruptedException {
+        sendWithLog(topic, Priority.NORMAL, key, data, producer, logger);
+    }
+
+    /**
+     * Send a message to the topic for tasks of a priority.
+     *
+     * @param topic    The topic.
+     * @param priority Priority of the task the message belongs to.
+     * @param key      Key of the message, usually the task ID.
+     * @param data     The message.
+     * @param producer Producer to send the message with.
+     * @param logger   Logger for the sending, or null for a console logger.
+     * @throws ExecutionException   On failure sending the message.
+     * @throws InterruptedException If interrupted while waiting for the sending.
+     */
+    public static <K, V> void sendWithLog(@Nonnull Topic topic,
+                                          @Nonnull Priority priority,
+                                          @Nonnull K key,
+                                          @Nonnull V data,
+                                          @Nonnull Producer<K, V> producer,
                                           @Nullable Logger logger)
             throws ExecutionException, InterruptedException {
         if (logger == null) {
             logger = new ConsoleLogger();
         }
-        logger.debug("Sending to Kafka" + " <" + topic + ">\t" + key);
+        logger.debug("Sending to Kafka" + " <" + topic + priority.SUFFIX + ">\t" + key);
         Future<RecordMetadata> future = producer.send(new ProducerRecord<>(
-                topic.NAME,
+                topic.getName(priority),
                 key,
                 data));
         RecordMetadata recMeta = future.get();
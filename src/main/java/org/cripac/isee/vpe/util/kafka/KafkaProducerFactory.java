@@ -18,6 +18,7 @@
 package org.cripac.isee.vpe.util.kafka;
 
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.cripac.isee.vpe.util.Factory;
 
 import javax.annotation.Nonnull;
@@ -29,7 +30,7 @@ import java.util.Properties;
  *
  * @author Ken Yu, CRIPAC, 2016
  */
-public class KafkaProducerFactory<K, V> implements Factory<KafkaProducer<K, V>> {
+public class KafkaProducerFactory<K, V> implements Factory<Producer<K, V>> {
 
     private static final long serialVersionUID = 537687120172257949L;
 
@@ -0,0 +1,347 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.tracking;
+
+import javax.annotation.Nonnull;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The KeyframeIndex class records the byte offsets and timestamps of the
+ * keyframes of a video, so that decoding can start from any keyframe without
+ * scanning the video from the beginning.
+ * <p>
+ * Videos are expected to be H.264 elementary streams in Annex B format, which
+ * is how our cameras store their videos. A keyframe is located at the first
+ * NAL unit (usually SPS) of the access unit containing an IDR picture, so that
+ * the bytes starting from it can be decoded independently. Cameras often send
+ * the parameter sets (SPS and PPS) only at the beginning of a stream, so the
+ * index also records, for each keyframe, where the latest parameter sets before
+ * it are, which have to be prepended when decoding from the keyframe. For videos
+ * of other formats, the index only contains the beginning of the video.
+ */
+public class KeyframeIndex implements Serializable {
+
+    private static final long serialVersionUID = -3915071856216483750L;
+
+    /**
+     * Frame rate assumed when timestamps are not available in the video.
+     */
+    public static final float DEFAULT_FPS = 25;
+
+    private static final int MAGIC = 0x4B464958; // "KFIX"
+    private static final int VERSION = 2;
+
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR_SLICE = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    /**
+     * Length of the video in bytes.
+     */
+    public final long videoLength;
+    /**
+     * Modification time of the video when the index was built.
+     */
+    public final long modificationTime;
+    /**
+     * Frame rate used for calculating timestamps.
+     */
+    public final float fps;
+    /**
+     * Byte offset of each keyframe.
+     */
+    private final long[] offsets;
+    /**
+     * Index of each keyframe among all the frames of the video.
+     */
+    private final int[] frameIndices;
+    /**
+     * Start and end offsets of the latest SPS and PPS before or in the access
+     * unit of each keyframe, in the order of SPS start, SPS end, PPS start and
+     * PPS end, or -1 if there are none.
+     */
+    private final long[][] paramSetRanges;
+
+    private KeyframeIndex(long videoLength,
+                          long modificationTime,
+                          float fps,
+                          @Nonnull long[] offsets,
+                          @Nonnull int[] frameIndices,
+                          @Nonnull long[][] paramSetRanges) {
+        this.videoLength = videoLength;
+        this.modificationTime = modificationTime;
+        this.fps = fps;
+        this.offsets = offsets;
+        this.frameIndices = frameIndices;
+        this.paramSetRanges = paramSetRanges;
+    }
+
+    /**
+     * Build an index by scanning a video sequentially. The video is read
+     * through the stream in chunks, so it is never loaded into memory as a whole.
+     *
+     * @param videoStream      Stream of the video.
+     * @param modificationTime Modification time of the video, used for checking
+     *                         whether the index is out of date.
+     * @param fps              Frame rate of the video.
+     * @return The index of the video.
+     * @throws IOException On failure reading the stream.
+     */
+    public static KeyframeIndex build(@Nonnull InputStream videoStream,
+                                      long modificationTime,
+                                      float fps) throws IOException {
+        long[] offsets = new long[64];
+        int[] frameIndices = new int[64];
+        long[][] paramSetRanges = new long[64][];
+        int numKeyframes = 0;
+
+        byte[] buf = new byte[1 << 16];
+        long pos = 0;
+        int zeros = 0;
+        boolean expectHeader = false;
+        boolean expectSliceHeader = false;
+        boolean foundStartCode = false;
+        long startCodePos = -1;
+        long curNALPos = -1;
+        int curNALType = 0;
+        // Position of the first NAL unit of the current access unit, or -1 if
+        // no non-VCL NAL units have appeared since the last picture.
+        long accessUnitPos = -1;
+        int numFrames = 0;
+        // Type and position of the NAL unit being scanned.
+        int nalType = 0;
+        long nalPos = -1;
+        long[] lastParamSetRange = {-1, -1, -1, -1};
+
+        int len;
+        while ((len = videoStream.read(buf)) > 0) {
+            for (int i = 0; i < len; ++i, ++pos) {
+                int b = buf[i] & 0xFF;
+
+                if (expectSliceHeader) {
+                    expectSliceHeader = false;
+                    // first_mb_in_slice is coded in Exp-Golomb,
+                    // being zero iff its first bit is 1, which marks a new picture.
+                    if ((b & 0x80) != 0) {
+                        if (curNALType == NAL_IDR_SLICE) {
+                            if (numKeyframes == offsets.length) {
+                                offsets = Arrays.copyOf(offsets, numKeyframes * 2);
+                                frameIndices = Arrays.copyOf(frameIndices, numKeyframes * 2);
+                                paramSetRanges = Arrays.copyOf(paramSetRanges, numKeyframes * 2);
+                            }
+                            offsets[numKeyframes] = accessUnitPos >= 0 ? accessUnitPos : curNALPos;
+                            frameIndices[numKeyframes] = numFrames;
+                            paramSetRanges[numKeyframes] = lastParamSetRange.clone();
+                            ++numKeyframes;
+                        }
+                        ++numFrames;
+                    }
+                    accessUnitPos = -1;
+                } else if (expectHeader) {
+                    expectHeader = false;
+                    int type = b & 0x1F;
+                    nalType = type;
+                    nalPos = startCodePos;
+                    if (type == NAL_SLICE || type == NAL_IDR_SLICE) {
+                        curNALType = type;
+                        curNALPos = startCodePos;
+                        expectSliceHeader = true;
+                    } else if (type >= 6 && type <= 18 && accessUnitPos < 0) {
+                        // SEI, SPS, PPS, AUD and other non-VCL units
+                        // start a new access unit.
+                        accessUnitPos = startCodePos;
+                    }
+                }
+
+                if (b == 0) {
+                    ++zeros;
+                } else {
+                    if (b == 1 && zeros >= 2) {
+                        // Include the leading zero of a 4-byte start code.
+                        startCodePos = pos - Math.min(zeros, 3);
+                        // The previous NAL unit ends where this start code begins.
+                        if (nalType == NAL_SPS) {
+                            lastParamSetRange[0] = nalPos;
+                            lastParamSetRange[1] = startCodePos;
+                        } else if (nalType == NAL_PPS) {
+                            lastParamSetRange[2] = nalPos;
+                            lastParamSetRange[3] = startCodePos;
+                        }
+                        nalType = 0;
+                        expectHeader = true;
+                        foundStartCode = true;
+                    }
+                    zeros = 0;
+                }
+            }
+        }
+
+        if (!foundStartCode || numKeyframes == 0) {
+            // Not an Annex B stream. Decoding can only start from the beginning.
+            return new KeyframeIndex(pos, modificationTime, fps, new long[]{0}, new int[]{0},
+                    new long[][]{{-1, -1, -1, -1}});
+        }
+        return new KeyframeIndex(pos, modificationTime, fps,
+                Arrays.copyOf(offsets, numKeyframes),
+                Arrays.copyOf(frameIndices, numKeyframes),
+                Arrays.copyOf(paramSetRanges, numKeyframes));
+    }
+
+    /**
+     * @return Number of keyframes in the index.
+     */
+    public int getNumKeyframes() {
+        return offsets.length;
+    }
+
+    /**
+     * @param keyframe The serial number of a keyframe in the index.
+     * @return Byte offset of the keyframe in the video.
+     */
+    public long getOffset(int keyframe) {
+        return offsets[keyframe];
+    }
+
+    /**
+     * @param keyframe The serial number of a keyframe in the index.
+     * @return Byte offset where the group of pictures starting at the keyframe
+     * ends, i.e. the offset of the next keyframe or the length of the video.
+     */
+    public long getEndOffset(int keyframe) {
+        return keyframe + 1 < offsets.length ? offsets[keyframe + 1] : videoLength;
+    }
+
+    /**
+     * Get the ranges of the parameter sets to prepend when decoding from a keyframe,
+     * i.e. those of the latest SPS and PPS appearing before the access unit
+     * of the keyframe. Parameter sets inside the access unit are decoded anyway.
+     *
+     * @param keyframe The serial number of a keyframe in the index.
+     * @return Start and end offsets of each parameter set in the video in pairs,
+     * or an empty array if there is none to prepend.
+     */
+    public long[] getParameterSetRanges(int keyframe) {
+        long[] ranges = new long[4];
+        int numRanges = 0;
+        for (int i = 0; i < 4; i += 2) {
+            long start = paramSetRanges[keyframe][i];
+            if (start >= 0 && start < offsets[keyframe]) {
+                ranges[numRanges++] = start;
+                ranges[numRanges++] = paramSetRanges[keyframe][i + 1];
+            }
+        }
+        return Arrays.copyOf(ranges, numRanges);
+    }
+
+    /**
+     * @param keyframe The serial number of a keyframe in the index.
+     * @return Index of the keyframe among all frames of the video.
+     */
+    public int getFrameIndex(int keyframe) {
+        return frameIndices[keyframe];
+    }
+
+    /**
+     * @param keyframe The serial number of a keyframe in the index.
+     * @return Timestamp of the keyframe relative to the beginning of the video in milliseconds.
+     */
+    public long getTimestampMs(int keyframe) {
+        return (long) (frameIndices[keyframe] * 1000L / fps);
+    }
+
+    /**
+     * Find the last keyframe at or before a frame.
+     *
+     * @param frameIndex Index of a frame in the video.
+     * @return Serial number of the keyframe in the index.
+     */
+    public int findKeyframe(int frameIndex) {
+        int pos = Arrays.binarySearch(frameIndices, frameIndex);
+        if (pos >= 0) {
+            return pos;
+        }
+        // Insertion point minus one, but never before the first keyframe.
+        return Math.max(0, -pos - 2);
+    }
+
+    /**
+     * Write the index to a stream.
+     *
+     * @param outputStream Stream to write to.
+     * @throws IOException On failure writing the stream.
+     */
+    public void writeTo(@Nonnull DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(MAGIC);
+        outputStream.writeInt(VERSION);
+        outputStream.writeLong(videoLength);
+        outputStream.writeLong(modificationTime);
+        outputStream.writeFloat(fps);
+        outputStream.writeInt(offsets.length);
+        for (int i = 0; i < offsets.length; ++i) {
+            outputStream.writeLong(offsets[i]);
+            outputStream.writeInt(frameIndices[i]);
+            for (long offset : paramSetRanges[i]) {
+                outputStream.writeLong(offset);
+            }
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Read an index from a stream.
+     *
+     * @param inputStream Stream to read from.
+     * @return The index read.
+     * @throws IOException On failure reading the stream or when the data is not a keyframe index.
+     */
+    public static KeyframeIndex readFrom(@Nonnull DataInputStream inputStream) throws IOException {
+        if (inputStream.readInt() != MAGIC) {
+            throw new IOException("Data is not a keyframe index!");
+        }
+        int version = inputStream.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported keyframe index version: " + version);
+        }
+        long videoLength = inputStream.readLong();
+        long modificationTime = inputStream.readLong();
+        float fps = inputStream.readFloat();
+        int numKeyframes = inputStream.readInt();
+        long[] offsets = new long[numKeyframes];
+        int[] frameIndices = new int[numKeyframes];
+        long[][] paramSetRanges = new long[numKeyframes][4];
+        for (int i = 0; i < numKeyframes; ++i) {
+            offsets[i] = inputStream.readLong();
+            frameIndices[i] = inputStream.readInt();
+            for (int j = 0; j < 4; ++j) {
+                paramSetRanges[i][j] = inputStream.readLong();
+            }
+        }
+        return new KeyframeIndex(videoLength, modificationTime, fps, offsets, frameIndices, paramSetRanges);
+    }
+
+    @Override
+    public String toString() {
+        return "|KeyframeIndex-" + offsets.length + " keyframes in " + videoLength + " bytes|";
+    }
+}
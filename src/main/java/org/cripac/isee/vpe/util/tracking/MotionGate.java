@@ -0,0 +1,203 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.tracking;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+
+/**
+ * The MotionGate class decides whether a decoded frame contains enough motion
+ * to be worth feeding to a tracker. It keeps a downsampled luma plane of the
+ * previous frame, and compares each new frame with it by simple frame-to-frame
+ * differencing, so that slow illumination changes are not taken as motion.
+ * <p>
+ * A frame is considered to contain motion if the ratio of sampled pixels whose
+ * luma changed more than {@link Config#pixelDiffThreshold} exceeds
+ * {@link Config#motionRatioThreshold}. After motion stops, frames are still
+ * passed through for {@link Config#hangoverFrames} frames, so that trackers can
+ * finish the targets leaving the scene.
+ */
+public class MotionGate {
+
+    private final Config conf;
+    private final int width;
+    private final int height;
+    private final int channels;
+
+    /**
+     * Downsampled luma plane of the previous frame. Null before the first frame.
+     */
+    private int[] refLuma = null;
+    /**
+     * Downsampled luma plane of the current frame, reused across frames.
+     */
+    private int[] curLuma;
+    /**
+     * Number of frames remaining to be passed after motion was last detected.
+     */
+    private int hangoverRemaining = 0;
+
+    private final Statistics stat = new Statistics();
+
+    /**
+     * Create a motion gate for frames of a specific size.
+     *
+     * @param conf     Configuration of the gate.
+     * @param width    The width of frames.
+     * @param height   The height of frames.
+     * @param channels The channels of frames (BGR frames have 3 channels).
+     */
+    public MotionGate(@Nonnull Config conf,
+                      int width,
+                      int height,
+                      int channels) {
+        this.conf = conf;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        int step = Math.max(1, conf.downsampleStep);
+        curLuma = new int[((width + step - 1) / step) * ((height + step - 1) / step)];
+    }
+
+    /**
+     * Decide whether a frame should be fed to the tracker. The decision is also
+     * counted into the statistics of this gate.
+     *
+     * @param frame Bytes of a decoded frame in BGR (or gray) format.
+     * @return Whether the frame should be fed to the tracker.
+     */
+    public boolean pass(@Nonnull byte[] frame) {
+        ++stat.numFrames;
+        computeLuma(frame, curLuma);
+
+        if (refLuma == null) {
+            // Always pass the first frame, so that the tracker is initialized
+            // with the background.
+            refLuma = curLuma.clone();
+            return true;
+        }
+
+        int numChanged = 0;
+        for (int i = 0; i < curLuma.length; ++i) {
+            if (Math.abs(curLuma[i] - refLuma[i]) > conf.pixelDiffThreshold) {
+                ++numChanged;
+            }
+        }
+
+        // The current frame is the reference of the next one.
+        int[] tmp = refLuma;
+        refLuma = curLuma;
+        curLuma = tmp;
+
+        if (numChanged > conf.motionRatioThreshold * refLuma.length) {
+            hangoverRemaining = conf.hangoverFrames;
+            return true;
+        } else if (hangoverRemaining > 0) {
+            --hangoverRemaining;
+            return true;
+        } else {
+            ++stat.numSkippedFrames;
+            return false;
+        }
+    }
+
+    /**
+     * @return Statistics of frames gone through this gate.
+     */
+    public Statistics getStatistics() {
+        return stat;
+    }
+
+    /**
+     * Compute a downsampled luma plane from a frame.
+     *
+     * @param frame BGR or gray bytes of a frame.
+     * @param luma  Output luma plane.
+     */
+    private void computeLuma(@Nonnull byte[] frame,
+                             @Nonnull int[] luma) {
+        int step = Math.max(1, conf.downsampleStep);
+        int idx = 0;
+        for (int y = 0; y < height; y += step) {
+            int rowOffset = y * width * channels;
+            for (int x = 0; x < width; x += step) {
+                int p = rowOffset + x * channels;
+                if (channels >= 3) {
+                    int b = frame[p] & 0xFF;
+                    int g = frame[p + 1] & 0xFF;
+                    int r = frame[p + 2] & 0xFF;
+                    // BT.601 luma in fixed point.
+                    luma[idx++] = (29 * b + 150 * g + 77 * r) >> 8;
+                } else {
+                    luma[idx++] = frame[p] & 0xFF;
+                }
+            }
+        }
+    }
+
+    /**
+     * Configuration of a motion gate.
+     */
+    public static class Config implements Serializable {
+
+        private static final long serialVersionUID = 3470591246601380226L;
+
+        /**
+         * Sample one pixel every such number of pixels in both directions.
+         */
+        public int downsampleStep = 8;
+        /**
+         * A sampled pixel is considered changed if its luma differs from the
+         * previous frame by more than this value.
+         */
+        public int pixelDiffThreshold = 20;
+        /**
+         * A frame is considered to contain motion if the ratio of changed
+         * sampled pixels exceeds this value.
+         */
+        public float motionRatioThreshold = 0.002f;
+        /**
+         * Number of frames to keep feeding after the last frame with motion.
+         */
+        public int hangoverFrames = 25;
+    }
+
+    /**
+     * Statistics of frames gone through a motion gate.
+     */
+    public static class Statistics implements Serializable {
+
+        private static final long serialVersionUID = -2416325866195098371L;
+
+        public int numFrames = 0;
+        public int numSkippedFrames = 0;
+
+        /**
+         * @return Ratio of skipped frames among all the frames.
+         */
+        public float getSkippedRatio() {
+            return numFrames == 0 ? 0 : (float) numSkippedFrames / numFrames;
+        }
+
+        @Override
+        public String toString() {
+            return "skipped " + numSkippedFrames + "/" + numFrames + " frames ("
+                    + String.format("%.1f", getSkippedRatio() * 100) + "%)";
+        }
+    }
+}
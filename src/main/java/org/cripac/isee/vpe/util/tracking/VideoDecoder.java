@@ -17,15 +17,21 @@
 
 package org.cripac.isee.vpe.util.tracking;
 
+import org.apache.hadoop.fs.PositionedReadable;
+import org.cripac.isee.vpe.util.NativeMemoryRegistry;
+import org.cripac.isee.vpe.util.NativeResourceCleaner;
+
 import javax.annotation.Nonnull;
+import java.io.IOException;
 
 /**
  * The class VideoDecoder utilizes native libraries including FFMPEG to decode
- * videos stored in the memory.
+ * videos stored in the memory. Decoders should be closed after use to release
+ * the native memory deterministically.
  *
  * @author Ken Yu, CRIPAC, 2016
  */
-public class VideoDecoder {
+public class VideoDecoder implements AutoCloseable {
 
     static {
         System.out.println(
@@ -34,20 +40,109 @@ public class VideoDecoder {
         System.loadLibrary("video_decoder_jni");
     }
 
+    /**
+     * Estimated native memory used by a decoder besides its copy of the
+     * video data, i.e. the codec context and frame buffers.
+     */
+    private static final long DECODER_CONTEXT_BYTES = 16L << 20;
+
+    /**
+     * A decoder holding no native resources, only used for calling the native
+     * free method in cleaning actions, which must not refer to the decoder
+     * being cleaned.
+     */
+    private static final VideoDecoder FREER = new VideoDecoder();
+
     private long nativeDecoder = 0;
+    private long reservedBytes = 0;
+    private NativeResourceCleaner.Cleanable cleanable = null;
+
+    private VideoDecoder() {
+    }
 
     /**
      * Create a decoder for one specific video, whose raw byte data is stored in
-     * memory and passed as videoData.
+     * memory and passed as videoData. The decoder holds native memory until it
+     * is closed. Creation blocks while the native memory budget of this JVM
+     * is exhausted.
      *
      * @param videoData The raw byte data of the video.
      * @throws NullPointerException On videoData is null.
+     * @throws InterruptedException On interrupted while waiting for native memory.
      */
-    public VideoDecoder(@Nonnull byte[] videoData) {
+    public VideoDecoder(@Nonnull byte[] videoData) throws InterruptedException {
         if (videoData == null) {
             throw new NullPointerException("Byte array of video data cannot be null!");
         }
-        nativeDecoder = initialize(videoData);
+        open(videoData);
+    }
+
+    /**
+     * Create a decoder for a segment of a video stored on HDFS, starting from a
+     * keyframe. Only the bytes of the segment, and those of the parameter sets
+     * it needs, are read from the stream. Videos on HDFS are usually opened
+     * through {@link org.cripac.isee.vpe.util.hdfs.KeyframeIndexStore#openDecoder},
+     * which keeps their indices in sidecar files.
+     *
+     * @param videoStream   Stream of the video supporting positioned reads,
+     *                      e.g. an FSDataInputStream.
+     * @param index         Keyframe index of the video.
+     * @param firstKeyframe Serial number of the keyframe to start decoding from.
+     * @param numKeyframes  Number of groups of pictures to decode,
+     *                      or a non-positive value to decode till the end of the video.
+     * @throws IOException          On failure reading the stream.
+     * @throws InterruptedException On interrupted while waiting for native memory.
+     */
+    public VideoDecoder(@Nonnull PositionedReadable videoStream,
+                        @Nonnull KeyframeIndex index,
+                        int firstKeyframe,
+                        int numKeyframes) throws IOException, InterruptedException {
+        if (firstKeyframe < 0 || firstKeyframe >= index.getNumKeyframes()) {
+            throw new IndexOutOfBoundsException("Keyframe " + firstKeyframe + " is out of "
+                    + index.getNumKeyframes() + " keyframes!");
+        }
+        int lastKeyframe = numKeyframes > 0
+                ? Math.min(firstKeyframe + numKeyframes, index.getNumKeyframes()) - 1
+                : index.getNumKeyframes() - 1;
+        long start = index.getOffset(firstKeyframe);
+        long end = index.getEndOffset(lastKeyframe);
+        // Parameter sets sent only earlier in the video are prepended to the segment.
+        long[] paramSetRanges = index.getParameterSetRanges(firstKeyframe);
+        long paramSetLength = 0;
+        for (int i = 0; i < paramSetRanges.length; i += 2) {
+            paramSetLength += paramSetRanges[i + 1] - paramSetRanges[i];
+        }
+        byte[] segment = new byte[(int) (paramSetLength + end - start)];
+        int pos = 0;
+        for (int i = 0; i < paramSetRanges.length; i += 2) {
+            int length = (int) (paramSetRanges[i + 1] - paramSetRanges[i]);
+            videoStream.readFully(paramSetRanges[i], segment, pos, length);
+            pos += length;
+        }
+        videoStream.readFully(start, segment, pos, (int) (end - start));
+        open(segment);
+    }
+
+    /**
+     * Reserve native memory, initialize the native decoder and register
+     * the cleaning action releasing both.
+     */
+    private void open(@Nonnull byte[] videoData) throws InterruptedException {
+        NativeMemoryRegistry.Reservation reservation = NativeMemoryRegistry.reserve(
+                VideoDecoder.class.getSimpleName(), videoData.length + DECODER_CONTEXT_BYTES);
+        final long pointer;
+        try {
+            pointer = initialize(videoData);
+        } catch (Throwable t) {
+            reservation.close();
+            throw t;
+        }
+        nativeDecoder = pointer;
+        reservedBytes = reservation.getBytes();
+        cleanable = NativeResourceCleaner.register(this, () -> {
+            FREER.free(pointer);
+            reservation.close();
+        });
     }
 
     private native long initialize(@Nonnull byte[] videoData);
@@ -64,6 +159,13 @@ public class VideoDecoder {
 
     private native int getChannels(long nativeDecoder);
 
+    /**
+     * @return Native memory reserved for this decoder in bytes.
+     */
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
     /**
      * Get a next frame decoded.
      *
@@ -73,6 +175,17 @@ public class VideoDecoder {
         return nextFrame(nativeDecoder);
     }
 
+    /**
+     * Skip frames without returning them, e.g. to reach a frame after the
+     * keyframe the decoder starts from.
+     *
+     * @param numFrames Number of frames to skip.
+     * @return Number of frames actually skipped.
+     */
+    public int skipFrames(int numFrames) {
+        return skipFrame(nativeDecoder, numFrames);
+    }
+
     /**
      * Get information of the video being decoded.
      *
@@ -86,10 +199,17 @@ public class VideoDecoder {
         return info;
     }
 
+    /**
+     * Release the native decoder. The decoder cannot be used after closed.
+     * If a decoder is not closed explicitly, it is released some time after
+     * it becomes unreachable.
+     */
     @Override
-    protected void finalize() throws Throwable {
-        free(nativeDecoder);
-        super.finalize();
+    public void close() {
+        if (cleanable != null) {
+            cleanable.clean();
+        }
+        nativeDecoder = 0;
     }
 
     /**
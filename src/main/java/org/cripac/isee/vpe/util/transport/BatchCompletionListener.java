@@ -0,0 +1,69 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.transport;
+
+import org.apache.spark.streaming.scheduler.StreamingListener;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchCompleted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerBatchSubmitted;
+import org.apache.spark.streaming.scheduler.StreamingListenerOutputOperationCompleted;
+import org.apache.spark.streaming.scheduler.StreamingListenerOutputOperationStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverError;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStarted;
+import org.apache.spark.streaming.scheduler.StreamingListenerReceiverStopped;
+
+/**
+ * The BatchCompletionListener class tells the {@link InProcessTransport} when
+ * batches complete, so that the messages taken by a batch keep occupying their
+ * queues until they are processed.
+ */
+class BatchCompletionListener implements StreamingListener {
+
+    @Override
+    public void onBatchCompleted(StreamingListenerBatchCompleted batchCompleted) {
+        InProcessTransport.onBatchCompleted(batchCompleted.batchInfo().batchTime());
+    }
+
+    @Override
+    public void onReceiverStarted(StreamingListenerReceiverStarted receiverStarted) {
+    }
+
+    @Override
+    public void onReceiverError(StreamingListenerReceiverError receiverError) {
+    }
+
+    @Override
+    public void onReceiverStopped(StreamingListenerReceiverStopped receiverStopped) {
+    }
+
+    @Override
+    public void onBatchSubmitted(StreamingListenerBatchSubmitted batchSubmitted) {
+    }
+
+    @Override
+    public void onBatchStarted(StreamingListenerBatchStarted batchStarted) {
+    }
+
+    @Override
+    public void onOutputOperationStarted(StreamingListenerOutputOperationStarted outputOperationStarted) {
+    }
+
+    @Override
+    public void onOutputOperationCompleted(StreamingListenerOutputOperationCompleted outputOperationCompleted) {
+    }
+}
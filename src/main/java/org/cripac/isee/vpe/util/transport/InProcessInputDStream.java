@@ -0,0 +1,75 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.transport;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.rdd.RDD;
+import org.apache.spark.streaming.StreamingContext;
+import org.apache.spark.streaming.Time;
+import org.apache.spark.streaming.dstream.InputDStream;
+import scala.Option;
+import scala.Tuple2;
+import scala.reflect.ClassTag$;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The InProcessInputDStream class takes the messages of some topics from the
+ * queues of the {@link InProcessTransport} at each batch. The messages keep
+ * occupying their queues until the batch completes.
+ */
+class InProcessInputDStream extends InputDStream<Tuple2<String, byte[]>> {
+
+    private static final long serialVersionUID = 4361284437812698347L;
+
+    private final String[] topics;
+    private final int queueCapacity;
+
+    @SuppressWarnings("unchecked")
+    InProcessInputDStream(@Nonnull StreamingContext ssc,
+                          @Nonnull Set<String> topics,
+                          int queueCapacity) {
+        super(ssc, ClassTag$.MODULE$.apply(Tuple2.class));
+        this.topics = topics.toArray(new String[topics.size()]);
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public Option<RDD<Tuple2<String, byte[]>>> compute(Time validTime) {
+        List<Tuple2<String, byte[]>> messages = new ArrayList<>();
+        for (String topic : topics) {
+            InProcessTransport.Queue queue = InProcessTransport.getQueue(topic, queueCapacity);
+            List<Tuple2<String, byte[]>> drained = queue.drain();
+            messages.addAll(drained);
+            InProcessTransport.releaseOnCompletion(validTime, queue, drained.size());
+        }
+        return Option.apply(JavaSparkContext.fromSparkContext(context().sparkContext())
+                .parallelize(messages).rdd());
+    }
+}
@@ -0,0 +1,111 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.transport;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import scala.Tuple2;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The InProcessProducer class puts messages to the queues of the
+ * {@link InProcessTransport}, with the interface of Kafka producers,
+ * so that streams send messages the same way with any transport.
+ */
+public class InProcessProducer implements Producer<String, byte[]> {
+
+    private final int queueCapacity;
+    private final AtomicLong offset = new AtomicLong(0);
+
+    /**
+     * Create a producer.
+     *
+     * @param queueCapacity Maximum number of messages in the queue of each topic.
+     */
+    public InProcessProducer(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, byte[]> record) {
+        return send(record, null);
+    }
+
+    /**
+     * Put a message to the queue of its topic. Unlike Kafka producers,
+     * this blocks until the queue has room for the message.
+     */
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, byte[]> record, Callback callback) {
+        CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+        RecordMetadata metadata = null;
+        Exception exception = null;
+        try {
+            InProcessTransport.getQueue(record.topic(), queueCapacity)
+                    .put(new Tuple2<>(record.key(), record.value()));
+            metadata = new RecordMetadata(new TopicPartition(record.topic(), 0),
+                    offset.getAndIncrement(), 0, System.currentTimeMillis(), -1,
+                    record.key() == null ? -1 : record.key().length(),
+                    record.value() == null ? -1 : record.value().length);
+            future.complete(metadata);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exception = e;
+            future.completeExceptionally(e);
+        }
+        if (callback != null) {
+            callback.onCompletion(metadata, exception);
+        }
+        return future;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+        return Collections.singletonList(new PartitionInfo(topic, 0, null, null, null));
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void close(long timeout, TimeUnit unit) {
+    }
+}
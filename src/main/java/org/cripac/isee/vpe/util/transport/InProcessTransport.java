@@ -0,0 +1,222 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.transport;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.spark.streaming.StreamingContext;
+import org.apache.spark.streaming.Time;
+import org.apache.spark.streaming.api.java.JavaPairDStream;
+import org.apache.spark.streaming.api.java.JavaStreamingContext;
+import org.cripac.isee.vpe.util.Factory;
+import scala.Tuple2;
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The InProcessTransport class passes messages between streams running in
+ * one JVM, through a bounded queue for each topic, without Kafka brokers.
+ * It works when all the applications are consolidated and run with a local
+ * Spark master, as on single nodes and in tests.
+ * <p>
+ * Messages are handed over by reference, so they are not copied, compressed
+ * or sent over network between streams. Messages occupy their queue until the
+ * batch taking them completes, and senders are blocked when the queue of a topic
+ * is full, so streams falling behind slow down the streams sending to them.
+ */
+public class InProcessTransport implements Transport {
+
+    private static final long serialVersionUID = -2816497303916436208L;
+
+    /**
+     * Name of the transport in the system properties.
+     */
+    public static final String NAME = "in-process";
+
+    /**
+     * The Queue class is a bounded queue of messages. Messages are kept in a
+     * lock-free queue, and the capacity is guarded by counting vacancies.
+     */
+    static class Queue {
+        private final ConcurrentLinkedQueue<Tuple2<String, byte[]>> messages =
+                new ConcurrentLinkedQueue<>();
+        private final Semaphore vacancies;
+        private final int capacity;
+
+        Queue(int capacity) {
+            this.capacity = capacity;
+            vacancies = new Semaphore(capacity);
+        }
+
+        /**
+         * @return Number of messages in the queue, including those being put,
+         * and those taken by batches not completed yet.
+         */
+        int size() {
+            return capacity - vacancies.availablePermits();
+        }
+
+        /**
+         * Put a message to the queue, waiting for a vacancy if the queue is full.
+         *
+         * @param message The message.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        void put(@Nonnull Tuple2<String, byte[]> message) throws InterruptedException {
+            vacancies.acquire();
+            messages.offer(message);
+        }
+
+        /**
+         * Take all the messages in the queue. Their vacancies are not released,
+         * until {@link #release(int)} is called after they are processed.
+         *
+         * @return The messages in the order they were put.
+         */
+        @Nonnull
+        List<Tuple2<String, byte[]>> drain() {
+            List<Tuple2<String, byte[]>> drained = new ArrayList<>();
+            Tuple2<String, byte[]> message;
+            while ((message = messages.poll()) != null) {
+                drained.add(message);
+            }
+            return drained;
+        }
+
+        /**
+         * Release the vacancies of messages taken and processed.
+         *
+         * @param numMessages Number of the messages.
+         */
+        void release(int numMessages) {
+            vacancies.release(numMessages);
+        }
+    }
+
+    private static final ConcurrentMap<String, Queue> queues = new ConcurrentHashMap<>();
+    /**
+     * Releases of vacancies to perform when batches complete, by the times of the batches.
+     */
+    private static final ConcurrentMap<Time, List<Runnable>> pendingReleases = new ConcurrentHashMap<>();
+    /**
+     * The streaming context whose batches are listened to.
+     */
+    private static StreamingContext listenedContext = null;
+
+    /**
+     * Get the queue of a topic, creating it if it does not exist.
+     *
+     * @param topic    Name of the topic.
+     * @param capacity Maximum number of messages in the queue, if it is to be created.
+     * @return The queue of the topic.
+     */
+    @Nonnull
+    static Queue getQueue(@Nonnull String topic, int capacity) {
+        return queues.computeIfAbsent(topic, name -> new Queue(capacity));
+    }
+
+    /**
+     * Release the vacancies of messages taken from a queue when a batch completes.
+     *
+     * @param batchTime   Time of the batch.
+     * @param queue       The queue the messages are taken from.
+     * @param numMessages Number of the messages.
+     */
+    static void releaseOnCompletion(@Nonnull Time batchTime,
+                                    @Nonnull Queue queue,
+                                    int numMessages) {
+        if (numMessages > 0) {
+            pendingReleases.computeIfAbsent(batchTime,
+                    time -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(() -> queue.release(numMessages));
+        }
+    }
+
+    /**
+     * Release the vacancies of the messages taken by a batch, whether its jobs
+     * succeeded or not.
+     *
+     * @param batchTime Time of the batch.
+     */
+    static void onBatchCompleted(@Nonnull Time batchTime) {
+        List<Runnable> releases = pendingReleases.remove(batchTime);
+        if (releases != null) {
+            releases.forEach(Runnable::run);
+        }
+    }
+
+    private static synchronized void listenToBatches(@Nonnull JavaStreamingContext jsc) {
+        if (listenedContext != jsc.ssc()) {
+            jsc.addStreamingListener(new BatchCompletionListener());
+            listenedContext = jsc.ssc();
+        }
+    }
+
+    private final int queueCapacity;
+
+    /**
+     * Create a transport.
+     *
+     * @param queueCapacity Maximum number of messages in the queue of each topic.
+     */
+    public InProcessTransport(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Nonnull
+    @Override
+    public Factory<Producer<String, byte[]>> getProducerFactory(@Nonnull Properties producerProp) {
+        final int queueCapacity = this.queueCapacity;
+        return () -> new InProcessProducer(queueCapacity);
+    }
+
+    @Nonnull
+    @Override
+    @SuppressWarnings("unchecked")
+    public JavaPairDStream<String, byte[]> createBytesStream(@Nonnull JavaStreamingContext jsc,
+                                                             @Nonnull Map<String, String> kafkaParams,
+                                                             @Nonnull Set<String> topics) {
+        listenToBatches(jsc);
+        ClassTag<String> keyTag = ClassTag$.MODULE$.apply(String.class);
+        ClassTag<byte[]> valueTag = ClassTag$.MODULE$.apply(byte[].class);
+        return new JavaPairDStream<>(
+                new InProcessInputDStream(jsc.ssc(), topics, queueCapacity),
+                keyTag, valueTag);
+    }
+
+    /**
+     * Messages occupy the queues until the batches taking them complete, so the lag
+     * is the number of messages in the queue of the topic, including those in batches
+     * not completed yet.
+     */
+    @Override
+    public long getLag(@Nonnull String topic, @Nonnull String group) {
+        return getQueue(topic, queueCapacity).size();
+    }
+}
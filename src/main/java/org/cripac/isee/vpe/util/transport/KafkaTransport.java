@@ -0,0 +1,162 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.transport;
+
+import kafka.serializer.DefaultDecoder;
+import kafka.serializer.StringDecoder;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.streaming.api.java.JavaPairDStream;
+import org.apache.spark.streaming.api.java.JavaStreamingContext;
+import org.apache.spark.streaming.kafka.HasOffsetRanges;
+import org.apache.spark.streaming.kafka.KafkaUtils;
+import org.apache.spark.streaming.kafka.OffsetRange;
+import org.cripac.isee.vpe.util.Factory;
+import org.cripac.isee.vpe.util.kafka.KafkaProducerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The KafkaTransport class sends messages through Kafka brokers, so that
+ * streams can run in different applications on different machines.
+ * <p>
+ * The offsets each stream has taken are committed to Kafka under the group ID
+ * of the stream, so that the lag of the stream can be measured.
+ */
+public class KafkaTransport implements Transport {
+
+    private static final long serialVersionUID = 6014371367958245853L;
+
+    /**
+     * Name of the transport in the system properties.
+     */
+    public static final String NAME = "kafka";
+
+    private final String brokers;
+
+    /**
+     * Consumers committing and querying offsets for each group in the driver,
+     * which are not thread-safe, so they are used only in synchronized methods.
+     */
+    private transient Map<String, KafkaConsumer<byte[], byte[]>> consumers = null;
+
+    /**
+     * Create a transport.
+     *
+     * @param brokers Kafka brokers to send messages through.
+     */
+    public KafkaTransport(@Nonnull String brokers) {
+        this.brokers = brokers;
+    }
+
+    private KafkaConsumer<byte[], byte[]> getConsumer(@Nonnull String group) {
+        if (consumers == null) {
+            consumers = new HashMap<>();
+        }
+        return consumers.computeIfAbsent(group, id -> {
+            Properties consumerProp = new Properties();
+            consumerProp.put("bootstrap.servers", brokers);
+            consumerProp.put("group.id", id);
+            consumerProp.put("enable.auto.commit", "false");
+            consumerProp.put("key.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+            consumerProp.put("value.deserializer", "org.apache.kafka.common.serialization.ByteArrayDeserializer");
+            return new KafkaConsumer<>(consumerProp);
+        });
+    }
+
+    /**
+     * Commit the offsets up to which messages have been taken by a group.
+     *
+     * @param group  The group.
+     * @param ranges Ranges of the messages taken.
+     */
+    private synchronized void commit(@Nonnull String group, @Nonnull OffsetRange[] ranges) {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (OffsetRange range : ranges) {
+            offsets.put(new TopicPartition(range.topic(), range.partition()),
+                    new OffsetAndMetadata(range.untilOffset()));
+        }
+        try {
+            getConsumer(group).commitSync(offsets);
+        } catch (KafkaException e) {
+            // Only the lag reported is affected.
+            e.printStackTrace();
+        }
+    }
+
+    @Nonnull
+    @Override
+    public Factory<Producer<String, byte[]>> getProducerFactory(@Nonnull Properties producerProp) {
+        return new KafkaProducerFactory<>(producerProp);
+    }
+
+    @Nonnull
+    @Override
+    public JavaPairDStream<String, byte[]> createBytesStream(@Nonnull JavaStreamingContext jsc,
+                                                             @Nonnull Map<String, String> kafkaParams,
+                                                             @Nonnull Set<String> topics) {
+        final String group = kafkaParams.get("group.id");
+        // TODO(Ken Yu): Fetch offset from Zookeeper and restart from that.
+        return KafkaUtils.createDirectStream(
+                jsc,
+                String.class, byte[].class,
+                StringDecoder.class, DefaultDecoder.class,
+                kafkaParams,
+                topics)
+                .transformToPair(rdd -> {
+                    // Offsets are committed when batches are generated. With backpressure,
+                    // messages the stream cannot catch up with are left in Kafka.
+                    if (group != null) {
+                        commit(group, ((HasOffsetRanges) rdd.rdd()).offsetRanges());
+                    }
+                    return rdd;
+                });
+    }
+
+    @Override
+    public synchronized long getLag(@Nonnull String topic, @Nonnull String group) {
+        KafkaConsumer<byte[], byte[]> consumer = getConsumer(group);
+        List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic);
+        if (partitionInfos == null) {
+            return 0;
+        }
+        List<TopicPartition> partitions = new ArrayList<>();
+        for (PartitionInfo info : partitionInfos) {
+            partitions.add(new TopicPartition(topic, info.partition()));
+        }
+        Map<TopicPartition, Long> beginnings = consumer.beginningOffsets(partitions);
+        long lag = 0;
+        for (Map.Entry<TopicPartition, Long> end : consumer.endOffsets(partitions).entrySet()) {
+            OffsetAndMetadata committed = consumer.committed(end.getKey());
+            // Streams start from the earliest messages if they have committed nothing.
+            lag += end.getValue() - (committed == null
+                    ? beginnings.get(end.getKey()) : committed.offset());
+        }
+        return lag;
+    }
+}
@@ -0,0 +1,75 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.transport;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.spark.streaming.api.java.JavaPairDStream;
+import org.apache.spark.streaming.api.java.JavaStreamingContext;
+import org.cripac.isee.vpe.util.Factory;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The Transport interface is the way messages go between streams. A stream
+ * receives messages of its input topics from the DStream the transport creates,
+ * and sends messages to the topics of its successors with producers the
+ * transport creates. The transport tracks the messages each stream has taken,
+ * so that producers of tasks can tell how far behind the stream is.
+ */
+public interface Transport extends Serializable {
+
+    /**
+     * Get a factory producing producers to send messages with.
+     *
+     * @param producerProp Properties for Kafka producers.
+     *                     Transports not using Kafka may ignore them.
+     * @return A factory of producers.
+     */
+    @Nonnull
+    Factory<Producer<String, byte[]>> getProducerFactory(@Nonnull Properties producerProp);
+
+    /**
+     * Create a stream receiving messages with byte array values from some topics.
+     *
+     * @param jsc         The streaming context of the applications.
+     * @param kafkaParams Parameters for reading from Kafka.
+     *                    Transports not using Kafka may ignore them.
+     * @param topics      Names of the topics to read from.
+     * @return A stream of the messages, keyed by task IDs.
+     */
+    @Nonnull
+    JavaPairDStream<String, byte[]> createBytesStream(@Nonnull JavaStreamingContext jsc,
+                                                      @Nonnull Map<String, String> kafkaParams,
+                                                      @Nonnull Set<String> topics);
+
+    /**
+     * Get the number of messages in a topic not yet taken by the stream reading it.
+     * This should be called only in the driver.
+     *
+     * @param topic Name of the topic.
+     * @param group Name of the stream reading the topic, which is the group ID
+     *              of its Kafka consumers.
+     * @return The number of messages waiting.
+     * @throws Exception On failure getting the positions of the stream.
+     */
+    long getLag(@Nonnull String topic, @Nonnull String group) throws Exception;
+}
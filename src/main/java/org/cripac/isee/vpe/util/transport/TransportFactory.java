@@ -0,0 +1,68 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.transport;
+
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.util.Factory;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The TransportFactory class produces the transport specified in the system
+ * properties.
+ */
+public class TransportFactory implements Factory<Transport> {
+
+    private static final long serialVersionUID = -4420386916273165712L;
+
+    private final String type;
+    private final String kafkaBrokers;
+    private final String sparkMaster;
+    private final int queueCapacity;
+
+    public TransportFactory(@Nonnull SystemPropertyCenter propCenter) {
+        this.type = propCenter.transport;
+        this.kafkaBrokers = propCenter.kafkaBrokers;
+        this.sparkMaster = propCenter.sparkMaster;
+        this.queueCapacity = propCenter.transportQueueCapacity;
+    }
+
+    /**
+     * Produce a new transport.
+     *
+     * @return An object newly produced.
+     * @throws IllegalArgumentException If the transport is unknown,
+     *                                  or cannot work with the Spark master.
+     */
+    @Override
+    public Transport produce() {
+        switch (type) {
+            case KafkaTransport.NAME:
+                return new KafkaTransport(kafkaBrokers);
+            case InProcessTransport.NAME:
+                // Executors must run in the JVM of the driver to share the queues.
+                if (!sparkMaster.contains("local")) {
+                    throw new IllegalArgumentException("Transport \"" + type
+                            + "\" requires a local Spark master, but got \"" + sparkMaster + "\"!");
+                }
+                return new InProcessTransport(queueCapacity);
+            default:
+                throw new IllegalArgumentException("Unknown transport \"" + type + "\"!");
+        }
+    }
+}
@@ -21,6 +21,12 @@ import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerResponse;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
 /**
  * Created by ken.yu on 16-10-22.
  * <p>
@@ -35,6 +41,8 @@ public class UIServer {
 
     private Vertx vertx;
     private HttpServer server;
+    private Map<String, Supplier<String>> pages = new ConcurrentHashMap<>();
+    private Map<String, Function<Map<String, String>, String>> actions = new ConcurrentHashMap<>();
 
     /**
      * Create a server.
@@ -46,13 +54,47 @@ public class UIServer {
         server.requestHandler(request -> {
             // This handler gets called for each request that arrives on the server
             HttpServerResponse response = request.response();
-            response.putHeader("content-INPUT_TYPE", "text/plain");
+            response.putHeader("content-type", "text/plain");
+
+            Function<Map<String, String>, String> action = actions.get(request.path());
+            if (action != null) {
+                Map<String, String> params = new HashMap<>();
+                request.params().forEach(param -> params.put(param.getKey(), param.getValue()));
+                // Actions may block, so they are kept out of the event loop.
+                vertx.<String>executeBlocking(future -> future.complete(action.apply(params)),
+                        result -> response.end(result.succeeded()
+                                ? result.result()
+                                : "Error: " + result.cause() + "\n"));
+                return;
+            }
 
             // Write to the response and end it
-            response.end("Hello World!");
+            Supplier<String> page = pages.get(request.path());
+            response.end(page == null ? "Hello World!" : page.get());
         });
     }
 
+    /**
+     * Add a plain text page, whose content is generated on each request.
+     *
+     * @param path    Path of the page, like "/status".
+     * @param content Generator of the content.
+     */
+    public void addPage(String path, Supplier<String> content) {
+        pages.put(path, content);
+    }
+
+    /**
+     * Add an action performed on each request to a path, responding with plain text.
+     *
+     * @param path   Path of the action, like "/command".
+     * @param action Function of the query parameters of the request,
+     *               returning the content of the response.
+     */
+    public void addAction(String path, Function<Map<String, String>, String> action) {
+        actions.put(path, action);
+    }
+
     /**
      * Stop listening.
      */
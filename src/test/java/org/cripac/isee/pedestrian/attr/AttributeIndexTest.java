@@ -0,0 +1,90 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.attr;
+
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AttributeIndexTest {
+
+    private static Attributes createAttr(String videoID, int serialNumber,
+                                         float upperRed, float backPack) {
+        Attributes attr = new Attributes();
+        attr.trackletID = new Tracklet.Identifier(videoID, serialNumber);
+        attr.upperRed = upperRed;
+        attr.accessoryBackPack = backPack;
+        return attr;
+    }
+
+    private static String[] toStrings(Tracklet.Identifier[] ids) {
+        String[] strings = new String[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            strings[i] = ids[i].toString();
+        }
+        return strings;
+    }
+
+    @Test
+    public void testSearch() {
+        AttributeIndex index = new AttributeIndex(0.5f);
+        index.add(createAttr("cam1/a", 1, 0.9f, 0.6f));
+        index.add(createAttr("cam1/a", 2, 0.7f, 0.9f));
+        index.add(createAttr("cam1/a", 3, 0.9f, 0.1f));
+        index.add(createAttr("cam2/b", 1, 0.8f, 0.8f));
+        Assert.assertEquals(4, index.size());
+
+        // Ranked by the sum of confidences. Serialized names are accepted.
+        Assert.assertArrayEquals(new String[]{"cam2/b_tarid1", "cam1/a_tarid2", "cam1/a_tarid1"},
+                toStrings(index.search(new AttributeQuery()
+                        .require("upperRed")
+                        .require("accessory_backpack"))));
+        Assert.assertArrayEquals(new String[]{"cam1/a_tarid2", "cam1/a_tarid1"},
+                toStrings(index.search(new AttributeQuery()
+                        .require("upperRed")
+                        .require("accessoryBackPack")
+                        .inVideos("cam1/"))));
+        Assert.assertArrayEquals(new String[]{"cam1/a_tarid2"},
+                toStrings(index.search(new AttributeQuery()
+                        .require("accessoryBackPack", 0.85f)
+                        .inVideos("cam1/"))));
+        Assert.assertEquals(1, index.search(new AttributeQuery()
+                .require("upperRed")
+                .limit(1)).length);
+        Assert.assertEquals(0, index.search(new AttributeQuery()
+                .require("upperRed")
+                .since(System.currentTimeMillis() + 60000)).length);
+    }
+
+    @Test
+    public void testReindex() {
+        AttributeIndex index = new AttributeIndex();
+        index.add(createAttr("cam1/a", 1, 0.9f, 0.9f));
+        index.add(createAttr("cam1/a", 1, 0.9f, 0.1f));
+        Assert.assertEquals(1, index.size());
+        Assert.assertEquals(0, index.search(new AttributeQuery()
+                .require("accessoryBackPack")).length);
+        Assert.assertEquals(1, index.search(new AttributeQuery()
+                .require("upperRed")).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAttribute() {
+        new AttributeIndex().search(new AttributeQuery().require("wings"));
+    }
+}
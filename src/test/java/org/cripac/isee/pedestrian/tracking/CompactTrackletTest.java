@@ -0,0 +1,150 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.tracking;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+public class CompactTrackletTest {
+
+    private Tracklet createTracklet() {
+        Tracklet tracklet = new Tracklet();
+        tracklet.id = new Tracklet.Identifier("CAM01-20161216.h264", 3);
+        tracklet.numTracklets = 10;
+        tracklet.startFrameIndex = 125;
+        tracklet.locationSequence = new Tracklet.BoundingBox[50];
+        for (int i = 0; i < tracklet.locationSequence.length; ++i) {
+            Tracklet.BoundingBox bbox = new Tracklet.BoundingBox();
+            bbox.x = 300 - i * 3;
+            bbox.y = 100 + i;
+            bbox.width = 40;
+            bbox.height = 100 + (i % 3);
+            // Leave some patches unavailable.
+            if (i % 7 != 0) {
+                bbox.patchData = new byte[bbox.width * bbox.height * 3];
+                for (int j = 0; j < bbox.patchData.length; ++j) {
+                    bbox.patchData[j] = (byte) (i + j);
+                }
+            }
+            tracklet.locationSequence[i] = bbox;
+        }
+        return tracklet;
+    }
+
+    private void assertTrackletEquals(Tracklet expected, Tracklet actual) {
+        Assert.assertEquals(expected.id.toString(), actual.id.toString());
+        Assert.assertEquals(expected.numTracklets, actual.numTracklets);
+        Assert.assertEquals(expected.startFrameIndex, actual.startFrameIndex);
+        Assert.assertEquals(expected.locationSequence.length, actual.locationSequence.length);
+        for (int i = 0; i < expected.locationSequence.length; ++i) {
+            Tracklet.BoundingBox e = expected.locationSequence[i];
+            Tracklet.BoundingBox a = actual.locationSequence[i];
+            if (e == null) {
+                Assert.assertNull(a);
+                continue;
+            }
+            Assert.assertEquals(e.x, a.x);
+            Assert.assertEquals(e.y, a.y);
+            Assert.assertEquals(e.width, a.width);
+            Assert.assertEquals(e.height, a.height);
+            Assert.assertArrayEquals(e.patchData, a.patchData);
+        }
+    }
+
+    private Object serializeAndBack(Object obj) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).writeObject(obj);
+        return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    @Test
+    public void convert() throws Exception {
+        Tracklet tracklet = createTracklet();
+        CompactTracklet compact = tracklet.toCompact();
+        Assert.assertEquals(50, compact.length());
+        Assert.assertFalse(compact.hasPatch(0));
+        Assert.assertTrue(compact.hasPatch(1));
+        Assert.assertEquals(40 * 101 * 3, compact.getPatchLength(1));
+        assertTrackletEquals(tracklet, compact.toTracklet());
+    }
+
+    @Test
+    public void serialize() throws Exception {
+        Tracklet tracklet = createTracklet();
+        assertTrackletEquals(tracklet, (Tracklet) serializeAndBack(tracklet));
+        CompactTracklet compact = (CompactTracklet) serializeAndBack(tracklet.toCompact());
+        assertTrackletEquals(tracklet, compact.toTracklet());
+
+        Tracklet empty = new Tracklet();
+        Assert.assertNull(((Tracklet) serializeAndBack(empty)).locationSequence);
+    }
+
+    @Test
+    public void sharedPatchesAndNullBoxes() throws Exception {
+        Tracklet tracklet = createTracklet();
+        Tracklet.BoundingBox[] seq = tracklet.locationSequence;
+        // Frames skipped by the motion gate are filled with the same bounding box.
+        for (int i = 11; i < 20; ++i) {
+            seq[i] = seq[10];
+        }
+        seq[30] = null;
+        seq[31] = null;
+
+        int uniquePatchBytes = 0;
+        for (int i = 0; i < seq.length; ++i) {
+            if (i > 10 && i < 20) {
+                continue;
+            }
+            if (seq[i] != null && seq[i].patchData != null) {
+                uniquePatchBytes += seq[i].patchData.length;
+            }
+        }
+
+        CompactTracklet compact = tracklet.toCompact();
+        Assert.assertEquals(uniquePatchBytes, compact.getPatchBuffer().length);
+        Assert.assertEquals(compact.getPatchOffset(10), compact.getPatchOffset(19));
+        Assert.assertTrue(compact.isNull(30));
+        Assert.assertNull(compact.getBoundingBox(31));
+        Tracklet restored = compact.toTracklet();
+        assertTrackletEquals(tracklet, restored);
+        Assert.assertSame(restored.locationSequence[10].patchData, restored.locationSequence[19].patchData);
+
+        CompactTracklet deserialized = (CompactTracklet) serializeAndBack(compact);
+        Assert.assertEquals(uniquePatchBytes, deserialized.getPatchBuffer().length);
+        assertTrackletEquals(tracklet, deserialized.toTracklet());
+        assertTrackletEquals(tracklet, (Tracklet) serializeAndBack(tracklet));
+    }
+
+    @Test
+    public void json() throws Exception {
+        Tracklet tracklet = createTracklet();
+        Gson gson = new GsonBuilder()
+                .registerTypeAdapter(CompactTracklet.class, new CompactTracklet.GsonAdapter())
+                .create();
+        String json = gson.toJson(tracklet.toCompact());
+        Assert.assertEquals(new Gson().toJson(tracklet), json);
+        assertTrackletEquals(tracklet, gson.fromJson(json, CompactTracklet.class).toTracklet());
+    }
+}
@@ -0,0 +1,82 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.pedestrian.tracking;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class TrackletSamplerTest {
+
+    private Tracklet.BoundingBox createBox(int width, int height, boolean sharp) {
+        Tracklet.BoundingBox bbox = new Tracklet.BoundingBox();
+        bbox.width = width;
+        bbox.height = height;
+        bbox.patchData = new byte[width * height * 3];
+        if (sharp) {
+            new Random(width * 31 + height).nextBytes(bbox.patchData);
+        }
+        return bbox;
+    }
+
+    @Test
+    public void sample() throws Exception {
+        Tracklet tracklet = new Tracklet();
+        tracklet.locationSequence = new Tracklet.BoundingBox[100];
+        for (int i = 0; i < 100; ++i) {
+            // A sharp and large box every 25 frames among blurred ones.
+            tracklet.locationSequence[i] = (i % 25 == 10)
+                    ? createBox(40, 100, true)
+                    : createBox(30, 75, false);
+        }
+
+        Tracklet sampled = TrackletSampler.sample(tracklet, 4);
+        Assert.assertEquals(4, sampled.locationSequence.length);
+        for (int s = 0; s < 4; ++s) {
+            Assert.assertSame(tracklet.locationSequence[s * 25 + 10], sampled.locationSequence[s]);
+        }
+
+        // Short tracklets and disabled sampling keep the tracklet as it is.
+        Assert.assertSame(tracklet, TrackletSampler.sample(tracklet, 0));
+        Assert.assertSame(tracklet, TrackletSampler.sample(tracklet, 100));
+    }
+
+    @Test
+    public void score() throws Exception {
+        // Occluded or truncated boxes tend to have unusual aspect ratios.
+        Assert.assertTrue(TrackletSampler.score(createBox(40, 100, true))
+                > TrackletSampler.score(createBox(100, 40, true)));
+        Tracklet.BoundingBox noPatch = createBox(40, 100, true);
+        noPatch.patchData = null;
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, TrackletSampler.score(noPatch), 0);
+    }
+
+    @Test
+    public void parseMaxSamples() throws Exception {
+        Assert.assertEquals(7, TrackletSampler.parseMaxSamples(null, 7));
+        Assert.assertEquals(3, TrackletSampler.parseMaxSamples(3, 7));
+        Assert.assertEquals(5, TrackletSampler.parseMaxSamples(5L, 7));
+        Assert.assertEquals(4, TrackletSampler.parseMaxSamples(" 4 ", 7));
+        try {
+            TrackletSampler.parseMaxSamples("many", 7);
+            Assert.fail("The invalid value should be rejected.");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
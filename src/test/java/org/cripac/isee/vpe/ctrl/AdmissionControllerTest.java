@@ -0,0 +1,151 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.ctrl;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.spark.streaming.api.java.JavaPairDStream;
+import org.apache.spark.streaming.api.java.JavaStreamingContext;
+import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.common.Priority;
+import org.cripac.isee.vpe.common.Stream;
+import org.cripac.isee.vpe.common.Topic;
+import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
+import org.cripac.isee.vpe.util.Factory;
+import org.cripac.isee.vpe.util.transport.Transport;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+public class AdmissionControllerTest {
+
+    private static final Stream.Info TRACKING_INFO = new Stream.Info("admission-test-tracking", DataType.TRACKLET);
+    private static final Stream.Info ATTR_INFO = new Stream.Info("admission-test-attr", DataType.ATTR);
+    private static final Topic URL_TOPIC = new Topic("admission-test-url", DataType.URL, TRACKING_INFO);
+    private static final Topic TRACKLET_TOPIC = new Topic("admission-test-tracklet", DataType.TRACKLET, ATTR_INFO);
+
+    /**
+     * A transport reporting lags set by the test.
+     */
+    private static class LagTransport implements Transport {
+        private static final long serialVersionUID = 2906516208742279283L;
+
+        final Map<String, Long> lags = new HashMap<>();
+
+        @Nonnull
+        @Override
+        public Factory<Producer<String, byte[]>> getProducerFactory(@Nonnull Properties producerProp) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Nonnull
+        @Override
+        public JavaPairDStream<String, byte[]> createBytesStream(@Nonnull JavaStreamingContext jsc,
+                                                                 @Nonnull Map<String, String> kafkaParams,
+                                                                 @Nonnull Set<String> topics) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLag(@Nonnull String topic, @Nonnull String group) {
+            return lags.getOrDefault(topic, 0L);
+        }
+    }
+
+    private static TaskData createTask(Priority priority) throws Exception {
+        ExecutionPlan plan = new ExecutionPlan();
+        ExecutionPlan.Node trackingNode = plan.addNode(TRACKING_INFO);
+        plan.addNode(ATTR_INFO);
+        plan.letNodeOutputTo(trackingNode, TRACKLET_TOPIC);
+        TaskData taskData = new TaskData(plan.findNode(URL_TOPIC), plan, "video");
+        taskData.priority = priority;
+        return taskData;
+    }
+
+    @Test
+    public void holdBackLaggingTasks() throws Exception {
+        LagTransport transport = new LagTransport();
+        transport.lags.put(TRACKLET_TOPIC.getName(Priority.NORMAL), 2L);
+        transport.lags.put(TRACKLET_TOPIC.getName(Priority.HIGH), 5L);
+        AdmissionController admission = new AdmissionController(transport, 3);
+
+        for (int i = 0; i < 4; ++i) {
+            admission.submit(URL_TOPIC, "normal-" + i, createTask(Priority.NORMAL));
+        }
+        admission.submit(URL_TOPIC, "high", createTask(Priority.HIGH));
+
+        // Tasks admitted count into the lag of their topic.
+        List<AdmissionController.Task> admitted = admission.admit();
+        Assert.assertEquals(3, admitted.size());
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals("normal-" + i, admitted.get(i).taskID);
+        }
+        Assert.assertEquals(2, admission.getNumQueued());
+
+        // Nothing is admitted before the streams catch up.
+        transport.lags.put(URL_TOPIC.getName(Priority.NORMAL), 3L);
+        Assert.assertTrue(admission.admit().isEmpty());
+
+        transport.lags.clear();
+        admitted = admission.admit();
+        Assert.assertEquals(2, admitted.size());
+        Assert.assertEquals("high", admitted.get(0).taskID);
+        Assert.assertEquals(URL_TOPIC, admitted.get(0).topic);
+        Assert.assertEquals("normal-3", admitted.get(1).taskID);
+        Assert.assertEquals(0, admission.getNumQueued());
+
+        // Non-positive budgets disable the control.
+        transport.lags.put(URL_TOPIC.getName(Priority.NORMAL), 100L);
+        admission = new AdmissionController(transport, 0);
+        admission.submit(URL_TOPIC, "normal", createTask(Priority.NORMAL));
+        Assert.assertEquals(1, admission.admit().size());
+    }
+
+    @Test
+    public void saveAndRestore() throws Exception {
+        LagTransport transport = new LagTransport();
+        transport.lags.put(URL_TOPIC.getName(Priority.NORMAL), 10L);
+        AdmissionController admission = new AdmissionController(transport, 3);
+        admission.submit(URL_TOPIC, "normal", createTask(Priority.NORMAL));
+        admission.submit(URL_TOPIC, "high", createTask(Priority.HIGH));
+        Assert.assertEquals(1, admission.admit().size());
+        Assert.assertEquals(3, admission.getNumChanges());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        admission.save(out);
+        Assert.assertEquals(3, admission.getNumChanges());
+        Assert.assertTrue(admission.admit().isEmpty());
+        Assert.assertEquals(3, admission.getNumChanges());
+
+        AdmissionController restored = new AdmissionController(transport, 3);
+        restored.restore(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(1, restored.getNumQueued());
+        transport.lags.clear();
+        List<AdmissionController.Task> admitted = restored.admit();
+        Assert.assertEquals(1, admitted.size());
+        Assert.assertEquals("normal", admitted.get(0).taskID);
+        Assert.assertEquals(Priority.NORMAL, admitted.get(0).taskData.priority);
+    }
+}
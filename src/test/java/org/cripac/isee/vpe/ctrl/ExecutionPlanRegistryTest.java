@@ -0,0 +1,111 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.ctrl;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.common.Stream;
+import org.cripac.isee.vpe.common.Topic;
+import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.cripac.isee.vpe.util.SerializationHelper.deserialize;
+import static org.cripac.isee.vpe.util.SerializationHelper.serialize;
+
+public class ExecutionPlanRegistryTest {
+
+    private static final Stream.Info TRACKING_INFO = new Stream.Info("registry-test-tracking", DataType.TRACKLET);
+    private static final Stream.Info ATTR_INFO = new Stream.Info("registry-test-attr", DataType.ATTR);
+    private static final Stream.Info SAVING_INFO = new Stream.Info("registry-test-saving", DataType.NONE);
+    private static final Topic URL_TOPIC = new Topic("registry-test-url", DataType.URL, TRACKING_INFO);
+    private static final Topic TRACKLET_TOPIC = new Topic("registry-test-tracklet", DataType.TRACKLET, ATTR_INFO);
+    private static final Topic ATTR_TOPIC = new Topic("registry-test-attr", DataType.ATTR, SAVING_INFO);
+
+    private static ExecutionPlan createPlan() throws Exception {
+        ExecutionPlan plan = new ExecutionPlan();
+        ExecutionPlan.Node trackingNode = plan.addNode(TRACKING_INFO, "tracking-conf");
+        ExecutionPlan.Node attrNode = plan.addNode(ATTR_INFO);
+        plan.letNodeOutputTo(trackingNode, TRACKLET_TOPIC);
+        plan.letNodeOutputTo(attrNode, ATTR_TOPIC);
+        return plan;
+    }
+
+    @Test
+    public void shipPlanID() throws Exception {
+        FileSystem fs = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+        ExecutionPlanRegistry registry = new ExecutionPlanRegistry(fs,
+                System.getProperty("java.io.tmpdir") + "/execution-plan-registry-test", 0);
+
+        ExecutionPlan plan = createPlan();
+        byte[] inlineBytes = serialize(new TaskData(plan.findNode(URL_TOPIC), plan, "video"));
+        registry.register(plan);
+        Assert.assertNotNull(plan.getPlanID());
+        // Equal plans are registered as the same one.
+        ExecutionPlan equalPlan = createPlan();
+        registry.register(equalPlan);
+        Assert.assertEquals(plan.getPlanID(), equalPlan.getPlanID());
+
+        TaskData taskData = new TaskData(plan.findNode(URL_TOPIC), plan, "video");
+        byte[] bytes = serialize(taskData);
+        Assert.assertTrue(bytes.length < inlineBytes.length);
+
+        // Pass the task to the next node, as the streams do.
+        taskData = (TaskData) deserialize(bytes);
+        Assert.assertEquals(TRACKING_INFO, taskData.curNode.getStreamInfo());
+        Assert.assertEquals("tracking-conf", taskData.curNode.getExecData());
+        Assert.assertEquals(1, taskData.curNode.getSuccessors().size());
+        taskData.curNode.markExecuted();
+        taskData.changeCurNode(TRACKLET_TOPIC);
+        taskData.predecessorRes = "tracklet";
+
+        taskData = (TaskData) deserialize(serialize(taskData));
+        Assert.assertEquals(ATTR_INFO, taskData.curNode.getStreamInfo());
+        Assert.assertEquals(TRACKING_INFO, taskData.predecessorInfo);
+        Assert.assertEquals("tracklet", taskData.predecessorRes);
+        Assert.assertTrue(taskData.executionPlan.findNode(TRACKING_INFO).isExecuted());
+        Assert.assertFalse(taskData.curNode.isExecuted());
+        // The registered plan is not affected.
+        Assert.assertFalse(plan.findNode(TRACKING_INFO).isExecuted());
+
+        // Modified plans are carried inline.
+        plan.addNode(SAVING_INFO);
+        Assert.assertNull(plan.getPlanID());
+        taskData = (TaskData) deserialize(serialize(new TaskData(plan.findNode(URL_TOPIC), plan, "video")));
+        Assert.assertEquals(3, taskData.executionPlan.getNumNodes());
+    }
+
+    @Test
+    public void keepPlansInUse() throws Exception {
+        FileSystem fs = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+        String dir = System.getProperty("java.io.tmpdir") + "/execution-plan-registry-ttl-test";
+        long ttl = 3600 * 1000L;
+        ExecutionPlanRegistry registry = new ExecutionPlanRegistry(fs, dir, ttl);
+
+        ExecutionPlan plan = createPlan();
+        registry.register(plan);
+        Path path = new Path(fs.makeQualified(new Path(dir)), plan.getPlanID());
+        long longAgo = System.currentTimeMillis() - ttl;
+        fs.setTimes(path, longAgo, -1);
+        // Registering the plan again keeps it from being purged.
+        registry.register(createPlan());
+        Assert.assertTrue(fs.getFileStatus(path).getModificationTime() > longAgo);
+    }
+}
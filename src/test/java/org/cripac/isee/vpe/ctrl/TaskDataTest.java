@@ -0,0 +1,130 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.ctrl;
+
+import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.common.Priority;
+import org.cripac.isee.vpe.common.Stream;
+import org.cripac.isee.vpe.common.Topic;
+import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import static org.cripac.isee.vpe.util.SerializationHelper.deserialize;
+import static org.cripac.isee.vpe.util.SerializationHelper.serialize;
+
+public class TaskDataTest {
+
+    private static final Stream.Info SRC_INFO = new Stream.Info("task-data-test-src", DataType.TRACKLET);
+    private static final Stream.Info DST1_INFO = new Stream.Info("task-data-test-dst1", DataType.NONE);
+    private static final Stream.Info DST2_INFO = new Stream.Info("task-data-test-dst2", DataType.NONE);
+    private static final Topic SRC_TOPIC = new Topic("task-data-test-src", DataType.URL, SRC_INFO);
+    private static final Topic DST1_TOPIC = new Topic("task-data-test-dst1", DataType.TRACKLET, DST1_INFO);
+    private static final Topic DST2_TOPIC = new Topic("task-data-test-dst2", DataType.TRACKLET, DST2_INFO);
+
+    /**
+     * A result counting how many times it is serialized.
+     */
+    private static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static int numSerialized = 0;
+        final byte[] pixels = new byte[10000];
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ++numSerialized;
+            out.defaultWriteObject();
+        }
+    }
+
+    @Test
+    public void serializeResultOnce() throws Exception {
+        ExecutionPlan plan = new ExecutionPlan();
+        ExecutionPlan.Node srcNode = plan.addNode(SRC_INFO);
+        plan.letNodeOutputTo(srcNode, DST1_TOPIC);
+        plan.letNodeOutputTo(srcNode, DST2_TOPIC);
+
+        TaskData taskData = new TaskData(plan.findNode(SRC_TOPIC), plan);
+        Result.numSerialized = 0;
+        taskData.predecessorRes = new Result();
+        taskData.curNode.markExecuted();
+        taskData.changeCurNode(DST1_TOPIC);
+        TaskData received1 = (TaskData) deserialize(serialize(taskData));
+        taskData.changeCurNode(DST2_TOPIC);
+        TaskData received2 = (TaskData) deserialize(serialize(taskData));
+        Assert.assertEquals(1, Result.numSerialized);
+        Assert.assertEquals(DST1_INFO, received1.curNode.getStreamInfo());
+        Assert.assertEquals(DST2_INFO, received2.curNode.getStreamInfo());
+        Assert.assertEquals(10000, ((Result) received2.predecessorRes).pixels.length);
+
+        // Forwarding a received result reuses its serialized form.
+        serialize(received1);
+        Assert.assertEquals(1, Result.numSerialized);
+        // A new result is serialized again.
+        taskData.predecessorRes = new Result();
+        serialize(taskData);
+        Assert.assertEquals(2, Result.numSerialized);
+    }
+
+    @Test
+    public void fork() throws Exception {
+        Stream.Info attrInfo = new Stream.Info("task-data-test-attr", DataType.ATTR);
+        Topic attrTopic = new Topic("task-data-test-attr", DataType.TRACKLET, attrInfo);
+        Stream.Info reidInfo = new Stream.Info("task-data-test-reid", DataType.IDRANK);
+        Topic trackletAttrTopic = new Topic("task-data-test-tracklet-attr", DataType.TRACKLET_ATTR, reidInfo);
+        Topic idRankTopic = new Topic("task-data-test-idrank", DataType.IDRANK, DST1_INFO);
+
+        ExecutionPlan plan = new ExecutionPlan();
+        ExecutionPlan.Node attrNode = plan.addNode(attrInfo);
+        ExecutionPlan.Node reidNode = plan.addNode(reidInfo);
+        // Attributes can be sent along with tracklets.
+        plan.letNodeOutputTo(attrNode, trackletAttrTopic);
+        plan.letNodeOutputTo(reidNode, idRankTopic);
+
+        TaskData taskData = new TaskData(plan.findNode(attrTopic), plan, "tracklet-and-attr");
+        taskData.curNode.markExecuted();
+        taskData.changeCurNode(trackletAttrTopic);
+        TaskData forked = taskData.fork();
+        // The forked task runs the ReID node on its own.
+        forked.curNode.markExecuted();
+        forked.changeCurNode(idRankTopic);
+        Assert.assertEquals(DST1_INFO, forked.curNode.getStreamInfo());
+        Assert.assertEquals(reidInfo, forked.predecessorInfo);
+        Assert.assertEquals("tracklet-and-attr", forked.predecessorRes);
+        Assert.assertEquals(reidInfo, taskData.curNode.getStreamInfo());
+        Assert.assertFalse(taskData.curNode.isExecuted());
+    }
+
+    @Test
+    public void carryPriority() throws Exception {
+        ExecutionPlan plan = new ExecutionPlan();
+        plan.letNodeOutputTo(plan.addNode(SRC_INFO), DST1_TOPIC);
+
+        TaskData taskData = new TaskData(plan.findNode(SRC_TOPIC), plan, "video");
+        Assert.assertEquals(Priority.NORMAL, taskData.priority);
+        taskData.priority = Priority.LOW;
+        Assert.assertEquals(Priority.LOW, ((TaskData) deserialize(serialize(taskData))).priority);
+        Assert.assertEquals(Priority.LOW, taskData.fork().priority);
+        // Tasks of each priority go through topics of their own.
+        Assert.assertEquals("task-data-test-dst1-low", DST1_TOPIC.getName(Priority.LOW));
+        Assert.assertEquals("task-data-test-dst1", DST1_TOPIC.getName(Priority.NORMAL));
+    }
+}
@@ -0,0 +1,94 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.ctrl;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.cripac.isee.vpe.common.Priority;
+import org.cripac.isee.vpe.util.logging.ConsoleLogger;
+import org.cripac.isee.vpe.util.logging.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class TaskExpanderTest {
+
+    private static RemoteIterator<Path> listVideos(String dir, int numVideos) {
+        final Iterator<Integer> iterator = new Iterator<Integer>() {
+            int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < numVideos;
+            }
+
+            @Override
+            public Integer next() {
+                return i++;
+            }
+        };
+        return new RemoteIterator<Path>() {
+            @Override
+            public boolean hasNext() throws IOException {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Path next() throws IOException {
+                return new Path(dir, "video-" + iterator.next());
+            }
+        };
+    }
+
+    @Test
+    public void expandIncrementally() throws Exception {
+        Logger logger = new ConsoleLogger();
+        List<String> created = new ArrayList<>();
+        TaskExpander expander = new TaskExpander(2);
+        expander.add(listVideos("/normal", 3), Priority.NORMAL,
+                (video, index) -> created.add(video.toString()));
+        expander.add(listVideos("/high", 1), Priority.HIGH,
+                (video, index) -> created.add(video.toString()));
+
+        // Higher priorities first, and at most a second of tasks at once.
+        Assert.assertEquals(2, expander.expand(logger));
+        Assert.assertEquals("/high/video-0", created.get(0));
+        Assert.assertEquals("/normal/video-0", created.get(1));
+        Assert.assertEquals(1, expander.getNumExpanding());
+
+        Thread.sleep(1100);
+        Assert.assertEquals(2, expander.expand(logger));
+        Assert.assertEquals("/normal/video-2", created.get(3));
+        Assert.assertEquals(0, expander.getNumExpanding());
+
+        // Failing commands are dropped without stopping the others.
+        expander = new TaskExpander(0);
+        expander.add(listVideos("/failing", 2), Priority.NORMAL, (video, index) -> {
+            throw new IOException("Cannot create task of " + video);
+        });
+        expander.add(listVideos("/normal", 2), Priority.NORMAL,
+                (video, index) -> created.add(video.toString()));
+        Assert.assertEquals(2, expander.expand(logger));
+        Assert.assertEquals(0, expander.getNumExpanding());
+        Assert.assertEquals(6, created.size());
+    }
+}
@@ -0,0 +1,85 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.cripac.isee.pedestrian.attr.Attributes;
+import org.cripac.isee.vpe.debug.FakeDatabaseConnector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BatchingGraphDatabaseConnectorTest {
+
+    /**
+     * Records the batches written to it.
+     */
+    private static class RecordingConnector extends FakeDatabaseConnector {
+        final List<Map<String, Attributes>> attrBatches = new ArrayList<>();
+        final Map<String, String> paths = new HashMap<>();
+
+        @Override
+        public void setPedestrianAttributes(Map<String, Attributes> attrs) {
+            attrBatches.add(new HashMap<>(attrs));
+        }
+
+        @Override
+        public void setTrackSavingPath(String id, String path) {
+            paths.put(id, path);
+        }
+    }
+
+    @Test
+    public void batching() throws Exception {
+        RecordingConnector recorder = new RecordingConnector();
+        BatchingGraphDatabaseConnector dbConn = new BatchingGraphDatabaseConnector(recorder, 3, 0);
+
+        Attributes first = new Attributes();
+        Attributes second = new Attributes();
+        dbConn.setPedestrianAttributes("a", first);
+        // Updates to the same pedestrian are coalesced.
+        dbConn.setPedestrianAttributes("a", second);
+        dbConn.setTrackSavingPath("video", "video/task.tlc");
+        Assert.assertEquals(2, dbConn.getQueueDepth());
+        Assert.assertTrue(recorder.attrBatches.isEmpty());
+        // Buffered updates are visible to queries.
+        Assert.assertSame(second, dbConn.getPedestrianAttributes("a"));
+        Assert.assertEquals("video/task.tlc", dbConn.getTrackletSavingDir("video"));
+
+        // The batch is written when it is full.
+        dbConn.setPedestrianAttributes("b", first);
+        Assert.assertEquals(0, dbConn.getQueueDepth());
+        Assert.assertEquals(1, recorder.attrBatches.size());
+        Assert.assertSame(second, recorder.attrBatches.get(0).get("a"));
+        Assert.assertEquals("video/task.tlc", recorder.paths.get("video"));
+
+        dbConn.setPedestrianAttributes("c", first);
+        dbConn.flush();
+        Assert.assertEquals(2, recorder.attrBatches.size());
+        Assert.assertEquals(0, dbConn.getQueueDepth());
+
+        // Links are undirected, so both directions update the same link.
+        dbConn.setPedestrianSimilarity("a", "b", 0.5f);
+        dbConn.setPedestrianSimilarity("b", "a", 0.75f);
+        Assert.assertEquals(1, dbConn.getQueueDepth());
+        Assert.assertEquals(0.75f, dbConn.getPedestrianSimilarity("a", "b"), 0);
+    }
+}
@@ -0,0 +1,92 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.cripac.isee.vpe.debug.FakeDatabaseConnector;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+public class CachingGraphDatabaseConnectorTest {
+
+    /**
+     * Stores saving paths in memory and counts queries.
+     */
+    private static class CountingConnector extends FakeDatabaseConnector {
+        final Map<String, String> paths = new HashMap<>();
+        int numQueries = 0;
+
+        @Override
+        public void setTrackSavingPath(String id, String path) {
+            paths.put(id, path);
+        }
+
+        @Override
+        public String getTrackletSavingDir(String id) throws NoSuchElementException {
+            ++numQueries;
+            String path = paths.get(id);
+            if (path == null) {
+                throw new NoSuchElementException(id);
+            }
+            return path;
+        }
+    }
+
+    @Test
+    public void readThrough() throws Exception {
+        CountingConnector counter = new CountingConnector();
+        CachingGraphDatabaseConnector dbConn = new CachingGraphDatabaseConnector(counter, 2, 60000, 60000);
+
+        // Failures are cached as well.
+        for (int i = 0; i < 2; ++i) {
+            try {
+                dbConn.getTrackletSavingDir("a");
+                Assert.fail("Unknown pedestrians should not be found.");
+            } catch (NoSuchElementException ignored) {
+            }
+        }
+        Assert.assertEquals(1, counter.numQueries);
+
+        // Writes through the connector invalidate the cache.
+        dbConn.setTrackSavingPath("a", "pathA");
+        Assert.assertEquals("pathA", dbConn.getTrackletSavingDir("a"));
+        Assert.assertEquals("pathA", dbConn.getTrackletSavingDir("a"));
+        Assert.assertEquals(2, counter.numQueries);
+
+        // The least recently used entry is evicted.
+        dbConn.setTrackSavingPath("b", "pathB");
+        dbConn.setTrackSavingPath("c", "pathC");
+        dbConn.getTrackletSavingDir("b");
+        dbConn.getTrackletSavingDir("c");
+        dbConn.getTrackletSavingDir("a");
+        Assert.assertEquals(5, counter.numQueries);
+    }
+
+    @Test
+    public void expiration() throws Exception {
+        CountingConnector counter = new CountingConnector();
+        CachingGraphDatabaseConnector dbConn = new CachingGraphDatabaseConnector(counter, 10, 0, 0);
+        counter.setTrackSavingPath("a", "pathA");
+        dbConn.getTrackletSavingDir("a");
+        dbConn.getTrackletSavingDir("a");
+        Assert.assertEquals(2, counter.numQueries);
+    }
+}
@@ -0,0 +1,78 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.cripac.isee.pedestrian.attr.Attributes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.NoSuchElementException;
+
+public class LocalGraphDatabaseConnectorTest {
+
+    @Test
+    public void persistence() throws Exception {
+        File dir = Files.createTempDirectory("graphdb").toFile();
+
+        LocalGraphDatabaseConnector dbConn = LocalGraphDatabaseConnector.open(dir);
+        // Connectors in a process share the store of a directory.
+        Assert.assertSame(dbConn, LocalGraphDatabaseConnector.open(new File(dir, ".")));
+        dbConn.setTrackSavingPath("video", "metadata/video/task.tlc");
+        dbConn.setPedestrianSimilarity("a", "b", 0.5f);
+        dbConn.setPedestrianSimilarity("a", "c", 0.25f);
+        dbConn.setPedestrianSimilarity("a", "b", 0.75f);
+        Attributes attr = new Attributes();
+        attr.genderMale = 0.9f;
+        dbConn.setPedestrianAttributes("a", attr);
+        dbConn.close();
+
+        // Reopen from the snapshot, then modify without closing.
+        dbConn = LocalGraphDatabaseConnector.open(dir);
+        Assert.assertEquals("metadata/video/task.tlc", dbConn.getTrackletSavingDir("video"));
+        Assert.assertEquals(0.75f, dbConn.getPedestrianSimilarity("b", "a"), 0);
+        Assert.assertEquals(2, dbConn.getLinkedPedestrians("a").length);
+        Assert.assertEquals(0.9f, dbConn.getPedestrianAttributes("a").genderMale, 0);
+        dbConn.setPedestrianSimilarity("c", "d", 0.125f);
+
+        // Copy the files of the open store, as if it crashed,
+        // and recover the modification from the log.
+        File crashedDir = Files.createTempDirectory("graphdb").toFile();
+        for (String name : new String[]{"snapshot", "wal"}) {
+            Files.copy(new File(dir, name).toPath(), new File(crashedDir, name).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        dbConn.close();
+        dbConn = LocalGraphDatabaseConnector.open(crashedDir);
+        Assert.assertEquals(0.125f, dbConn.getPedestrianSimilarity("d", "c"), 0);
+        Assert.assertEquals(2, dbConn.getLinkedPedestrians("c").length);
+        try {
+            dbConn.getPedestrianSimilarity("b", "d");
+            Assert.fail("Unlinked pedestrians should not have similarity.");
+        } catch (NoSuchElementException ignored) {
+        }
+        try {
+            dbConn.getTrackletSavingDir("unknown");
+            Assert.fail("Unknown pedestrians should not be found.");
+        } catch (NoSuchElementException ignored) {
+        }
+        dbConn.close();
+    }
+}
@@ -0,0 +1,85 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.opencv_core;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This is a benchmark of the PatchEncoder on a synthetic tracklet.
+ * It requires the native OpenCV libraries, so it is not run by default.
+ */
+public class PatchEncoderTest {
+
+    private static final int NUM_FRAMES = 1000;
+    private static final int PATCH_WIDTH = 64;
+    private static final int PATCH_HEIGHT = 160;
+
+    public static void main(String[] args) throws Exception {
+        new PatchEncoderTest().benchmark();
+    }
+
+    private static Tracklet createTracklet() {
+        Random random = new Random(0);
+        Tracklet tracklet = new Tracklet();
+        tracklet.locationSequence = new Tracklet.BoundingBox[NUM_FRAMES];
+        for (int i = 0; i < NUM_FRAMES; ++i) {
+            Tracklet.BoundingBox bbox = new Tracklet.BoundingBox();
+            bbox.x = i;
+            bbox.y = i;
+            bbox.width = PATCH_WIDTH;
+            bbox.height = PATCH_HEIGHT;
+            bbox.patchData = new byte[PATCH_WIDTH * PATCH_HEIGHT * 3];
+            // Smooth gradients with some noise, more like real images than pure noise.
+            for (int p = 0; p < bbox.patchData.length; ++p) {
+                bbox.patchData[p] = (byte) ((p / 3 % PATCH_WIDTH) * 2 + i + random.nextInt(16));
+            }
+            tracklet.locationSequence[i] = bbox;
+        }
+        return tracklet;
+    }
+
+    //    @Test
+    public void benchmark() throws Exception {
+        Loader.load(opencv_core.class);
+        Tracklet tracklet = createTracklet();
+        int numCores = Runtime.getRuntime().availableProcessors();
+        for (int numThreads = 1; numThreads <= numCores; numThreads *= 2) {
+            PatchEncoder encoder = new PatchEncoder(PatchEncoder.DEFAULT_QUALITY, numThreads);
+            // Warm up.
+            encoder.encode(tracklet);
+
+            long start = System.nanoTime();
+            List<byte[]> patches = encoder.encode(tracklet);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long bytes = 0;
+            for (byte[] patch : patches) {
+                bytes += patch.length;
+            }
+            double framesPerSecond = NUM_FRAMES / seconds;
+            System.out.println(String.format(
+                    "%d thread(s): %.1f frames/s, %.1f frames/s per core, %d KB encoded",
+                    numThreads, framesPerSecond, framesPerSecond / numThreads, bytes >> 10));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.common.Priority;
+import org.cripac.isee.vpe.ctrl.MessageHandlingApp;
+import org.cripac.isee.vpe.ctrl.TaskData;
+import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
+import org.cripac.isee.vpe.ctrl.TaskExpander;
+import org.cripac.isee.vpe.util.hdfs.TrackletContainer;
+import org.cripac.isee.vpe.util.logging.ConsoleLogger;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.Tuple2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import static org.cripac.isee.vpe.util.SerializationHelper.serialize;
+
+public class SavingStreamTest {
+
+    private static final int NUM_TRACKLETS = 2;
+
+    private static RemoteIterator<Path> listVideos(Path... videos) {
+        final Iterator<Path> iterator = Arrays.asList(videos).iterator();
+        return new RemoteIterator<Path>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Path next() {
+                return iterator.next();
+            }
+        };
+    }
+
+    private static Tracklet createTracklet(String videoID, int serialNumber) {
+        Tracklet tracklet = new Tracklet();
+        tracklet.id = new Tracklet.Identifier(videoID, serialNumber);
+        tracklet.numTracklets = NUM_TRACKLETS;
+        tracklet.startFrameIndex = serialNumber * 10;
+        Tracklet.BoundingBox bbox = new Tracklet.BoundingBox();
+        bbox.x = 10;
+        bbox.y = 20;
+        bbox.width = 30;
+        bbox.height = 60;
+        tracklet.locationSequence = new Tracklet.BoundingBox[]{bbox};
+        return tracklet;
+    }
+
+    @Test
+    public void saveTrackletsOfCommandOnTwoVideos() throws Exception {
+        // The raw local file system supports appending, like HDFS.
+        FileSystem fs = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+        String metadataDir = System.getProperty("java.io.tmpdir") + "/saving-stream-test";
+        fs.delete(new Path(metadataDir), true);
+        ConsoleLogger logger = new ConsoleLogger();
+
+        // A command on a directory is expanded into a task for each video,
+        // whose tracker sends tracklets numbered from 0 for its video.
+        ExecutionPlan plan = new ExecutionPlan();
+        plan.addNode(DataManagingApp.SavingStream.INFO);
+        String commandID = UUID.randomUUID().toString();
+        List<Tuple2<String, byte[]>> messages = new ArrayList<>();
+        TaskExpander expander = new TaskExpander(0);
+        expander.add(listVideos(new Path("videos/a.h264"), new Path("videos/b.h264")),
+                Priority.NORMAL,
+                (video, index) -> {
+                    String taskID = MessageHandlingApp.MessageHandlingStream
+                            .getVideoTaskID(commandID, index);
+                    for (int i = 0; i < NUM_TRACKLETS; ++i) {
+                        TaskData taskData = new TaskData(
+                                plan.findNode(DataManagingApp.SavingStream.PED_TRACKLET_SAVING_TOPIC),
+                                plan,
+                                createTracklet(video.toString(), i));
+                        messages.add(new Tuple2<>(taskID, serialize(taskData)));
+                    }
+                });
+        Assert.assertEquals(2, expander.expand(logger));
+
+        List<Tuple2<String, TrackletSavingProgress>> reports =
+                DataManagingApp.SavingStream.saveTracklets(messages.iterator(), fs, metadataDir,
+                        new PatchEncoder(PatchEncoder.DEFAULT_QUALITY, 1), 32, 250, logger);
+        Assert.assertEquals(2, reports.size());
+        for (Tuple2<String, TrackletSavingProgress> report : reports) {
+            TrackletSavingProgress saved = report._2();
+            // Each video has a complete container of its own.
+            Assert.assertTrue(saved.storePath.contains(saved.videoID));
+            TrackletSavingProgress progress = new TrackletSavingProgress(
+                    report._1(), saved.videoID, saved.storePath, -1);
+            Assert.assertEquals(TrackletSavingProgress.Event.FINISHED, progress.merge(saved));
+            try (TrackletContainer.Reader reader =
+                         new TrackletContainer.Reader(fs, new Path(saved.storePath))) {
+                Assert.assertEquals(NUM_TRACKLETS, reader.getNumTracklets());
+                for (int i = 0; i < NUM_TRACKLETS; ++i) {
+                    Assert.assertTrue(reader.read(i).info.contains("\"run-frame-index\":" + i * 10));
+                }
+            }
+        }
+        Assert.assertNotEquals(reports.get(0)._2().videoID, reports.get(1)._2().videoID);
+        fs.delete(new Path(metadataDir), true);
+    }
+}
@@ -0,0 +1,57 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TrackletSavingProgressTest {
+
+    private static TrackletSavingProgress saved(int... serialNumbers) {
+        TrackletSavingProgress progress = new TrackletSavingProgress("task", "video", "video/task.tlc", 3);
+        for (int serialNumber : serialNumbers) {
+            progress.markSaved(serialNumber);
+        }
+        return progress;
+    }
+
+    @Test
+    public void merge() throws Exception {
+        TrackletSavingProgress progress = new TrackletSavingProgress("task", "video", "video/task.tlc", -1);
+        Assert.assertEquals(TrackletSavingProgress.Event.PROGRESSED, progress.merge(saved(0)));
+        Assert.assertEquals(3, progress.getNumTracklets());
+        // Re-delivered tracklets are counted once.
+        Assert.assertEquals(TrackletSavingProgress.Event.IGNORED, progress.merge(saved(0)));
+        Assert.assertEquals(TrackletSavingProgress.Event.PROGRESSED, progress.merge(saved(0, 2)));
+        Assert.assertEquals(2, progress.getNumSaved());
+        Assert.assertFalse(progress.isFinished());
+
+        // The task finishes exactly once.
+        Assert.assertEquals(TrackletSavingProgress.Event.FINISHED, progress.merge(saved(1)));
+        Assert.assertTrue(progress.isFinished());
+        Assert.assertEquals(TrackletSavingProgress.Event.IGNORED, progress.merge(saved(1)));
+        Assert.assertEquals(TrackletSavingProgress.Event.IGNORED, progress.timeOut());
+    }
+
+    @Test
+    public void timeOut() throws Exception {
+        TrackletSavingProgress progress = saved(0);
+        Assert.assertEquals(TrackletSavingProgress.Event.TIMED_OUT, progress.timeOut());
+        Assert.assertEquals(1, progress.copy().getNumSaved());
+    }
+}
@@ -0,0 +1,79 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NativeMemoryRegistryTest {
+
+    @Test
+    public void reserve() throws Exception {
+        NativeMemoryRegistry.setBudget(100);
+        NativeMemoryRegistry.Reservation first = NativeMemoryRegistry.reserve("test", 80);
+        Assert.assertEquals(80, NativeMemoryRegistry.getUsedBytes("test"));
+
+        // The second reservation exceeds the budget, so it waits for the first to be released.
+        long[] usedWhenGranted = new long[1];
+        Thread waiter = new Thread(() -> {
+            try (NativeMemoryRegistry.Reservation second = NativeMemoryRegistry.reserve("test", 50)) {
+                usedWhenGranted[0] = NativeMemoryRegistry.getUsedBytes("test");
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        waiter.start();
+        Thread.sleep(200);
+        Assert.assertTrue(waiter.isAlive());
+
+        first.close();
+        // Closing again has no effect.
+        first.close();
+        waiter.join(5000);
+        Assert.assertFalse(waiter.isAlive());
+        Assert.assertEquals(50, usedWhenGranted[0]);
+        Assert.assertEquals(0, NativeMemoryRegistry.getUsedBytes("test"));
+
+        // A reservation larger than the budget is granted when nothing else is reserved.
+        try (NativeMemoryRegistry.Reservation large = NativeMemoryRegistry.reserve("test", 200)) {
+            Assert.assertEquals(200, large.getBytes());
+        }
+        NativeMemoryRegistry.setBudget(0);
+    }
+
+    @Test
+    public void tryReserve() throws Exception {
+        NativeMemoryRegistry.setBudget(100);
+        try (NativeMemoryRegistry.Reservation first = NativeMemoryRegistry.reserve("test", 80)) {
+            // Reservations exceeding the budget are refused instead of waiting.
+            Assert.assertNull(NativeMemoryRegistry.tryReserve("test", 50, 0));
+            try (NativeMemoryRegistry.Reservation second = NativeMemoryRegistry.tryReserve("test", 20, 0)) {
+                Assert.assertNotNull(second);
+                Assert.assertEquals(100, NativeMemoryRegistry.getUsedBytes("test"));
+            }
+            // A caller holding all the reserved memory is never refused.
+            try (NativeMemoryRegistry.Reservation third = NativeMemoryRegistry.tryReserve("test", 50, 80)) {
+                Assert.assertNotNull(third);
+            }
+        }
+        // Waiting for memory does not reserve it.
+        NativeMemoryRegistry.awaitAvailable(100);
+        Assert.assertEquals(0, NativeMemoryRegistry.getUsedBytes("test"));
+        NativeMemoryRegistry.setBudget(0);
+    }
+}
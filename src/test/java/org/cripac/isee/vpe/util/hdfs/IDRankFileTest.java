@@ -0,0 +1,65 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.pedestrian.reid.IDRank;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IDRankFileTest {
+
+    @Test
+    public void appendAndRead() throws Exception {
+        // The raw local file system supports appending, like HDFS.
+        FileSystem fs = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+        Path path = new Path(System.getProperty("java.io.tmpdir")
+                + "/id-rank-file-test" + IDRankFile.SUFFIX);
+        fs.delete(path, false);
+
+        Tracklet.Identifier query0 = new Tracklet.Identifier("video", 0);
+        Tracklet.Identifier query1 = new Tracklet.Identifier("video", 1);
+        // Ranks of a task may arrive in different batches.
+        try (IDRankFile.Writer writer = new IDRankFile.Writer(fs, path)) {
+            writer.append(new IDRank(query0, new int[]{3, 300, -1}, new float[]{0.9f, 0.5f, 0.1f}));
+            writer.append(IDRank.fromRank(query1, new int[]{7, 70000}));
+        }
+        try (IDRankFile.Writer writer = new IDRankFile.Writer(fs, path)) {
+            // Re-queried tracklets get their latest ranks.
+            writer.append(new IDRank(query0, new int[]{4}, new float[]{0.8f}));
+        }
+
+        try (IDRankFile.Reader reader = new IDRankFile.Reader(fs, path)) {
+            Assert.assertEquals(2, reader.getQueryIDs().size());
+            IDRank rank = reader.read(query1);
+            Assert.assertEquals(query1.toString(), rank.queryID.toString());
+            Assert.assertArrayEquals(new int[]{7, 70000}, rank.ids);
+            Assert.assertArrayEquals(new float[]{1f, 0.5f}, rank.similarities, 0);
+            Assert.assertFalse(rank.scored);
+            rank = reader.read(query0);
+            Assert.assertTrue(rank.scored);
+            Assert.assertArrayEquals(new int[]{4}, rank.ids);
+            Assert.assertArrayEquals(new float[]{0.8f}, rank.similarities, 0);
+            Assert.assertNull(reader.read(new Tracklet.Identifier("video", 2)));
+        }
+        fs.delete(path, false);
+    }
+}
@@ -0,0 +1,72 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TrackletContainerTest {
+
+    @Test
+    public void appendAndRead() throws Exception {
+        // The raw local file system supports appending, like HDFS.
+        FileSystem fs = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+        Path path = new Path(System.getProperty("java.io.tmpdir")
+                + "/tracklet-container-test" + TrackletContainer.SUFFIX);
+        fs.delete(path, false);
+
+        // Tracklets of a task may arrive in different batches.
+        try (TrackletContainer.Writer writer = new TrackletContainer.Writer(fs, path)) {
+            writer.append(0, "{\"run-frame-index\":0}",
+                    Arrays.asList(new byte[]{1, 2, 3}, new byte[0]));
+            writer.append(1, "{\"run-frame-index\":10}",
+                    Collections.singletonList(new byte[]{4}));
+            Assert.assertEquals(2, writer.getNumTracklets());
+        }
+        try (TrackletContainer.Writer writer = new TrackletContainer.Writer(fs, path)) {
+            writer.append(2, "{\"run-frame-index\":20}",
+                    Collections.singletonList(new byte[]{5, 6}));
+            // Tracklets saved earlier are known, so recomputed batches can skip them.
+            Assert.assertTrue(writer.contains(0));
+            Assert.assertTrue(writer.contains(2));
+            Assert.assertFalse(writer.contains(3));
+            // Re-delivered tracklets are not counted twice.
+            writer.append(1, "{\"run-frame-index\":10}",
+                    Collections.singletonList(new byte[]{4}));
+            Assert.assertEquals(3, writer.getNumTracklets());
+        }
+
+        try (TrackletContainer.Reader reader = new TrackletContainer.Reader(fs, path)) {
+            Assert.assertEquals(3, reader.getNumTracklets());
+            TrackletContainer.Record record = reader.read(0);
+            Assert.assertEquals("{\"run-frame-index\":0}", record.info);
+            Assert.assertEquals(2, record.patches.length);
+            Assert.assertArrayEquals(new byte[]{1, 2, 3}, record.patches[0]);
+            Assert.assertEquals(0, record.patches[1].length);
+            Assert.assertArrayEquals(new byte[]{5, 6}, reader.read(2).patches[0]);
+            Assert.assertFalse(reader.contains(3));
+        }
+        fs.delete(path, false);
+    }
+}
@@ -0,0 +1,85 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.hdfs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.pedestrian.tracking.Tracklet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TrajectoryIndexTest {
+
+    /**
+     * Create a tracklet moving horizontally with 10x10 bounding boxes.
+     */
+    private static Tracklet createTracklet(int serialNumber, int startFrameIndex,
+                                           int startX, int y, int numFrames, int step) {
+        Tracklet tracklet = new Tracklet();
+        tracklet.id = new Tracklet.Identifier("video", serialNumber);
+        tracklet.startFrameIndex = startFrameIndex;
+        tracklet.locationSequence = new Tracklet.BoundingBox[numFrames];
+        for (int i = 0; i < numFrames; ++i) {
+            Tracklet.BoundingBox bbox = new Tracklet.BoundingBox();
+            bbox.x = startX + i * step - 5;
+            bbox.y = y - 5;
+            bbox.width = 10;
+            bbox.height = 10;
+            tracklet.locationSequence[i] = bbox;
+        }
+        return tracklet;
+    }
+
+    @Test
+    public void appendAndSearch() throws Exception {
+        // The raw local file system supports appending, like HDFS.
+        FileSystem fs = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+        Path containerPath = new Path(System.getProperty("java.io.tmpdir")
+                + "/trajectory-index-test" + TrackletContainer.SUFFIX);
+        Path path = TrajectoryIndex.pathOf(containerPath);
+        Assert.assertTrue(path.toString().endsWith("trajectory-index-test" + TrajectoryIndex.SUFFIX));
+        fs.delete(path, false);
+
+        // Tracklets of a task may arrive in different batches.
+        try (TrajectoryIndex.Writer writer = new TrajectoryIndex.Writer(fs, path, 32, 100)) {
+            // Walks from (0, 50) to (990, 50) during frames 0-99.
+            writer.append(createTracklet(0, 0, 0, 50, 100, 10));
+            // Stays at (500, 500) during frames 300-309.
+            writer.append(createTracklet(1, 300, 500, 500, 10, 0));
+        }
+        try (TrajectoryIndex.Writer writer = new TrajectoryIndex.Writer(fs, path, 32, 100)) {
+            // Re-delivered tracklets replace the earlier ones.
+            writer.append(createTracklet(1, 300, 600, 500, 10, 0));
+        }
+
+        TrajectoryIndex index = TrajectoryIndex.load(fs, path);
+        Assert.assertEquals(2, index.getNumTrajectories());
+        Assert.assertArrayEquals(new int[]{0}, index.search(400, 40, 20, 20, 0, 99));
+        // Tracklet 0 passes the region at frame 40 only.
+        Assert.assertArrayEquals(new int[0], index.search(400, 40, 20, 20, 50, 99));
+        Assert.assertArrayEquals(new int[]{1}, index.search(590, 490, 20, 20, 305, 305));
+        Assert.assertArrayEquals(new int[0], index.search(490, 490, 20, 20, 300, 309));
+        // Large regions check all the trajectories.
+        Assert.assertArrayEquals(new int[]{0, 1}, index.search(0, 0, 2000, 2000, 0, 1000));
+
+        TrajectoryIndex.Cache cache = new TrajectoryIndex.Cache(1);
+        Assert.assertSame(cache.get(fs, path), cache.get(fs, path));
+        fs.delete(path, false);
+    }
+}
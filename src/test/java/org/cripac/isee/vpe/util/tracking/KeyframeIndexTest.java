@@ -0,0 +1,120 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.tracking;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+public class KeyframeIndexTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1E};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x38, (byte) 0x80};
+    private static final byte[] IDR = {0, 0, 1, 0x65, (byte) 0x88, (byte) 0x84, 0x21, 0x00, 0x02};
+    private static final byte[] P = {0, 0, 1, 0x41, (byte) 0x9A, 0x11, 0x00, 0x00, 0x03, 0x01};
+
+    private void append(ByteArrayOutputStream out, byte[] nal) {
+        out.write(nal, 0, nal.length);
+    }
+
+    @Test
+    public void build() throws Exception {
+        ByteArrayOutputStream video = new ByteArrayOutputStream();
+        long[] expectedOffsets = new long[3];
+        for (int gop = 0; gop < 3; ++gop) {
+            expectedOffsets[gop] = video.size();
+            append(video, SPS);
+            append(video, PPS);
+            append(video, IDR);
+            for (int i = 0; i < 4; ++i) {
+                append(video, P);
+            }
+        }
+
+        KeyframeIndex index = KeyframeIndex.build(
+                new ByteArrayInputStream(video.toByteArray()), 1234L, 25);
+        Assert.assertEquals(3, index.getNumKeyframes());
+        Assert.assertEquals(video.size(), index.videoLength);
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(expectedOffsets[i], index.getOffset(i));
+            Assert.assertEquals(i * 5, index.getFrameIndex(i));
+            Assert.assertEquals(i * 200, index.getTimestampMs(i));
+        }
+        Assert.assertEquals(expectedOffsets[1], index.getEndOffset(0));
+        Assert.assertEquals(video.size(), index.getEndOffset(2));
+        Assert.assertEquals(0, index.findKeyframe(4));
+        Assert.assertEquals(1, index.findKeyframe(5));
+        Assert.assertEquals(2, index.findKeyframe(100));
+        // Parameter sets in the access unit of a keyframe need not be prepended.
+        Assert.assertEquals(0, index.getParameterSetRanges(1).length);
+
+        ByteArrayOutputStream sidecar = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(sidecar));
+        KeyframeIndex loaded = KeyframeIndex.readFrom(
+                new DataInputStream(new ByteArrayInputStream(sidecar.toByteArray())));
+        Assert.assertEquals(index.videoLength, loaded.videoLength);
+        Assert.assertEquals(1234L, loaded.modificationTime);
+        Assert.assertEquals(3, loaded.getNumKeyframes());
+        for (int i = 0; i < 3; ++i) {
+            Assert.assertEquals(index.getOffset(i), loaded.getOffset(i));
+            Assert.assertEquals(index.getFrameIndex(i), loaded.getFrameIndex(i));
+        }
+    }
+
+    @Test
+    public void carryParameterSets() throws Exception {
+        // Parameter sets are sent only at the beginning of the stream.
+        ByteArrayOutputStream video = new ByteArrayOutputStream();
+        append(video, SPS);
+        append(video, PPS);
+        long[] expectedOffsets = new long[2];
+        for (int gop = 0; gop < 2; ++gop) {
+            expectedOffsets[gop] = video.size();
+            append(video, IDR);
+            append(video, P);
+        }
+
+        KeyframeIndex index = KeyframeIndex.build(
+                new ByteArrayInputStream(video.toByteArray()), 0, 25);
+        Assert.assertEquals(2, index.getNumKeyframes());
+        Assert.assertEquals(0, index.getOffset(0));
+        Assert.assertEquals(expectedOffsets[1], index.getOffset(1));
+        Assert.assertEquals(0, index.getParameterSetRanges(0).length);
+        Assert.assertArrayEquals(new long[]{0, SPS.length, SPS.length, SPS.length + PPS.length},
+                index.getParameterSetRanges(1));
+
+        ByteArrayOutputStream sidecar = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(sidecar));
+        KeyframeIndex loaded = KeyframeIndex.readFrom(
+                new DataInputStream(new ByteArrayInputStream(sidecar.toByteArray())));
+        Assert.assertArrayEquals(index.getParameterSetRanges(1), loaded.getParameterSetRanges(1));
+    }
+
+    @Test
+    public void buildNonAnnexB() throws Exception {
+        KeyframeIndex index = KeyframeIndex.build(
+                new ByteArrayInputStream(new byte[]{0x12, 0x34, 0x56, 0x78}), 0, 25);
+        Assert.assertEquals(1, index.getNumKeyframes());
+        Assert.assertEquals(0, index.getOffset(0));
+        Assert.assertEquals(4, index.getEndOffset(0));
+    }
+}
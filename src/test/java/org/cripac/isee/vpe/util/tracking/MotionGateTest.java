@@ -0,0 +1,70 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.tracking;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class MotionGateTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private byte[] createFrame(int blockX) {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3];
+        Arrays.fill(frame, (byte) 50);
+        if (blockX >= 0) {
+            // Draw a bright block simulating a moving pedestrian.
+            for (int y = 80; y < 160; ++y) {
+                for (int x = blockX; x < blockX + 40 && x < WIDTH; ++x) {
+                    int p = (y * WIDTH + x) * 3;
+                    frame[p] = frame[p + 1] = frame[p + 2] = (byte) 200;
+                }
+            }
+        }
+        return frame;
+    }
+
+    @Test
+    public void pass() throws Exception {
+        MotionGate.Config conf = new MotionGate.Config();
+        conf.hangoverFrames = 2;
+        MotionGate gate = new MotionGate(conf, WIDTH, HEIGHT, 3);
+
+        // The first frame always passes.
+        Assert.assertTrue(gate.pass(createFrame(-1)));
+        // Static frames are skipped.
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertFalse(gate.pass(createFrame(-1)));
+        }
+        // Moving frames pass.
+        for (int i = 0; i < 5; ++i) {
+            Assert.assertTrue(gate.pass(createFrame(i * 20)));
+        }
+        // Hangover frames pass after motion stops.
+        Assert.assertTrue(gate.pass(createFrame(80)));
+        Assert.assertTrue(gate.pass(createFrame(80)));
+        Assert.assertFalse(gate.pass(createFrame(80)));
+
+        MotionGate.Statistics stat = gate.getStatistics();
+        Assert.assertEquals(19, stat.numFrames);
+        Assert.assertEquals(11, stat.numSkippedFrames);
+    }
+}
@@ -0,0 +1,65 @@
+/***********************************************************************
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ ************************************************************************/
+
+package org.cripac.isee.vpe.util.transport;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.spark.streaming.Time;
+import org.junit.Assert;
+import org.junit.Test;
+import scala.Tuple2;
+
+import java.util.List;
+
+public class InProcessTransportTest {
+
+    @Test
+    public void passMessages() throws Exception {
+        final String topic = "in-process-transport-test";
+        InProcessProducer producer = new InProcessProducer(2);
+
+        byte[] value = new byte[]{1, 2, 3};
+        producer.send(new ProducerRecord<>(topic, "task-0", value)).get();
+        producer.send(new ProducerRecord<>(topic, "task-1", new byte[0])).get();
+
+        // The queue is full, so the next sender waits until a batch takes and processes the messages.
+        Thread sender = new Thread(() -> producer.send(new ProducerRecord<>(topic, "task-2", new byte[0])));
+        sender.start();
+        sender.join(500);
+        Assert.assertTrue(sender.isAlive());
+
+        InProcessTransport.Queue queue = InProcessTransport.getQueue(topic, 2);
+        Time batchTime = new Time(1000);
+        List<Tuple2<String, byte[]>> messages = queue.drain();
+        InProcessTransport.releaseOnCompletion(batchTime, queue, messages.size());
+        Assert.assertEquals(2, messages.size());
+        Assert.assertEquals("task-0", messages.get(0)._1());
+        // Messages are not copied.
+        Assert.assertSame(value, messages.get(0)._2());
+        Assert.assertEquals("task-1", messages.get(1)._1());
+        // Messages in a batch being processed still occupy the queue.
+        sender.join(500);
+        Assert.assertTrue(sender.isAlive());
+        Assert.assertEquals(2, queue.size());
+
+        InProcessTransport.onBatchCompleted(batchTime);
+        sender.join();
+        messages = InProcessTransport.getQueue(topic, 2).drain();
+        Assert.assertEquals(1, messages.size());
+        Assert.assertEquals("task-2", messages.get(0)._1());
+    }
+}